@@ -23,6 +23,7 @@ import org.apache.http.util.ByteArrayBuffer;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 /**
  * 默认的字节数组Http响应处理器，用于将Http响应转成字节数组
@@ -45,9 +46,22 @@ public class BinaryHttpResponseHandler implements HttpResponseHandler {
             throw new HttpResponseException(httpResponse.getStatusLine().getStatusCode(), "HttpEntity is null");
 		}
 
+        // 缓存中的响应体直接从ByteBuffer中复制一次就可以了
+        if(httpEntity instanceof ByteBufferEntity){
+            return toByteArray(httpRequest, ((ByteBufferEntity) httpEntity).getByteBuffer());
+        }
         return toByteArray(httpRequest, httpEntity);
 	}
 
+    private byte[] toByteArray(HttpRequest httpRequest, ByteBuffer byteBuffer) {
+        byte[] bytes = new byte[byteBuffer.remaining()];
+        byteBuffer.get(bytes);
+        if(httpRequest.getProgressListener() != null && !httpRequest.isCanceled()){
+            new HttpRequestHandler.UpdateProgressRunnable(httpRequest, bytes.length, bytes.length).execute();
+        }
+        return bytes;
+    }
+
     private byte[] toByteArray(HttpRequest httpRequest, final HttpEntity entity) throws IOException {
         if (entity == null) {
             throw new IllegalArgumentException("HTTP entity may not be null");
@@ -85,4 +99,20 @@ public class BinaryHttpResponseHandler implements HttpResponseHandler {
         }
         return buffer.toByteArray();
     }
+
+    /**
+     * 没有状态，所以同类型的处理器都相等，合并相同请求时使用；子类默认按引用比较
+     */
+    @Override
+    public boolean equals(Object o) {
+        if(getClass() != BinaryHttpResponseHandler.class){
+            return super.equals(o);
+        }
+        return o != null && o.getClass() == getClass();
+    }
+
+    @Override
+    public int hashCode() {
+        return getClass() != BinaryHttpResponseHandler.class ? super.hashCode() : getClass().hashCode();
+    }
 }
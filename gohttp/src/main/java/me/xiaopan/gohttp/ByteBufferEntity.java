@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.gohttp;
+
+import org.apache.http.HttpEntity;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 可以直接以ByteBuffer的形式访问响应体的实体，缓存中读出来的响应实体都实现了此接口，
+ * HttpResponseHandler可以直接使用返回的ByteBuffer，省去从输入流读取时的多次拷贝
+ */
+public interface ByteBufferEntity extends HttpEntity {
+    /**
+     * 获取响应体的只读视图，内容与getContent()读到的完全一样，position为0，limit为响应体长度
+     * @return 较大的缓存文件返回的是MappedByteBuffer，数据不会被复制到堆内存中
+     * @throws IOException 缓存文件不存在或者映射失败
+     */
+    public ByteBuffer getByteBuffer() throws IOException;
+}
@@ -25,6 +25,13 @@ public class CacheConfig {
     private String cacheDirectory;  // 缓存目录
     private boolean refreshCache;  // 当本地缓存可用的时候，是否依然从网络加载新的数据来刷新本地缓存
     private boolean refreshCallback;  // 当刷新本地缓存完成的时候是否再次回调HttpResponseHandler.handleResponse()
+    private boolean httpSemantics;  // 是否遵循响应头中的Cache-Control、Expires和Vary，开启后缓存有效期优先以响应头为准，没有的话再使用periodOfValidity
+    private int staleWhileRevalidate;   // 缓存过期之后的这段时间内依然先返回过期的缓存，同时在后台刷新缓存，单位毫秒，小于等于0时不开启
+    private int staleIfError;   // 缓存过期之后的这段时间内如果网络请求失败就返回过期的缓存，单位毫秒，小于等于0时不开启
+    private boolean streamingWrite;  // 是否边读取边写入缓存，响应处理成功之后才提交缓存，而不是先把响应完整写入缓存再读取
+    private boolean storeCompressed;    // 是否以压缩后的原始数据保存gzip响应，读取时再解压
+    private boolean race;   // 缓存可用的时候是否同时读取缓存和请求网络，哪个先拿到有效的结果就先回调哪个
+    private boolean revalidate;  // 当本地缓存过期的时候，是否携带If-None-Match、If-Modified-Since请求头向服务器确认缓存是否依然可用，服务器返回304时直接使用缓存
     private HttpRequest httpRequest;
 
     /**
@@ -115,6 +122,147 @@ public class CacheConfig {
 		return this;
     }
     
+    /**
+     * 是否遵循响应头中的Cache-Control、Expires和Vary
+     * @return
+     */
+    public boolean isHttpSemantics() {
+        return httpSemantics;
+    }
+
+    /**
+     * 设置是否遵循响应头中的Cache-Control、Expires和Vary。开启后缓存有效期优先根据Cache-Control: max-age或Expires计算，没有的话再使用periodOfValidity；
+     * Cache-Control: no-store的响应不会被缓存；Vary中指定的请求头不一致时不会使用缓存
+     * @param httpSemantics
+     */
+    public CacheConfig setHttpSemantics(boolean httpSemantics) {
+        this.httpSemantics = httpSemantics;
+		return this;
+    }
+
+    /**
+     * 当本地缓存过期的时候，是否携带If-None-Match、If-Modified-Since请求头向服务器确认缓存是否依然可用
+     * @return
+     */
+    public boolean isRevalidate() {
+        return revalidate;
+    }
+
+    /**
+     * 设置当本地缓存过期的时候，是否携带If-None-Match、If-Modified-Since请求头向服务器确认缓存是否依然可用，服务器返回304时会刷新缓存时间并直接使用缓存
+     * @param revalidate
+     */
+    public CacheConfig setRevalidate(boolean revalidate) {
+        this.revalidate = revalidate;
+		return this;
+    }
+
+    /**
+     * 获取stale-while-revalidate窗口
+     * @return 单位毫秒，小于等于0时不开启
+     */
+    public int getStaleWhileRevalidate() {
+        return staleWhileRevalidate;
+    }
+
+    /**
+     * 设置stale-while-revalidate窗口，缓存过期之后的这段时间内依然立即返回过期的缓存，同时在后台刷新缓存（同一个缓存ID同时只会有一个刷新任务）
+     * @param staleWhileRevalidate 单位毫秒，小于等于0时不开启
+     */
+    public CacheConfig setStaleWhileRevalidate(int staleWhileRevalidate) {
+        this.staleWhileRevalidate = staleWhileRevalidate;
+		return this;
+    }
+
+    /**
+     * 获取stale-if-error窗口
+     * @return 单位毫秒，小于等于0时不开启
+     */
+    public int getStaleIfError() {
+        return staleIfError;
+    }
+
+    /**
+     * 设置stale-if-error窗口，缓存过期之后的这段时间内如果网络请求失败（包括服务器返回5xx）就返回过期的缓存，而不是回调onFailed()
+     * @param staleIfError 单位毫秒，小于等于0时不开启
+     */
+    public CacheConfig setStaleIfError(int staleIfError) {
+        this.staleIfError = staleIfError;
+		return this;
+    }
+
+    /**
+     * 是否边读取边写入缓存
+     * @return
+     */
+    public boolean isStreamingWrite() {
+        return streamingWrite;
+    }
+
+    /**
+     * 设置是否边读取边写入缓存，开启后HttpResponseHandler直接读取网络数据，读到的数据同时写入缓存，响应体读完并且处理成功之后才提交缓存，
+     * 取消或失败的时候放弃缓存。适合比较大的响应，可以省去先写入磁盘再读出来的时间
+     * @param streamingWrite
+     */
+    public CacheConfig setStreamingWrite(boolean streamingWrite) {
+        this.streamingWrite = streamingWrite;
+		return this;
+    }
+
+    /**
+     * 是否以压缩后的原始数据保存gzip响应
+     * @return
+     */
+    public boolean isStoreCompressed() {
+        return storeCompressed;
+    }
+
+    /**
+     * 设置是否以压缩后的原始数据保存gzip响应，开启后缓存文件中保存的是服务器返回的压缩数据，读取缓存时再解压后交给HttpResponseHandler，
+     * 文本类的响应可以节省大部分的磁盘空间和读取量，代价是每次使用缓存都要解压一次
+     * @param storeCompressed
+     */
+    public CacheConfig setStoreCompressed(boolean storeCompressed) {
+        this.storeCompressed = storeCompressed;
+		return this;
+    }
+
+    /**
+     * 是否同时读取缓存和请求网络
+     * @return
+     */
+    public boolean isRace() {
+        return race;
+    }
+
+    /**
+     * 设置缓存可用的时候是否同时读取缓存和请求网络，哪个先拿到有效的结果就先回调哪个，网络请求的结果依然会写入缓存。
+     * 缓存先回调的话，网络请求完成之后是否再次回调由refreshCallback决定；网络先回调的话就不再回调缓存了。
+     * 适合磁盘较慢或者网络较快的场景，代价是每次请求都会访问网络
+     * @param race
+     */
+    public CacheConfig setRace(boolean race) {
+        this.race = race;
+		return this;
+    }
+
+    /**
+     * 缓存行为是否与给定的缓存配置完全一样，合并相同请求时使用
+     */
+    boolean isSameBehavior(CacheConfig cacheConfig){
+        return cacheConfig != null
+                && periodOfValidity == cacheConfig.periodOfValidity
+                && refreshCache == cacheConfig.refreshCache
+                && refreshCallback == cacheConfig.refreshCallback
+                && httpSemantics == cacheConfig.httpSemantics
+                && staleWhileRevalidate == cacheConfig.staleWhileRevalidate
+                && staleIfError == cacheConfig.staleIfError
+                && streamingWrite == cacheConfig.streamingWrite
+                && storeCompressed == cacheConfig.storeCompressed
+                && race == cacheConfig.race
+                && revalidate == cacheConfig.revalidate;
+    }
+
     /**
      * 获取缓存目录
      * @return
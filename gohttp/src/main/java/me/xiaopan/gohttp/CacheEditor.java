@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.gohttp;
+
+import java.io.IOException;
+
+/**
+ * 缓存编辑器，边读边写缓存时由CacheManager返回，响应体读取完毕并且处理成功之后调用commit()，否则调用abort()
+ */
+public interface CacheEditor {
+    /**
+     * 提交缓存，会先把尚未读取的响应体读完并写入缓存，只有第一次调用有效
+     * @throws IOException 写入缓存失败，此时临时文件已被删除
+     */
+    public void commit() throws IOException;
+
+    /**
+     * 放弃缓存，删除临时文件，只有第一次调用有效
+     */
+    public void abort();
+}
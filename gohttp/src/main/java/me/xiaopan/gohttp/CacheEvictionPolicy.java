@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.gohttp;
+
+/**
+ * 缓存淘汰策略
+ */
+public enum CacheEvictionPolicy {
+    /**
+     * 最近最少使用，优先淘汰最长时间没有访问的缓存
+     */
+    LRU,
+
+    /**
+     * 最不经常使用，优先淘汰访问次数最少的缓存，访问次数相同时优先淘汰最长时间没有访问的
+     */
+    LFU;
+}
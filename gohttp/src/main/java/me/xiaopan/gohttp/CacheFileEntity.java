@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.gohttp;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 缓存文件实体，响应体只占缓存文件中从offset开始的length个字节
+ */
+public class CacheFileEntity extends AbstractHttpEntity implements ByteBufferEntity {
+    private static final int MAP_THRESHOLD = 32 * 1024; // 超过此长度的响应体才使用内存映射，太小的话映射的开销反而更大
+
+    private File file;
+    private long offset;    // 响应体在文件中的起始位置
+    private long length;    // 响应体长度
+    private boolean encoded;    // 响应体是否是压缩后的原始数据
+    private long decodedLength; // 响应体解压后的长度，未知时为-1
+    private InputStream pendingContent; // 读取缓存头时已经打开并定位到响应体的输入流，第一次getContent()时直接返回，省去再次打开文件
+
+    CacheFileEntity(File file, long offset, long length, boolean encoded, long decodedLength, InputStream pendingContent) {
+        this.file = file;
+        this.offset = offset;
+        this.length = length;
+        this.encoded = encoded;
+        this.decodedLength = decodedLength;
+        this.pendingContent = pendingContent;
+    }
+
+    /**
+     * 创建一个指向另一个文件中相同位置的实体，临时文件重命名之后使用
+     */
+    CacheFileEntity withFile(File file){
+        CacheFileEntity cacheFileEntity = new CacheFileEntity(file, offset, length, encoded, decodedLength, null);
+        cacheFileEntity.setContentType(getContentType());
+        cacheFileEntity.setContentEncoding(getContentEncoding());
+        return cacheFileEntity;
+    }
+
+    /**
+     * 获取解压后的整个缓存文件的大小，用于统计压缩前后的占用
+     */
+    long getDecodedFileLength(){
+        return offset + (decodedLength >= 0 ? decodedLength : length);
+    }
+
+    /**
+     * 获取缓存文件
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * 获取响应体在缓存文件中的起始位置
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * 响应体是否是Content-Encoding压缩后的原始数据
+     */
+    public boolean isEncoded() {
+        return encoded;
+    }
+
+    /**
+     * 获取响应体解压后的长度
+     * @return 没有压缩时与getContentLength()相同，未知时为-1
+     */
+    public long getDecodedLength() {
+        return decodedLength;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return length;
+    }
+
+    @Override
+    public synchronized InputStream getContent() throws IOException {
+        if(pendingContent != null){
+            InputStream inputStream = pendingContent;
+            pendingContent = null;
+            return inputStream;
+        }
+
+        FileInputStream inputStream = new FileInputStream(file);
+        try{
+            long skipped = 0;
+            while(skipped < offset){
+                long number = inputStream.skip(offset - skipped);
+                if(number <= 0){
+                    throw new IOException("缓存文件已损坏：" + file.getPath());
+                }
+                skipped += number;
+            }
+        }catch (IOException e){
+            inputStream.close();
+            throw e;
+        }
+        return inputStream;
+    }
+
+    /**
+     * 获取响应体的只读视图，超过32KB的响应体直接映射缓存文件，否则读到堆内存中
+     */
+    @Override
+    public ByteBuffer getByteBuffer() throws IOException {
+        // 已经打开的输入流用不上了，先关掉
+        consumeContent();
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try{
+            if(offset + length > randomAccessFile.length()){
+                throw new IOException("缓存文件已损坏：" + file.getPath());
+            }
+            if(length >= MAP_THRESHOLD){
+                // 映射建立之后就与文件是否关闭无关了
+                return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, offset, length);
+            }
+            byte[] bytes = new byte[(int) length];
+            randomAccessFile.seek(offset);
+            randomAccessFile.readFully(bytes);
+            return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+        }finally {
+            randomAccessFile.close();
+        }
+    }
+
+    @Override
+    public void writeTo(OutputStream outputStream) throws IOException {
+        if (outputStream == null) {
+            throw new IllegalArgumentException("Output stream may not be null");
+        }
+        InputStream inputStream = getContent();
+        try {
+            byte[] bytes = new byte[4096];
+            long remaining = length;
+            int number;
+            while (remaining > 0 && (number = inputStream.read(bytes, 0, (int) Math.min(bytes.length, remaining))) != -1) {
+                outputStream.write(bytes, 0, number);
+                remaining -= number;
+            }
+            outputStream.flush();
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+    /**
+     * 关闭尚未被读取的输入流
+     */
+    @Override
+    public synchronized void consumeContent() throws IOException {
+        if(pendingContent != null){
+            pendingContent.close();
+            pendingContent = null;
+        }
+    }
+}
@@ -0,0 +1,420 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.gohttp;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 缓存ID锁表，相同缓存ID的请求共用同一把锁
+ * <br>锁按引用计数管理，有线程持有或者正在等待的时候一直保留，全部释放之后立即移除，不依赖GC，也就不会出现同一个缓存ID拿到两把不同的锁的情况；
+ * 锁表按缓存ID的哈希值分成若干段，每段单独同步，并且只在获取和释放引用的时候短暂持有，不同缓存ID之间不会互相阻塞
+ */
+public class CacheIdLocks {
+    private static final int DEFAULT_SEGMENT_COUNT = 16;
+
+    private final Segment[] segments;
+    private final int segmentMask;
+    private final AtomicLong acquireCount;  // 加锁次数
+    private final AtomicLong contendedCount;    // 需要等待才能拿到锁的次数
+    private final AtomicLong totalWaitNanos;    // 总共等待的时间
+    private final AtomicLong maxWaitNanos;  // 最长的一次等待时间
+
+    /**
+     * @param segmentCount 分段数量，会向上取整为2的幂
+     */
+    public CacheIdLocks(int segmentCount) {
+        if(segmentCount <= 0){
+            throw new IllegalArgumentException("segmentCount <= 0");
+        }
+        int size = 1;
+        while(size < segmentCount){
+            size <<= 1;
+        }
+        segments = new Segment[size];
+        for(int w = 0; w < segments.length; w++){
+            segments[w] = new Segment();
+        }
+        segmentMask = size - 1;
+        acquireCount = new AtomicLong();
+        contendedCount = new AtomicLong();
+        totalWaitNanos = new AtomicLong();
+        maxWaitNanos = new AtomicLong();
+    }
+
+    public CacheIdLocks() {
+        this(DEFAULT_SEGMENT_COUNT);
+    }
+
+    /**
+     * 获取给定缓存ID的锁，返回的锁只能在当前线程中使用，可以多次加锁和解锁，解锁之后再加锁的时候依然是同一个缓存ID的锁；
+     * {@link Lock#newCondition()}只能在持有锁的时候调用，得到的Condition在完全解锁之前有效
+     * @param cacheId 缓存ID
+     * @return 锁
+     */
+    public Lock getLock(String cacheId){
+        if(cacheId == null){
+            throw new IllegalArgumentException("cacheId is null");
+        }
+        return new CacheIdLock(cacheId);
+    }
+
+    /**
+     * 获取给定缓存ID的锁，和{@link #getLock(String)}一样，只是包装成了ReentrantLock，给还在使用ReentrantLock的旧代码用。
+     * <br>isFair()、getQueueLength()、hasQueuedThreads()、hasQueuedThread(Thread)是final方法，无法反映真实的状态
+     * @param cacheId 缓存ID
+     * @return 锁
+     */
+    ReentrantLock getReentrantLock(String cacheId){
+        if(cacheId == null){
+            throw new IllegalArgumentException("cacheId is null");
+        }
+        return new ReentrantCacheIdLock(new CacheIdLock(cacheId));
+    }
+
+    /**
+     * 获取当前有线程持有或者正在等待的锁的数量
+     */
+    public int getActiveCount(){
+        int count = 0;
+        for(Segment segment : segments){
+            synchronized (segment){
+                count += segment.entries.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 获取加锁次数
+     */
+    public long getAcquireCount() {
+        return acquireCount.get();
+    }
+
+    /**
+     * 获取需要等待其它线程释放才能拿到锁的次数
+     */
+    public long getContendedCount() {
+        return contendedCount.get();
+    }
+
+    /**
+     * 获取总共等待的时间
+     * @return 单位纳秒
+     */
+    public long getTotalWaitNanos() {
+        return totalWaitNanos.get();
+    }
+
+    /**
+     * 获取最长的一次等待时间
+     * @return 单位纳秒
+     */
+    public long getMaxWaitNanos() {
+        return maxWaitNanos.get();
+    }
+
+    /**
+     * 清零等待统计
+     */
+    public void resetStats(){
+        acquireCount.set(0);
+        contendedCount.set(0);
+        totalWaitNanos.set(0);
+        maxWaitNanos.set(0);
+    }
+
+    private Segment getSegment(String cacheId){
+        int hash = cacheId.hashCode();
+        hash ^= (hash >>> 16);
+        return segments[hash & segmentMask];
+    }
+
+    /**
+     * 获取缓存ID对应的锁条目并增加引用计数
+     */
+    private Entry retain(String cacheId){
+        Segment segment = getSegment(cacheId);
+        synchronized (segment){
+            Entry entry = segment.entries.get(cacheId);
+            if(entry == null){
+                entry = new Entry();
+                segment.entries.put(cacheId, entry);
+            }
+            entry.refCount++;
+            return entry;
+        }
+    }
+
+    /**
+     * 减少引用计数，没有线程再使用的话就移除
+     */
+    private void release(String cacheId, Entry entry){
+        Segment segment = getSegment(cacheId);
+        synchronized (segment){
+            if(--entry.refCount == 0){
+                segment.entries.remove(cacheId);
+            }
+        }
+    }
+
+    private void recordWait(long waitNanos){
+        contendedCount.incrementAndGet();
+        totalWaitNanos.addAndGet(waitNanos);
+        long max;
+        while(waitNanos > (max = maxWaitNanos.get()) && !maxWaitNanos.compareAndSet(max, waitNanos)){
+            // 其它线程同时更新了最大值，重试
+        }
+    }
+
+    /**
+     * 给定缓存ID的锁是否被某个线程持有
+     */
+    private boolean isLocked(String cacheId){
+        Segment segment = getSegment(cacheId);
+        synchronized (segment){
+            Entry entry = segment.entries.get(cacheId);
+            return entry != null && entry.lock.isLocked();
+        }
+    }
+
+    private static class Segment {
+        private final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+    }
+
+    private static class Entry {
+        private final ReentrantLock lock = new ReentrantLock();
+        private int refCount;   // 持有和正在等待的次数，只在所属的Segment的同步块中修改
+    }
+
+    /**
+     * 单个线程使用的缓存ID锁，第一次加锁的时候获取锁条目，完全解锁的时候释放
+     */
+    private class CacheIdLock implements Lock {
+        private String cacheId;
+        private Entry entry;
+        private int holdCount;
+
+        private CacheIdLock(String cacheId) {
+            this.cacheId = cacheId;
+        }
+
+        @Override
+        public void lock() {
+            if(holdCount > 0){
+                entry.lock.lock();
+                holdCount++;
+                return;
+            }
+
+            Entry entry = retain(cacheId);
+            acquireCount.incrementAndGet();
+            if(!entry.lock.tryLock()){
+                long startTime = System.nanoTime();
+                entry.lock.lock();
+                recordWait(System.nanoTime() - startTime);
+            }
+            this.entry = entry;
+            holdCount = 1;
+        }
+
+        @Override
+        public void lockInterruptibly() throws InterruptedException {
+            if(holdCount > 0){
+                entry.lock.lockInterruptibly();
+                holdCount++;
+                return;
+            }
+
+            Entry entry = retain(cacheId);
+            acquireCount.incrementAndGet();
+            if(!entry.lock.tryLock()){
+                long startTime = System.nanoTime();
+                try{
+                    entry.lock.lockInterruptibly();
+                }catch (InterruptedException e){
+                    release(cacheId, entry);
+                    throw e;
+                }
+                recordWait(System.nanoTime() - startTime);
+            }
+            this.entry = entry;
+            holdCount = 1;
+        }
+
+        @Override
+        public boolean tryLock() {
+            if(holdCount > 0){
+                entry.lock.lock();
+                holdCount++;
+                return true;
+            }
+
+            Entry entry = retain(cacheId);
+            if(!entry.lock.tryLock()){
+                release(cacheId, entry);
+                return false;
+            }
+            acquireCount.incrementAndGet();
+            this.entry = entry;
+            holdCount = 1;
+            return true;
+        }
+
+        @Override
+        public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+            if(holdCount > 0){
+                entry.lock.lock();
+                holdCount++;
+                return true;
+            }
+
+            Entry entry = retain(cacheId);
+            if(!entry.lock.tryLock()){
+                long startTime = System.nanoTime();
+                boolean locked = false;
+                try{
+                    locked = entry.lock.tryLock(time, unit);
+                }finally {
+                    if(!locked){
+                        release(cacheId, entry);
+                    }
+                }
+                if(!locked){
+                    return false;
+                }
+                recordWait(System.nanoTime() - startTime);
+            }
+            acquireCount.incrementAndGet();
+            this.entry = entry;
+            holdCount = 1;
+            return true;
+        }
+
+        @Override
+        public void unlock() {
+            if(holdCount == 0){
+                throw new IllegalMonitorStateException("not locked: " + cacheId);
+            }
+            Entry entry = this.entry;
+            entry.lock.unlock();
+            if(--holdCount == 0){
+                this.entry = null;
+                release(cacheId, entry);
+            }
+        }
+
+        /**
+         * 锁条目在完全解锁之后就会被移除，所以只能在持有锁的时候创建Condition；await期间依然持有引用，锁条目不会被移除
+         */
+        @Override
+        public Condition newCondition() {
+            if(holdCount == 0){
+                throw new IllegalMonitorStateException("not locked: " + cacheId);
+            }
+            return entry.lock.newCondition();
+        }
+    }
+
+    /**
+     * 把缓存ID锁包装成ReentrantLock，加锁和解锁都交给缓存ID锁，父类本身的锁不会被使用
+     */
+    private class ReentrantCacheIdLock extends ReentrantLock {
+        private static final long serialVersionUID = 4218613474620137931L;
+
+        private final transient CacheIdLock cacheIdLock;
+
+        private ReentrantCacheIdLock(CacheIdLock cacheIdLock) {
+            this.cacheIdLock = cacheIdLock;
+        }
+
+        @Override
+        public void lock() {
+            cacheIdLock.lock();
+        }
+
+        @Override
+        public void lockInterruptibly() throws InterruptedException {
+            cacheIdLock.lockInterruptibly();
+        }
+
+        @Override
+        public boolean tryLock() {
+            return cacheIdLock.tryLock();
+        }
+
+        @Override
+        public boolean tryLock(long timeout, TimeUnit unit) throws InterruptedException {
+            return cacheIdLock.tryLock(timeout, unit);
+        }
+
+        @Override
+        public void unlock() {
+            cacheIdLock.unlock();
+        }
+
+        @Override
+        public Condition newCondition() {
+            return cacheIdLock.newCondition();
+        }
+
+        @Override
+        public int getHoldCount() {
+            Entry entry = cacheIdLock.entry;
+            return entry != null ? entry.lock.getHoldCount() : 0;
+        }
+
+        @Override
+        public boolean isHeldByCurrentThread() {
+            Entry entry = cacheIdLock.entry;
+            return entry != null && entry.lock.isHeldByCurrentThread();
+        }
+
+        @Override
+        public boolean isLocked() {
+            return cacheIdLock.holdCount > 0 || CacheIdLocks.this.isLocked(cacheIdLock.cacheId);
+        }
+
+        @Override
+        public boolean hasWaiters(Condition condition) {
+            return getConditionOwner().hasWaiters(condition);
+        }
+
+        @Override
+        public int getWaitQueueLength(Condition condition) {
+            return getConditionOwner().getWaitQueueLength(condition);
+        }
+
+        private ReentrantLock getConditionOwner(){
+            Entry entry = cacheIdLock.entry;
+            if(entry == null){
+                throw new IllegalMonitorStateException("not locked: " + cacheIdLock.cacheId);
+            }
+            return entry.lock;
+        }
+
+        @Override
+        public String toString() {
+            return "CacheIdLock[" + cacheIdLock.cacheId + (isLocked() ? ", locked]" : ", unlocked]");
+        }
+    }
+}
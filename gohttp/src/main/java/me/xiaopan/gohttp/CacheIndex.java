@@ -0,0 +1,508 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.gohttp;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 缓存索引，在内存中记录每个缓存条目的大小、缓存时间、过期时间、最后访问时间和访问次数，查询和判断过期都不再访问磁盘。
+ * <br>所有的修改都会以追加的方式记录到缓存目录下的journal文件中，启动时在后台线程中根据journal文件重建索引，
+ * journal文件中的冗余记录过多时会在后台线程中重写journal文件；journal文件中的缓存ID版本和当前的不一致时丢弃所有记录，也不再根据缓存文件重建
+ * <pre>
+ * me.xiaopan.gohttp.CacheIndex
+ * 1
+ * 缓存ID的版本（可以为空）
+ * PUT 缓存ID 大小 缓存时间 过期时间 解压后的大小
+ * GET 缓存ID 访问时间 访问次数
+ * DEL 缓存ID
+ * </pre>
+ */
+class CacheIndex {
+    static final String JOURNAL_FILE = "journal";
+    private static final String JOURNAL_FILE_TEMP = "journal.tmp";
+    private static final String MAGIC = "me.xiaopan.gohttp.CacheIndex";
+    private static final String VERSION = "1";
+    private static final String PUT = "PUT";
+    private static final String GET = "GET";
+    private static final String DEL = "DEL";
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+    private static final int JOURNAL_INVALID = -1;  // journal文件不存在或已损坏
+    private static final int JOURNAL_STALE = -2;    // journal文件中的缓存ID版本和当前的不一致
+
+    private File directory; // 缓存目录
+    private String recordSuffix;    // 缓存文件后缀名，没有journal文件的时候会根据缓存文件重建索引
+    private String tempSuffix;  // 临时文件后缀名，加载时会清理上次进程退出时遗留的临时文件
+    private String cacheIdVersion;  // 缓存ID的版本，缓存ID的生成方式改变之后原来的记录都不能再使用
+    private long createTime;    // 创建时间，在此之后创建的临时文件可能正在写入，不能清理
+    private Executor executor;  // 后台线程，所有的磁盘操作都在这里执行
+    private final ConcurrentHashMap<String, Entry> entries;
+    private final ConcurrentLinkedQueue<String> pendingOps;  // 尚未写入journal文件的记录
+    private final AtomicBoolean flushScheduled;
+    private final AtomicLong size;  // 所有缓存条目的总大小，单位字节
+    private final AtomicLong decodedSize;   // 所有缓存条目解压后的总大小，单位字节
+    private final Set<String> removedWhileLoading;  // 加载期间被删除的条目，加载完成后不能再被journal中的旧记录恢复
+    private volatile boolean loaded;    // 是否已经加载完成
+    private volatile boolean closed;
+
+    // 以下字段只在后台线程中访问
+    private Writer journalWriter;
+    private int redundantOpCount;   // journal文件中的冗余记录数
+
+    CacheIndex(File directory, String recordSuffix, String tempSuffix, String cacheIdVersion, Executor executor) {
+        this.directory = directory;
+        this.recordSuffix = recordSuffix;
+        this.tempSuffix = tempSuffix;
+        this.cacheIdVersion = cacheIdVersion;
+        this.createTime = System.currentTimeMillis();
+        this.executor = executor;
+        this.entries = new ConcurrentHashMap<String, Entry>();
+        this.pendingOps = new ConcurrentLinkedQueue<String>();
+        this.flushScheduled = new AtomicBoolean();
+        this.size = new AtomicLong();
+        this.decodedSize = new AtomicLong();
+        this.removedWhileLoading = Collections.synchronizedSet(new HashSet<String>());
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    /**
+     * 是否已经加载完成，加载完成之前索引中的数据是不完整的
+     */
+    boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * 获取缓存目录
+     */
+    File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * 获取缓存条目
+     * @param cacheId 缓存ID
+     * @return 没有的话返回null
+     */
+    Entry get(String cacheId){
+        return entries.get(cacheId);
+    }
+
+    /**
+     * 获取所有的缓存条目
+     */
+    Collection<Entry> getEntries(){
+        return entries.values();
+    }
+
+    /**
+     * 获取所有缓存条目的总大小
+     * @return 单位字节
+     */
+    long getSize(){
+        return size.get();
+    }
+
+    /**
+     * 获取所有缓存条目解压后的总大小，响应体以压缩数据保存的条目按解压后的大小计算
+     * @return 单位字节
+     */
+    long getDecodedSize(){
+        return decodedSize.get();
+    }
+
+    /**
+     * 获取缓存条目数量
+     */
+    int getCount(){
+        return entries.size();
+    }
+
+    /**
+     * 添加或替换缓存条目
+     */
+    void put(String cacheId, long size, long decodedSize, long storedTime, long expiresTime){
+        Entry entry = new Entry(cacheId, size, decodedSize, storedTime, expiresTime);
+        Entry oldEntry = entries.put(cacheId, entry);
+        this.size.addAndGet(oldEntry != null ? size - oldEntry.size : size);
+        this.decodedSize.addAndGet(oldEntry != null ? decodedSize - oldEntry.decodedSize : decodedSize);
+        if(!loaded){
+            removedWhileLoading.remove(cacheId);
+        }
+        appendOp(PUT + " " + encode(cacheId) + " " + size + " " + storedTime + " " + expiresTime + " " + decodedSize);
+    }
+
+    /**
+     * 记录一次访问
+     */
+    void recordAccess(String cacheId){
+        Entry entry = entries.get(cacheId);
+        if(entry == null){
+            return;
+        }
+        entry.lastAccessTime = System.currentTimeMillis();
+        appendOp(GET + " " + encode(cacheId) + " " + entry.lastAccessTime + " " + entry.accessCount.incrementAndGet());
+    }
+
+    /**
+     * 删除缓存条目
+     */
+    void remove(String cacheId){
+        Entry oldEntry = entries.remove(cacheId);
+        if(oldEntry != null){
+            size.addAndGet(-oldEntry.size);
+            decodedSize.addAndGet(-oldEntry.decodedSize);
+        }
+        if(!loaded){
+            removedWhileLoading.add(cacheId);
+        }
+        appendOp(DEL + " " + encode(cacheId));
+    }
+
+    /**
+     * 只有当前的缓存条目仍然是给定的条目时才删除，用于淘汰缓存时避免误删刚刚写入的新条目
+     * @return 是否已删除
+     */
+    boolean remove(Entry entry){
+        if(!entries.remove(entry.id, entry)){
+            return false;
+        }
+        size.addAndGet(-entry.size);
+        decodedSize.addAndGet(-entry.decodedSize);
+        appendOp(DEL + " " + encode(entry.id));
+        return true;
+    }
+
+    /**
+     * 关闭索引，尚未写入的记录会在后台线程中写入journal文件
+     */
+    void close(){
+        closed = true;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+                if(journalWriter != null){
+                    try {
+                        journalWriter.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    journalWriter = null;
+                }
+            }
+        });
+    }
+
+    private void appendOp(String op){
+        if(closed){
+            return;
+        }
+        pendingOps.offer(op);
+        if(flushScheduled.compareAndSet(false, true)){
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    flushScheduled.set(false);
+                    flush();
+                }
+            });
+        }
+    }
+
+    /**
+     * 将尚未写入的记录写入journal文件，只在后台线程中执行
+     */
+    private void flush(){
+        if(!loaded || pendingOps.isEmpty()){
+            return;
+        }
+
+        try {
+            if(journalWriter == null){
+                journalWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(directory, JOURNAL_FILE), true), "UTF-8"));
+            }
+            String op;
+            while((op = pendingOps.poll()) != null){
+                journalWriter.write(op);
+                journalWriter.write('\n');
+                redundantOpCount++;
+            }
+            journalWriter.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+            pendingOps.clear();
+        }
+
+        if(redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD && redundantOpCount >= entries.size()){
+            rebuildJournal();
+        }
+    }
+
+    /**
+     * 根据journal文件加载索引，journal文件不存在或已损坏时根据缓存文件重建，只在后台线程中执行
+     */
+    private void load(){
+        sweepTempFiles();
+
+        Map<String, Entry> loadedEntries = new HashMap<String, Entry>();
+        int opCount = readJournal(loadedEntries);
+        if(opCount < 0){
+            loadedEntries.clear();
+        }
+        if(opCount == JOURNAL_INVALID){
+            scanDirectory(loadedEntries);
+        }
+
+        synchronized (removedWhileLoading){
+            for(Entry entry : loadedEntries.values()){
+                if(!removedWhileLoading.contains(entry.id) && entries.putIfAbsent(entry.id, entry) == null){
+                    size.addAndGet(entry.size);
+                    decodedSize.addAndGet(entry.decodedSize);
+                }
+            }
+            removedWhileLoading.clear();
+        }
+
+        // 加载期间产生的记录还在pendingOps中，会在journal文件之后追加
+        loaded = true;
+        if(opCount < 0 || opCount - entries.size() >= REDUNDANT_OP_COMPACT_THRESHOLD){
+            rebuildJournal();
+        }else{
+            redundantOpCount = opCount - entries.size();
+        }
+        flush();
+    }
+
+    /**
+     * 读取journal文件
+     * @return 记录数，journal文件不存在或已损坏时返回{@link #JOURNAL_INVALID}，缓存ID版本不一致时返回{@link #JOURNAL_STALE}
+     */
+    private int readJournal(Map<String, Entry> loadedEntries){
+        File journalFile = new File(directory, JOURNAL_FILE);
+        if(!journalFile.exists()){
+            return JOURNAL_INVALID;
+        }
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), "UTF-8"));
+            if(!MAGIC.equals(reader.readLine()) || !VERSION.equals(reader.readLine())){
+                return JOURNAL_INVALID;
+            }
+            if(!cacheIdVersion.equals(reader.readLine())){
+                return JOURNAL_STALE;
+            }
+
+            int opCount = 0;
+            String line;
+            while((line = reader.readLine()) != null){
+                String[] parts = line.split(" ");
+                if(PUT.equals(parts[0]) && (parts.length == 5 || parts.length == 6)){
+                    // 早期的记录没有解压后的大小，按文件大小计算
+                    String cacheId = decode(parts[1]);
+                    long size = Long.parseLong(parts[2]);
+                    loadedEntries.put(cacheId, new Entry(cacheId, size, parts.length == 6 ? Long.parseLong(parts[5]) : size, Long.parseLong(parts[3]), Long.parseLong(parts[4])));
+                }else if(GET.equals(parts[0]) && parts.length == 4){
+                    Entry entry = loadedEntries.get(decode(parts[1]));
+                    if(entry != null){
+                        entry.lastAccessTime = Long.parseLong(parts[2]);
+                        entry.accessCount.set(Integer.parseInt(parts[3]));
+                    }
+                }else if(DEL.equals(parts[0]) && parts.length == 2){
+                    loadedEntries.remove(decode(parts[1]));
+                }else if(line.length() > 0){
+                    // 最后一行可能因为进程被杀而不完整，忽略即可
+                    continue;
+                }
+                opCount++;
+            }
+            return opCount;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return JOURNAL_INVALID;
+        } catch (NumberFormatException e){
+            e.printStackTrace();
+            return JOURNAL_INVALID;
+        } finally {
+            if(reader != null){
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * 删除写入期间进程被杀或者断电遗留的临时文件，只在后台线程中执行
+     * <br>文件系统的修改时间精度可能只有2秒，所以只删除比索引创建时间早2秒以上的临时文件
+     */
+    private void sweepTempFiles(){
+        File[] files = directory.listFiles();
+        if(files == null){
+            return;
+        }
+        long deadline = createTime - 2000;
+        for(File file : files){
+            if(file.getName().endsWith(tempSuffix) && file.lastModified() < deadline && !file.delete() && file.exists()){
+                Log.w(GoHttp.LOG_TAG, "Cache : 删除遗留的临时文件失败：" + file.getPath());
+            }
+        }
+    }
+
+    /**
+     * 扫描缓存目录重建索引
+     */
+    private void scanDirectory(Map<String, Entry> loadedEntries){
+        File[] files = directory.listFiles();
+        if(files == null){
+            return;
+        }
+        for(File file : files){
+            String fileName = file.getName();
+            if(fileName.endsWith(recordSuffix)){
+                String cacheId = fileName.substring(0, fileName.length() - recordSuffix.length());
+                long lastModified = file.lastModified();
+                loadedEntries.put(cacheId, new Entry(cacheId, file.length(), file.length(), lastModified, 0));
+            }
+        }
+    }
+
+    /**
+     * 根据内存中的索引重写journal文件，只在后台线程中执行
+     */
+    private void rebuildJournal(){
+        if(journalWriter != null){
+            try {
+                journalWriter.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            journalWriter = null;
+        }
+
+        if(!directory.exists() && !directory.mkdirs()){
+            return;
+        }
+
+        File journalFile = new File(directory, JOURNAL_FILE);
+        File tempJournalFile = new File(directory, JOURNAL_FILE_TEMP);
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempJournalFile), "UTF-8"));
+            writer.write(MAGIC);
+            writer.write('\n');
+            writer.write(VERSION);
+            writer.write('\n');
+            writer.write(cacheIdVersion);
+            writer.write('\n');
+            for(Entry entry : entries.values()){
+                writer.write(PUT + " " + encode(entry.id) + " " + entry.size + " " + entry.storedTime + " " + entry.expiresTime + " " + entry.decodedSize + "\n");
+                if(entry.accessCount.get() > 0){
+                    writer.write(GET + " " + encode(entry.id) + " " + entry.lastAccessTime + " " + entry.accessCount.get() + "\n");
+                }
+            }
+            writer.close();
+            writer = null;
+            if(!tempJournalFile.renameTo(journalFile)){
+                throw new IOException("重命名journal文件失败：" + tempJournalFile.getPath());
+            }
+            redundantOpCount = 0;
+        } catch (IOException e) {
+            e.printStackTrace();
+            tempJournalFile.delete();
+        } finally {
+            if(writer != null){
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static String encode(String cacheId){
+        try {
+            return URLEncoder.encode(cacheId, "UTF-8");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String decode(String string){
+        try {
+            return URLDecoder.decode(string, "UTF-8");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 缓存条目
+     */
+    static class Entry {
+        final String id;   // 缓存ID
+        final long size;   // 缓存文件大小，单位字节
+        final long decodedSize;    // 响应体解压后的缓存文件大小，响应体没有压缩时与size相同
+        final long storedTime; // 缓存时间
+        final long expiresTime;    // 过期时间，为0时以CacheConfig中的有效期为准
+        volatile long lastAccessTime;  // 最后访问时间
+        final AtomicInteger accessCount;    // 访问次数
+
+        Entry(String id, long size, long decodedSize, long storedTime, long expiresTime) {
+            this.id = id;
+            this.size = size;
+            this.decodedSize = decodedSize;
+            this.storedTime = storedTime;
+            this.expiresTime = expiresTime;
+            this.lastAccessTime = storedTime;
+            this.accessCount = new AtomicInteger();
+        }
+    }
+}
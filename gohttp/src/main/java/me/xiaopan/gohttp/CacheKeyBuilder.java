@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.gohttp;
+
+/**
+ * 缓存ID生成器，把请求方式、URL、参数等组成部分依次写入MurmurHash3（x64，128位），最后生成32位十六进制字符串。
+ * <br>每个字符串都会先写入长度再按UTF-8编码逐字节写入，既不会因为拼接产生歧义，也不需要创建中间字符串，非ASCII字符也不会被截断。
+ * <br>此类不是线程安全的，每次生成都要创建新的实例
+ */
+public final class CacheKeyBuilder {
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private long h1;
+    private long h2;
+    private final byte[] block = new byte[16];  // 尚未处理的数据，满16字节处理一次
+    private int blockLength;
+    private long length;    // 已写入的总字节数
+
+    /**
+     * 写入一个字符串，null和空字符串是不同的
+     */
+    public CacheKeyBuilder put(String string){
+        if(string == null){
+            put(-1);
+            return this;
+        }
+
+        put(utf8Length(string));
+        for(int w = 0, size = string.length(); w < size; w++){
+            int codePoint = string.charAt(w);
+            if(Character.isHighSurrogate((char) codePoint) && w + 1 < size && Character.isLowSurrogate(string.charAt(w + 1))){
+                codePoint = Character.toCodePoint((char) codePoint, string.charAt(++w));
+            }
+            if(codePoint < 0x80){
+                putByte(codePoint);
+            }else if(codePoint < 0x800){
+                putByte(0xC0 | (codePoint >> 6));
+                putByte(0x80 | (codePoint & 0x3F));
+            }else if(codePoint < 0x10000){
+                // 落单的代理字符和String.getBytes("UTF-8")一样按'?'处理
+                if(isSurrogate((char) codePoint)){
+                    putByte('?');
+                }else{
+                    putByte(0xE0 | (codePoint >> 12));
+                    putByte(0x80 | ((codePoint >> 6) & 0x3F));
+                    putByte(0x80 | (codePoint & 0x3F));
+                }
+            }else{
+                putByte(0xF0 | (codePoint >> 18));
+                putByte(0x80 | ((codePoint >> 12) & 0x3F));
+                putByte(0x80 | ((codePoint >> 6) & 0x3F));
+                putByte(0x80 | (codePoint & 0x3F));
+            }
+        }
+        return this;
+    }
+
+    /**
+     * 写入一个整数，按小端序写入4个字节
+     */
+    public CacheKeyBuilder put(int value){
+        putByte(value);
+        putByte(value >>> 8);
+        putByte(value >>> 16);
+        putByte(value >>> 24);
+        return this;
+    }
+
+    /**
+     * 生成缓存ID
+     * @return 32位十六进制字符串
+     */
+    public String build(){
+        long k1 = 0;
+        long k2 = 0;
+        for(int w = blockLength - 1; w >= 8; w--){
+            k2 = (k2 << 8) | (block[w] & 0xFF);
+        }
+        for(int w = Math.min(blockLength, 8) - 1; w >= 0; w--){
+            k1 = (k1 << 8) | (block[w] & 0xFF);
+        }
+        if(blockLength > 8){
+            h2 ^= mixK2(k2);
+        }
+        if(blockLength > 0){
+            h1 ^= mixK1(k1);
+        }
+
+        long h1 = this.h1 ^ length;
+        long h2 = this.h2 ^ length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+        h1 += h2;
+        h2 += h1;
+
+        StringBuilder stringBuilder = new StringBuilder(32);
+        appendHex(stringBuilder, h1);
+        appendHex(stringBuilder, h2);
+        return stringBuilder.toString();
+    }
+
+    private void putByte(int oneByte){
+        block[blockLength++] = (byte) oneByte;
+        length++;
+        if(blockLength == block.length){
+            processBlock();
+            blockLength = 0;
+        }
+    }
+
+    private void processBlock(){
+        long k1 = getLittleEndianLong(block, 0);
+        long k2 = getLittleEndianLong(block, 8);
+
+        h1 ^= mixK1(k1);
+        h1 = Long.rotateLeft(h1, 27);
+        h1 += h2;
+        h1 = h1 * 5 + 0x52dce729;
+
+        h2 ^= mixK2(k2);
+        h2 = Long.rotateLeft(h2, 31);
+        h2 += h1;
+        h2 = h2 * 5 + 0x38495ab5;
+    }
+
+    private static long mixK1(long k1){
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        k1 *= C2;
+        return k1;
+    }
+
+    private static long mixK2(long k2){
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        k2 *= C1;
+        return k2;
+    }
+
+    private static long fmix64(long k){
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    private static long getLittleEndianLong(byte[] bytes, int offset){
+        long value = 0;
+        for(int w = offset + 7; w >= offset; w--){
+            value = (value << 8) | (bytes[w] & 0xFF);
+        }
+        return value;
+    }
+
+    private static int utf8Length(String string){
+        int utf8Length = 0;
+        for(int w = 0, size = string.length(); w < size; w++){
+            char c = string.charAt(w);
+            if(c < 0x80){
+                utf8Length++;
+            }else if(c < 0x800){
+                utf8Length += 2;
+            }else if(Character.isHighSurrogate(c) && w + 1 < size && Character.isLowSurrogate(string.charAt(w + 1))){
+                utf8Length += 4;
+                w++;
+            }else if(isSurrogate(c)){
+                utf8Length++;
+            }else{
+                utf8Length += 3;
+            }
+        }
+        return utf8Length;
+    }
+
+    private static boolean isSurrogate(char c){
+        return c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE;
+    }
+
+    private static void appendHex(StringBuilder stringBuilder, long value){
+        String hex = Long.toHexString(value);
+        for(int w = hex.length(); w < 16; w++){
+            stringBuilder.append('0');
+        }
+        stringBuilder.append(hex);
+    }
+}
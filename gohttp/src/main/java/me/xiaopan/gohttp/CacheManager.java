@@ -31,6 +31,15 @@ public interface CacheManager {
      */
     public void saveHttpResponseToCache(HttpRequest httpRequest, HttpResponse httpResponse)  throws IOException;
 
+    /**
+     * 以边读取边写入的方式缓存响应，响应实体会被替换为一个在被读取的同时把数据写入缓存的实体，
+     * 处理完响应之后调用{@link CacheEditor#commit()}提交或者{@link CacheEditor#abort()}放弃
+     * @param httpRequest 请求
+     * @param httpResponse 响应
+     * @return 缓存编辑器，不支持的话返回null，这时会改用{@link #saveHttpResponseToCache(HttpRequest, HttpResponse)}
+     */
+    public CacheEditor editHttpResponseCache(HttpRequest httpRequest, HttpResponse httpResponse) throws IOException;
+
     /**
      * 根据请求判断其是否有可用缓存
      * @param httpRequest 请求
@@ -38,6 +47,27 @@ public interface CacheManager {
      */
     public boolean isHasAvailableCache(HttpRequest httpRequest);
 
+    /**
+     * 获取缓存的过期时间，判断缓存过期了多久的时候使用，例如stale-while-revalidate和stale-if-error
+     * @param httpRequest 请求
+     * @return 过期时间，没有缓存的话返回0，永久有效的话返回Long.MAX_VALUE
+     */
+    public long getCacheOutOfDateTime(HttpRequest httpRequest);
+
+    /**
+     * 获取缓存时间
+     * @param httpRequest 请求
+     * @return 缓存时间，没有缓存的话返回0
+     */
+    public long getCacheTime(HttpRequest httpRequest);
+
+    /**
+     * 获取根据响应头计算出的过期时间
+     * @param httpRequest 请求
+     * @return 过期时间，没有缓存、缓存时没有开启{@link CacheConfig#setHttpSemantics(boolean)}或者响应头中没有相关信息的时候返回0
+     */
+    public long getCacheExpiresTime(HttpRequest httpRequest);
+
     /**
      * 从缓存中读取HTTP响应
      * @param httpRequest 请求
@@ -45,6 +75,14 @@ public interface CacheManager {
      */
     public HttpResponse readHttpResponseFromCache(HttpRequest httpRequest);
 
+    /**
+     * 服务器返回304确认缓存依然可用的时候刷新缓存，更新缓存时间以及304响应中携带的响应头
+     * @param httpRequest 请求
+     * @param notModifiedResponse 服务器返回的304响应
+     * @return 刷新后的缓存响应，没有缓存的话返回null
+     */
+    public HttpResponse refreshHttpResponseCache(HttpRequest httpRequest, HttpResponse notModifiedResponse) throws IOException;
+
     /**
      * 设置缓存目录
      * @param cacheDirectory 缓存目录
@@ -57,4 +95,10 @@ public interface CacheManager {
      * @return 缓存ID
      */
     public String generateCacheId(HttpRequest httpRequest);
+
+    /**
+     * 获取缓存统计信息，命中情况由HttpRequestHandler记录，读写和淘汰由缓存管理器自己记录
+     * @return 缓存统计信息，不能为null
+     */
+    public CacheStats getStats();
 }
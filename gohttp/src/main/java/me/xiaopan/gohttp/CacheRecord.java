@@ -0,0 +1,433 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.gohttp;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.StatusLine;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.protocol.HTTP;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import me.xiaopan.gohttp.httpclient.InflatingEntity;
+
+/**
+ * 缓存记录，状态行、响应头和响应体保存在同一个文件中，格式如下：
+ * <pre>
+ * 固定头部（36字节，版本3之前只有前20字节，版本3只有前32字节）
+ *     int  MAGIC
+ *     int  VERSION
+ *     int  元数据长度
+ *     long 响应体长度，写入完成之前为-1
+ *     int  标记，FLAG_ENCODED表示响应体保存的是Content-Encoding压缩后的原始数据
+ *     long 响应体解压后的长度，未知时为-1
+ *     int  元数据的CRC32（版本4开始才有）
+ * 元数据
+ *     bytes 协议  int 主版本号  int 次版本号  int 状态码  bytes 原因短语
+ *     int 响应头数量  [bytes 名称  bytes 值]...
+ *     int Vary请求头数量  [bytes 名称  bytes 值]...（版本2开始才有）
+ * 响应体
+ * </pre>
+ * 其中bytes均为int长度前缀加UTF-8编码的字节。
+ * <br>读取时会检查文件长度是否等于头部、元数据和响应体的长度之和，并校验元数据的CRC32，进程在写入期间被杀或者断电造成的不完整记录不会被当作有效缓存
+ * <br>响应体是压缩数据的时候，读取时返回的是{@link InflatingEntity}，解压后的长度取自gzip尾部的ISIZE
+ */
+final class CacheRecord {
+    static final int MAGIC = 0x476F4863;
+    static final int VERSION = 4;
+    static final int FIXED_HEAD_LENGTH = 36;
+    static final int FLAG_ENCODED = 1;
+    private static final int LEGACY_FIXED_HEAD_LENGTH = 20;
+    private static final int V3_FIXED_HEAD_LENGTH = 32;
+    private static final int MAX_META_LENGTH = 1024 * 1024;
+    private static final int BODY_LENGTH_POSITION = 12;
+    private static final int GZIP_MIN_LENGTH = 18;  // gzip头部10字节加尾部8字节
+
+    private CacheRecord(){
+
+    }
+
+    /**
+     * 写入缓存记录
+     * @param file 缓存文件
+     * @param statusLine 状态行
+     * @param headers 响应头
+     * @param varyHeaders 响应头中Vary所指定的请求头，没有的话传null
+     * @param encoded 响应体是否是gzip压缩后的原始数据
+     * @param sync 写完之后是否同步到磁盘
+     * @param body 响应体
+     * @return 指向刚刚写入的响应体的实体
+     */
+    static CacheFileEntity write(File file, StatusLine statusLine, Header[] headers, Header[] varyHeaders, boolean encoded, boolean sync, InputStream body) throws IOException {
+        BodyOutputStream outputStream = open(file, statusLine, headers, varyHeaders, encoded, sync);
+        try{
+            byte[] bytes = new byte[8 * 1024];
+            int number;
+            while((number = body.read(bytes)) != -1){
+                outputStream.write(bytes, 0, number);
+            }
+            return outputStream.finish();
+        }finally {
+            outputStream.close();
+        }
+    }
+
+    /**
+     * 创建缓存记录并写入头部和元数据，响应体由调用者通过返回的输出流写入
+     * @param file 缓存文件
+     * @param statusLine 状态行
+     * @param headers 响应头
+     * @param varyHeaders 响应头中Vary所指定的请求头，没有的话传null
+     * @param encoded 响应体是否是gzip压缩后的原始数据
+     * @param sync 调用{@link BodyOutputStream#finish()}的时候是否同步到磁盘
+     * @return 响应体输出流，写完之后调用{@link BodyOutputStream#finish()}，放弃的话直接调用close()
+     */
+    static BodyOutputStream open(File file, StatusLine statusLine, Header[] headers, Header[] varyHeaders, boolean encoded, boolean sync) throws IOException {
+        return new BodyOutputStream(file, encodeMeta(statusLine, headers, varyHeaders), encoded, sync);
+    }
+
+    /**
+     * 将缓存文件实体转换成交给HttpResponseHandler的实体，响应体是压缩数据的话包装成InflatingEntity
+     */
+    static HttpEntity toEntity(CacheFileEntity cacheFileEntity){
+        return cacheFileEntity.isEncoded() ? new InflatingEntity(cacheFileEntity, cacheFileEntity.getDecodedLength()) : cacheFileEntity;
+    }
+
+    /**
+     * 从{@link #toEntity(CacheFileEntity)}返回的实体中取出缓存文件实体
+     */
+    static CacheFileEntity toCacheFileEntity(HttpEntity httpEntity){
+        if(httpEntity instanceof InflatingEntity){
+            httpEntity = ((InflatingEntity) httpEntity).getWrappedEntity();
+        }
+        return (CacheFileEntity) httpEntity;
+    }
+
+    /**
+     * 读取缓存记录，只会打开一次文件，返回的响应实体直接使用这个已经定位到响应体的输入流
+     * @param file 缓存文件
+     * @param varyHeaders 用来接收缓存时保存的Vary请求头，不需要的话传null
+     * @return HTTP响应
+     * @throws IOException 文件不存在、格式不正确或者不完整
+     */
+    static HttpResponse read(File file, List<Header> varyHeaders) throws IOException {
+        FileInputStream fileInputStream = new FileInputStream(file);
+        DataInputStream inputStream = new DataInputStream(new BufferedInputStream(fileInputStream, 8 * 1024));
+        try{
+            Head head = readHead(inputStream, fileInputStream.getChannel().size(), file.getPath(), varyHeaders);
+            CacheFileEntity entity = new CacheFileEntity(file, head.bodyOffset, head.bodyLength, head.encoded, head.decodedLength, inputStream);
+            entity.setContentType(head.contentType);
+            if(head.encoded){
+                entity.setContentEncoding(head.contentEncoding);
+            }
+            head.httpResponse.setEntity(toEntity(entity));
+            return head.httpResponse;
+        }catch (IOException e){
+            inputStream.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 从内存中读取缓存记录，不支持响应体是压缩数据的记录
+     * @param record 完整的缓存记录
+     * @param varyHeaders 用来接收缓存时保存的Vary请求头，不需要的话传null
+     * @return HTTP响应，响应实体是内存中的数据
+     * @throws IOException 格式不正确或者不完整
+     */
+    static HttpResponse read(byte[] record, List<Header> varyHeaders) throws IOException {
+        Head head = readHead(new DataInputStream(new ByteArrayInputStream(record)), record.length, "record", varyHeaders);
+        if(head.encoded){
+            throw new IOException("不支持压缩的缓存记录");
+        }
+        byte[] body = new byte[(int) head.bodyLength];
+        System.arraycopy(record, (int) head.bodyOffset, body, 0, body.length);
+        MemoryEntity entity = new MemoryEntity(body);
+        entity.setContentType(head.contentType);
+        head.httpResponse.setEntity(entity);
+        return head.httpResponse;
+    }
+
+    /**
+     * 将缓存记录编码到内存中，响应体不压缩
+     * @param statusLine 状态行
+     * @param headers 响应头
+     * @param varyHeaders 响应头中Vary所指定的请求头，没有的话传null
+     * @param body 响应体
+     * @param bodyLength 响应体长度
+     * @return 完整的缓存记录
+     */
+    static byte[] encode(StatusLine statusLine, Header[] headers, Header[] varyHeaders, byte[] body, int bodyLength) throws IOException {
+        byte[] meta = encodeMeta(statusLine, headers, varyHeaders);
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(FIXED_HEAD_LENGTH + meta.length + bodyLength);
+        DataOutputStream outputStream = new DataOutputStream(byteArrayOutputStream);
+        outputStream.writeInt(MAGIC);
+        outputStream.writeInt(VERSION);
+        outputStream.writeInt(meta.length);
+        outputStream.writeLong(bodyLength);
+        outputStream.writeInt(0);
+        outputStream.writeLong(bodyLength);
+        outputStream.writeInt(checksum(meta));
+        outputStream.write(meta);
+        outputStream.write(body, 0, bodyLength);
+        outputStream.flush();
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    /**
+     * 读取并校验固定头部和元数据，读取完之后输入流正好位于响应体的开头
+     * @param totalLength 整个记录的长度，用来检查记录是否完整
+     * @param name 记录的名称，出错时使用
+     */
+    private static Head readHead(DataInputStream inputStream, long totalLength, String name, List<Header> varyHeaders) throws IOException {
+        if(inputStream.readInt() != MAGIC){
+            throw new IOException("不是缓存文件：" + name);
+        }
+        int version = inputStream.readInt();
+        if(version < 1 || version > VERSION){
+            throw new IOException("不支持的缓存文件版本：" + version);
+        }
+        int metaLength = inputStream.readInt();
+        long bodyLength = inputStream.readLong();
+        if(metaLength < 0 || metaLength > MAX_META_LENGTH || bodyLength < 0){
+            throw new IOException("缓存文件不完整：" + name);
+        }
+        int flags = 0;
+        long decodedLength = bodyLength;
+        int fixedHeadLength = LEGACY_FIXED_HEAD_LENGTH;
+        if(version >= 3){
+            flags = inputStream.readInt();
+            decodedLength = inputStream.readLong();
+            fixedHeadLength = V3_FIXED_HEAD_LENGTH;
+        }
+        int metaChecksum = 0;
+        if(version >= 4){
+            metaChecksum = inputStream.readInt();
+            fixedHeadLength = FIXED_HEAD_LENGTH;
+        }
+
+        // 长度对不上说明写入期间进程被杀或者断电了，响应体可能只写了一部分
+        if(totalLength != fixedHeadLength + metaLength + bodyLength){
+            throw new IOException("缓存文件长度不正确：" + name);
+        }
+
+        byte[] meta = new byte[metaLength];
+        inputStream.readFully(meta);
+        if(version >= 4 && checksum(meta) != metaChecksum){
+            throw new IOException("缓存文件已损坏：" + name);
+        }
+        DataInputStream metaInputStream = new DataInputStream(new ByteArrayInputStream(meta));
+
+        Head head = new Head();
+        head.bodyOffset = fixedHeadLength + metaLength;
+        head.bodyLength = bodyLength;
+        head.encoded = (flags & FLAG_ENCODED) != 0;
+        head.decodedLength = decodedLength;
+
+        String protocol = readString(metaInputStream);
+        int major = metaInputStream.readInt();
+        int minor = metaInputStream.readInt();
+        int statusCode = metaInputStream.readInt();
+        String reasonPhrase = readString(metaInputStream);
+        head.httpResponse = new BasicHttpResponse(new BasicStatusLine(new ProtocolVersion(protocol, major, minor), statusCode, reasonPhrase));
+        int headerCount = metaInputStream.readInt();
+        for(int w = 0; w < headerCount; w++){
+            Header header = new BasicHeader(readString(metaInputStream), readString(metaInputStream));
+            if(head.contentType == null && HTTP.CONTENT_TYPE.equalsIgnoreCase(header.getName())){
+                head.contentType = header;
+            }else if(head.contentEncoding == null && HTTP.CONTENT_ENCODING.equalsIgnoreCase(header.getName())){
+                head.contentEncoding = header;
+            }
+            head.httpResponse.addHeader(header);
+        }
+        if(version >= 2){
+            int varyHeaderCount = metaInputStream.readInt();
+            for(int w = 0; w < varyHeaderCount; w++){
+                Header varyHeader = new BasicHeader(readString(metaInputStream), readString(metaInputStream));
+                if(varyHeaders != null){
+                    varyHeaders.add(varyHeader);
+                }
+            }
+        }
+        return head;
+    }
+
+    /**
+     * 固定头部和元数据
+     */
+    private static final class Head {
+        private HttpResponse httpResponse;
+        private Header contentType;
+        private Header contentEncoding;
+        private long bodyOffset;    // 响应体在记录中的起始位置
+        private long bodyLength;
+        private boolean encoded;
+        private long decodedLength;
+    }
+
+    /**
+     * 响应体输出流，创建时就已经写好了头部和元数据
+     */
+    static final class BodyOutputStream extends OutputStream {
+        private final File file;
+        private final FileOutputStream fileOutputStream;
+        private final DataOutputStream outputStream;
+        private final long bodyOffset;  // 响应体在文件中的起始位置
+        private final boolean encoded;
+        private final boolean sync; // finish()的时候是否同步到磁盘
+        private long bodyLength;
+        private int trailer;    // 按小端序拼接的最后4个字节，响应体是gzip数据时就是ISIZE
+
+        private BodyOutputStream(File file, byte[] meta, boolean encoded, boolean sync) throws IOException {
+            this.file = file;
+            this.encoded = encoded;
+            this.sync = sync;
+            this.fileOutputStream = new FileOutputStream(file);
+            this.outputStream = new DataOutputStream(new BufferedOutputStream(fileOutputStream, 8 * 1024));
+            this.bodyOffset = FIXED_HEAD_LENGTH + meta.length;
+            try{
+                outputStream.writeInt(MAGIC);
+                outputStream.writeInt(VERSION);
+                outputStream.writeInt(meta.length);
+                outputStream.writeLong(-1);
+                outputStream.writeInt(encoded ? FLAG_ENCODED : 0);
+                outputStream.writeLong(-1);
+                outputStream.writeInt(checksum(meta));
+                outputStream.write(meta);
+            }catch (IOException e){
+                fileOutputStream.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public void write(int oneByte) throws IOException {
+            outputStream.write(oneByte);
+            bodyLength++;
+            trailer = (trailer >>> 8) | ((oneByte & 0xFF) << 24);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            outputStream.write(buffer, offset, count);
+            bodyLength += count;
+            for(int w = Math.max(offset, offset + count - 4); w < offset + count; w++){
+                trailer = (trailer >>> 8) | ((buffer[w] & 0xFF) << 24);
+            }
+        }
+
+        /**
+         * 回填响应体长度并关闭文件，需要的话先同步到磁盘，这样重命名之后即使断电文件内容也是完整的
+         * @return 指向刚刚写入的响应体的实体
+         */
+        CacheFileEntity finish() throws IOException {
+            // ISIZE是解压后长度对2^32取模的值，HTTP响应基本不会超过4G，这里直接当作解压后的长度
+            long decodedLength = !encoded ? bodyLength : bodyLength >= GZIP_MIN_LENGTH ? trailer & 0xFFFFFFFFL : -1;
+            try{
+                outputStream.flush();
+
+                // 响应体写完之后再回填长度，没有回填长度的记录视为不完整
+                ByteBuffer byteBuffer = ByteBuffer.allocate(20);
+                byteBuffer.putLong(bodyLength);
+                byteBuffer.putInt(encoded ? FLAG_ENCODED : 0);
+                byteBuffer.putLong(decodedLength);
+                byteBuffer.flip();
+                fileOutputStream.getChannel().write(byteBuffer, BODY_LENGTH_POSITION);
+                if(sync){
+                    fileOutputStream.getFD().sync();
+                }
+            }finally {
+                fileOutputStream.close();
+            }
+            return new CacheFileEntity(file, bodyOffset, bodyLength, encoded, decodedLength, null);
+        }
+
+        /**
+         * 直接关闭文件，没有调用finish()的话记录是不完整的
+         */
+        @Override
+        public void close() throws IOException {
+            fileOutputStream.close();
+        }
+    }
+
+    private static byte[] encodeMeta(StatusLine statusLine, Header[] headers, Header[] varyHeaders) throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(512);
+        DataOutputStream outputStream = new DataOutputStream(byteArrayOutputStream);
+        ProtocolVersion protocolVersion = statusLine.getProtocolVersion();
+        writeString(outputStream, protocolVersion.getProtocol());
+        outputStream.writeInt(protocolVersion.getMajor());
+        outputStream.writeInt(protocolVersion.getMinor());
+        outputStream.writeInt(statusLine.getStatusCode());
+        writeString(outputStream, statusLine.getReasonPhrase());
+        writeHeaders(outputStream, headers);
+        writeHeaders(outputStream, varyHeaders);
+        outputStream.flush();
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    private static int checksum(byte[] bytes){
+        CRC32 crc32 = new CRC32();
+        crc32.update(bytes, 0, bytes.length);
+        return (int) crc32.getValue();
+    }
+
+    private static void writeHeaders(DataOutputStream outputStream, Header[] headers) throws IOException {
+        outputStream.writeInt(headers != null ? headers.length : 0);
+        if(headers != null){
+            for(Header header : headers){
+                writeString(outputStream, header.getName());
+                writeString(outputStream, header.getValue());
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream outputStream, String string) throws IOException {
+        byte[] bytes = (string != null ? string : "").getBytes("UTF-8");
+        outputStream.writeInt(bytes.length);
+        outputStream.write(bytes);
+    }
+
+    private static String readString(DataInputStream inputStream) throws IOException {
+        int length = inputStream.readInt();
+        if(length < 0){
+            throw new IOException("缓存文件已损坏");
+        }
+        byte[] bytes = new byte[length];
+        inputStream.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
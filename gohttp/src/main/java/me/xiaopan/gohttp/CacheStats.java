@@ -0,0 +1,461 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.gohttp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 缓存统计信息，记录命中、写入、淘汰等次数以及读写耗时的分布，可以通过{@link CacheManager#getStats()}获取
+ * <br>记录方法都是线程安全的，不需要加锁，{@link #snapshot()}和{@link #reset()}期间仍在进行的读写可能只有一部分被计入
+ */
+public class CacheStats {
+    private final AtomicLong hitCount;  // 缓存有效，直接使用缓存的次数
+    private final AtomicLong expiredHitCount;   // 缓存已过期，但还在stale-while-revalidate窗口内，先使用过期缓存的次数
+    private final AtomicLong missCount; // 没有可用缓存，需要从网络加载的次数
+    private final AtomicLong revalidationCount; // 携带If-None-Match、If-Modified-Since请求头向服务器确认缓存的次数
+    private final AtomicLong notModifiedCount;  // 服务器返回304确认缓存依然可用的次数
+    private final AtomicLong writeCount;    // 写入缓存成功的次数
+    private final AtomicLong writeFailureCount; // 写入缓存失败的次数
+    private final AtomicLong evictionCount; // 因超出限制而被淘汰的缓存数量
+    private final AtomicLong readBytes; // 读取的字节数
+    private final AtomicLong writtenBytes;  // 写入的字节数
+    private final LatencyHistogram readLatency; // 读取耗时分布
+    private final LatencyHistogram writeLatency;    // 写入耗时分布
+
+    public CacheStats() {
+        hitCount = new AtomicLong();
+        expiredHitCount = new AtomicLong();
+        missCount = new AtomicLong();
+        revalidationCount = new AtomicLong();
+        notModifiedCount = new AtomicLong();
+        writeCount = new AtomicLong();
+        writeFailureCount = new AtomicLong();
+        evictionCount = new AtomicLong();
+        readBytes = new AtomicLong();
+        writtenBytes = new AtomicLong();
+        readLatency = new LatencyHistogram();
+        writeLatency = new LatencyHistogram();
+    }
+
+    /**
+     * 记录一次缓存命中
+     */
+    public void recordHit(){
+        hitCount.incrementAndGet();
+    }
+
+    /**
+     * 记录一次使用过期缓存
+     */
+    public void recordExpiredHit(){
+        expiredHitCount.incrementAndGet();
+    }
+
+    /**
+     * 记录一次缓存未命中
+     */
+    public void recordMiss(){
+        missCount.incrementAndGet();
+    }
+
+    /**
+     * 记录一次向服务器确认缓存
+     * @param notModified 服务器是否返回了304
+     */
+    public void recordRevalidation(boolean notModified){
+        revalidationCount.incrementAndGet();
+        if(notModified){
+            notModifiedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * 记录一次读取
+     * @param bytes 读取的字节数
+     * @param nanos 耗时，单位纳秒
+     */
+    public void recordRead(long bytes, long nanos){
+        readBytes.addAndGet(bytes);
+        readLatency.record(nanos);
+    }
+
+    /**
+     * 记录一次成功的写入
+     * @param bytes 写入的字节数
+     * @param nanos 耗时，单位纳秒
+     */
+    public void recordWrite(long bytes, long nanos){
+        writeCount.incrementAndGet();
+        writtenBytes.addAndGet(bytes);
+        writeLatency.record(nanos);
+    }
+
+    /**
+     * 记录一次失败的写入
+     */
+    public void recordWriteFailure(){
+        writeFailureCount.incrementAndGet();
+    }
+
+    /**
+     * 记录一次淘汰
+     */
+    public void recordEviction(){
+        evictionCount.incrementAndGet();
+    }
+
+    /**
+     * 获取因超出限制而被淘汰的缓存数量
+     */
+    long getEvictionCount(){
+        return evictionCount.get();
+    }
+
+    /**
+     * 获取当前缓存占用的空间，由缓存管理器提供
+     * @return 单位字节，不支持的话返回-1
+     */
+    protected long getCurrentSize(){
+        return -1;
+    }
+
+    /**
+     * 获取当前缓存数量，由缓存管理器提供
+     * @return 不支持的话返回-1
+     */
+    protected int getCurrentCount(){
+        return -1;
+    }
+
+    /**
+     * 获取当前统计信息的快照，快照不会再变化，可以放心的在任意线程中使用
+     */
+    public Snapshot snapshot(){
+        return new Snapshot(this);
+    }
+
+    /**
+     * 清零所有计数，当前缓存占用的空间和数量不受影响
+     */
+    public void reset(){
+        hitCount.set(0);
+        expiredHitCount.set(0);
+        missCount.set(0);
+        revalidationCount.set(0);
+        notModifiedCount.set(0);
+        writeCount.set(0);
+        writeFailureCount.set(0);
+        evictionCount.set(0);
+        readBytes.set(0);
+        writtenBytes.set(0);
+        readLatency.reset();
+        writeLatency.reset();
+    }
+
+    /**
+     * 统计信息快照
+     */
+    public static class Snapshot {
+        private long hitCount;
+        private long expiredHitCount;
+        private long missCount;
+        private long revalidationCount;
+        private long notModifiedCount;
+        private long writeCount;
+        private long writeFailureCount;
+        private long evictionCount;
+        private long readBytes;
+        private long writtenBytes;
+        private long size;
+        private int count;
+        private LatencyHistogram.Snapshot readLatency;
+        private LatencyHistogram.Snapshot writeLatency;
+
+        private Snapshot(CacheStats cacheStats) {
+            this.hitCount = cacheStats.hitCount.get();
+            this.expiredHitCount = cacheStats.expiredHitCount.get();
+            this.missCount = cacheStats.missCount.get();
+            this.revalidationCount = cacheStats.revalidationCount.get();
+            this.notModifiedCount = cacheStats.notModifiedCount.get();
+            this.writeCount = cacheStats.writeCount.get();
+            this.writeFailureCount = cacheStats.writeFailureCount.get();
+            this.evictionCount = cacheStats.evictionCount.get();
+            this.readBytes = cacheStats.readBytes.get();
+            this.writtenBytes = cacheStats.writtenBytes.get();
+            this.size = cacheStats.getCurrentSize();
+            this.count = cacheStats.getCurrentCount();
+            this.readLatency = cacheStats.readLatency.snapshot();
+            this.writeLatency = cacheStats.writeLatency.snapshot();
+        }
+
+        /**
+         * 获取缓存命中次数
+         */
+        public long getHitCount() {
+            return hitCount;
+        }
+
+        /**
+         * 获取使用过期缓存（stale-while-revalidate）的次数
+         */
+        public long getExpiredHitCount() {
+            return expiredHitCount;
+        }
+
+        /**
+         * 获取缓存未命中次数
+         */
+        public long getMissCount() {
+            return missCount;
+        }
+
+        /**
+         * 获取命中率，使用过期缓存也算命中
+         * @return 0到1之间，还没有请求过的话返回0
+         */
+        public double getHitRate(){
+            long requestCount = hitCount + expiredHitCount + missCount;
+            return requestCount > 0 ? (double) (hitCount + expiredHitCount) / requestCount : 0;
+        }
+
+        /**
+         * 获取向服务器确认缓存的次数
+         */
+        public long getRevalidationCount() {
+            return revalidationCount;
+        }
+
+        /**
+         * 获取服务器返回304确认缓存依然可用的次数
+         */
+        public long getNotModifiedCount() {
+            return notModifiedCount;
+        }
+
+        /**
+         * 获取写入成功的次数
+         */
+        public long getWriteCount() {
+            return writeCount;
+        }
+
+        /**
+         * 获取写入失败的次数
+         */
+        public long getWriteFailureCount() {
+            return writeFailureCount;
+        }
+
+        /**
+         * 获取因超出限制而被淘汰的缓存数量
+         */
+        public long getEvictionCount() {
+            return evictionCount;
+        }
+
+        /**
+         * 获取读取的字节数
+         */
+        public long getReadBytes() {
+            return readBytes;
+        }
+
+        /**
+         * 获取写入的字节数
+         */
+        public long getWrittenBytes() {
+            return writtenBytes;
+        }
+
+        /**
+         * 获取缓存占用的空间
+         * @return 单位字节，不支持的话返回-1
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * 获取缓存数量
+         * @return 不支持的话返回-1
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * 获取读取耗时分布
+         */
+        public LatencyHistogram.Snapshot getReadLatency() {
+            return readLatency;
+        }
+
+        /**
+         * 获取写入耗时分布
+         */
+        public LatencyHistogram.Snapshot getWriteLatency() {
+            return writeLatency;
+        }
+
+        @Override
+        public String toString() {
+            return "CacheStats{"
+                    + "hit=" + hitCount
+                    + ", expiredHit=" + expiredHitCount
+                    + ", miss=" + missCount
+                    + ", hitRate=" + String.format("%.3f", getHitRate())
+                    + ", revalidation=" + revalidationCount
+                    + ", notModified=" + notModifiedCount
+                    + ", write=" + writeCount
+                    + ", writeFailure=" + writeFailureCount
+                    + ", eviction=" + evictionCount
+                    + ", readBytes=" + readBytes
+                    + ", writtenBytes=" + writtenBytes
+                    + ", size=" + size
+                    + ", count=" + count
+                    + ", readLatency=" + readLatency
+                    + ", writeLatency=" + writeLatency
+                    + "}";
+        }
+    }
+
+    /**
+     * 耗时分布，按固定的区间计数，记录的时候不需要加锁
+     */
+    public static class LatencyHistogram {
+        private static final long[] BUCKET_BOUNDS = {   // 每个区间的上限，单位微秒，最后一个区间没有上限
+                100, 250, 500,
+                1000, 2500, 5000,
+                10000, 25000, 50000,
+                100000, 250000, 500000,
+                1000000
+        };
+
+        private final AtomicLongArray counts;
+        private final AtomicLong totalNanos;
+
+        LatencyHistogram() {
+            counts = new AtomicLongArray(BUCKET_BOUNDS.length + 1);
+            totalNanos = new AtomicLong();
+        }
+
+        void record(long nanos){
+            if(nanos < 0){
+                nanos = 0;
+            }
+            long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+            int index = 0;
+            while(index < BUCKET_BOUNDS.length && micros > BUCKET_BOUNDS[index]){
+                index++;
+            }
+            counts.incrementAndGet(index);
+            totalNanos.addAndGet(nanos);
+        }
+
+        void reset(){
+            for(int w = 0; w < counts.length(); w++){
+                counts.set(w, 0);
+            }
+            totalNanos.set(0);
+        }
+
+        Snapshot snapshot(){
+            long[] counts = new long[this.counts.length()];
+            for(int w = 0; w < counts.length; w++){
+                counts[w] = this.counts.get(w);
+            }
+            return new Snapshot(counts, totalNanos.get());
+        }
+
+        /**
+         * 耗时分布快照
+         */
+        public static class Snapshot {
+            private long[] counts;
+            private long count;
+            private long totalNanos;
+
+            private Snapshot(long[] counts, long totalNanos) {
+                this.counts = counts;
+                this.totalNanos = totalNanos;
+                for(long number : counts){
+                    count += number;
+                }
+            }
+
+            /**
+             * 获取每个区间的上限，单位微秒，区间的数量比上限的数量多一个，最后一个区间没有上限
+             */
+            public static long[] getBucketBounds(){
+                return BUCKET_BOUNDS.clone();
+            }
+
+            /**
+             * 获取每个区间的次数，与{@link #getBucketBounds()}一一对应
+             */
+            public long[] getCounts() {
+                return counts.clone();
+            }
+
+            /**
+             * 获取总次数
+             */
+            public long getCount() {
+                return count;
+            }
+
+            /**
+             * 获取平均耗时
+             * @return 单位微秒，没有记录的话返回0
+             */
+            public long getAverageMicros(){
+                return count > 0 ? TimeUnit.NANOSECONDS.toMicros(totalNanos / count) : 0;
+            }
+
+            /**
+             * 获取百分位耗时，返回所在区间的上限，落在最后一个区间的话返回Long.MAX_VALUE
+             * @param percentile 百分位，0到1之间，例如0.99
+             * @return 单位微秒，没有记录的话返回0
+             */
+            public long getPercentileMicros(double percentile){
+                if(count == 0){
+                    return 0;
+                }
+                long threshold = (long) Math.ceil(count * Math.min(Math.max(percentile, 0), 1));
+                long number = 0;
+                for(int w = 0; w < counts.length; w++){
+                    number += counts[w];
+                    if(number >= threshold && number > 0){
+                        return w < BUCKET_BOUNDS.length ? BUCKET_BOUNDS[w] : Long.MAX_VALUE;
+                    }
+                }
+                return Long.MAX_VALUE;
+            }
+
+            @Override
+            public String toString() {
+                return "{count=" + count + ", avg=" + getAverageMicros() + "us, p50<=" + format(getPercentileMicros(0.5)) + ", p99<=" + format(getPercentileMicros(0.99)) + "}";
+            }
+
+            private static String format(long micros){
+                return micros == Long.MAX_VALUE ? "inf" : micros + "us";
+            }
+        }
+    }
+}
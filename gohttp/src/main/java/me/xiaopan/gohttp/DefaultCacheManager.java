@@ -4,153 +4,214 @@ import android.content.Context;
 import android.os.Environment;
 import android.util.Log;
 
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
+import me.xiaopan.gohttp.header.CacheControl;
+import me.xiaopan.gohttp.header.ETag;
+import me.xiaopan.gohttp.header.Expires;
+import me.xiaopan.gohttp.header.LastModified;
+import me.xiaopan.gohttp.header.Vary;
+import me.xiaopan.gohttp.httpclient.InflatingEntity;
 
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.ProtocolVersion;
 import org.apache.http.StatusLine;
-import org.apache.http.entity.FileEntity;
-import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.entity.HttpEntityWrapper;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.message.BasicStatusLine;
-import org.apache.http.message.BufferedHeader;
-import org.apache.http.protocol.HTTP;
-import org.apache.http.util.CharArrayBuffer;
 
-import java.io.BufferedWriter;
-import java.io.CharArrayWriter;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.Reader;
 import java.security.MessageDigest;
 import java.text.SimpleDateFormat;
-import java.util.Calendar;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
-import java.util.GregorianCalendar;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
 
 /**
- * 本地缓存管理器
+ * 本地缓存管理器，每个响应的状态行、响应头和响应体保存在同一个缓存文件中，格式请参考{@link CacheRecord}
  */
 public class DefaultCacheManager implements CacheManager{
-    private String cacheDirectory;	// 缓存目录
+    private static final String CACHE_FILE_SUFFIX = ".cache";
+    private static final String LEGACY_STATUS_LINE_SUFFIX = ".status_line";
+    private static final String LEGACY_HEADERS_SUFFIX = ".headers";
+    private static final String LEGACY_ENTITY_SUFFIX = ".entity";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    private static final String CACHE_ID_VERSION = "2"; // 缓存ID的版本，和索引中记录的不一致时丢弃原来的索引，原来的缓存文件会被当作无主文件删除
+    private static final Comparator<BasicNameValuePair> PARAM_NAME_COMPARATOR = new Comparator<BasicNameValuePair>() {
+        @Override
+        public int compare(BasicNameValuePair lhs, BasicNameValuePair rhs) {
+            return lhs.getName().compareTo(rhs.getName());
+        }
+    };
+    private static final String[] NOT_MODIFIED_UPDATE_HEADERS = {ETag.NAME, LastModified.NAME, CacheControl.NAME, Expires.NAME, Vary.NAME, me.xiaopan.gohttp.header.Date.NAME};  // 304响应中需要更新到缓存里的响应头
+
+    private volatile String cacheDirectory;	// 缓存目录
+    private final CacheIdLocks entryLocks;   // 写入缓存时使用的锁，只有相同缓存ID的写入才会互斥
+    private volatile CacheIndex cacheIndex; // 缓存索引
+    private ExecutorService backgroundExecutor; // 后台线程，用来加载索引、写journal文件和淘汰缓存
+    private volatile long maxSize;  // 最大容量，单位字节，小于等于0时不限制
+    private volatile int maxCount;  // 最大缓存数量，小于等于0时不限制
+    private volatile CacheEvictionPolicy evictionPolicy;    // 淘汰策略
+    private volatile boolean syncWrites;    // 重命名之前是否先把缓存文件同步到磁盘
+    private final AtomicBoolean trimScheduled;
+    private final CacheStats stats; // 统计信息
+    private final AtomicInteger tempFileCounter;    // 边读边写时每次都使用单独的临时文件
+
+    public DefaultCacheManager() {
+        this(null);
+    }
+
+    /**
+     * @param stats 统计信息，与其它缓存管理器共用统计信息的时候使用，为null时自己创建
+     */
+    DefaultCacheManager(CacheStats stats) {
+        entryLocks = new CacheIdLocks();
+        evictionPolicy = CacheEvictionPolicy.LRU;
+        trimScheduled = new AtomicBoolean();
+        this.stats = stats != null ? stats : new CacheStats(){
+            @Override
+            protected long getCurrentSize() {
+                return getSize();
+            }
+
+            @Override
+            protected int getCurrentCount() {
+                return getCount();
+            }
+        };
+        tempFileCounter = new AtomicInteger();
+    }
 
     @Override
-    public synchronized void saveHttpResponseToCache(HttpRequest httpRequest, HttpResponse httpResponse) throws IOException {
+    public void saveHttpResponseToCache(HttpRequest httpRequest, HttpResponse httpResponse) throws IOException {
         HttpEntity httpEntity = httpResponse.getEntity();
         if(httpEntity == null){
             throw new IOException("Http实体是null");
         }
 
-        // 保存状态行
         String cacheId = httpRequest.getCacheConfig().getId();
-        File statusLineCacheFile = getCacheFile(httpRequest.getGoHttp(), cacheId + ".status_line");
-        try {
-            if(createFile(statusLineCacheFile) == null ){
-                throw new IOException("创建缓存文件失败: "+statusLineCacheFile.getPath());
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-            return;
-        }
-        StatusLineCache statusLineCache = new StatusLineCache(httpResponse.getStatusLine());
-        try {
-            writeString(statusLineCacheFile, new Gson().toJson(statusLineCache), false);
-        } catch (IOException e) {
-            e.printStackTrace();
-            statusLineCacheFile.delete();
+        File cacheFile = getCacheFile(httpRequest.getGoHttp(), cacheId + CACHE_FILE_SUFFIX);
+        if(!makeParentDirectory(cacheFile)){
+            if(httpRequest.getGoHttp().isDebugMode()) Log.e(GoHttp.LOG_TAG, createLog(httpRequest, "Cache : 创建缓存目录失败：" + cacheFile.getParent()));
             return;
         }
 
-        // 保存响应头
-        File responseHeadersCacheFile = getCacheFile(httpRequest.getGoHttp(), cacheId + ".headers");
-        try {
-            if(createFile(responseHeadersCacheFile) == null){
-                statusLineCacheFile.delete();
-                throw new IOException("创建缓存文件失败: "+responseHeadersCacheFile.getPath());
+        // 状态行、响应头和响应体一次性写入临时文件，写完之后再重命名，这样正在读取旧缓存的线程不受影响，也不需要对读取加锁；
+        // 从网络读取响应体的时候不持有写入锁，所以每次都要用单独的临时文件，只在重命名和更新索引的时候加锁；先创建索引，这样加载索引时清理临时文件不会误删这个临时文件
+        CacheIndex cacheIndex = getCacheIndex(httpRequest.getGoHttp());
+        File tempFile = getCacheFile(httpRequest.getGoHttp(), cacheId + CACHE_FILE_SUFFIX + "." + tempFileCounter.incrementAndGet() + TEMP_FILE_SUFFIX);
+        CacheFileEntity cacheFileEntity;
+        boolean httpSemantics = httpRequest.getCacheConfig().isHttpSemantics();
+        long cacheTime = System.currentTimeMillis();
+        long expiresTime = httpSemantics ? HttpCachePolicy.computeExpiresTime(httpResponse, cacheTime) : 0;
+        Header[] varyHeaders = httpSemantics ? HttpCachePolicy.getVaryHeaders(httpRequest, httpResponse) : null;
+        HttpEntity sourceEntity = getSourceEntity(httpRequest, httpEntity);
+        boolean encoded = sourceEntity != httpEntity;
+        InputStream inputStream = null;
+        long startTime = System.nanoTime();
+        try{
+            inputStream = sourceEntity.getContent();
+            CacheFileEntity tempFileEntity = CacheRecord.write(tempFile, httpResponse.getStatusLine(), httpResponse.getAllHeaders(), varyHeaders, encoded, syncWrites, inputStream);
+            Lock entryLock = getEntryLock(cacheId);
+            entryLock.lock();
+            try{
+                if(!tempFile.renameTo(cacheFile)){
+                    throw new IOException("重命名缓存文件失败：" + tempFile.getPath());
+                }
+                cacheFileEntity = tempFileEntity.withFile(cacheFile);
+                cacheIndex.put(cacheId, cacheFileEntity.getOffset() + cacheFileEntity.getContentLength(), cacheFileEntity.getDecodedFileLength(), cacheTime, expiresTime);
+            }finally {
+                entryLock.unlock();
             }
-        } catch (IOException e) {
-            e.printStackTrace();
-            statusLineCacheFile.delete();
-            return;
-        }
-        Header[] headers = httpResponse.getAllHeaders();
-        String[] headerStrings = new String[headers.length];
-        for(int w = 0; w < headers.length; w++){
-            Header header = headers[w];
-            if(header instanceof BufferedHeader){
-                headerStrings[w] = header.toString();
+            stats.recordWrite(cacheFileEntity.getOffset() + cacheFileEntity.getContentLength(), System.nanoTime() - startTime);
+        }catch(IOException exception){
+            exception.printStackTrace();
+            stats.recordWriteFailure();
+            if(tempFile.delete()){
+                if(httpRequest.getGoHttp().isDebugMode()) Log.w(GoHttp.LOG_TAG, createLog(httpRequest, "Cache : 缓存响应失败，缓存文件已刪除"));
             }else{
-                headers[w] = null;
+                if(httpRequest.getGoHttp().isDebugMode()) Log.e(GoHttp.LOG_TAG, createLog(httpRequest, "Cache : 缓存响应失败，缓存文件刪除失敗"));
             }
-        }
-        try {
-            writeString(responseHeadersCacheFile, new Gson().toJson(headerStrings), false);
-        } catch (IOException e) {
-            e.printStackTrace();
-            statusLineCacheFile.delete();
-            responseHeadersCacheFile.delete();
-            return;
+            throw exception;
+        }finally {
+            if(inputStream != null){ try{inputStream.close();}catch (Exception exception2){exception2.printStackTrace();}}
         }
 
-        // 保存响应体
-        File responseEntityCacheFile = getCacheFile(httpRequest.getGoHttp(), cacheId + ".entity");
-        try {
-            if(createFile(responseEntityCacheFile) == null){
-                statusLineCacheFile.delete();
-                responseHeadersCacheFile.delete();
-                throw new IOException("创建缓存文件失败: "+responseEntityCacheFile.getPath());
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-            statusLineCacheFile.delete();
-            responseHeadersCacheFile.delete();
-            return;
+        trimIfNeeded(cacheIndex);
+
+        // 将响应实体替换为本地文件，保存的是压缩数据的话读取时再解压
+        cacheFileEntity.setContentType(httpEntity.getContentType());
+        if(encoded){
+            cacheFileEntity.setContentEncoding(sourceEntity.getContentEncoding());
         }
-        InputStream inputStream = null;
-        FileOutputStream fileOutputStream = null;
-        try{
-            inputStream = httpEntity.getContent();
-            fileOutputStream = new FileOutputStream(responseEntityCacheFile);
-            outputFromInput(inputStream, fileOutputStream);
-            inputStream.close();
-            fileOutputStream.flush();
-            fileOutputStream.close();
-        }catch(IOException exception){
-            exception.printStackTrace();
+        httpResponse.setEntity(CacheRecord.toEntity(cacheFileEntity));
+    }
 
-            if(inputStream != null){ try{inputStream.close();}catch (Exception exception2){exception2.printStackTrace();}}
-            if(fileOutputStream != null){try{fileOutputStream.flush();fileOutputStream.close();}catch (Exception exception2){exception2.printStackTrace();}}
+    /**
+     * 获取要写入缓存的实体，开启了保存压缩数据并且响应已经被GzipProcessResponseInterceptor包装成InflatingEntity的话，返回压缩后的原始实体
+     */
+    private static HttpEntity getSourceEntity(HttpRequest httpRequest, HttpEntity httpEntity){
+        if(httpRequest.getCacheConfig().isStoreCompressed() && httpEntity instanceof InflatingEntity){
+            return ((InflatingEntity) httpEntity).getWrappedEntity();
+        }
+        return httpEntity;
+    }
 
-            statusLineCacheFile.delete();
-            responseHeadersCacheFile.delete();
-            responseEntityCacheFile.delete();
+    @Override
+    public CacheEditor editHttpResponseCache(HttpRequest httpRequest, HttpResponse httpResponse) throws IOException {
+        HttpEntity httpEntity = httpResponse.getEntity();
+        if(httpEntity == null){
+            throw new IOException("Http实体是null");
+        }
 
-            if(responseEntityCacheFile.delete() || responseHeadersCacheFile.delete() || statusLineCacheFile.delete()){
-                if(httpRequest.getGoHttp().isDebugMode()) Log.w(GoHttp.LOG_TAG, createLog(httpRequest, "Cache : 缓存响应失败，缓存文件已刪除"));
-            }else{
-                if(httpRequest.getGoHttp().isDebugMode()) Log.e(GoHttp.LOG_TAG, createLog(httpRequest, "Cache : 缓存响应失败，缓存文件刪除失敗"));
-            }
+        String cacheId = httpRequest.getCacheConfig().getId();
+        File cacheFile = getCacheFile(httpRequest.getGoHttp(), cacheId + CACHE_FILE_SUFFIX);
+        if(!makeParentDirectory(cacheFile)){
+            if(httpRequest.getGoHttp().isDebugMode()) Log.e(GoHttp.LOG_TAG, createLog(httpRequest, "Cache : 创建缓存目录失败：" + cacheFile.getParent()));
+            return null;
+        }
 
-            throw exception;
+        // 写入期间不持有写入锁，所以每次都要用单独的临时文件，提交的时候再加锁重命名；先创建索引，这样加载索引时清理临时文件不会误删这个临时文件
+        getCacheIndex(httpRequest.getGoHttp());
+        File tempFile = getCacheFile(httpRequest.getGoHttp(), cacheId + CACHE_FILE_SUFFIX + "." + tempFileCounter.incrementAndGet() + TEMP_FILE_SUFFIX);
+        boolean httpSemantics = httpRequest.getCacheConfig().isHttpSemantics();
+        long cacheTime = System.currentTimeMillis();
+        long expiresTime = httpSemantics ? HttpCachePolicy.computeExpiresTime(httpResponse, cacheTime) : 0;
+        Header[] varyHeaders = httpSemantics ? HttpCachePolicy.getVaryHeaders(httpRequest, httpResponse) : null;
+        HttpEntity sourceEntity = getSourceEntity(httpRequest, httpEntity);
+        boolean encoded = sourceEntity != httpEntity;
+        CacheRecord.BodyOutputStream outputStream = CacheRecord.open(tempFile, httpResponse.getStatusLine(), httpResponse.getAllHeaders(), varyHeaders, encoded, syncWrites);
+        TeeInputStream teeInputStream;
+        try{
+            teeInputStream = new TeeInputStream(sourceEntity.getContent(), outputStream);
+        }catch (IOException e){
+            try{outputStream.close();}catch (IOException exception){exception.printStackTrace();}
+            tempFile.delete();
+            throw e;
         }
 
-        // 将响应实体替换为本地文件
-        Header contentTypeHeader = httpEntity.getContentType();
-        httpResponse.setEntity(new FileEntity(responseEntityCacheFile,contentTypeHeader != null?contentTypeHeader.getValue():null));
+        // 保存压缩数据的时候写入缓存的是原始数据，交给HttpResponseHandler之前再解压
+        HttpEntity teeEntity = new TeeEntity(sourceEntity, teeInputStream);
+        httpResponse.setEntity(encoded ? new InflatingEntity(teeEntity) : teeEntity);
+        return new StreamingCacheEditor(httpRequest, cacheFile, tempFile, outputStream, teeInputStream, cacheTime, expiresTime);
     }
 
     @Override
-    public synchronized boolean isHasAvailableCache(HttpRequest httpRequest) {
+    public boolean isHasAvailableCache(HttpRequest httpRequest) {
         // 如果不需要缓存直接返回false
         if(httpRequest.getCacheConfig() == null){
             return false;
@@ -162,38 +223,21 @@ public class DefaultCacheManager implements CacheManager{
             return false;
         }
 
-        // 创建缓存文件并根据缓存文件是否存在初步判断缓存是否可用
-        File statusLineCacheFile = getCacheFile(httpRequest.getGoHttp(), cacheId + ".status_line");
-        File responseHeadersCacheFile = getCacheFile(httpRequest.getGoHttp(), cacheId + ".headers");
-        File responseEntityCacheFile = getCacheFile(httpRequest.getGoHttp(), cacheId + ".entity");
-
-        // 如果缓存文件不可用就尝试删除所有的缓存文件并直接返回false
-        if(!(statusLineCacheFile.exists() && responseHeadersCacheFile.exists() && responseEntityCacheFile.exists())){
-            if(!statusLineCacheFile.delete() && httpRequest.getGoHttp().isDebugMode()){
-                Log.w(GoHttp.LOG_TAG, createLog(httpRequest, "Cache : 缓存文件删除失败：" + statusLineCacheFile.getPath()));
-            }
-            if(!responseHeadersCacheFile.delete() && httpRequest.getGoHttp().isDebugMode()){
-                Log.w(GoHttp.LOG_TAG, createLog(httpRequest, "Cache : 缓存文件删除失败："+responseHeadersCacheFile.getPath()));
-            }
-            if(!responseEntityCacheFile.delete() && httpRequest.getGoHttp().isDebugMode()){
-                Log.w(GoHttp.LOG_TAG, createLog(httpRequest, "Cache : 缓存文件删除失败："+responseEntityCacheFile.getPath()));
-            }
+        // 从缓存索引中查询缓存时间，索引尚未加载完成时退回到读取缓存文件的最后修改时间，缓存不存在时为0
+        long cacheTime = getCacheTime(httpRequest);
+        if(cacheTime <= 0){
             if(httpRequest.getGoHttp().isDebugMode()) Log.w(GoHttp.LOG_TAG, createLog(httpRequest, "Cache : 缓存文件不存在"));
             return false;
         }
 
-        // 如果有效期小于等于0，就无需验证了，直接返回true
-        if(httpRequest.getCacheConfig().getPeriodOfValidity() <= 0){
+        // 如果永久有效，就无需验证了，直接返回true
+        long outOfDateTime = getCacheOutOfDateTime(httpRequest, cacheTime);	// 过期时间
+        if(outOfDateTime == Long.MAX_VALUE){
             if(httpRequest.getGoHttp().isDebugMode()) Log.d(GoHttp.LOG_TAG, createLog(httpRequest, "Cache : 缓存永久有效"));
             return true;
         }
 
-        // 根据缓存文件最后修改时间判断是否过期
-        long cacheTime = responseEntityCacheFile.lastModified();	// 缓存时间
-        Calendar calendar = new GregorianCalendar();
-        calendar.setTime(new Date(cacheTime));
-        calendar.add(Calendar.MILLISECOND, httpRequest.getCacheConfig().getPeriodOfValidity());
-        long outOfDateTime = calendar.getTimeInMillis();	// 过期时间
+        // 根据过期时间判断是否过期
         long currentTime = System.currentTimeMillis();	//当前时间
         boolean isAvailable = outOfDateTime > currentTime;
         if(httpRequest.getGoHttp().isDebugMode()){
@@ -202,7 +246,7 @@ public class DefaultCacheManager implements CacheManager{
             }else{
                 SimpleDateFormat simpleDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss:SSS", Locale.getDefault());
                 String lastModifiedTimeString = simpleDateFormat.format(new Date(cacheTime));
-                String currentTimeString = simpleDateFormat.format(new Date());
+                String currentTimeString = simpleDateFormat.format(new Date(currentTime));
                 String outOfDateTimeString = simpleDateFormat.format(new Date(outOfDateTime));
                 Log.w(GoHttp.LOG_TAG, createLog(httpRequest,
                         "Cache : 缓存已過期"
@@ -216,52 +260,370 @@ public class DefaultCacheManager implements CacheManager{
     }
 
     @Override
-    public synchronized HttpResponse readHttpResponseFromCache(HttpRequest httpRequest) {
-        // 创建缓存文件
-        String cacheId = httpRequest.getCacheConfig().getId();
-        File statusLineCacheFile = getCacheFile(httpRequest.getGoHttp(), cacheId + ".status_line");
-        File responseHeadersCacheFile = getCacheFile(httpRequest.getGoHttp(), cacheId + ".headers");
-        File responseEntityCacheFile = getCacheFile(httpRequest.getGoHttp(), cacheId + ".entity");
+    public long getCacheOutOfDateTime(HttpRequest httpRequest) {
+        long cacheTime = getCacheTime(httpRequest);
+        return cacheTime > 0 ? getCacheOutOfDateTime(httpRequest, cacheTime) : 0;
+    }
 
-        // 读取状态行并初始化响应
-        StatusLineCache statusLineCache;
-        try {
-            statusLineCache = new Gson().fromJson(readString(statusLineCacheFile), StatusLineCache.class);
-        } catch (IOException e) {
-            e.printStackTrace();
-            return null;
+    /**
+     * 计算过期时间，遵循响应头的话优先使用根据响应头计算出的过期时间，否则根据缓存时间和有效期计算
+     */
+    private long getCacheOutOfDateTime(HttpRequest httpRequest, long cacheTime){
+        long expiresTime = httpRequest.getCacheConfig().isHttpSemantics() ? getCacheExpiresTime(httpRequest) : 0;
+        if(expiresTime > 0){
+            return expiresTime;
         }
-        HttpResponse httpResponse = new BasicHttpResponse(statusLineCache.toStatusLine());
+        int periodOfValidity = httpRequest.getCacheConfig().getPeriodOfValidity();
+        return periodOfValidity <= 0 ? Long.MAX_VALUE : cacheTime + periodOfValidity;
+    }
 
-        // 读取响应头
-        String responseHeaders;
+    @Override
+    public HttpResponse readHttpResponseFromCache(HttpRequest httpRequest) {
+        String cacheId = httpRequest.getCacheConfig().getId();
+        File cacheFile = getCacheFile(httpRequest.getGoHttp(), cacheId + CACHE_FILE_SUFFIX);
+        CacheIndex cacheIndex = getCacheIndex(httpRequest.getGoHttp());
         try {
-            responseHeaders = readString(responseHeadersCacheFile);
+            long startTime = System.nanoTime();
+            List<Header> varyHeaders = new ArrayList<Header>(0);
+            HttpResponse httpResponse = CacheRecord.read(cacheFile, varyHeaders);
+            stats.recordRead(CacheRecord.toCacheFileEntity(httpResponse.getEntity()).getContentLength(), System.nanoTime() - startTime);
+            if(!HttpCachePolicy.isVaryMatches(varyHeaders.toArray(new Header[varyHeaders.size()]), httpRequest)){
+                HttpRequestHandler.releaseConnect(httpResponse);
+                if(httpRequest.getGoHttp().isDebugMode()) Log.w(GoHttp.LOG_TAG, createLog(httpRequest, "Cache : Vary请求头不一致，不能使用缓存"));
+                return null;
+            }
+            cacheIndex.recordAccess(cacheId);
+            return httpResponse;
         } catch (IOException e) {
             e.printStackTrace();
+
+            // 读取的时候没有加锁，失败可能是因为其它线程刚好替换或删除了缓存文件，所以要加锁之后再确认一次才能删除
+            Lock entryLock = getEntryLock(cacheId);
+            entryLock.lock();
+            try{
+                discardBrokenCache(httpRequest, cacheIndex, cacheFile);
+            }finally {
+                entryLock.unlock();
+            }
             return null;
         }
-        String[] headerStrings = new Gson().fromJson(responseHeaders, new TypeToken<String[]>(){}.getType());
-        if(headerStrings != null && headerStrings.length > 0){
-            Header[] headers = new Header[headerStrings.length];
-            int w = 0;
-            for(String string : headerStrings){
-                CharArrayBuffer charArrayBuffer = new CharArrayBuffer(string.length());
-                charArrayBuffer.append(string);
-                headers[w++] = new BufferedHeader(charArrayBuffer);
+    }
+
+    /**
+     * 再读取一次缓存文件，依然是损坏的话删除缓存文件和索引，文件不存在的话只删除索引，必须持有写入锁
+     */
+    private void discardBrokenCache(HttpRequest httpRequest, CacheIndex cacheIndex, File cacheFile){
+        String cacheId = httpRequest.getCacheConfig().getId();
+        try{
+            HttpRequestHandler.releaseConnect(CacheRecord.read(cacheFile, null));
+            return; // 已经被其它线程替换成完整的缓存文件了
+        }catch (FileNotFoundException e){
+            cacheIndex.remove(cacheId);
+            return;
+        }catch (IOException e){
+            // 确实已经损坏了
+        }
+        cacheIndex.remove(cacheId);
+        if(!cacheFile.delete() && cacheFile.exists() && httpRequest.getGoHttp().isDebugMode()){
+            Log.w(GoHttp.LOG_TAG, createLog(httpRequest, "Cache : 缓存文件删除失败：" + cacheFile.getPath()));
+        }
+    }
+
+    @Override
+    public HttpResponse refreshHttpResponseCache(HttpRequest httpRequest, HttpResponse notModifiedResponse) throws IOException {
+        String cacheId = httpRequest.getCacheConfig().getId();
+        File cacheFile = getCacheFile(httpRequest.getGoHttp(), cacheId + CACHE_FILE_SUFFIX);
+        File tempFile = getCacheFile(httpRequest.getGoHttp(), cacheId + CACHE_FILE_SUFFIX + TEMP_FILE_SUFFIX);
+        CacheIndex cacheIndex = getCacheIndex(httpRequest.getGoHttp());
+
+        HttpResponse cachedResponse;
+        Lock entryLock = getEntryLock(cacheId);
+        entryLock.lock();
+        try{
+            List<Header> varyHeaders = new ArrayList<Header>(0);
+            try {
+                cachedResponse = CacheRecord.read(cacheFile, varyHeaders);
+            } catch (FileNotFoundException e) {
+                cacheIndex.remove(cacheId);
+                return null;
+            } catch (IOException e) {
+                e.printStackTrace();
+                cacheIndex.remove(cacheId);
+                cacheFile.delete();
+                return null;
             }
-            httpResponse.setHeaders(headers);
+
+            CacheFileEntity cachedEntity = CacheRecord.toCacheFileEntity(cachedResponse.getEntity());
+            CacheFileEntity cacheFileEntity;
+            long cacheTime = System.currentTimeMillis();
+            Header[] headers = updateHeaders(cachedResponse.getAllHeaders(), notModifiedResponse);
+            if(headers != null){
+                // 响应头有变化，连同响应体一起重写到临时文件中
+                InputStream inputStream = cachedEntity.getContent();
+                long startTime = System.nanoTime();
+                try{
+                    CacheFileEntity tempFileEntity = CacheRecord.write(tempFile, cachedResponse.getStatusLine(), headers, varyHeaders.isEmpty() ? null : varyHeaders.toArray(new Header[varyHeaders.size()]), cachedEntity.isEncoded(), syncWrites, inputStream);
+                    if(!tempFile.renameTo(cacheFile)){
+                        throw new IOException("重命名缓存文件失败：" + tempFile.getPath());
+                    }
+                    cacheFileEntity = tempFileEntity.withFile(cacheFile);
+                    stats.recordWrite(cacheFileEntity.getOffset() + cacheFileEntity.getContentLength(), System.nanoTime() - startTime);
+                }catch (IOException e){
+                    stats.recordWriteFailure();
+                    tempFile.delete();
+                    throw e;
+                }finally {
+                    try{inputStream.close();}catch (IOException exception){exception.printStackTrace();}
+                }
+                cachedResponse.setHeaders(headers);
+            }else{
+                // 响应头没有变化，只需要更新缓存时间
+                cachedEntity.consumeContent();
+                cacheFile.setLastModified(cacheTime);
+                cacheFileEntity = cachedEntity.withFile(cacheFile);
+            }
+            long expiresTime = httpRequest.getCacheConfig().isHttpSemantics() ? HttpCachePolicy.computeExpiresTime(cachedResponse, cacheTime) : 0;
+            cacheIndex.put(cacheId, cacheFileEntity.getOffset() + cacheFileEntity.getContentLength(), cacheFileEntity.getDecodedFileLength(), cacheTime, expiresTime);
+            cacheFileEntity.setContentType(cachedEntity.getContentType());
+            cacheFileEntity.setContentEncoding(cachedEntity.getContentEncoding());
+            cachedResponse.setEntity(CacheRecord.toEntity(cacheFileEntity));
+        }finally {
+            entryLock.unlock();
         }
 
-        // 设置响应体
-        Header contentTypeHeader = null;
-        Header[] contentTypes = httpResponse.getHeaders(HTTP.CONTENT_TYPE);
-        if(contentTypes != null && contentTypes.length > 0){
-            contentTypeHeader = contentTypes[0];
+        trimIfNeeded(cacheIndex);
+        if(httpRequest.getGoHttp().isDebugMode()) Log.d(GoHttp.LOG_TAG, createLog(httpRequest, "Cache : 服务器确认缓存依然可用，已刷新缓存时间"));
+        return cachedResponse;
+    }
+
+    /**
+     * 用304响应中的响应头更新缓存的响应头
+     * @return 更新后的响应头，除了Date之外没有任何变化的话返回null，这样就不需要重写缓存文件了
+     */
+    static Header[] updateHeaders(Header[] cachedHeaders, HttpResponse notModifiedResponse){
+        List<Header> headers = new ArrayList<Header>(cachedHeaders.length + NOT_MODIFIED_UPDATE_HEADERS.length);
+        Collections.addAll(headers, cachedHeaders);
+        boolean changed = false;
+        for(String name : NOT_MODIFIED_UPDATE_HEADERS){
+            Header newHeader = notModifiedResponse.getFirstHeader(name);
+            if(newHeader == null){
+                continue;
+            }
+
+            boolean same = false;
+            Iterator<Header> iterator = headers.iterator();
+            while(iterator.hasNext()){
+                Header oldHeader = iterator.next();
+                if(name.equalsIgnoreCase(oldHeader.getName())){
+                    same = newHeader.getValue() != null && newHeader.getValue().equals(oldHeader.getValue());
+                    iterator.remove();
+                }
+            }
+            headers.add(newHeader);
+            if(!same && !me.xiaopan.gohttp.header.Date.NAME.equals(name)){
+                changed = true;
+            }
+        }
+        return changed ? headers.toArray(new Header[headers.size()]) : null;
+    }
+
+    /**
+     * 删除缓存，同一个缓存ID改为由其它缓存管理器保存的时候使用
+     * @param httpRequest 请求
+     */
+    void remove(HttpRequest httpRequest){
+        String cacheId = httpRequest.getCacheConfig().getId();
+        File cacheFile = getCacheFile(httpRequest.getGoHttp(), cacheId + CACHE_FILE_SUFFIX);
+        CacheIndex cacheIndex = getCacheIndex(httpRequest.getGoHttp());
+        if(cacheIndex.isLoaded() ? cacheIndex.get(cacheId) == null : !cacheFile.exists()){
+            return;
+        }
+        Lock entryLock = getEntryLock(cacheId);
+        entryLock.lock();
+        try{
+            cacheIndex.remove(cacheId);
+            if(!cacheFile.delete() && cacheFile.exists() && httpRequest.getGoHttp().isDebugMode()){
+                Log.w(GoHttp.LOG_TAG, createLog(httpRequest, "Cache : 缓存文件删除失败：" + cacheFile.getPath()));
+            }
+        }finally {
+            entryLock.unlock();
+        }
+    }
+
+    /**
+     * 获取缓存目录
+     */
+    File getCacheDirectory(GoHttp goHttp){
+        return getCacheFile(goHttp, "");
+    }
+
+    @Override
+    public long getCacheTime(HttpRequest httpRequest){
+        String cacheId = httpRequest.getCacheConfig().getId();
+        File cacheFile = getCacheFile(httpRequest.getGoHttp(), cacheId + CACHE_FILE_SUFFIX);
+
+        // 索引加载完成之后直接从内存中查询，否则只能根据缓存文件的最后修改时间判断
+        CacheIndex cacheIndex = getCacheIndex(httpRequest.getGoHttp());
+        if(cacheIndex.isLoaded()){
+            CacheIndex.Entry entry = cacheIndex.get(cacheId);
+            return entry != null ? entry.storedTime : 0;
         }
-        httpResponse.setEntity(new FileEntity(responseEntityCacheFile, contentTypeHeader != null?contentTypeHeader.getValue():null));
+        return cacheFile.lastModified();
+    }
 
-        return httpResponse;
+    @Override
+    public long getCacheExpiresTime(HttpRequest httpRequest){
+        CacheIndex.Entry entry = getCacheIndex(httpRequest.getGoHttp()).get(httpRequest.getCacheConfig().getId());
+        return entry != null ? entry.expiresTime : 0;
+    }
+
+    /**
+     * 获取缓存索引，第一次获取的时候会在后台线程中加载
+     */
+    private CacheIndex getCacheIndex(GoHttp goHttp){
+        CacheIndex cacheIndex = this.cacheIndex;
+        if(cacheIndex == null){
+            synchronized (this){
+                cacheIndex = this.cacheIndex;
+                if(cacheIndex == null){
+                    cacheIndex = new CacheIndex(getCacheFile(goHttp, ""), CACHE_FILE_SUFFIX, TEMP_FILE_SUFFIX, CACHE_ID_VERSION, getBackgroundExecutor());
+                    this.cacheIndex = cacheIndex;
+                    sweepOrphanFiles(cacheIndex);
+                    trimIfNeeded(cacheIndex);   // 加载完成之后如果超出限制就淘汰一部分
+                }
+            }
+        }
+        return cacheIndex;
+    }
+
+    /**
+     * 获取后台线程
+     */
+    private synchronized ExecutorService getBackgroundExecutor(){
+        if(backgroundExecutor == null){
+            backgroundExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "GoHttp-Cache");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+        }
+        return backgroundExecutor;
+    }
+
+    /**
+     * 超出容量或数量限制时在后台线程中淘汰缓存，同一时间只会有一个淘汰任务在排队
+     */
+    private void trimIfNeeded(final CacheIndex cacheIndex){
+        if(cacheIndex.isLoaded() && !isOverLimit(cacheIndex)){
+            return;
+        }
+        if(trimScheduled.compareAndSet(false, true)){
+            getBackgroundExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    trimScheduled.set(false);
+                    trim(cacheIndex);
+                }
+            });
+        }
+    }
+
+    /**
+     * 索引加载完成之后在后台线程中删除索引中没有记录的缓存文件以及旧版（.status_line、.headers、.entity）缓存文件。
+     * <br>缓存ID的生成方式改变之后原来的缓存文件再也不会被访问到，默认又不限制容量和数量，不删除的话会一直占用空间
+     */
+    private void sweepOrphanFiles(final CacheIndex cacheIndex){
+        getBackgroundExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                File[] files = cacheIndex.getDirectory().listFiles();
+                if(!cacheIndex.isLoaded() || files == null){
+                    return;
+                }
+                for(File file : files){
+                    String fileName = file.getName();
+                    if(fileName.endsWith(LEGACY_STATUS_LINE_SUFFIX) || fileName.endsWith(LEGACY_HEADERS_SUFFIX) || fileName.endsWith(LEGACY_ENTITY_SUFFIX)){
+                        if(!file.delete() && file.exists()){
+                            Log.w(GoHttp.LOG_TAG, "Cache : 删除旧版缓存文件失败：" + file.getPath());
+                        }
+                    }else if(fileName.endsWith(CACHE_FILE_SUFFIX)){
+                        String cacheId = fileName.substring(0, fileName.length() - CACHE_FILE_SUFFIX.length());
+                        if(cacheIndex.get(cacheId) != null){
+                            continue;
+                        }
+
+                        // 替换缓存文件和更新索引都是在持有写入锁的时候进行的，拿到锁之后索引中依然没有记录才是真正的无主文件；正在写入的直接跳过
+                        Lock entryLock = getEntryLock(cacheId);
+                        if(!entryLock.tryLock()){
+                            continue;
+                        }
+                        try{
+                            if(cacheIndex.get(cacheId) == null && !file.delete() && file.exists()){
+                                Log.w(GoHttp.LOG_TAG, "Cache : 删除无主缓存文件失败：" + file.getPath());
+                            }
+                        }finally {
+                            entryLock.unlock();
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    private boolean isOverLimit(CacheIndex cacheIndex){
+        long maxSize = this.maxSize;
+        int maxCount = this.maxCount;
+        return (maxSize > 0 && cacheIndex.getSize() > maxSize) || (maxCount > 0 && cacheIndex.getCount() > maxCount);
+    }
+
+    /**
+     * 按照淘汰策略删除缓存直到不再超出限制，只在后台线程中执行
+     */
+    private void trim(CacheIndex cacheIndex){
+        if(!cacheIndex.isLoaded() || !isOverLimit(cacheIndex)){
+            return;
+        }
+
+        // 先记下访问时间和访问次数再排序，避免排序期间被其它线程修改
+        List<EvictionCandidate> candidates = new ArrayList<EvictionCandidate>(cacheIndex.getCount());
+        for(CacheIndex.Entry entry : cacheIndex.getEntries()){
+            candidates.add(new EvictionCandidate(entry, evictionPolicy));
+        }
+        Collections.sort(candidates);
+
+        for(EvictionCandidate candidate : candidates){
+            if(!isOverLimit(cacheIndex)){
+                break;
+            }
+
+            // 正在写入的缓存直接跳过，不阻塞请求线程
+            Lock entryLock = getEntryLock(candidate.entry.id);
+            if(!entryLock.tryLock()){
+                continue;
+            }
+            try{
+                if(cacheIndex.remove(candidate.entry)){
+                    File cacheFile = new File(cacheIndex.getDirectory(), candidate.entry.id + CACHE_FILE_SUFFIX);
+                    if(!cacheFile.delete() && cacheFile.exists()){
+                        Log.w(GoHttp.LOG_TAG, "Cache : 淘汰缓存时删除缓存文件失败：" + cacheFile.getPath());
+                    }
+                    stats.recordEviction();
+                }
+            }finally {
+                entryLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 根据缓存ID获取写入锁，返回的锁只能在当前线程中使用
+     */
+    private Lock getEntryLock(String cacheId){
+        return entryLocks.getLock(cacheId);
     }
 
     private String createLog(HttpRequest request, String type){
@@ -271,7 +633,7 @@ public class DefaultCacheManager implements CacheManager{
     /**
      * 获取缓存文件
      */
-    private synchronized File getCacheFile(GoHttp goHttp, String fileName){
+    private File getCacheFile(GoHttp goHttp, String fileName){
         if(cacheDirectory != null && !"".equals(cacheDirectory)){
             return new File(cacheDirectory + File.separator + "go_http" + File.separator  + fileName);
         }else{
@@ -284,7 +646,7 @@ public class DefaultCacheManager implements CacheManager{
      * @param context 上下文
      * @return 如果SD卡可用，就返回外部缓存目录，否则返回机身自带缓存目录
      */
-    private synchronized File getDynamicCacheDir(Context context){
+    private File getDynamicCacheDir(Context context){
         if(Environment.getExternalStorageState().equals(Environment.MEDIA_MOUNTED)){
             File dir = context.getExternalCacheDir();
             if(dir == null){
@@ -297,97 +659,160 @@ public class DefaultCacheManager implements CacheManager{
     }
 
     /**
-     * 把给定的字符串写到给定的文件中
-     * @param file 给定的文件
-     * @param string 给定的字符串
-     * @param isAppend 是否追加到文件末尾
-     * @throws IOException
+     * 创建父目录
+     * @return 父目录是否存在
      */
-    private void writeString(File file, String string, boolean isAppend) throws IOException{
-        BufferedWriter bw = new BufferedWriter(new FileWriter(file, isAppend));
-        try {
-            bw.write(string);
-        }finally {
-            try {
-                bw.flush();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            try {
-                bw.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
+    private boolean makeParentDirectory(File file){
+        File parentFile = file.getParentFile();
+        return parentFile.exists() || parentFile.mkdirs() || parentFile.exists();
     }
 
     /**
-     * 从给定的字节输入流中读取字节再通过给定的字节输出流写出
-     * @param input 给定的字节输入流
-     * @param output 给定的字节输出流
-     * @throws IOException
+     * 边读边写的缓存编辑器
      */
-    private void outputFromInput(InputStream input, OutputStream output) throws IOException{
-        byte[] bytes = new byte[1024];
-        int number;
-        while((number = input.read(bytes)) != -1){
-            output.write(bytes, 0, number);
+    private class StreamingCacheEditor implements CacheEditor {
+        private HttpRequest httpRequest;
+        private File cacheFile;
+        private File tempFile;
+        private CacheRecord.BodyOutputStream outputStream;
+        private TeeInputStream teeInputStream;
+        private long cacheTime;
+        private long expiresTime;
+        private boolean done;   // 是否已经提交或放弃
+
+        private StreamingCacheEditor(HttpRequest httpRequest, File cacheFile, File tempFile, CacheRecord.BodyOutputStream outputStream, TeeInputStream teeInputStream, long cacheTime, long expiresTime) {
+            this.httpRequest = httpRequest;
+            this.cacheFile = cacheFile;
+            this.tempFile = tempFile;
+            this.outputStream = outputStream;
+            this.teeInputStream = teeInputStream;
+            this.cacheTime = cacheTime;
+            this.expiresTime = expiresTime;
+        }
+
+        @Override
+        public synchronized void commit() throws IOException {
+            if(done){
+                return;
+            }
+            done = true;
+
+            String cacheId = httpRequest.getCacheConfig().getId();
+            CacheIndex cacheIndex = getCacheIndex(httpRequest.getGoHttp());
+            long startTime = System.nanoTime();
+            try{
+                teeInputStream.drain();
+                if(teeInputStream.getWriteException() != null){
+                    throw teeInputStream.getWriteException();
+                }
+                CacheFileEntity tempFileEntity = outputStream.finish();
+
+                Lock entryLock = getEntryLock(cacheId);
+                entryLock.lock();
+                try{
+                    if(!tempFile.renameTo(cacheFile)){
+                        throw new IOException("重命名缓存文件失败：" + tempFile.getPath());
+                    }
+                    cacheIndex.put(cacheId, tempFileEntity.getOffset() + tempFileEntity.getContentLength(), tempFileEntity.getDecodedFileLength(), cacheTime, expiresTime);
+                }finally {
+                    entryLock.unlock();
+                }
+                stats.recordWrite(tempFileEntity.getOffset() + tempFileEntity.getContentLength(), System.nanoTime() - startTime);
+            }catch (IOException e){
+                stats.recordWriteFailure();
+                try{outputStream.close();}catch (IOException exception){exception.printStackTrace();}
+                tempFile.delete();
+                if(httpRequest.getGoHttp().isDebugMode()) Log.w(GoHttp.LOG_TAG, createLog(httpRequest, "Cache : 提交缓存失败，缓存文件已刪除"));
+                throw e;
+            }finally {
+                teeInputStream.closeSource();
+            }
+
+            trimIfNeeded(cacheIndex);
+            if(httpRequest.getGoHttp().isDebugMode()) Log.d(GoHttp.LOG_TAG, createLog(httpRequest, "Cache : 已提交缓存"));
+        }
+
+        @Override
+        public synchronized void abort() {
+            if(done){
+                return;
+            }
+            done = true;
+
+            teeInputStream.closeSource();
+            try{outputStream.close();}catch (IOException exception){exception.printStackTrace();}
+            tempFile.delete();
+            if(httpRequest.getGoHttp().isDebugMode()) Log.w(GoHttp.LOG_TAG, createLog(httpRequest, "Cache : 已放弃缓存"));
         }
-        output.flush();
     }
 
     /**
-     * 从给定的文件中读取字符串
-     * @param file 给定的文件
-     * @return 字符串
-     * @throws IOException
+     * 边读边写时使用的响应实体，读取的同时写入缓存
      */
-    private String readString(File file) throws IOException {
-        Reader reader = new FileReader(file);
-        char[] chars = new char[1024];
-        CharArrayWriter caw = new CharArrayWriter();
-        int number;
-        try {
-            while((number = reader.read(chars)) != -1){
-                caw.write(chars, 0, number);
-            }
-        }finally {
-            try {
-                reader.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+    private static class TeeEntity extends HttpEntityWrapper {
+        private TeeInputStream teeInputStream;
+
+        private TeeEntity(HttpEntity wrapped, TeeInputStream teeInputStream) {
+            super(wrapped);
+            this.teeInputStream = teeInputStream;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return teeInputStream;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return false;
+        }
+
+        @Override
+        public void writeTo(OutputStream outputStream) throws IOException {
+            byte[] bytes = new byte[4096];
+            int number;
+            while((number = teeInputStream.read(bytes)) != -1){
+                outputStream.write(bytes, 0, number);
             }
+            outputStream.flush();
+        }
+
+        /**
+         * 由CacheEditor负责关闭输入流
+         */
+        @Override
+        public void consumeContent() throws IOException {
+
         }
-        return new String(caw.toCharArray());
     }
 
     /**
-     * 创建文件，此方法的重要之处在于，如果其父目录不存在会先创建其父目录
-     * @throws IOException
+     * 淘汰候选，越靠前越先被淘汰
      */
-    private File createFile(File file) throws IOException{
-        if(!file.exists()){
-            boolean makeSuccess = true;
-            File parentFile = file.getParentFile();
-            if(!parentFile.exists()){
-                makeSuccess = parentFile.mkdirs();
-            }
-            if(makeSuccess){
-                try{
-                    file.createNewFile();
-                    return file;
-                }catch(IOException exception){
-                    exception.printStackTrace();
-                    return null;
-                }
-            }else{
-                return null;
+    private static class EvictionCandidate implements Comparable<EvictionCandidate> {
+        private CacheIndex.Entry entry;
+        private long lastAccessTime;
+        private int accessCount;
+
+        private EvictionCandidate(CacheIndex.Entry entry, CacheEvictionPolicy evictionPolicy) {
+            this.entry = entry;
+            this.lastAccessTime = entry.lastAccessTime;
+            this.accessCount = evictionPolicy == CacheEvictionPolicy.LFU ? entry.accessCount.get() : 0;
+        }
+
+        @Override
+        public int compareTo(EvictionCandidate another) {
+            if(accessCount != another.accessCount){
+                return accessCount < another.accessCount ? -1 : 1;
             }
-        }else{
-            return file;
+            return lastAccessTime < another.lastAccessTime ? -1 : (lastAccessTime == another.lastAccessTime ? 0 : 1);
         }
     }
 
+    /**
+     * 旧版缓存文件中的状态行，旧版缓存文件已不再使用
+     */
+    @Deprecated
     public static class StatusLineCache {
         private String reasonPhrase;
         private int statusCode;
@@ -415,7 +840,127 @@ public class DefaultCacheManager implements CacheManager{
 
     @Override
     public void setCacheDirectory(String cacheDirectory) {
-        this.cacheDirectory = cacheDirectory;
+        synchronized (this){
+            this.cacheDirectory = cacheDirectory;
+            if(cacheIndex != null){
+                cacheIndex.close();
+                cacheIndex = null;
+            }
+        }
+    }
+
+    /**
+     * 获取最大容量
+     * @return 单位字节，小于等于0时不限制
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * 设置最大容量，超出后会在后台线程中按照淘汰策略删除缓存
+     * @param maxSize 单位字节，小于等于0时不限制，默认不限制
+     */
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+        CacheIndex cacheIndex = this.cacheIndex;
+        if(cacheIndex != null){
+            trimIfNeeded(cacheIndex);
+        }
+    }
+
+    /**
+     * 获取最大缓存数量
+     * @return 小于等于0时不限制
+     */
+    public int getMaxCount() {
+        return maxCount;
+    }
+
+    /**
+     * 设置最大缓存数量，超出后会在后台线程中按照淘汰策略删除缓存
+     * @param maxCount 小于等于0时不限制，默认不限制
+     */
+    public void setMaxCount(int maxCount) {
+        this.maxCount = maxCount;
+        CacheIndex cacheIndex = this.cacheIndex;
+        if(cacheIndex != null){
+            trimIfNeeded(cacheIndex);
+        }
+    }
+
+    /**
+     * 获取淘汰策略
+     */
+    public CacheEvictionPolicy getEvictionPolicy() {
+        return evictionPolicy;
+    }
+
+    /**
+     * 设置淘汰策略，默认为LRU
+     */
+    public void setEvictionPolicy(CacheEvictionPolicy evictionPolicy) {
+        if(evictionPolicy == null){
+            throw new IllegalArgumentException("evictionPolicy is null");
+        }
+        this.evictionPolicy = evictionPolicy;
+    }
+
+    /**
+     * 重命名之前是否先把缓存文件同步到磁盘
+     */
+    public boolean isSyncWrites() {
+        return syncWrites;
+    }
+
+    /**
+     * 设置重命名之前是否先把缓存文件同步到磁盘（fsync），开启后即使断电也不会丢失已经写入的缓存，代价是每次写入都要等待磁盘，默认关闭。
+     * 不开启的话断电后可能留下不完整的缓存文件，读取时会因为长度或校验和不正确而被丢弃，只会多一次网络请求
+     */
+    public void setSyncWrites(boolean syncWrites) {
+        this.syncWrites = syncWrites;
+    }
+
+    /**
+     * 获取缓存占用的磁盘空间，索引加载完成之前是不完整的
+     * @return 单位字节
+     */
+    public long getSize() {
+        CacheIndex cacheIndex = this.cacheIndex;
+        return cacheIndex != null ? cacheIndex.getSize() : 0;
+    }
+
+    /**
+     * 获取缓存数量，索引加载完成之前是不完整的
+     */
+    public int getCount() {
+        CacheIndex cacheIndex = this.cacheIndex;
+        return cacheIndex != null ? cacheIndex.getCount() : 0;
+    }
+
+    /**
+     * 获取缓存解压后的大小，以压缩数据保存的响应体按解压后的大小计算，与{@link #getSize()}对比就可以知道压缩节省了多少空间
+     * @return 单位字节
+     */
+    public long getDecodedSize() {
+        CacheIndex cacheIndex = this.cacheIndex;
+        return cacheIndex != null ? cacheIndex.getDecodedSize() : 0;
+    }
+
+    /**
+     * 获取因超出限制而被淘汰的缓存数量，{@link CacheStats#reset()}之后从0开始重新计数
+     */
+    public long getEvictionCount() {
+        return stats.getEvictionCount();
+    }
+
+    /**
+     * 获取统计信息，写入耗时不包括边读边写时HttpResponseHandler读取响应的时间，只包括提交的时间；
+     * 读取只统计打开缓存文件、解析状态行和响应头的耗时，字节数按响应体的长度计算
+     */
+    @Override
+    public CacheStats getStats() {
+        return stats;
     }
 
     @Override
@@ -424,18 +969,27 @@ public class DefaultCacheManager implements CacheManager{
             return null;
         }
 
-        StringBuilder stringBuilder = new StringBuilder();
-        stringBuilder.append(httpRequest.getUrl());
+        // 参数按名称排序，这样参数的添加顺序和ConcurrentHashMap的遍历顺序都不会影响缓存ID，同名参数保持原来的顺序
+        List<BasicNameValuePair> params = new ArrayList<BasicNameValuePair>();
         if(httpRequest.getParams() != null){
             List<String> cacheIgnoreParamNames = httpRequest.getCacheIgnoreParamNames();
             for(BasicNameValuePair basicNameValuePair : httpRequest.getParams().getParamsList()){
                 if(cacheIgnoreParamNames == null || !cacheIgnoreParamNames.contains(basicNameValuePair.getName())){
-                    stringBuilder.append(basicNameValuePair.getName());
-                    stringBuilder.append(basicNameValuePair.getValue());
+                    params.add(basicNameValuePair);
                 }
             }
+            Collections.sort(params, PARAM_NAME_COMPARATOR);
+        }
+
+        CacheKeyBuilder cacheKeyBuilder = new CacheKeyBuilder();
+        cacheKeyBuilder.put(httpRequest.getMethod() != null ? httpRequest.getMethod().name() : null);
+        cacheKeyBuilder.put(httpRequest.getUrl());
+        cacheKeyBuilder.put(params.size());
+        for(BasicNameValuePair param : params){
+            cacheKeyBuilder.put(param.getName());
+            cacheKeyBuilder.put(param.getValue());
         }
-        return MD5(stringBuilder.toString());
+        return cacheKeyBuilder.build();
     }
 
     /**
@@ -446,11 +1000,7 @@ public class DefaultCacheManager implements CacheManager{
     public static String MD5(String string) {
         String result = null;
         try {
-            char[] charArray = string.toCharArray();
-            byte[] byteArray = new byte[charArray.length];
-            for (int i = 0; i < charArray.length; i++){
-                byteArray[i] = (byte) charArray[i];
-            }
+            byte[] byteArray = string.getBytes("UTF-8");
 
             StringBuilder hexValue = new StringBuilder();
             for (byte by : MessageDigest.getInstance("MD5").digest(byteArray)) {
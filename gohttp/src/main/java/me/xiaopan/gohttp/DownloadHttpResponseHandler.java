@@ -26,6 +26,8 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * 下载Http响应处理器，用于下载文件
@@ -62,8 +64,13 @@ public class DownloadHttpResponseHandler implements HttpResponseHandler {
 
 		OutputStream outputStream = null;
 		try{
-			outputStream = new BufferedOutputStream(new FileOutputStream(file), 8*1024);
-			read(httpRequest, httpEntity, outputStream);
+            FileOutputStream fileOutputStream = new FileOutputStream(file);
+			outputStream = new BufferedOutputStream(fileOutputStream, 8*1024);
+            if(httpEntity instanceof ByteBufferEntity){
+                write(httpRequest, ((ByteBufferEntity) httpEntity).getByteBuffer(), fileOutputStream.getChannel());
+            }else{
+                read(httpRequest, httpEntity, outputStream);
+            }
 
             try{
                 outputStream.flush();
@@ -139,6 +146,27 @@ public class DownloadHttpResponseHandler implements HttpResponseHandler {
         }
     }
 
+    /**
+     * 直接把缓存中的响应体写入文件，映射的缓存文件由系统直接写入目标文件，不经过Java堆
+     */
+    private void write(HttpRequest httpRequest, ByteBuffer byteBuffer, FileChannel fileChannel) throws IOException {
+        long contentLength = byteBuffer.remaining();
+        long averageLength = Math.max(contentLength/httpRequest.getProgressCallbackNumber(), 64*1024);
+        HttpRequest.ProgressListener progressListener = httpRequest.getProgressListener();
+        long completedLength = 0;
+        while(!httpRequest.isStopReadData() && byteBuffer.hasRemaining()) {
+            // 分段写入，这样才能回调进度和及时停止
+            byteBuffer.limit((int) Math.min(byteBuffer.position() + averageLength, contentLength));
+            while(byteBuffer.hasRemaining()){
+                completedLength += fileChannel.write(byteBuffer);
+            }
+            byteBuffer.limit((int) contentLength);
+            if(progressListener != null && !httpRequest.isCanceled()){
+                new HttpRequestHandler.UpdateProgressRunnable(httpRequest, contentLength, completedLength).execute();
+            }
+        }
+    }
+
     /**
 	 * 创建文件，此方法的重要之处在于，如果其父目录不存在会先创建其父目录
 	 * @throws java.io.IOException
@@ -165,4 +193,20 @@ public class DownloadHttpResponseHandler implements HttpResponseHandler {
 			return file;
 		}
 	}
+
+    /**
+     * 下载到同一个文件的处理器相等，合并相同请求时使用；子类默认按引用比较
+     */
+    @Override
+    public boolean equals(Object o) {
+        if(getClass() != DownloadHttpResponseHandler.class){
+            return super.equals(o);
+        }
+        return o != null && o.getClass() == getClass() && file.equals(((DownloadHttpResponseHandler) o).file);
+    }
+
+    @Override
+    public int hashCode() {
+        return getClass() != DownloadHttpResponseHandler.class ? super.hashCode() : file.hashCode();
+    }
 }
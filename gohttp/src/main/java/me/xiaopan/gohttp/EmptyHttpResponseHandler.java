@@ -36,4 +36,20 @@ public class EmptyHttpResponseHandler implements HttpResponseHandler {
         }
         return null;
 	}
+
+    /**
+     * 没有状态，所以同类型的处理器都相等，合并相同请求时使用；子类默认按引用比较
+     */
+    @Override
+    public boolean equals(Object o) {
+        if(getClass() != EmptyHttpResponseHandler.class){
+            return super.equals(o);
+        }
+        return o != null && o.getClass() == getClass();
+    }
+
+    @Override
+    public int hashCode() {
+        return getClass() != EmptyHttpResponseHandler.class ? super.hashCode() : getClass().hashCode();
+    }
 }
@@ -19,9 +19,16 @@ package me.xiaopan.gohttp;
 import android.content.Context;
 import android.os.Handler;
 import android.os.Looper;
+import android.util.Log;
 
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import me.xiaopan.gohttp.requestobject.Request;
 
@@ -38,7 +45,11 @@ public class GoHttp {
     private NetManager netManager;
     private SyncManager syncManager;    // 同步管理器
     private CacheManager cacheManager;
+    private ResponseObjectCache responseObjectCache;    // 响应对象缓存，默认不开启
+    private Prefetcher prefetcher;  // 预加载器
+    private RequestDispatcher dispatcher;   // 请求调度器
     private ExecutorService executorService;	//线程池
+    private ExecutorService abortExecutor;   // 取消请求时用来中断连接的线程池
     private HttpClientManager httpClientManager;	//Http客户端管理器
 
     public GoHttp(Context context){
@@ -65,6 +76,51 @@ public class GoHttp {
      * @param httpRequest 请求
      */
     public HttpRequestFuture go(final HttpRequest httpRequest){
+        callbackStarted(httpRequest);
+
+        // 相同的请求正在执行的话直接合并过去，共享同一次网络请求的结果
+        if(getSyncManager().joinFlight(httpRequest)){
+            if(isDebugMode()) Log.d(LOG_TAG, httpRequest.getName()+"; "+"Coalesced : 已合并到正在执行的相同请求上"+"; "+httpRequest.getUrl());
+            return new HttpRequestFuture(httpRequest);
+        }
+
+        getDispatcher().dispatch(httpRequest);
+        return new HttpRequestFuture(httpRequest);
+    }
+
+    /**
+     * 在当前线程中执行请求并等待结果，不经过调度器和线程池，合并到正在执行的相同请求上的话就等待它的结果。
+     * <br>在请求线程池的线程中调用（例如在请求线程中回调的ResultFuture回调里）的话不会合并，直接在当前线程中执行，
+     * 因为要合并的请求可能还在排队，等待它会占住它需要的线程，这样的调用多了线程池就死锁了
+     * @param httpRequest 请求
+     * @param resultFuture 请求的结果
+     * @throws ResultFuture.FailureException 请求失败或者等待的时候被中断了
+     * @throws java.util.concurrent.CancellationException 请求被取消了
+     */
+    <T> T execute(HttpRequest httpRequest, ResultFuture<T> resultFuture) throws ResultFuture.FailureException {
+        callbackStarted(httpRequest);
+
+        if(!RequestExecutor.isWorkerThread() && getSyncManager().joinFlight(httpRequest)){
+            if(isDebugMode()) Log.d(LOG_TAG, httpRequest.getName()+"; "+"Coalesced : 已合并到正在执行的相同请求上，等待结果"+"; "+httpRequest.getUrl());
+        }else{
+            httpRequest.getExecuteRunnable().run();
+        }
+
+        try {
+            return resultFuture.get();
+        } catch (InterruptedException e) {
+            resultFuture.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new ResultFuture.FailureException(new HttpRequest.Failure(e));
+        } catch (ExecutionException e) {
+            throw (ResultFuture.FailureException) e.getCause();
+        }
+    }
+
+    /**
+     * 回调请求开始，不在主线程的话发到主线程回调
+     */
+    private void callbackStarted(final HttpRequest httpRequest){
         if(httpRequest.getListener() != null){
             if(Looper.myLooper() == Looper.getMainLooper()){
                 httpRequest.getListener().onStarted(httpRequest);
@@ -77,9 +133,6 @@ public class GoHttp {
                 });
             }
         }
-
-        getExecutorService().submit(httpRequest.getExecuteRunnable());
-        return new HttpRequestFuture(httpRequest);
     }
 
     /**
@@ -104,6 +157,39 @@ public class GoHttp {
         return new HttpHelper(this, requestObject, responseHandler, listener);
     }
 
+    /**
+     * 新建一个没有监听器的请求，通过{@link HttpHelper#submit()}获取结果
+     * @param url 请求地址
+     * @param responseHandler 响应处理器
+     * @return Helper 你还可以继续设置一些参数，最后调用submit()方法即可
+     */
+    public HttpHelper newRequest(String url, HttpResponseHandler responseHandler){
+        return new HttpHelper(this, url, responseHandler);
+    }
+
+    /**
+     * 新建一个没有监听器的请求，通过{@link HttpHelper#submit()}获取结果
+     * @param requestObject 请求对象
+     * @param responseHandler 响应处理器
+     * @return Helper 你还可以继续设置一些参数，最后调用submit()方法即可
+     */
+    public HttpHelper newRequest(Request requestObject, HttpResponseHandler responseHandler){
+        return new HttpHelper(this, requestObject, responseHandler);
+    }
+
+    /**
+     * 获取在主线程中执行任务的Executor，给ResultFuture添加回调的时候使用
+     * @return 在主线程中执行任务的Executor
+     */
+    public Executor getMainThreadExecutor(){
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                getHandler().post(command);
+            }
+        };
+    }
+
     /**
      * 是否是调试模式，是的话在运行过程中会在控制台打印相关LOG
      * @return 是否是调试模式
@@ -151,7 +237,7 @@ public class GoHttp {
         if(executorService == null){
             synchronized (GoHttp.class){
                 if(executorService == null){
-                    executorService = Executors.newCachedThreadPool();
+                    executorService = new RequestExecutor();
                 }
             }
         }
@@ -159,13 +245,38 @@ public class GoHttp {
     }
 
     /**
-     * 设置任务线程池
+     * 设置任务线程池，默认是线程数量有上限并且按优先级排队的RequestExecutor，换成别的线程池之后请求的优先级就不起作用了
      * @param executorService 线程池
      */
     public void setExecutorService(ExecutorService executorService) {
         this.executorService = executorService;
     }
 
+    /**
+     * 获取中断连接的线程池，关闭连接可能比较慢（例如SSL连接要先发送close_notify），不能在调用cancel()的线程（通常是主线程）中执行。
+     * 线程只在需要的时候创建，空闲30秒后回收，同时中断多个连接的时候互不等待
+     * @return 中断连接的线程池
+     */
+    Executor getAbortExecutor() {
+        if(abortExecutor == null){
+            synchronized (GoHttp.class){
+                if(abortExecutor == null){
+                    abortExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger number = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "GoHttp-Abort-" + number.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+                }
+            }
+        }
+        return abortExecutor;
+    }
+
     HttpClientManager getHttpClientManager() {
         if(httpClientManager == null){
             synchronized (GoHttp.class){
@@ -200,6 +311,68 @@ public class GoHttp {
         this.cacheManager = cacheManager;
     }
 
+    /**
+     * 获取响应对象缓存
+     * @return 没有开启的话返回null
+     */
+    public ResponseObjectCache getResponseObjectCache() {
+        return responseObjectCache;
+    }
+
+    /**
+     * 设置响应对象缓存，开启后JsonHttpResponseHandler解析出的对象会按缓存ID保存在内存中，缓存可用时直接回调，不再读取和解析缓存文件
+     * @param responseObjectCache 响应对象缓存，为null时关闭
+     */
+    public void setResponseObjectCache(ResponseObjectCache responseObjectCache) {
+        this.responseObjectCache = responseObjectCache;
+    }
+
+    /**
+     * 获取预加载器，默认最多同时执行2个预加载请求
+     * @return 预加载器
+     */
+    public Prefetcher getPrefetcher() {
+        if(prefetcher == null){
+            synchronized (GoHttp.class){
+                if(prefetcher == null){
+                    prefetcher = new Prefetcher(this);
+                }
+            }
+        }
+        return prefetcher;
+    }
+
+    /**
+     * 设置预加载器，可以用来修改同时执行的数量
+     * @param prefetcher 预加载器
+     */
+    public void setPrefetcher(Prefetcher prefetcher) {
+        this.prefetcher = prefetcher;
+    }
+
+    /**
+     * 获取请求调度器，默认总共最多同时执行64个请求，每个主机最多同时执行4个请求
+     * @return 请求调度器
+     */
+    public RequestDispatcher getDispatcher() {
+        if(dispatcher == null){
+            synchronized (GoHttp.class){
+                if(dispatcher == null){
+                    dispatcher = new RequestDispatcher(this);
+                }
+            }
+        }
+        return dispatcher;
+    }
+
+    /**
+     * 设置请求调度器，可以用来修改每个主机以及总共同时执行的数量
+     * @param dispatcher 请求调度器
+     */
+    public void setDispatcher(RequestDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
     /**
      * 获取网络管理器
      * @return 网络管理器
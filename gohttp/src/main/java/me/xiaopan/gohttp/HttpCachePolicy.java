@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.gohttp;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpResponse;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.message.BasicHeader;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import me.xiaopan.gohttp.header.CacheControl;
+import me.xiaopan.gohttp.header.Expires;
+import me.xiaopan.gohttp.header.Vary;
+
+/**
+ * 根据响应头中的Cache-Control、Expires和Vary判断响应能否缓存、何时过期以及缓存能否用于当前请求，
+ * 只有开启了{@link CacheConfig#setHttpSemantics(boolean)}的请求才会使用
+ */
+final class HttpCachePolicy {
+    private static final String NO_STORE = "no-store";
+    private static final String NO_CACHE = "no-cache";
+    private static final String MAX_AGE = "max-age";
+    private static final String AGE = "Age";
+    private static final String VARY_ALL = "*";
+
+    private HttpCachePolicy(){
+
+    }
+
+    /**
+     * 响应能否缓存，Cache-Control中包含no-store或者Vary为*时不能缓存
+     */
+    static boolean isStorable(HttpResponse httpResponse){
+        for(Header header : httpResponse.getHeaders(CacheControl.NAME)){
+            for(HeaderElement element : header.getElements()){
+                if(NO_STORE.equalsIgnoreCase(element.getName())){
+                    return false;
+                }
+            }
+        }
+        for(Header header : httpResponse.getHeaders(Vary.NAME)){
+            for(HeaderElement element : header.getElements()){
+                if(VARY_ALL.equals(element.getName())){
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 根据响应头计算过期时间，优先级为Cache-Control: no-cache、Cache-Control: max-age、Expires
+     * @param httpResponse 响应
+     * @param responseTime 收到响应的时间
+     * @return 过期时间，响应头中没有相关信息时返回0，这时以CacheConfig中的有效期为准；no-cache或已过期时返回responseTime，即每次都需要重新请求或向服务器确认
+     */
+    static long computeExpiresTime(HttpResponse httpResponse, long responseTime){
+        long maxAge = -1;
+        for(Header header : httpResponse.getHeaders(CacheControl.NAME)){
+            for(HeaderElement element : header.getElements()){
+                if(NO_CACHE.equalsIgnoreCase(element.getName())){
+                    return responseTime;
+                }
+                if(MAX_AGE.equalsIgnoreCase(element.getName()) && element.getValue() != null){
+                    try{
+                        maxAge = Long.parseLong(element.getValue().trim());
+                    }catch (NumberFormatException e){
+                        return responseTime;
+                    }
+                }
+            }
+        }
+
+        // max-age是相对于服务器生成响应的时间计算的，需要减去响应在中间缓存中已经停留的时间
+        if(maxAge >= 0){
+            long age = 0;
+            Header ageHeader = httpResponse.getFirstHeader(AGE);
+            if(ageHeader != null){
+                try{
+                    age = Math.max(0, Long.parseLong(ageHeader.getValue().trim()));
+                }catch (NumberFormatException e){
+                    e.printStackTrace();
+                }
+            }
+            return maxAge > age ? responseTime + (maxAge - age) * 1000 : responseTime;
+        }
+
+        // Expires是服务器的时钟，所以要跟Date比较，而不是跟本地时间比较
+        Expires expires = Expires.fromHttpMessage(httpResponse);
+        if(expires != null){
+            long expiresTime = parseDate(expires.getValue());
+            if(expiresTime <= 0){
+                return responseTime;    // 无效的日期（例如0）表示已经过期
+            }
+            me.xiaopan.gohttp.header.Date date = me.xiaopan.gohttp.header.Date.fromHttpMessage(httpResponse);
+            long dateTime = date != null ? parseDate(date.getValue()) : 0;
+            long lifetime = expiresTime - (dateTime > 0 ? dateTime : responseTime);
+            return lifetime > 0 ? responseTime + lifetime : responseTime;
+        }
+
+        return 0;
+    }
+
+    /**
+     * 根据响应中的Vary取出请求中对应的请求头，缓存时一起保存，以后只有这些请求头都相同的请求才能使用这个缓存
+     * @return 没有Vary的时候返回null
+     */
+    static Header[] getVaryHeaders(HttpRequest httpRequest, HttpResponse httpResponse){
+        List<Header> varyHeaders = null;
+        for(Header header : httpResponse.getHeaders(Vary.NAME)){
+            for(HeaderElement element : header.getElements()){
+                if(varyHeaders == null){
+                    varyHeaders = new ArrayList<Header>();
+                }
+                varyHeaders.add(new BasicHeader(element.getName(), getRequestHeaderValue(httpRequest, element.getName())));
+            }
+        }
+        return varyHeaders != null ? varyHeaders.toArray(new Header[varyHeaders.size()]) : null;
+    }
+
+    /**
+     * 缓存时保存的Vary请求头是否与当前请求的请求头一致，请求头不存在和值为空视为相同
+     */
+    static boolean isVaryMatches(Header[] varyHeaders, HttpRequest httpRequest){
+        if(varyHeaders == null){
+            return true;
+        }
+        for(Header varyHeader : varyHeaders){
+            String value = getRequestHeaderValue(httpRequest, varyHeader.getName());
+            String varyValue = varyHeader.getValue();
+            if(!(value != null ? value : "").equals(varyValue != null ? varyValue : "")){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String getRequestHeaderValue(HttpRequest httpRequest, String name){
+        List<Header> headers = httpRequest.getHeaders();
+        if(headers == null){
+            return null;
+        }
+        StringBuilder value = null;
+        for(Header header : headers){
+            if(name.equalsIgnoreCase(header.getName())){
+                if(value == null){
+                    value = new StringBuilder(header.getValue() != null ? header.getValue() : "");
+                }else{
+                    value.append(", ").append(header.getValue());
+                }
+            }
+        }
+        return value != null ? value.toString() : null;
+    }
+
+    private static long parseDate(String value){
+        if(value == null){
+            return 0;
+        }
+        try {
+            return DateUtils.parseDate(value).getTime();
+        } catch (DateParseException e) {
+            return 0;
+        }
+    }
+}
@@ -52,7 +52,10 @@ public class HttpClientNetManager implements NetManager{
             throw new Exception("哦no！怎么会没有HttpUriRequest呢？一定是你新增加了一种请求方式，确没有增加转换的实现");
         }
         initHttpClientManager();
-        return httpClientManager.getHttpClient().execute(httpUriRequest, httpClientManager.getHttpContext());
+        request.setHttpUriRequest(httpUriRequest);
+        HttpResponse httpResponse = httpClientManager.getHttpClient().execute(httpUriRequest, httpClientManager.getHttpContext());
+        request.setResponseReceived();
+        return httpResponse;
     }
 
     private HttpUriRequest httpRequest2HttpUriRequest(HttpRequest httpRequest){
@@ -1,5 +1,6 @@
 package me.xiaopan.gohttp;
 
+import android.os.Looper;
 import android.util.Log;
 
 import org.apache.http.Header;
@@ -25,6 +26,7 @@ public class HttpHelper {
     String name;    // 本次请求的名称，默认为当前时间，在输出log的时候会用此参数来作为标识，方便在log中区分具体的请求
     GoHttp goHttp;
     MethodType method;  // 请求方式
+    Priority priority;  // 优先级
     HttpEntity entity;  // Http请求体
     HttpRequest.Listener listener;
     CacheConfig cacheConfig;    // 响应缓存配置
@@ -36,6 +38,17 @@ public class HttpHelper {
     HttpRequest.ResponseHandleCompletedAfterListener responseHandleCompletedAfterListener;  // 响应处理完成之后
 
     public HttpHelper(GoHttp goHttp, String url, HttpResponseHandler responseHandler, HttpRequest.Listener listener){
+        this(goHttp, url, responseHandler);
+        if(listener == null){
+            throw new IllegalArgumentException("listener is null");
+        }
+        this.listener = listener;
+    }
+
+    /**
+     * 创建一个没有监听器的请求，通过{@link #submit()}获取结果
+     */
+    public HttpHelper(GoHttp goHttp, String url, HttpResponseHandler responseHandler){
         if(goHttp == null){
             throw new IllegalArgumentException("goHttp is null");
         }
@@ -45,18 +58,26 @@ public class HttpHelper {
         if(responseHandler == null){
             throw new IllegalArgumentException("responseObject is null");
         }
-        if(listener == null){
-            throw new IllegalArgumentException("listener is null");
-        }
         this.url = url;
         this.goHttp = goHttp;
         this.method = MethodType.GET;
-        this.listener = listener;
+        this.priority = Priority.NORMAL;
         this.responseHandler = responseHandler;
         this.progressCallbackNumber = 100;
     }
 
     public HttpHelper(GoHttp goHttp, Request requestObject, HttpResponseHandler responseHandler, HttpRequest.Listener listener){
+        this(goHttp, requestObject, responseHandler);
+        if(listener == null){
+            throw new IllegalArgumentException("listener is null");
+        }
+        this.listener = listener;
+    }
+
+    /**
+     * 创建一个没有监听器的请求，通过{@link #submit()}获取结果
+     */
+    public HttpHelper(GoHttp goHttp, Request requestObject, HttpResponseHandler responseHandler){
         if(goHttp == null){
             throw new IllegalArgumentException("goHttp is null");
         }
@@ -66,11 +87,8 @@ public class HttpHelper {
         if(responseHandler == null){
             throw new IllegalArgumentException("responseObject is null");
         }
-        if(listener == null){
-            throw new IllegalArgumentException("listener is null");
-        }
         this.goHttp = goHttp;
-        this.listener = listener;
+        this.priority = Priority.NORMAL;
         this.responseHandler = responseHandler;
         this.progressCallbackNumber = 100;
         parseRequestObject(requestObject);
@@ -88,6 +106,18 @@ public class HttpHelper {
         return this;
     }
 
+    /**
+     * 设置优先级，使用默认的RequestExecutor时排队的请求按优先级执行，默认为NORMAL
+     * @param priority 优先级
+     */
+    public HttpHelper priority(Priority priority){
+        if(priority == null){
+            throw new IllegalArgumentException("priority is null");
+        }
+        this.priority = priority;
+        return this;
+    }
+
     /**
      * 设置请求名称
      * @param name 请求名称，在输出log的时候会用此参数来作为标识，方便在log中区分具体的请求
@@ -284,6 +314,38 @@ public class HttpHelper {
         return goHttp.go(new HttpRequest(this));
     }
 
+    /**
+     * 发送请求，结果在执行请求的线程中直接交给返回的ResultFuture，不需要经过主线程，设置了监听器的话依然会在主线程回调监听器
+     * @param <T> HttpResponseHandler返回的结果的类型
+     */
+    public <T> ResultFuture<T> submit(){
+        HttpRequest httpRequest = new HttpRequest(this);
+        ResultFuture<T> resultFuture = new ResultFuture<T>(httpRequest);
+        httpRequest.setResultFuture(resultFuture);
+        goHttp.go(httpRequest);
+        return resultFuture;
+    }
+
+    /**
+     * 在当前线程中执行请求并返回结果，读取缓存、请求网络和处理响应都在当前线程中进行，不经过调度器和线程池，也不需要等待主线程。
+     * 缓存配置依然有效，相同的请求正在执行的话会合并过去等待它的结果。设置了监听器的话依然会在主线程回调监听器。
+     * <br>不能在主线程中调用
+     * @param <T> HttpResponseHandler返回的结果的类型
+     * @return 结果
+     * @throws ResultFuture.FailureException 请求失败或者等待的时候被中断了
+     * @throws java.util.concurrent.CancellationException 请求被取消了
+     */
+    public <T> T execute() throws ResultFuture.FailureException {
+        // 没有主线程Looper的环境（例如单元测试）中两者都是null，不能算作主线程
+        if(Looper.getMainLooper() != null && Looper.myLooper() == Looper.getMainLooper()){
+            throw new IllegalStateException("execute() cannot be called on the main thread");
+        }
+        HttpRequest httpRequest = new HttpRequest(this);
+        ResultFuture<T> resultFuture = new ResultFuture<T>(httpRequest);
+        httpRequest.setResultFuture(resultFuture);
+        return goHttp.execute(httpRequest, resultFuture);
+    }
+
     private void parseRequestObject(Request request){
         Class<? extends Request> requestClass = request.getClass();
 
@@ -19,11 +19,15 @@ package me.xiaopan.gohttp;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
 
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Http请求
@@ -34,6 +38,7 @@ public class HttpRequest{
     private String url; //请求地址
     private GoHttp goHttp;
     private MethodType method;  // 请求方式
+    private Priority priority;  // 优先级
     private HttpEntity httpEntity;  // Http请求体
     private Listener listener;
     private CacheConfig cacheConfig;    // 响应缓存配置
@@ -44,9 +49,17 @@ public class HttpRequest{
     private HttpResponseHandler responseHandler;    // 响应处理器
     private ResponseHandleCompletedAfterListener responseHandleCompletedAfterListener;
 
-    private boolean canceled;   // 是否已经取消
-    private boolean finished;   // 是否已经完成
-    private boolean stopReadData;   // 取消的时候是否立即停止读取数据
+    private volatile boolean canceled;   // 是否已经取消
+    private volatile boolean finished;   // 是否已经完成
+    private volatile boolean stopReadData;   // 取消的时候是否立即停止读取数据
+
+    private volatile String flightKey;   // 合并相同请求时使用的key，只有正在执行并且允许其它请求合并进来的请求才有
+    private volatile List<HttpRequest> followers;    // 合并到当前请求上的其它相同请求，它们不会单独执行，而是共享当前请求的结果
+    private volatile HttpRequest leader;    // 当前请求合并到了哪个请求上
+    private ResultFuture<?> resultFuture;   // 通过HttpHelper.submit()发送的请求的结果
+
+    private volatile HttpUriRequest httpUriRequest;  // 正在执行的网络请求，取消的时候用来中断连接
+    private volatile boolean responseReceived;  // 是否已经收到响应头了
 
     HttpRequest(HttpHelper httpHelper){
         this.url = httpHelper.url;
@@ -54,6 +67,7 @@ public class HttpRequest{
         this.goHttp = httpHelper.goHttp;
         this.params = httpHelper.params;
         this.method = httpHelper.method;
+        this.priority = httpHelper.priority;
         this.headers = httpHelper.headers;
         this.listener = httpHelper.listener;
         this.httpEntity = httpHelper.entity;
@@ -72,6 +86,31 @@ public class HttpRequest{
         }
     }
 
+    /**
+     * 复制一个只用来刷新缓存的请求，不带监听器，刷新时添加的请求头不会影响原来的请求
+     * @param source 原来的请求
+     * @param priority 刷新缓存的优先级
+     */
+    private HttpRequest(HttpRequest source, Priority priority){
+        this.url = source.url;
+        this.name = source.name;
+        this.goHttp = source.goHttp;
+        this.params = source.params;
+        this.method = source.method;
+        this.priority = priority;
+        this.headers = source.headers;
+        this.httpEntity = source.httpEntity;
+        this.cacheConfig = source.cacheConfig;
+        this.responseHandler = source.responseHandler;
+        this.cacheIgnoreParamNames = source.cacheIgnoreParamNames;
+        this.progressCallbackNumber = source.progressCallbackNumber;
+
+        // 缓存配置是共用的，先让原来的请求生成好缓存ID
+        if(cacheConfig != null){
+            cacheConfig.getId();
+        }
+    }
+
     /**
      * 获取GoHttp
      * @return GoHttp
@@ -96,6 +135,14 @@ public class HttpRequest{
         return url;
     }
 
+    /**
+     * 获取优先级
+     * @return 优先级
+     */
+    public Priority getPriority() {
+        return priority;
+    }
+
     /**
      * 获取请求头
      * @return 请求头
@@ -104,6 +151,16 @@ public class HttpRequest{
         return headers;
     }
 
+    /**
+     * 添加请求头，不会修改HttpHelper中的请求头集合
+     * @param header 请求头
+     */
+    void addHeader(Header header){
+        List<Header> newHeaders = headers != null ? new ArrayList<Header>(headers) : new ArrayList<Header>(1);
+        newHeaders.add(header);
+        headers = newHeaders;
+    }
+
     /**
      * 获取请求参数
      * @return 请求参数
@@ -136,9 +193,27 @@ public class HttpRequest{
     }
 
     /**
-     * 是否已经取消了
+     * 是否已经取消了，有其它相同请求合并到当前请求上的时候，只有所有请求都取消了才算取消
      */
     public boolean isCanceled() {
+        if(!canceled){
+            return false;
+        }
+        List<HttpRequest> followers = this.followers;
+        if(followers != null){
+            for(HttpRequest follower : followers){
+                if(!follower.canceled){
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 当前请求自己是否已经取消了，不考虑合并进来的其它请求，决定是否回调当前请求的监听器时使用
+     */
+    boolean isSelfCanceled() {
         return canceled;
     }
 
@@ -149,13 +224,75 @@ public class HttpRequest{
     public void cancel(boolean stopReadData){
         this.canceled = true;
         this.stopReadData = stopReadData;
+
+        // 合并到别的请求上的话，由被合并的请求决定是否真正停止
+        HttpRequest leader = this.leader;
+        (leader != null ? leader : this).abortIfCanceled();
     }
 
     /**
-     * 是否停止读取数据，循环读取数据的时候使用
+     * 合并进来的请求也全部取消了的话，还没开始执行的直接从队列中移除，
+     * 正在连接或者要求立即停止读取数据的话在后台线程中中断网络请求，马上释放线程和连接
+     */
+    private void abortIfCanceled(){
+        if(finished || !closeFlightIfCanceled()){
+            return;
+        }
+        if(goHttp.getDispatcher().remove(this)){
+            finish();
+            new HttpRequestHandler.CancelRunnable(this).execute();
+            return;
+        }
+        final HttpUriRequest httpUriRequest = this.httpUriRequest;
+        if(httpUriRequest != null && (!responseReceived || isStopReadData())){
+            goHttp.getAbortExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    httpUriRequest.abort();
+                }
+            });
+        }
+    }
+
+    /**
+     * 是否已经全部取消了，全部取消了的话不再允许其它请求合并进来，决定按取消处理之前使用这个方法判断，而不是{@link #isCanceled()}
+     */
+    boolean closeFlightIfCanceled(){
+        return goHttp.getSyncManager().closeFlightIfCanceled(this);
+    }
+
+    /**
+     * 设置正在执行的网络请求，在发送之前调用，已经取消了的话会立即中断
+     */
+    void setHttpUriRequest(HttpUriRequest httpUriRequest) {
+        this.responseReceived = false;
+        this.httpUriRequest = httpUriRequest;
+        abortIfCanceled();
+    }
+
+    /**
+     * 收到响应头了，之后只有要求立即停止读取数据的时候才会中断
+     */
+    void setResponseReceived() {
+        this.responseReceived = true;
+    }
+
+    /**
+     * 是否停止读取数据，循环读取数据的时候使用，有其它相同请求合并到当前请求上的时候，只有所有请求都要求停止才会停止
      */
     public boolean isStopReadData() {
-        return canceled && stopReadData;
+        if(!(canceled && stopReadData)){
+            return false;
+        }
+        List<HttpRequest> followers = this.followers;
+        if(followers != null){
+            for(HttpRequest follower : followers){
+                if(!(follower.canceled && follower.stopReadData)){
+                    return false;
+                }
+            }
+        }
+        return true;
     }
 
     /**
@@ -167,7 +304,7 @@ public class HttpRequest{
 
     /**
      * 获取过程监听器
-     * @return 过程监听器
+     * @return 过程监听器，没有设置监听器的请求返回null
      */
     public Listener getListener() {
         return listener;
@@ -205,10 +342,115 @@ public class HttpRequest{
     }
 
     /**
-     * 设置请求已经完成了
+     * 设置请求已经完成了，合并进来的其它请求也一起完成
      */
     public void finish() {
         this.finished = true;
+        this.httpUriRequest = null;
+        goHttp.getSyncManager().closeFlight(this);
+        List<HttpRequest> followers = this.followers;
+        if(followers != null){
+            for(HttpRequest follower : followers){
+                follower.finished = true;
+            }
+        }
+    }
+
+    /**
+     * 获取合并相同请求时使用的key，有缓存ID的用缓存ID，没有缓存ID的GET请求用URL和参数，其它请求不合并
+     * @return 不能合并的时候返回null
+     */
+    String createFlightKey(){
+        if(cacheConfig != null){
+            String cacheId = cacheConfig.getId();
+            return cacheId != null ? "cache:" + cacheId : null;
+        }
+        if(method == MethodType.GET && httpEntity == null){
+            String paramString = params != null ? params.getParamString() : null;
+            return "GET " + url + (paramString != null && !"".equals(paramString) ? "?" + paramString : "");
+        }
+        return null;
+    }
+
+    String getFlightKey() {
+        return flightKey;
+    }
+
+    void setFlightKey(String flightKey) {
+        this.flightKey = flightKey;
+    }
+
+    /**
+     * 给定的请求能否合并到当前请求上，只有请求内容、处理方式和回调方式完全一样的请求才能共享同一个结果。
+     * 不依赖合并用的key，自定义的缓存ID生成规则即使让不同的请求得到了相同的缓存ID也不会被合并
+     */
+    boolean canCoalesce(HttpRequest httpRequest){
+        return method == httpRequest.method
+                && url != null && url.equals(httpRequest.url)
+                && isSameParams(params, httpRequest.params)
+                && httpEntity == httpRequest.httpEntity
+                && responseHandler != null && responseHandler.equals(httpRequest.responseHandler)
+                && responseHandleCompletedAfterListener == null && httpRequest.responseHandleCompletedAfterListener == null
+                && (progressListener != null) == (httpRequest.progressListener != null)
+                && progressCallbackNumber == httpRequest.progressCallbackNumber
+                && isSameHeaders(headers, httpRequest.headers)
+                && (cacheConfig == null ? httpRequest.cacheConfig == null : cacheConfig.isSameBehavior(httpRequest.cacheConfig));
+    }
+
+    /**
+     * 添加合并到当前请求上的请求，只在SyncManager中调用
+     */
+    void addFollower(HttpRequest httpRequest){
+        if(followers == null){
+            followers = new CopyOnWriteArrayList<HttpRequest>();
+        }
+        followers.add(httpRequest);
+        httpRequest.leader = this;
+    }
+
+    /**
+     * 获取合并到当前请求上的请求
+     */
+    List<HttpRequest> getFollowers(){
+        List<HttpRequest> followers = this.followers;
+        return followers != null ? followers : Collections.<HttpRequest>emptyList();
+    }
+
+    private static boolean isSameParams(RequestParams params, RequestParams otherParams){
+        String paramString = params != null ? params.getParamString() : null;
+        String otherParamString = otherParams != null ? otherParams.getParamString() : null;
+        if(paramString == null || "".equals(paramString)){
+            return otherParamString == null || "".equals(otherParamString);
+        }
+        return paramString.equals(otherParamString);
+    }
+
+    private static boolean isSameHeaders(List<Header> headers, List<Header> otherHeaders){
+        int size = headers != null ? headers.size() : 0;
+        int otherSize = otherHeaders != null ? otherHeaders.size() : 0;
+        if(size != otherSize){
+            return false;
+        }
+        for(int w = 0; w < size; w++){
+            Header header = headers.get(w);
+            Header otherHeader = otherHeaders.get(w);
+            if(!header.getName().equalsIgnoreCase(otherHeader.getName())
+                    || !(header.getValue() != null ? header.getValue().equals(otherHeader.getValue()) : otherHeader.getValue() == null)){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 获取请求的结果，只有通过HttpHelper.submit()发送的请求才有
+     */
+    ResultFuture<?> getResultFuture() {
+        return resultFuture;
+    }
+
+    void setResultFuture(ResultFuture<?> resultFuture) {
+        this.resultFuture = resultFuture;
     }
 
     /**
@@ -219,6 +461,15 @@ public class HttpRequest{
         return progressCallbackNumber;
     }
 
+    /**
+     * 复制一个只用来刷新缓存的请求，例如使用过期缓存之后在后台刷新，刷新时要添加条件请求头，不能修改已经交给调用者的请求
+     * @param priority 刷新缓存的优先级
+     * @return 新的请求，没有监听器
+     */
+    HttpRequest copyForRefresh(Priority priority){
+        return new HttpRequest(this, priority);
+    }
+
     /**
      * 获取一个用于执行请求的任务
      * @return 一个用于执行请求的任务
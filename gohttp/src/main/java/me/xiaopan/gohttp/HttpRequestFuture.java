@@ -41,7 +41,7 @@ public class HttpRequestFuture {
      * 是否已经取消了
      */
     public boolean isCanceled() {
-        return httpRequest.isCanceled();
+        return httpRequest.isSelfCanceled();
     }
 
     /**
@@ -18,13 +18,23 @@ package me.xiaopan.gohttp;
 
 import android.util.Log;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.entity.FileEntity;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+
+import me.xiaopan.gohttp.header.ETag;
+import me.xiaopan.gohttp.header.IfModifiedSince;
+import me.xiaopan.gohttp.header.IfNoneMatch;
+import me.xiaopan.gohttp.header.LastModified;
+import me.xiaopan.gohttp.httpclient.InflatingEntity;
 
 /**
  * Http请求处理器
@@ -36,9 +46,16 @@ public class HttpRequestHandler implements Runnable{
         this.httpRequest = httpRequest;
     }
 
+    /**
+     * 获取请求的优先级，RequestExecutor排队的时候使用
+     */
+    Priority getPriority(){
+        return httpRequest.getPriority();
+    }
+
     @Override
     public void run() {
-        if(httpRequest.isCanceled()){
+        if(httpRequest.closeFlightIfCanceled()){
             httpRequest.finish();
             new CancelRunnable(httpRequest).execute();
             if(httpRequest.getGoHttp().isDebugMode()) Log.w(GoHttp.LOG_TAG, httpRequest.getName()+"; "+"Canceled : 刚刚开始"+"; "+httpRequest.getUrl());
@@ -47,13 +64,13 @@ public class HttpRequestHandler implements Runnable{
         if(httpRequest.getGoHttp().isDebugMode()) Log.d(GoHttp.LOG_TAG, httpRequest.getName()+"; "+"Started : 刚刚开始"+"; "+httpRequest.getUrl());
 
         boolean isCache = httpRequest.getCacheConfig() != null;
-        ReentrantLock reentrantLock = null;
+        Lock reentrantLock = null;
 
         if(isCache){
-            reentrantLock = httpRequest.getGoHttp().getSyncManager().getLockByCacheId(httpRequest.getCacheConfig().getId());
+            reentrantLock = httpRequest.getGoHttp().getSyncManager().getCacheIdLock(httpRequest.getCacheConfig().getId());
             reentrantLock.lock();
 
-            if(httpRequest.isCanceled()){
+            if(httpRequest.closeFlightIfCanceled()){
                 httpRequest.finish();
                 new CancelRunnable(httpRequest).execute();
                 if(httpRequest.getGoHttp().isDebugMode()) Log.w(GoHttp.LOG_TAG, httpRequest.getName()+"; "+"Canceled : 拿到锁之后"+"; "+httpRequest.getUrl());
@@ -66,9 +83,17 @@ public class HttpRequestHandler implements Runnable{
         boolean isContinueCallback = true;
 		HttpResponse httpResponse = null;
 
-		// 尝试读取本地缓存
-		if(isCache && httpRequest.getGoHttp().getCacheManager().isHasAvailableCache(httpRequest)){
-            if(httpRequest.isCanceled()){
+		// 尝试读取本地缓存，缓存已过期但是还在stale-while-revalidate窗口内的话也先使用缓存，然后在后台刷新
+        boolean isAvailableCache = isCache && httpRequest.getGoHttp().getCacheManager().isHasAvailableCache(httpRequest);
+        boolean isStaleWhileRevalidate = isCache && !isAvailableCache && isInStaleWindow(httpRequest.getCacheConfig().getStaleWhileRevalidate());
+
+        // 开启了竞速的话同时读取缓存和请求网络
+        if((isAvailableCache || isStaleWhileRevalidate) && httpRequest.getCacheConfig().isRace()){
+            runRace(reentrantLock, isAvailableCache);
+            return;
+        }
+		if(isAvailableCache || isStaleWhileRevalidate){
+            if(httpRequest.closeFlightIfCanceled()){
                 httpRequest.finish();
                 new CancelRunnable(httpRequest).execute();
                 if(httpRequest.getGoHttp().isDebugMode()) Log.w(GoHttp.LOG_TAG, httpRequest.getName()+"; "+"Canceled : 判断完缓存可用"+"; "+httpRequest.getUrl());
@@ -77,9 +102,18 @@ public class HttpRequestHandler implements Runnable{
             }
             if(httpRequest.getGoHttp().isDebugMode()) Log.d(GoHttp.LOG_TAG, httpRequest.getName()+"; "+"Cache : 缓存可用"+"; "+httpRequest.getUrl());
 
-			// 从本地缓存中读取Http响应
-			httpResponse = httpRequest.getGoHttp().getCacheManager().readHttpResponseFromCache(httpRequest);
-            if(httpRequest.isCanceled()){
+			// 从本地缓存中读取Http响应，响应对象缓存中已经有解析好的对象的话就不用再读取和解析缓存文件了
+            ResponseObjectCache.Entry responseObjectEntry = getResponseObjectEntry();
+            long responseObjectGeneration = getResponseObjectGeneration();
+			httpResponse = responseObjectEntry != null ? responseObjectEntry.toHttpResponse() : httpRequest.getGoHttp().getCacheManager().readHttpResponseFromCache(httpRequest);
+            if(httpResponse != null){
+                if(isAvailableCache){
+                    httpRequest.getGoHttp().getCacheManager().getStats().recordHit();
+                }else{
+                    httpRequest.getGoHttp().getCacheManager().getStats().recordExpiredHit();
+                }
+            }
+            if(httpRequest.closeFlightIfCanceled()){
                 httpRequest.finish();
                 new CancelRunnable(httpRequest).execute();
                 if(httpRequest.getGoHttp().isDebugMode()) Log.w(GoHttp.LOG_TAG, httpRequest.getName()+"; "+"Canceled : 读取完缓存"+"; "+httpRequest.getUrl());
@@ -89,7 +123,18 @@ public class HttpRequestHandler implements Runnable{
 
 			if(httpResponse != null){
 				try {
-                    Object responseObject = httpRequest.getResponseHandler().handleResponse(httpRequest, httpResponse);
+                    Object responseObject;
+                    if(responseObjectEntry != null){
+                        responseObject = responseObjectEntry.getResponseObject();
+                        if(httpRequest.getGoHttp().isDebugMode()) Log.d(GoHttp.LOG_TAG, httpRequest.getName()+"; "+"Cache : 使用响应对象缓存"+"; "+httpRequest.getUrl());
+                    }else{
+                        try{
+                            responseObject = httpRequest.getResponseHandler().handleResponse(httpRequest, httpResponse);
+                        }finally {
+                            releaseConnect(httpResponse);
+                        }
+                        putResponseObject(responseObjectGeneration, httpResponse, responseObject);
+                    }
                     if(responseObject == null){
                         throw new Exception("response object is null");
                     }
@@ -103,7 +148,7 @@ public class HttpRequestHandler implements Runnable{
                             responseObject = response;
                         }
                     }
-                    if(httpRequest.isCanceled()){
+                    if(httpRequest.closeFlightIfCanceled()){
                         httpRequest.finish();
                         new CancelRunnable(httpRequest).execute();
                         if(httpRequest.getGoHttp().isDebugMode()) Log.w(GoHttp.LOG_TAG, httpRequest.getName()+"; "+"Canceled : 处理完缓存数据"+"; "+httpRequest.getUrl());
@@ -120,16 +165,21 @@ public class HttpRequestHandler implements Runnable{
                     }else{
                         new CompletedRunnable(httpRequest, httpResponse, responseObject, true, isContinueCallback).execute();
                     }
-                    // 如果不刷新缓存就意味着请求已经结束了
+                    // 如果不刷新缓存就意味着请求已经结束了，使用的是过期缓存的话还要在后台刷新
                     if(!isRefreshCache){
-                        if(httpRequest.getGoHttp().isDebugMode()) Log.d(GoHttp.LOG_TAG, httpRequest.getName()+"; "+"Completed : 读取完缓存并且不需要刷新缓存"+"; "+httpRequest.getUrl());
+                        if(isStaleWhileRevalidate){
+                            refreshCacheInBackground();
+                            if(httpRequest.getGoHttp().isDebugMode()) Log.d(GoHttp.LOG_TAG, httpRequest.getName()+"; "+"Completed : 读取完过期缓存并在后台刷新"+"; "+httpRequest.getUrl());
+                        }else{
+                            if(httpRequest.getGoHttp().isDebugMode()) Log.d(GoHttp.LOG_TAG, httpRequest.getName()+"; "+"Completed : 读取完缓存并且不需要刷新缓存"+"; "+httpRequest.getUrl());
+                        }
                         reentrantLock.unlock();
                         return;
                     }
                     if(httpRequest.getGoHttp().isDebugMode()) Log.d(GoHttp.LOG_TAG, httpRequest.getName()+"; "+"Cache : 已读取并处理缓存"+"; "+httpRequest.getUrl());
 				} catch (Throwable e) {
 					e.printStackTrace();
-                    if(httpRequest.isCanceled()){
+                    if(httpRequest.closeFlightIfCanceled()){
                         httpRequest.finish();
                         new CancelRunnable(httpRequest).execute();
                         if(httpRequest.getGoHttp().isDebugMode()) Log.w(GoHttp.LOG_TAG, httpRequest.getName()+"; "+"Canceled : 处理缓存的Http响应时发生异常"+"; "+httpRequest.getUrl());
@@ -143,14 +193,37 @@ public class HttpRequestHandler implements Runnable{
 			}
 		}
 
+        // 没有可用缓存，或者缓存可用但是没能读取出来，都算未命中
+        if(isCache && httpResponse == null){
+            httpRequest.getGoHttp().getCacheManager().getStats().recordMiss();
+        }
+
+        // 缓存文件被重写之后的响应对象缓存版本号，小于0时不把解析出的对象放入响应对象缓存
+        long responseObjectGeneration = -1;
+
+        // 缓存已过期的话携带缓存的ETag和Last-Modified向服务器确认缓存是否依然可用
+        boolean isRevalidate = isCache && httpResponse == null && httpRequest.getCacheConfig().isRevalidate() && addConditionalHeaders(httpRequest);
+
+        // 已经回调过缓存的话，请求网络期间释放锁，相同缓存ID的其它请求可以直接使用缓存而不必等待
+        boolean isCallbackedCache = httpResponse != null;
+        boolean isUnlockDuringNet = reentrantLock != null && isCallbackedCache;
+        Throwable netException = null;
+
         // 发送网络请求
+        if(isUnlockDuringNet) reentrantLock.unlock();
         try {
             httpResponse = httpRequest.getGoHttp().getNetManager().getHttpResponse(httpRequest);
         } catch (Throwable e) {
+            netException = e;
+        } finally {
+            if(isUnlockDuringNet) reentrantLock.lock();
+        }
+        if(netException != null){
+            Throwable e = netException;
             e.printStackTrace();
             releaseConnect(httpResponse);
             httpRequest.finish();
-            if(httpRequest.isCanceled()){
+            if(httpRequest.closeFlightIfCanceled()){
                 if(isContinueCallback){
                     new CancelRunnable(httpRequest).execute();
                 }
@@ -158,6 +231,11 @@ public class HttpRequestHandler implements Runnable{
                 if(reentrantLock != null) reentrantLock.unlock();
                 return;
             }
+            if(isContinueCallback && isCache && !isCallbackedCache && isInStaleWindow(httpRequest.getCacheConfig().getStaleIfError()) && callbackStaleCache()){
+                if(httpRequest.getGoHttp().isDebugMode()) Log.w(GoHttp.LOG_TAG, httpRequest.getName()+"; "+"Completed : 从网络读取Http响应时发生异常，已使用过期缓存"+"; "+httpRequest.getUrl());
+                if(reentrantLock != null) reentrantLock.unlock();
+                return;
+            }
             if(httpRequest.getGoHttp().isDebugMode()) Log.e(GoHttp.LOG_TAG, httpRequest.getName()+"; "+"Failed : 从网络读取Http响应时发生异常"+"; "+httpRequest.getUrl());
 
             if(isContinueCallback){
@@ -166,7 +244,7 @@ public class HttpRequestHandler implements Runnable{
             if(reentrantLock != null) reentrantLock.unlock();
             return;
         }
-        if(httpRequest.isCanceled()){
+        if(httpRequest.closeFlightIfCanceled()){
             releaseConnect(httpResponse);
             httpRequest.finish();
             new CancelRunnable(httpRequest).execute();
@@ -176,15 +254,75 @@ public class HttpRequestHandler implements Runnable{
         }
         if(httpRequest.getGoHttp().isDebugMode()) Log.d(GoHttp.LOG_TAG, httpRequest.getName()+"; "+"Net : 已从网络读取Http取响应"+"; "+httpRequest.getUrl());
 
-        // 缓存Http响应
-        if(isCache && httpRequest.getResponseHandler().canCache(httpResponse)){
+        // 服务器出错的时候如果缓存还在stale-if-error窗口内就使用过期的缓存
+        if(isContinueCallback && isCache && !isCallbackedCache && httpResponse.getStatusLine().getStatusCode() >= HttpStatus.SC_INTERNAL_SERVER_ERROR
+                && isInStaleWindow(httpRequest.getCacheConfig().getStaleIfError())){
+            HttpResponse errorResponse = httpResponse;
+            if(callbackStaleCache()){
+                releaseConnect(errorResponse);
+                if(httpRequest.getGoHttp().isDebugMode()) Log.w(GoHttp.LOG_TAG, httpRequest.getName()+"; "+"Completed : 服务器返回"+errorResponse.getStatusLine().getStatusCode()+"，已使用过期缓存"+"; "+httpRequest.getUrl());
+                reentrantLock.unlock();
+                return;
+            }
+        }
+
+        // 服务器返回304说明缓存依然可用，刷新缓存之后直接使用缓存的响应
+        boolean isNotModified = isRevalidate && httpResponse.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED;
+        if(isRevalidate){
+            httpRequest.getGoHttp().getCacheManager().getStats().recordRevalidation(isNotModified);
+        }
+        if(isNotModified){
+            HttpResponse notModifiedResponse = httpResponse;
             try {
-                httpRequest.getGoHttp().getCacheManager().saveHttpResponseToCache(httpRequest, httpResponse);
+                httpResponse = httpRequest.getGoHttp().getCacheManager().refreshHttpResponseCache(httpRequest, notModifiedResponse);
+                responseObjectGeneration = invalidateResponseObject();
+                if(httpResponse == null){
+                    throw new IOException("服务器返回304，但是缓存已经不存在了");
+                }
             } catch (IOException e) {
                 e.printStackTrace();
+                httpRequest.finish();
+                if(httpRequest.closeFlightIfCanceled()){
+                    new CancelRunnable(httpRequest).execute();
+                    if(httpRequest.getGoHttp().isDebugMode()) Log.w(GoHttp.LOG_TAG, httpRequest.getName()+"; "+"Canceled : 刷新缓存时发生异常"+"; "+httpRequest.getUrl());
+                    reentrantLock.unlock();
+                    return;
+                }
+                if(httpRequest.getGoHttp().isDebugMode()) Log.e(GoHttp.LOG_TAG, httpRequest.getName()+"; "+"Failed : 刷新缓存时发生异常"+"; "+httpRequest.getUrl());
+                new FailedRunnable(httpRequest, notModifiedResponse, new HttpRequest.Failure(e), false, false).execute();
+                reentrantLock.unlock();
+                return;
+            } finally {
+                releaseConnect(notModifiedResponse);
+            }
+            if(httpRequest.closeFlightIfCanceled()){
                 releaseConnect(httpResponse);
                 httpRequest.finish();
-                if(httpRequest.isCanceled()){
+                new CancelRunnable(httpRequest).execute();
+                if(httpRequest.getGoHttp().isDebugMode()) Log.w(GoHttp.LOG_TAG, httpRequest.getName()+"; "+"Canceled : 刷新完缓存"+"; "+httpRequest.getUrl());
+                reentrantLock.unlock();
+                return;
+            }
+            if(httpRequest.getGoHttp().isDebugMode()) Log.d(GoHttp.LOG_TAG, httpRequest.getName()+"; "+"Cache : 服务器返回304，使用缓存"+"; "+httpRequest.getUrl());
+        }
+
+        // 缓存Http响应，开启了边读边写的话这里只是准备好缓存编辑器，等处理完响应再提交
+        CacheEditor cacheEditor = null;
+        if(isCache && !isNotModified && httpRequest.getResponseHandler().canCache(httpResponse)
+                && (!httpRequest.getCacheConfig().isHttpSemantics() || HttpCachePolicy.isStorable(httpResponse))){
+            try {
+                if(httpRequest.getCacheConfig().isStreamingWrite()){
+                    cacheEditor = httpRequest.getGoHttp().getCacheManager().editHttpResponseCache(httpRequest, httpResponse);
+                }
+                if(cacheEditor == null){
+                    httpRequest.getGoHttp().getCacheManager().saveHttpResponseToCache(httpRequest, httpResponse);
+                    responseObjectGeneration = invalidateResponseObject();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                releaseConnect(httpResponse);
+                httpRequest.finish();
+                if(httpRequest.closeFlightIfCanceled()){
                     if(isContinueCallback){
                         new CancelRunnable(httpRequest).execute();
                     }
@@ -199,18 +337,21 @@ public class HttpRequestHandler implements Runnable{
                 reentrantLock.unlock();
                 return;
             }
-            if(httpRequest.isCanceled()){
+            if(httpRequest.closeFlightIfCanceled()){
+                abortCache(cacheEditor);
+                releaseConnect(httpResponse);
                 httpRequest.finish();
                 new CancelRunnable(httpRequest).execute();
                 if(httpRequest.getGoHttp().isDebugMode()) Log.w(GoHttp.LOG_TAG, httpRequest.getName()+"; "+"Canceled : 缓存完Http响应"+"; "+httpRequest.getUrl());
                 reentrantLock.unlock();
                 return;
             }
-            if(httpRequest.getGoHttp().isDebugMode()) Log.d(GoHttp.LOG_TAG, httpRequest.getName()+"; "+"Cache : 已缓存Http取响应"+"; "+httpRequest.getUrl());
+            if(httpRequest.getGoHttp().isDebugMode()) Log.d(GoHttp.LOG_TAG, httpRequest.getName()+"; "+(cacheEditor != null ? "Cache : 边读边写缓存Http响应" : "Cache : 已缓存Http取响应")+"; "+httpRequest.getUrl());
         }
 
         // 不再回调了就直接结束
         if(!isContinueCallback){
+            commitCache(cacheEditor);
             httpRequest.finish();
             if(httpRequest.getGoHttp().isDebugMode()) Log.d(GoHttp.LOG_TAG, httpRequest.getName()+"; "+"Completed : 不需要继续回调"+"; "+httpRequest.getUrl());
             reentrantLock.unlock();
@@ -235,10 +376,11 @@ public class HttpRequestHandler implements Runnable{
             }
         } catch (Throwable e) {
             e.printStackTrace();
+            abortCache(cacheEditor);
             releaseConnect(httpResponse);
             httpRequest.finish();
 
-            if(httpRequest.isCanceled()){
+            if(httpRequest.closeFlightIfCanceled()){
                 new CancelRunnable(httpRequest).execute();
                 if(httpRequest.getGoHttp().isDebugMode()) Log.w(GoHttp.LOG_TAG, httpRequest.getName()+"; "+"Canceled : 处理从网络读取的Http响应时发生异常"+"; "+httpRequest.getUrl());
                 if(reentrantLock != null) reentrantLock.unlock();
@@ -250,7 +392,8 @@ public class HttpRequestHandler implements Runnable{
             if(reentrantLock != null) reentrantLock.unlock();
             return;
         }
-        if(httpRequest.isCanceled()){
+        if(httpRequest.closeFlightIfCanceled()){
+            abortCache(cacheEditor);
             releaseConnect(httpResponse);
             httpRequest.finish();
             new CancelRunnable(httpRequest).execute();
@@ -260,7 +403,16 @@ public class HttpRequestHandler implements Runnable{
         }
         if(httpRequest.getGoHttp().isDebugMode()) Log.d(GoHttp.LOG_TAG, httpRequest.getName()+"; "+"Net : 已处理完Http响应"+"; "+httpRequest.getUrl());
 
+        // 处理成功才提交缓存，处理失败的响应不应该被缓存下来
+        if(responseObject instanceof HttpRequest.Failure){
+            abortCache(cacheEditor);
+        }else if(cacheEditor != null){
+            responseObjectGeneration = commitCache(cacheEditor) ? getResponseObjectGeneration() : -1;
+        }
+        putResponseObject(responseObjectGeneration, httpResponse, responseObject);
+
         // 回调结果
+        httpRequest.finish();
         if(responseObject instanceof HttpRequest.Failure){
             HttpRequest.Failure failure = (HttpRequest.Failure) responseObject;
             new FailedRunnable(httpRequest, httpResponse, failure, false, false).execute();
@@ -269,24 +421,485 @@ public class HttpRequestHandler implements Runnable{
             new CompletedRunnable(httpRequest, httpResponse, responseObject, false, false).execute();
             if(httpRequest.getGoHttp().isDebugMode()) Log.d(GoHttp.LOG_TAG, httpRequest.getName()+"; "+"Completed : 走到了最后"+"; "+httpRequest.getUrl());
         }
-        httpRequest.finish();
         if(reentrantLock != null) reentrantLock.unlock();
     }
 
+    /**
+     * 同时读取缓存和请求网络，哪个先拿到有效的结果就先回调哪个，网络请求的结果依然会写入缓存。
+     * 缓存先回调的话，网络请求完成之后只有开启了refreshCallback才会再次回调；网络先回调的话就不再回调缓存了
+     * @param reentrantLock 缓存ID对应的锁，进来的时候已经锁上了，竞速期间只在写入缓存的时候持有
+     * @param isAvailableCache 缓存是否可用，否则就是还在stale-while-revalidate窗口内的过期缓存
+     */
+    private void runRace(Lock reentrantLock, boolean isAvailableCache){
+        final Race race = new Race(isAvailableCache, httpRequest.getCacheConfig().isRefreshCallback());
+        reentrantLock.unlock();
+        if(httpRequest.getGoHttp().isDebugMode()) Log.d(GoHttp.LOG_TAG, httpRequest.getName()+"; "+"Race : 同时读取缓存和请求网络"+"; "+httpRequest.getUrl());
+
+        httpRequest.getGoHttp().getExecutorService().execute(new Runnable() {
+            @Override
+            public void run() {
+                race.readCache();
+            }
+        });
+
+        // 发送网络请求并写入缓存
+        HttpResponse httpResponse = null;
+        Object responseObject;
+        try {
+            httpResponse = httpRequest.getGoHttp().getNetManager().getHttpResponse(httpRequest);
+            if(httpRequest.closeFlightIfCanceled()){
+                releaseConnect(httpResponse);
+                race.cancel("从网络读取完Http响应");
+                return;
+            }
+
+            long responseObjectGeneration = -1;
+            if(httpRequest.getResponseHandler().canCache(httpResponse)
+                    && (!httpRequest.getCacheConfig().isHttpSemantics() || HttpCachePolicy.isStorable(httpResponse))){
+                reentrantLock.lock();
+                try{
+                    httpRequest.getGoHttp().getCacheManager().saveHttpResponseToCache(httpRequest, httpResponse);
+                    responseObjectGeneration = invalidateResponseObject();
+                }finally {
+                    reentrantLock.unlock();
+                }
+            }
+
+            // 缓存已经回调并且不需要再次回调的话，写入缓存之后就结束了
+            if(!race.isNeedNetCallback()){
+                releaseConnect(httpResponse);
+                if(httpRequest.getGoHttp().isDebugMode()) Log.d(GoHttp.LOG_TAG, httpRequest.getName()+"; "+"Completed : 缓存已先回调，网络的结果只写入缓存"+"; "+httpRequest.getUrl());
+                return;
+            }
+
+            responseObject = httpRequest.getResponseHandler().handleResponse(httpRequest, httpResponse);
+            if(responseObject == null){
+                throw new Exception("response object is null");
+            }
+            if(!(responseObject instanceof HttpRequest.Failure) && httpRequest.getResponseHandleCompletedAfterListener() != null){
+                //noinspection unchecked
+                Object response = httpRequest.getResponseHandleCompletedAfterListener().onResponseHandleAfter(httpRequest, httpResponse, responseObject, false, false);
+                if(response != null){
+                    responseObject = response;
+                }
+            }
+            putResponseObject(responseObjectGeneration, httpResponse, responseObject);
+        } catch (Throwable e) {
+            e.printStackTrace();
+            releaseConnect(httpResponse);
+            responseObject = new HttpRequest.Failure(e);
+        }
+        if(httpRequest.closeFlightIfCanceled()){
+            releaseConnect(httpResponse);
+            race.cancel("网络请求结束");
+            return;
+        }
+
+        if(responseObject instanceof HttpRequest.Failure){
+            race.netFailed(httpResponse, (HttpRequest.Failure) responseObject);
+        }else{
+            race.netCompleted(httpResponse, responseObject);
+        }
+    }
+
+    /**
+     * 缓存和网络的竞速，由这里决定谁来回调，缓存先回调并且不需要再次回调的话就忽略网络的结果，网络先回调的话就忽略缓存
+     */
+    private class Race {
+        private final AtomicBoolean cacheStarted = new AtomicBoolean();
+        private final CountDownLatch cacheFinished = new CountDownLatch(1);
+        private boolean isAvailableCache;
+        private boolean isRefreshCallback;
+        private boolean delivered;  // 是否已经回调过结果了
+
+        Race(boolean isAvailableCache, boolean isRefreshCallback) {
+            this.isAvailableCache = isAvailableCache;
+            this.isRefreshCallback = isRefreshCallback;
+        }
+
+        /**
+         * 读取并处理缓存，先于网络拿到有效的结果就回调，只会执行一次
+         */
+        void readCache(){
+            if(!cacheStarted.compareAndSet(false, true)){
+                return;
+            }
+            try{
+                readCacheAndCallback();
+            }finally {
+                cacheFinished.countDown();
+            }
+        }
+
+        private void readCacheAndCallback(){
+            if(isDelivered() || httpRequest.closeFlightIfCanceled()){
+                return;
+            }
+
+            ResponseObjectCache.Entry responseObjectEntry = getResponseObjectEntry();
+            long responseObjectGeneration = getResponseObjectGeneration();
+            HttpResponse cachedResponse = responseObjectEntry != null ? responseObjectEntry.toHttpResponse() : httpRequest.getGoHttp().getCacheManager().readHttpResponseFromCache(httpRequest);
+            if(cachedResponse == null){
+                return;
+            }
+            if(isAvailableCache){
+                httpRequest.getGoHttp().getCacheManager().getStats().recordHit();
+            }else{
+                httpRequest.getGoHttp().getCacheManager().getStats().recordExpiredHit();
+            }
+
+            // 处理失败的缓存不算有效的结果，交给网络去回调
+            Object responseObject;
+            try{
+                if(responseObjectEntry != null){
+                    responseObject = responseObjectEntry.getResponseObject();
+                }else{
+                    try{
+                        responseObject = httpRequest.getResponseHandler().handleResponse(httpRequest, cachedResponse);
+                    }finally {
+                        releaseConnect(cachedResponse);
+                    }
+                    putResponseObject(responseObjectGeneration, cachedResponse, responseObject);
+                }
+                if(responseObject == null || responseObject instanceof HttpRequest.Failure){
+                    return;
+                }
+                if(httpRequest.getResponseHandleCompletedAfterListener() != null){
+                    //noinspection unchecked
+                    Object response = httpRequest.getResponseHandleCompletedAfterListener().onResponseHandleAfter(httpRequest, cachedResponse, responseObject, true, isRefreshCallback);
+                    if(response != null){
+                        responseObject = response;
+                    }
+                }
+            }catch (Throwable e){
+                e.printStackTrace();
+                return;
+            }
+
+            synchronized (this){
+                if(delivered || httpRequest.closeFlightIfCanceled()){
+                    if(httpRequest.getGoHttp().isDebugMode()) Log.d(GoHttp.LOG_TAG, httpRequest.getName()+"; "+"Race : 网络已先回调，忽略缓存"+"; "+httpRequest.getUrl());
+                    return;
+                }
+                delivered = true;
+                if(!isRefreshCallback){
+                    httpRequest.finish();
+                }
+                new CompletedRunnable(httpRequest, cachedResponse, responseObject, true, isRefreshCallback).execute();
+            }
+            if(httpRequest.getGoHttp().isDebugMode()) Log.d(GoHttp.LOG_TAG, httpRequest.getName()+"; "+"Race : 缓存先拿到结果"+"; "+httpRequest.getUrl());
+        }
+
+        synchronized boolean isDelivered(){
+            return delivered;
+        }
+
+        /**
+         * 网络请求完成之后是否还需要处理响应并回调
+         */
+        synchronized boolean isNeedNetCallback(){
+            return !delivered || isRefreshCallback;
+        }
+
+        /**
+         * 网络请求成功，缓存还没回调的话直接回调网络的结果，否则只有开启了refreshCallback才再次回调
+         */
+        void netCompleted(HttpResponse httpResponse, Object responseObject){
+            boolean isFirst;
+            synchronized (this){
+                if(delivered && !isRefreshCallback){
+                    if(httpRequest.getGoHttp().isDebugMode()) Log.d(GoHttp.LOG_TAG, httpRequest.getName()+"; "+"Completed : 缓存已先回调，不再回调网络的结果"+"; "+httpRequest.getUrl());
+                    return;
+                }
+                isFirst = !delivered;
+                delivered = true;
+                httpRequest.finish();
+                new CompletedRunnable(httpRequest, httpResponse, responseObject, false, false).execute();
+            }
+            if(httpRequest.getGoHttp().isDebugMode()) Log.d(GoHttp.LOG_TAG, httpRequest.getName()+"; "+(isFirst ? "Completed : 网络先拿到结果" : "Completed : 缓存先回调之后再次回调网络的结果")+"; "+httpRequest.getUrl());
+        }
+
+        /**
+         * 网络请求失败，缓存还没读完的话等缓存的结果，缓存也没有有效的结果才回调失败
+         */
+        void netFailed(HttpResponse httpResponse, HttpRequest.Failure failure){
+            // 缓存读取任务还没开始执行的话就在当前线程读取，免得线程池满了的时候一直等下去
+            readCache();
+            try {
+                cacheFinished.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            synchronized (this){
+                if(delivered && !isRefreshCallback){
+                    if(httpRequest.getGoHttp().isDebugMode()) Log.w(GoHttp.LOG_TAG, httpRequest.getName()+"; "+"Completed : 网络请求失败，已使用缓存"+"; "+httpRequest.getUrl());
+                    return;
+                }
+                delivered = true;
+                httpRequest.finish();
+                new FailedRunnable(httpRequest, httpResponse, failure, false, false).execute();
+            }
+            if(httpRequest.getGoHttp().isDebugMode()) Log.e(GoHttp.LOG_TAG, httpRequest.getName()+"; "+"Failed : "+failure.toString()+"; "+httpRequest.getUrl());
+        }
+
+        /**
+         * 请求被取消了，已经回调过最终结果的话就不再回调取消
+         */
+        void cancel(String message){
+            synchronized (this){
+                if(delivered && !isRefreshCallback){
+                    return;
+                }
+                delivered = true;
+                httpRequest.finish();
+                new CancelRunnable(httpRequest).execute();
+            }
+            if(httpRequest.getGoHttp().isDebugMode()) Log.w(GoHttp.LOG_TAG, httpRequest.getName()+"; "+"Canceled : "+message+"; "+httpRequest.getUrl());
+        }
+    }
+
+    /**
+     * 提交边读边写的缓存，提交失败只会丢掉这次的缓存，不影响本次请求的结果，不管成功与否都会清除响应对象缓存中对应的对象
+     * @return 是否提交成功
+     */
+    private boolean commitCache(CacheEditor cacheEditor){
+        if(cacheEditor == null){
+            return false;
+        }
+        try {
+            cacheEditor.commit();
+            invalidateResponseObject();
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            invalidateResponseObject();
+            if(httpRequest.getGoHttp().isDebugMode()) Log.w(GoHttp.LOG_TAG, httpRequest.getName()+"; "+"Cache : 提交缓存失败"+"; "+httpRequest.getUrl());
+            return false;
+        }
+    }
+
+    /**
+     * 获取当前请求可以使用的响应对象缓存，只有开启了响应对象缓存并且使用的是JsonHttpResponseHandler的时候才可以使用
+     */
+    private ResponseObjectCache getResponseObjectCache(){
+        ResponseObjectCache responseObjectCache = httpRequest.getGoHttp().getResponseObjectCache();
+        return responseObjectCache != null && httpRequest.getResponseHandler().getClass() == JsonHttpResponseHandler.class ? responseObjectCache : null;
+    }
+
+    /**
+     * 从响应对象缓存中获取当前请求的对象
+     * @return 没有或者Vary请求头不一致的话返回null
+     */
+    private ResponseObjectCache.Entry getResponseObjectEntry(){
+        ResponseObjectCache responseObjectCache = getResponseObjectCache();
+        if(responseObjectCache == null){
+            return null;
+        }
+        ResponseObjectCache.Entry entry = responseObjectCache.get(httpRequest.getCacheConfig().getId(), ((JsonHttpResponseHandler) httpRequest.getResponseHandler()).getResponseTypeKey());
+        return entry != null && HttpCachePolicy.isVaryMatches(entry.getVaryHeaders(), httpRequest) ? entry : null;
+    }
+
+    /**
+     * 获取响应对象缓存的版本号，读取缓存文件之前调用
+     * @return 不能使用响应对象缓存的话返回-1
+     */
+    private long getResponseObjectGeneration(){
+        ResponseObjectCache responseObjectCache = getResponseObjectCache();
+        return responseObjectCache != null ? responseObjectCache.getGeneration() : -1;
+    }
+
+    /**
+     * 缓存文件被重写之后清除响应对象缓存中对应的对象
+     * @return 清除之后的版本号，用于放入根据新的缓存文件解析出的对象，不能使用响应对象缓存的话返回-1
+     */
+    private long invalidateResponseObject(){
+        ResponseObjectCache responseObjectCache = httpRequest.getGoHttp().getResponseObjectCache();
+        if(responseObjectCache == null){
+            return -1;
+        }
+        responseObjectCache.remove(httpRequest.getCacheConfig().getId());
+        return getResponseObjectGeneration();
+    }
+
+    /**
+     * 将解析出的对象放入响应对象缓存
+     * @param generation 读取缓存文件之前或者写完缓存文件之后获取的版本号，小于0时不放入
+     */
+    private void putResponseObject(long generation, HttpResponse httpResponse, Object responseObject){
+        ResponseObjectCache responseObjectCache = getResponseObjectCache();
+        if(generation < 0 || responseObjectCache == null || responseObject == null || responseObject instanceof HttpRequest.Failure){
+            return;
+        }
+        Header[] varyHeaders = httpRequest.getCacheConfig().isHttpSemantics() ? HttpCachePolicy.getVaryHeaders(httpRequest, httpResponse) : null;
+        responseObjectCache.put(generation, httpRequest.getCacheConfig().getId(), ((JsonHttpResponseHandler) httpRequest.getResponseHandler()).getResponseTypeKey(), httpResponse, varyHeaders, responseObject);
+    }
+
+    /**
+     * 放弃边读边写的缓存
+     */
+    private void abortCache(CacheEditor cacheEditor){
+        if(cacheEditor != null){
+            cacheEditor.abort();
+        }
+    }
+
+    /**
+     * 缓存是否已经过期但是过期的时间还在给定的窗口内
+     * @param window 窗口，单位毫秒，小于等于0时直接返回false
+     */
+    private boolean isInStaleWindow(int window){
+        if(window <= 0){
+            return false;
+        }
+        long outOfDateTime = httpRequest.getGoHttp().getCacheManager().getCacheOutOfDateTime(httpRequest);
+        return outOfDateTime > 0 && outOfDateTime != Long.MAX_VALUE && outOfDateTime + window > System.currentTimeMillis();
+    }
+
+    /**
+     * 读取并处理过期的缓存，成功的话结束请求并回调
+     * @return 是否已经回调了过期的缓存，没有缓存或者处理失败的时候返回false
+     */
+    private boolean callbackStaleCache(){
+        HttpResponse cachedResponse = httpRequest.getGoHttp().getCacheManager().readHttpResponseFromCache(httpRequest);
+        if(cachedResponse == null){
+            return false;
+        }
+
+        Object responseObject;
+        try{
+            try{
+                responseObject = httpRequest.getResponseHandler().handleResponse(httpRequest, cachedResponse);
+            }finally {
+                releaseConnect(cachedResponse);
+            }
+            if(responseObject == null || responseObject instanceof HttpRequest.Failure){
+                return false;
+            }
+            if(httpRequest.getResponseHandleCompletedAfterListener() != null){
+                //noinspection unchecked
+                Object response = httpRequest.getResponseHandleCompletedAfterListener().onResponseHandleAfter(httpRequest, cachedResponse, responseObject, true, false);
+                if(response != null){
+                    responseObject = response;
+                }
+            }
+        }catch (Throwable e){
+            e.printStackTrace();
+            return false;
+        }
+
+        httpRequest.finish();
+        new CompletedRunnable(httpRequest, cachedResponse, responseObject, true, false).execute();
+        return true;
+    }
+
+    /**
+     * 在后台刷新缓存，不持有缓存ID对应的锁，也不会回调监听器，相同缓存ID同时只会有一个刷新任务。
+     * <br>刷新用的是复制出来的请求，通过调度器以低优先级执行，不会和用户正在等待的请求抢线程
+     */
+    private void refreshCacheInBackground(){
+        final GoHttp goHttp = httpRequest.getGoHttp();
+        final String cacheId = httpRequest.getCacheConfig().getId();
+        if(!goHttp.getSyncManager().startRefresh(cacheId)){
+            return;
+        }
+
+        final HttpRequest refreshRequest = httpRequest.copyForRefresh(Priority.LOW);
+        goHttp.getDispatcher().dispatch(refreshRequest, new Runnable() {
+            @Override
+            public void run() {
+                try{
+                    new HttpRequestHandler(refreshRequest).refreshCache();
+                    if(goHttp.isDebugMode()) Log.d(GoHttp.LOG_TAG, httpRequest.getName()+"; "+"Cache : 已在后台刷新缓存"+"; "+httpRequest.getUrl());
+                }catch (Throwable e){
+                    e.printStackTrace();
+                    if(goHttp.isDebugMode()) Log.e(GoHttp.LOG_TAG, httpRequest.getName()+"; "+"Cache : 在后台刷新缓存时发生异常"+"; "+httpRequest.getUrl());
+                }finally {
+                    goHttp.getSyncManager().finishRefresh(cacheId);
+                }
+            }
+        });
+    }
+
+    /**
+     * 从网络加载并只写入缓存，不处理响应也不回调，在后台刷新缓存和预加载的时候使用。
+     * <br>会给请求添加条件请求头，所以不能用已经交给调用者的请求，参考{@link HttpRequest#copyForRefresh(Priority)}
+     */
+    void refreshCache() throws Throwable {
+        GoHttp goHttp = httpRequest.getGoHttp();
+        HttpResponse httpResponse = null;
+        try{
+            boolean isRevalidate = httpRequest.getCacheConfig().isRevalidate() && addConditionalHeaders(httpRequest);
+            httpResponse = goHttp.getNetManager().getHttpResponse(httpRequest);
+            boolean isNotModified = isRevalidate && httpResponse.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED;
+            if(isRevalidate){
+                goHttp.getCacheManager().getStats().recordRevalidation(isNotModified);
+            }
+            if(isNotModified){
+                releaseConnect(goHttp.getCacheManager().refreshHttpResponseCache(httpRequest, httpResponse));
+                invalidateResponseObject();
+            }else if(httpRequest.getResponseHandler().canCache(httpResponse)
+                    && (!httpRequest.getCacheConfig().isHttpSemantics() || HttpCachePolicy.isStorable(httpResponse))){
+                goHttp.getCacheManager().saveHttpResponseToCache(httpRequest, httpResponse);
+                invalidateResponseObject();
+            }
+        }finally {
+            releaseConnect(httpResponse);
+        }
+    }
+
+    /**
+     * 根据过期的缓存添加If-None-Match和If-Modified-Since请求头
+     * @return 是否添加了请求头，没有缓存或者缓存中没有ETag和Last-Modified的时候返回false
+     */
+    private static boolean addConditionalHeaders(HttpRequest httpRequest){
+        HttpResponse cachedResponse = httpRequest.getGoHttp().getCacheManager().readHttpResponseFromCache(httpRequest);
+        if(cachedResponse == null){
+            return false;
+        }
+        releaseConnect(cachedResponse);
+
+        ETag eTag = ETag.fromHttpMessage(cachedResponse);
+        if(eTag != null){
+            httpRequest.addHeader(new IfNoneMatch(eTag.getValue()));
+        }
+        LastModified lastModified = LastModified.fromHttpMessage(cachedResponse);
+        if(lastModified != null){
+            httpRequest.addHeader(new IfModifiedSince(lastModified.getValue()));
+        }
+        return eTag != null || lastModified != null;
+    }
+
     public static void releaseConnect(HttpResponse httpResponse){
         if(httpResponse == null){
             return;
         }
 
         HttpEntity httpEntity = httpResponse.getEntity();
+        if(httpEntity instanceof InflatingEntity){
+            // 直接关闭压缩数据，没必要为了关闭而创建解压流
+            httpEntity = ((InflatingEntity) httpEntity).getWrappedEntity();
+        }
         if(httpEntity == null || httpEntity instanceof FileEntity){
             return;
         }
+        if(httpEntity instanceof CacheFileEntity){
+            try {
+                httpEntity.consumeContent();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
 
+        // 取消时中断了读取之后，有的HttpCore版本再获取内容会抛出IllegalStateException（Content has been consumed），
+        // 这时连接已经中断了，不需要再关闭，也不能让异常跑出去，否则请求就结束不了了
         InputStream inputStream = null;
         try {
             inputStream = httpEntity.getContent();
         } catch (IOException e) {
+//            e.printStackTrace();
+        } catch (RuntimeException e) {
 //            e.printStackTrace();
         }
         if(inputStream == null){
@@ -312,8 +925,27 @@ public class HttpRequestHandler implements Runnable{
             httpRequest.getListener().onCanceled(httpRequest);
         }
 
+        /**
+         * 只有合并进来的请求也全部取消了才会取消执行，所以它们也一起回调取消
+         */
         public void execute(){
-            httpRequest.getGoHttp().getHandler().post(this);
+            httpRequest.getGoHttp().getSyncManager().closeFlight(httpRequest);
+            post();
+            for(HttpRequest follower : httpRequest.getFollowers()){
+                new CancelRunnable(follower).post();
+            }
+        }
+
+        /**
+         * 直接通知ResultFuture，监听器在主线程回调
+         */
+        private void post(){
+            if(httpRequest.getResultFuture() != null){
+                httpRequest.getResultFuture().setCanceled();
+            }
+            if(httpRequest.getListener() != null){
+                httpRequest.getGoHttp().getHandler().post(this);
+            }
         }
     }
 
@@ -334,15 +966,38 @@ public class HttpRequestHandler implements Runnable{
 
         @Override
         public void run() {
-            if(httpRequest.isCanceled()){
+            if(httpRequest.isSelfCanceled()){
                 return;
             }
 
             httpRequest.getListener().onFailed(httpRequest, httpResponse, failure, isCache, isContinueCallback);
         }
 
+        /**
+         * 同时回调合并进来的请求
+         */
         public void execute(){
-            httpRequest.getGoHttp().getHandler().post(this);
+            httpRequest.getGoHttp().getSyncManager().closeFlight(httpRequest);
+            post();
+            for(HttpRequest follower : httpRequest.getFollowers()){
+                if(!follower.isSelfCanceled()){
+                    new FailedRunnable(follower, httpResponse, failure, isCache, isContinueCallback).post();
+                }else if(!isContinueCallback){
+                    new CancelRunnable(follower).post();
+                }
+            }
+        }
+
+        /**
+         * 直接通知ResultFuture，监听器在主线程回调
+         */
+        private void post(){
+            if(httpRequest.getResultFuture() != null && !httpRequest.isSelfCanceled()){
+                httpRequest.getResultFuture().setFailure(failure, isContinueCallback);
+            }
+            if(httpRequest.getListener() != null){
+                httpRequest.getGoHttp().getHandler().post(this);
+            }
         }
     }
 
@@ -363,7 +1018,7 @@ public class HttpRequestHandler implements Runnable{
 
         @Override
         public void run() {
-            if(httpRequest.isCanceled()){
+            if(httpRequest.isSelfCanceled()){
                 return;
             }
 
@@ -371,8 +1026,31 @@ public class HttpRequestHandler implements Runnable{
             httpRequest.getListener().onCompleted(httpRequest, httpResponse, responseObject, isCache, isContinueCallback);
         }
 
+        /**
+         * 同时回调合并进来的请求，它们共享同一个响应对象
+         */
         public void execute(){
-            httpRequest.getGoHttp().getHandler().post(this);
+            httpRequest.getGoHttp().getSyncManager().closeFlight(httpRequest);
+            post();
+            for(HttpRequest follower : httpRequest.getFollowers()){
+                if(!follower.isSelfCanceled()){
+                    new CompletedRunnable(follower, httpResponse, responseObject, isCache, isContinueCallback).post();
+                }else if(!isContinueCallback){
+                    new CancelRunnable(follower).post();
+                }
+            }
+        }
+
+        /**
+         * 直接通知ResultFuture，监听器在主线程回调
+         */
+        private void post(){
+            if(httpRequest.getResultFuture() != null && !httpRequest.isSelfCanceled()){
+                httpRequest.getResultFuture().setResponseObject(responseObject);
+            }
+            if(httpRequest.getListener() != null){
+                httpRequest.getGoHttp().getHandler().post(this);
+            }
         }
     }
 
@@ -389,15 +1067,23 @@ public class HttpRequestHandler implements Runnable{
 
         @Override
         public void run() {
-            if(httpRequest.isCanceled()){
+            if(httpRequest.isSelfCanceled()){
                 return;
             }
 
             httpRequest.getProgressListener().onUpdateProgress(httpRequest, totalLength, completedLength);
         }
 
+        /**
+         * 同时回调合并进来的请求
+         */
         public void execute(){
             httpRequest.getGoHttp().getHandler().post(this);
+            for(HttpRequest follower : httpRequest.getFollowers()){
+                if(follower.getProgressListener() != null){
+                    httpRequest.getGoHttp().getHandler().post(new UpdateProgressRunnable(follower, totalLength, completedLength));
+                }
+            }
         }
     }
 }
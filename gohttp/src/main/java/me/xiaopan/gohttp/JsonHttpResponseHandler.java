@@ -120,7 +120,18 @@ public class JsonHttpResponseHandler implements HttpResponseHandler {
         }
 	}
 
+    /**
+     * 获取响应类型，用作响应对象缓存的key，只有解析方式完全一样的处理器才能共用解析出的对象
+     */
+    String getResponseTypeKey(){
+        return (responseClass != null ? responseClass.getName() : responseType.toString()) + (excludeFieldsWithoutExposeAnnotation ? ";expose" : "");
+    }
+
     private String toString(HttpRequest httpRequest, final HttpEntity entity, final String defaultCharset) throws IOException, ParseException {
+        if(entity instanceof ByteBufferEntity){
+            return StringHttpResponseHandler.decode(httpRequest, (ByteBufferEntity) entity, defaultCharset);
+        }
+
         InputStream inputStream = entity.getContent();
         if (inputStream == null) {
             return "";
@@ -182,4 +193,32 @@ public class JsonHttpResponseHandler implements HttpResponseHandler {
             return null;
         }
     }
+
+    /**
+     * 转换成同一种类型的处理器相等，合并相同请求时使用；子类默认按引用比较
+     */
+    @Override
+    public boolean equals(Object o) {
+        if(getClass() != JsonHttpResponseHandler.class){
+            return super.equals(o);
+        }
+        if(o == null || o.getClass() != getClass()){
+            return false;
+        }
+        JsonHttpResponseHandler that = (JsonHttpResponseHandler) o;
+        return excludeFieldsWithoutExposeAnnotation == that.excludeFieldsWithoutExposeAnnotation
+                && (responseClass != null ? responseClass.equals(that.responseClass) : that.responseClass == null)
+                && (responseType != null ? responseType.equals(that.responseType) : that.responseType == null);
+    }
+
+    @Override
+    public int hashCode() {
+        if(getClass() != JsonHttpResponseHandler.class){
+            return super.hashCode();
+        }
+        int result = responseClass != null ? responseClass.hashCode() : 0;
+        result = 31 * result + (responseType != null ? responseType.hashCode() : 0);
+        result = 31 * result + (excludeFieldsWithoutExposeAnnotation ? 1 : 0);
+        return result;
+    }
 }
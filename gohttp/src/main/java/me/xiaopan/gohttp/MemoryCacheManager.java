@@ -0,0 +1,466 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.gohttp;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Build;
+import android.util.Log;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.HTTP;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import me.xiaopan.gohttp.httpclient.InflatingEntity;
+
+/**
+ * 内存缓存管理器，作为一级缓存放在任意CacheManager之前，按字节数限制容量并按LRU算法淘汰，热点数据直接从内存中读取而不再访问磁盘
+ */
+public class MemoryCacheManager implements CacheManager {
+    private CacheManager cacheManager;  // 二级缓存管理器
+    private final LinkedHashMap<String, Entry> entries; // 按访问顺序排列的缓存条目
+    private int maxSize;    // 最大容量，单位字节
+    private int maxEntrySize;   // 单个条目的最大容量，超过此值的响应不会放到内存中
+    private int size;   // 当前容量，单位字节
+
+    /**
+     * 创建内存缓存管理器
+     * @param cacheManager 二级缓存管理器，内存中没有的时候会从这里读取
+     * @param maxSize 最大容量，单位字节
+     */
+    public MemoryCacheManager(CacheManager cacheManager, int maxSize){
+        if(cacheManager == null){
+            throw new IllegalArgumentException("cacheManager is null");
+        }
+        if(maxSize <= 0){
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        this.cacheManager = cacheManager;
+        this.maxSize = maxSize;
+        this.maxEntrySize = maxSize / 8;
+        this.entries = new LinkedHashMap<String, Entry>(0, 0.75f, true);
+    }
+
+    /**
+     * 创建内存缓存管理器，最大容量为可用内存的1/32
+     * @param cacheManager 二级缓存管理器，内存中没有的时候会从这里读取
+     */
+    public MemoryCacheManager(CacheManager cacheManager){
+        this(cacheManager, (int) (Runtime.getRuntime().maxMemory() / 32));
+    }
+
+    /**
+     * 创建内存缓存管理器，并在系统内存不足的时候自动缩减容量（需要Android4.0及以上版本）
+     * @param context 上下文
+     * @param cacheManager 二级缓存管理器，内存中没有的时候会从这里读取
+     * @param maxSize 最大容量，单位字节
+     */
+    public MemoryCacheManager(Context context, CacheManager cacheManager, int maxSize){
+        this(cacheManager, maxSize);
+        if(context != null && Build.VERSION.SDK_INT >= 14){
+            MemoryTrimmer.register(context, this);
+        }
+    }
+
+    @Override
+    public void saveHttpResponseToCache(HttpRequest httpRequest, HttpResponse httpResponse) throws IOException {
+        cacheManager.saveHttpResponseToCache(httpRequest, httpResponse);
+
+        // 二级缓存会把响应实体替换为本地文件，小的响应直接读到内存中，这样后续的处理就不需要再访问磁盘了
+        String cacheId = httpRequest.getCacheConfig().getId();
+        Entry entry = toEntry(httpRequest, httpResponse, System.currentTimeMillis(), -1);
+        if(entry != null){
+            put(cacheId, entry);
+            httpResponse.setEntity(entry.newEntity());
+        }else{
+            remove(cacheId);
+        }
+    }
+
+    @Override
+    public CacheEditor editHttpResponseCache(HttpRequest httpRequest, HttpResponse httpResponse) throws IOException {
+        final CacheEditor cacheEditor = cacheManager.editHttpResponseCache(httpRequest, httpResponse);
+        if(cacheEditor == null){
+            return null;
+        }
+
+        // 提交之后内存中的旧数据就失效了，下次读取的时候再从二级缓存中加载
+        final String cacheId = httpRequest.getCacheConfig().getId();
+        return new CacheEditor() {
+            @Override
+            public void commit() throws IOException {
+                cacheEditor.commit();
+                remove(cacheId);
+            }
+
+            @Override
+            public void abort() {
+                cacheEditor.abort();
+            }
+        };
+    }
+
+    @Override
+    public boolean isHasAvailableCache(HttpRequest httpRequest) {
+        CacheConfig cacheConfig = httpRequest.getCacheConfig();
+        if(cacheConfig == null){
+            return false;
+        }
+        String cacheId = cacheConfig.getId();
+        if(!(cacheId != null && !"".equals(cacheId))){
+            return false;
+        }
+
+        Entry entry = get(cacheId);
+        if(entry != null && HttpCachePolicy.isVaryMatches(entry.varyHeaders, httpRequest)){
+            if(entry.isAvailable(cacheConfig)){
+                if(httpRequest.getGoHttp().isDebugMode()) Log.d(GoHttp.LOG_TAG, httpRequest.getName()+"; "+"Cache : 内存缓存有效"+"; "+httpRequest.getUrl());
+                return true;
+            }
+            remove(cacheId);
+        }
+        return cacheManager.isHasAvailableCache(httpRequest);
+    }
+
+    @Override
+    public long getCacheOutOfDateTime(HttpRequest httpRequest) {
+        Entry entry = get(httpRequest.getCacheConfig().getId());
+        if(entry != null && HttpCachePolicy.isVaryMatches(entry.varyHeaders, httpRequest)){
+            return entry.getOutOfDateTime(httpRequest.getCacheConfig());
+        }
+        return cacheManager.getCacheOutOfDateTime(httpRequest);
+    }
+
+    @Override
+    public long getCacheTime(HttpRequest httpRequest) {
+        Entry entry = get(httpRequest.getCacheConfig().getId());
+        if(entry != null && HttpCachePolicy.isVaryMatches(entry.varyHeaders, httpRequest)){
+            return entry.cacheTime;
+        }
+        return cacheManager.getCacheTime(httpRequest);
+    }
+
+    @Override
+    public long getCacheExpiresTime(HttpRequest httpRequest) {
+        Entry entry = get(httpRequest.getCacheConfig().getId());
+        if(entry != null && HttpCachePolicy.isVaryMatches(entry.varyHeaders, httpRequest)){
+            return entry.expiresTime;
+        }
+        return cacheManager.getCacheExpiresTime(httpRequest);
+    }
+
+    @Override
+    public HttpResponse readHttpResponseFromCache(HttpRequest httpRequest) {
+        String cacheId = httpRequest.getCacheConfig().getId();
+        Entry entry = get(cacheId);
+        if(entry != null && HttpCachePolicy.isVaryMatches(entry.varyHeaders, httpRequest)){
+            return entry.toHttpResponse();
+        }
+
+        HttpResponse httpResponse = cacheManager.readHttpResponseFromCache(httpRequest);
+        if(httpResponse == null){
+            return null;
+        }
+
+        // 只有知道缓存时间的时候才能放到内存中，否则无法判断是否过期
+        long cacheTime = cacheManager.getCacheTime(httpRequest);
+        if(cacheTime > 0){
+            try {
+                entry = toEntry(httpRequest, httpResponse, cacheTime, cacheManager.getCacheExpiresTime(httpRequest));
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+            if(entry != null){
+                put(cacheId, entry);
+                httpResponse.setEntity(entry.newEntity());
+            }
+        }
+        return httpResponse;
+    }
+
+    @Override
+    public HttpResponse refreshHttpResponseCache(HttpRequest httpRequest, HttpResponse notModifiedResponse) throws IOException {
+        String cacheId = httpRequest.getCacheConfig().getId();
+        remove(cacheId);
+        HttpResponse httpResponse = cacheManager.refreshHttpResponseCache(httpRequest, notModifiedResponse);
+        if(httpResponse != null){
+            Entry entry = toEntry(httpRequest, httpResponse, System.currentTimeMillis(), -1);
+            if(entry != null){
+                put(cacheId, entry);
+                httpResponse.setEntity(entry.newEntity());
+            }
+        }
+        return httpResponse;
+    }
+
+    @Override
+    public void setCacheDirectory(String cacheDirectory) {
+        clear();
+        cacheManager.setCacheDirectory(cacheDirectory);
+    }
+
+    @Override
+    public String generateCacheId(HttpRequest httpRequest) {
+        return cacheManager.generateCacheId(httpRequest);
+    }
+
+    /**
+     * 获取统计信息，与二级缓存管理器共用同一份统计信息，从内存中读取的数据不计入读取字节数和读取耗时
+     */
+    @Override
+    public CacheStats getStats() {
+        return cacheManager.getStats();
+    }
+
+    /**
+     * 获取二级缓存管理器
+     */
+    public CacheManager getCacheManager() {
+        return cacheManager;
+    }
+
+    /**
+     * 获取最大容量
+     * @return 最大容量，单位字节
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * 获取当前容量
+     * @return 当前容量，单位字节
+     */
+    public synchronized int getSize() {
+        return size;
+    }
+
+    /**
+     * 清空内存缓存
+     */
+    public void clear(){
+        trimToSize(0);
+    }
+
+    /**
+     * 根据系统内存紧张程度缩减容量
+     * @param level 取值请参考ComponentCallbacks2.TRIM_MEMORY_*
+     */
+    public void trimMemory(int level){
+        if(level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE){
+            clear();
+        }else if(level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL){
+            trimToSize(maxSize / 2);
+        }
+    }
+
+    private synchronized Entry get(String cacheId){
+        return entries.get(cacheId);
+    }
+
+    private synchronized void put(String cacheId, Entry entry){
+        Entry oldEntry = entries.put(cacheId, entry);
+        size += entry.weight;
+        if(oldEntry != null){
+            size -= oldEntry.weight;
+        }
+        trimToSize(maxSize);
+    }
+
+    private synchronized void remove(String cacheId){
+        Entry oldEntry = entries.remove(cacheId);
+        if(oldEntry != null){
+            size -= oldEntry.weight;
+        }
+    }
+
+    private synchronized void trimToSize(int maxSize){
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while(size > maxSize && iterator.hasNext()){
+            size -= iterator.next().getValue().weight;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * 将响应读取为内存缓存条目，响应已经保存在二级缓存中了，所以读取失败的时候只是不放到内存中
+     * @param expiresTime 根据响应头计算出的过期时间，小于0时根据响应头重新计算
+     * @return 响应体过大、长度未知或者读取失败时返回null，这时响应实体依然可以正常读取
+     * @throws IOException 读取失败之后无法重新从二级缓存中读取响应实体
+     */
+    private Entry toEntry(HttpRequest httpRequest, HttpResponse httpResponse, long cacheTime, long expiresTime) throws IOException {
+        HttpEntity httpEntity = httpResponse.getEntity();
+        if(httpEntity == null){
+            return null;
+        }
+        long contentLength = httpEntity.getContentLength();
+        if(contentLength < 0 || contentLength > maxEntrySize){
+            return null;
+        }
+
+        byte[] body = new byte[(int) contentLength];
+        InputStream inputStream = httpEntity.getContent();
+        try{
+            int offset = 0;
+            int number;
+            while(offset < body.length && (number = inputStream.read(body, offset, body.length - offset)) != -1){
+                offset += number;
+            }
+            if(offset < body.length){
+                throw new IOException("缓存数据不完整");
+            }
+
+            // 压缩保存的响应体的长度取自gzip尾部，多段gzip的时候可能不准确，这时候就不放到内存中了
+            if(httpEntity instanceof InflatingEntity && inputStream.read() != -1){
+                reopenEntity(httpRequest, httpResponse);
+                return null;
+            }
+        }catch (IOException e){
+            e.printStackTrace();
+            reopenEntity(httpRequest, httpResponse);
+            return null;
+        }finally {
+            try{
+                inputStream.close();
+            }catch (IOException e){
+                e.printStackTrace();
+            }
+        }
+
+        Header[] varyHeaders = null;
+        if(httpRequest.getCacheConfig().isHttpSemantics()){
+            if(expiresTime < 0){
+                expiresTime = HttpCachePolicy.computeExpiresTime(httpResponse, cacheTime);
+            }
+            varyHeaders = HttpCachePolicy.getVaryHeaders(httpRequest, httpResponse);
+        }else{
+            expiresTime = 0;
+        }
+        return new Entry(httpResponse.getStatusLine(), httpResponse.getAllHeaders(), body, cacheTime, expiresTime, varyHeaders);
+    }
+
+    /**
+     * 响应实体已经被读取了一部分，但是没能放到内存中，重新从二级缓存中读取响应实体
+     */
+    private void reopenEntity(HttpRequest httpRequest, HttpResponse httpResponse) throws IOException {
+        HttpResponse cachedResponse = cacheManager.readHttpResponseFromCache(httpRequest);
+        if(cachedResponse == null || cachedResponse.getEntity() == null){
+            throw new IOException("无法重新从二级缓存中读取响应");
+        }
+        httpResponse.setEntity(cachedResponse.getEntity());
+    }
+
+    /**
+     * 内存缓存条目
+     */
+    private static class Entry {
+        private StatusLine statusLine;
+        private Header[] headers;
+        private byte[] body;
+        private long cacheTime; // 缓存时间
+        private long expiresTime;   // 根据响应头计算出的过期时间，为0时以CacheConfig中的有效期为准
+        private Header[] varyHeaders;   // 缓存时Vary所指定的请求头
+        private int weight; // 占用的字节数
+
+        private Entry(StatusLine statusLine, Header[] headers, byte[] body, long cacheTime, long expiresTime, Header[] varyHeaders) {
+            this.statusLine = statusLine;
+            this.headers = headers;
+            this.body = body;
+            this.cacheTime = cacheTime;
+            this.expiresTime = expiresTime;
+            this.varyHeaders = varyHeaders;
+
+            int weight = body.length;
+            for(Header header : headers){
+                weight += (header.getName().length() + (header.getValue() != null ? header.getValue().length() : 0)) * 2;
+            }
+            this.weight = weight;
+        }
+
+        private long getOutOfDateTime(CacheConfig cacheConfig){
+            if(expiresTime > 0 && cacheConfig.isHttpSemantics()){
+                return expiresTime;
+            }
+            int periodOfValidity = cacheConfig.getPeriodOfValidity();
+            return periodOfValidity <= 0 ? Long.MAX_VALUE : cacheTime + periodOfValidity;
+        }
+
+        private boolean isAvailable(CacheConfig cacheConfig){
+            return getOutOfDateTime(cacheConfig) > System.currentTimeMillis();
+        }
+
+        private HttpEntity newEntity(){
+            ByteArrayEntity entity = new MemoryEntity(body);
+            for(Header header : headers){
+                if(HTTP.CONTENT_TYPE.equalsIgnoreCase(header.getName())){
+                    entity.setContentType(header);
+                    break;
+                }
+            }
+            return entity;
+        }
+
+        private HttpResponse toHttpResponse(){
+            HttpResponse httpResponse = new BasicHttpResponse(statusLine);
+            httpResponse.setHeaders(headers);
+            httpResponse.setEntity(newEntity());
+            return httpResponse;
+        }
+    }
+
+    /**
+     * 监听系统内存状态，独立出来是为了避免在Android4.0以下版本加载ComponentCallbacks2
+     */
+    private static class MemoryTrimmer implements ComponentCallbacks2 {
+        private MemoryCacheManager memoryCacheManager;
+
+        private MemoryTrimmer(MemoryCacheManager memoryCacheManager) {
+            this.memoryCacheManager = memoryCacheManager;
+        }
+
+        private static void register(Context context, MemoryCacheManager memoryCacheManager){
+            context.getApplicationContext().registerComponentCallbacks(new MemoryTrimmer(memoryCacheManager));
+        }
+
+        @Override
+        public void onTrimMemory(int level) {
+            memoryCacheManager.trimMemory(level);
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+
+        }
+
+        @Override
+        public void onLowMemory() {
+            memoryCacheManager.clear();
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.gohttp;
+
+import org.apache.http.entity.ByteArrayEntity;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 内存中的缓存实体，getByteBuffer()返回的是只读视图，不会复制数据，也不会让调用者修改缓存中的数据
+ */
+class MemoryEntity extends ByteArrayEntity implements ByteBufferEntity {
+    MemoryEntity(byte[] body) {
+        super(body);
+    }
+
+    /**
+     * 获取内存中的数据，不会复制，调用者不能修改
+     */
+    byte[] getBytes(){
+        return content;
+    }
+
+    @Override
+    public ByteBuffer getByteBuffer() {
+        return ByteBuffer.wrap(content).asReadOnlyBuffer();
+    }
+}
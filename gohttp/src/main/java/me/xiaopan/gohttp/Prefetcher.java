@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.gohttp;
+
+import android.util.Log;
+
+import org.apache.http.HttpResponse;
+
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import me.xiaopan.gohttp.requestobject.Request;
+
+/**
+ * 预加载器，提前把数据加载到缓存中，需要的时候直接使用缓存。
+ * <br>预加载的请求在单独的后台优先级线程中执行，同时执行的数量有上限，不会占用GoHttp的线程池；
+ * 只写入缓存，不处理响应也不回调监听器；缓存依然有效或者没有缓存配置的请求会被直接跳过。
+ * <br>前台请求比较多的时候可以调用{@link #pause()}暂停，暂停期间已经开始的请求会继续执行完，排队中的请求要等到{@link #resume()}之后才会执行
+ */
+public class Prefetcher {
+    private static final int DEFAULT_MAX_CONCURRENCY = 2;
+
+    private GoHttp goHttp;
+    private final LinkedList<HttpRequest> queue;    // 排队中的请求
+    private ExecutorService executorService;
+    private int maxConcurrency; // 最多同时执行多少个请求
+    private int runningCount;   // 正在执行的请求数
+    private boolean paused;
+
+    /**
+     * @param goHttp GoHttp
+     * @param maxConcurrency 最多同时执行多少个请求
+     */
+    public Prefetcher(GoHttp goHttp, int maxConcurrency) {
+        if(goHttp == null){
+            throw new IllegalArgumentException("goHttp is null");
+        }
+        if(maxConcurrency <= 0){
+            throw new IllegalArgumentException("maxConcurrency <= 0");
+        }
+        this.goHttp = goHttp;
+        this.maxConcurrency = maxConcurrency;
+        this.queue = new LinkedList<HttpRequest>();
+    }
+
+    /**
+     * 最多同时执行2个请求
+     */
+    public Prefetcher(GoHttp goHttp) {
+        this(goHttp, DEFAULT_MAX_CONCURRENCY);
+    }
+
+    /**
+     * 预加载，只会使用HttpHelper中的请求参数和缓存配置，监听器不会被回调
+     */
+    public void prefetch(HttpHelper... httpHelpers){
+        if(httpHelpers == null){
+            return;
+        }
+        synchronized (this){
+            for(HttpHelper httpHelper : httpHelpers){
+                if(httpHelper != null){
+                    enqueue(new HttpRequest(httpHelper));
+                }
+            }
+            schedule();
+        }
+    }
+
+    /**
+     * 预加载，只有在请求对象上通过CacheConfig注解配置了缓存的才会加载
+     * @param responseHandler 响应处理器，只用来判断响应是否可以缓存
+     */
+    public void prefetch(HttpResponseHandler responseHandler, Request... requestObjects){
+        if(requestObjects == null){
+            return;
+        }
+        HttpHelper[] httpHelpers = new HttpHelper[requestObjects.length];
+        for(int w = 0; w < requestObjects.length; w++){
+            if(requestObjects[w] != null){
+                httpHelpers[w] = new HttpHelper(goHttp, requestObjects[w], responseHandler, EmptyListener.INSTANCE);
+            }
+        }
+        prefetch(httpHelpers);
+    }
+
+    /**
+     * 暂停，已经开始的请求会继续执行完
+     */
+    public synchronized void pause(){
+        paused = true;
+    }
+
+    /**
+     * 恢复，继续执行排队中的请求
+     */
+    public synchronized void resume(){
+        paused = false;
+        schedule();
+    }
+
+    /**
+     * 是否已暂停
+     */
+    public synchronized boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * 取消所有排队中的请求，已经开始的请求会继续执行完
+     */
+    public synchronized void cancel(){
+        queue.clear();
+    }
+
+    /**
+     * 获取排队中的请求数
+     */
+    public synchronized int getPendingCount(){
+        return queue.size();
+    }
+
+    /**
+     * 获取正在执行的请求数
+     */
+    public synchronized int getRunningCount(){
+        return runningCount;
+    }
+
+    /**
+     * 获取最多同时执行多少个请求
+     */
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    private void enqueue(HttpRequest httpRequest){
+        if(httpRequest.getCacheConfig() == null){
+            if(goHttp.isDebugMode()) Log.w(GoHttp.LOG_TAG, httpRequest.getName()+"; "+"Prefetch : 没有缓存配置，跳过"+"; "+httpRequest.getUrl());
+            return;
+        }
+        queue.add(httpRequest);
+    }
+
+    /**
+     * 没有达到上限的话启动新的工作任务，每个工作任务执行完一个请求之后继续从队列中取下一个，队列空了或者暂停了才结束
+     */
+    private synchronized void schedule(){
+        while(!paused && runningCount < maxConcurrency && !queue.isEmpty()){
+            HttpRequest httpRequest = queue.poll();
+            runningCount++;
+            try{
+                getExecutorService().execute(new PrefetchRunnable(httpRequest));
+            }catch (RejectedExecutionException e){
+                e.printStackTrace();
+                runningCount--;
+                queue.addFirst(httpRequest);
+                return;
+            }
+        }
+    }
+
+    /**
+     * 获取下一个要预加载的请求
+     * @return 队列空了或者暂停了的话返回null，同时结束当前工作任务
+     */
+    private synchronized HttpRequest next(){
+        if(paused || queue.isEmpty()){
+            runningCount--;
+            return null;
+        }
+        return queue.poll();
+    }
+
+    private ExecutorService getExecutorService(){
+        if(executorService == null){
+            // 同时执行的数量由runningCount控制，线程池本身不限制线程数，否则结束中的线程还没回到线程池时提交新任务会被拒绝；空闲的线程60秒后回收，不预加载的时候不占用线程
+            executorService = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger number = new AtomicInteger();
+
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+                            runnable.run();
+                        }
+                    }, "GoHttp-Prefetch-" + number.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executorService;
+    }
+
+    private class PrefetchRunnable implements Runnable {
+        private HttpRequest firstRequest;
+
+        private PrefetchRunnable(HttpRequest firstRequest) {
+            this.firstRequest = firstRequest;
+        }
+
+        @Override
+        public void run() {
+            HttpRequest httpRequest = firstRequest;
+            while(httpRequest != null){
+                try{
+                    prefetch(httpRequest);
+                }catch (Throwable e){
+                    e.printStackTrace();
+                }
+                httpRequest = next();
+            }
+        }
+
+        private void prefetch(HttpRequest httpRequest){
+            // 缓存依然有效的话就不用加载了
+            if(goHttp.getCacheManager().isHasAvailableCache(httpRequest)){
+                if(goHttp.isDebugMode()) Log.d(GoHttp.LOG_TAG, httpRequest.getName()+"; "+"Prefetch : 缓存依然有效，跳过"+"; "+httpRequest.getUrl());
+                return;
+            }
+
+            // 同一个缓存ID正在后台刷新或者预加载的话就不再重复加载了
+            String cacheId = httpRequest.getCacheConfig().getId();
+            if(!goHttp.getSyncManager().startRefresh(cacheId)){
+                return;
+            }
+            try{
+                new HttpRequestHandler(httpRequest).refreshCache();
+                if(goHttp.isDebugMode()) Log.d(GoHttp.LOG_TAG, httpRequest.getName()+"; "+"Prefetch : 已预加载"+"; "+httpRequest.getUrl());
+            }catch (Throwable e){
+                e.printStackTrace();
+                if(goHttp.isDebugMode()) Log.e(GoHttp.LOG_TAG, httpRequest.getName()+"; "+"Prefetch : 预加载时发生异常"+"; "+httpRequest.getUrl());
+            }finally {
+                goHttp.getSyncManager().finishRefresh(cacheId);
+            }
+        }
+    }
+
+    /**
+     * 通过请求对象预加载时使用的空监听器
+     */
+    private static class EmptyListener implements HttpRequest.Listener<Object> {
+        private static final EmptyListener INSTANCE = new EmptyListener();
+
+        @Override
+        public void onStarted(HttpRequest httpRequest) {
+
+        }
+
+        @Override
+        public void onCompleted(HttpRequest httpRequest, HttpResponse httpResponse, Object responseContent, boolean isCache, boolean isContinueCallback) {
+
+        }
+
+        @Override
+        public void onFailed(HttpRequest httpRequest, HttpResponse httpResponse, HttpRequest.Failure failure, boolean isCache, boolean isContinueCallback) {
+
+        }
+
+        @Override
+        public void onCanceled(HttpRequest httpRequest) {
+
+        }
+    }
+}
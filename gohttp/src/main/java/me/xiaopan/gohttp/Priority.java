@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.gohttp;
+
+/**
+ * 请求优先级，排队的时候优先级高的先执行，等待时间长了之后优先级会逐渐提升，所以低优先级的请求不会一直等下去
+ */
+public enum Priority {
+    /**
+     * 立即，用户正在等待结果的请求，例如点击按钮之后的请求
+     */
+    IMMEDIATE,
+
+    /**
+     * 高，当前页面首屏需要的数据
+     */
+    HIGH,
+
+    /**
+     * 普通，默认的优先级
+     */
+    NORMAL,
+
+    /**
+     * 低，不着急的请求，例如统计上报
+     */
+    LOW,
+
+    /**
+     * 预加载，用户暂时还看不到的数据
+     */
+    PREFETCH;
+}
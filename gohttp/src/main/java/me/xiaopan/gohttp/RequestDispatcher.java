@@ -0,0 +1,372 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.gohttp;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 请求调度器，限制每个主机以及总共同时执行的请求数量。
+ * <br>超出限制的请求在调度器中排队，不会占用线程池的线程，有请求结束之后在各个主机之间轮流取出排队的请求交给线程池执行，
+ * 所以一个很慢的主机不会把线程全部占住，其它主机的请求也不会一直排在它后面。
+ * <br>同一个主机排队的请求按优先级排序，排队时间长了优先级会逐渐提升，交给线程池之后再由{@link RequestExecutor}按优先级执行
+ */
+public class RequestDispatcher {
+    public static final int DEFAULT_MAX_REQUESTS = 64;  // 默认总共最多同时执行多少个请求
+    public static final int DEFAULT_MAX_REQUESTS_PER_HOST = 4;  // 默认每个主机最多同时执行多少个请求，比线程池的线程数少，慢主机总会留下一些线程给其它主机
+
+    private GoHttp goHttp;
+    private final Map<String, Host> hosts;  // 有正在执行或排队中的请求的主机
+    private final LinkedList<Host> readyHosts;  // 有排队中的请求的主机，按轮流的顺序排列
+    private final Map<HttpRequest, Call> calls; // 排队中和已经交给线程池但是还没执行完的请求
+    private int maxRequests;    // 总共最多同时执行多少个请求
+    private int maxRequestsPerHost; // 每个主机最多同时执行多少个请求
+    private int runningCount;   // 正在执行的请求数
+    private int queuedCount;    // 排队中的请求数
+    private long sequence;   // 入队时间相同的时候按先来后到
+
+    /**
+     * @param goHttp GoHttp
+     * @param maxRequests 总共最多同时执行多少个请求
+     * @param maxRequestsPerHost 每个主机最多同时执行多少个请求
+     */
+    public RequestDispatcher(GoHttp goHttp, int maxRequests, int maxRequestsPerHost) {
+        if(goHttp == null){
+            throw new IllegalArgumentException("goHttp is null");
+        }
+        if(maxRequests <= 0){
+            throw new IllegalArgumentException("maxRequests <= 0");
+        }
+        if(maxRequestsPerHost <= 0){
+            throw new IllegalArgumentException("maxRequestsPerHost <= 0");
+        }
+        this.goHttp = goHttp;
+        this.maxRequests = maxRequests;
+        this.maxRequestsPerHost = maxRequestsPerHost;
+        this.hosts = new HashMap<String, Host>();
+        this.readyHosts = new LinkedList<Host>();
+        this.calls = new HashMap<HttpRequest, Call>();
+    }
+
+    /**
+     * 总共最多同时执行64个请求，每个主机最多同时执行4个请求
+     */
+    public RequestDispatcher(GoHttp goHttp) {
+        this(goHttp, DEFAULT_MAX_REQUESTS, DEFAULT_MAX_REQUESTS_PER_HOST);
+    }
+
+    /**
+     * 调度请求，没有超出限制的话立即交给线程池，否则排队
+     */
+    public void dispatch(HttpRequest httpRequest){
+        dispatch(httpRequest, httpRequest.getExecuteRunnable());
+    }
+
+    /**
+     * 调度和请求相关的任务，例如在后台刷新缓存，和请求一样受主机和总数的限制，并按请求的优先级排队
+     * @param httpRequest 请求，用来确定主机和优先级
+     * @param task 要执行的任务
+     */
+    void dispatch(HttpRequest httpRequest, Runnable task){
+        long agingNanos = TimeUnit.MILLISECONDS.toNanos(getAgingMillis());
+        synchronized (this){
+            String hostName = getHostName(httpRequest.getUrl());
+            Host host = hosts.get(hostName);
+            if(host == null){
+                host = new Host(hostName);
+                hosts.put(hostName, host);
+            }
+            if(host.waiting.isEmpty()){
+                readyHosts.addLast(host);
+            }
+            Call call = new Call(host, httpRequest, task, agingNanos, sequence++);
+            host.waiting.add(call);
+            calls.put(httpRequest, call);
+            queuedCount++;
+        }
+        promote();
+    }
+
+    /**
+     * 在各个主机之间轮流取出排队的请求，直到达到上限或者没有可以执行的请求
+     */
+    private void promote(){
+        List<Call> calls = null;
+        synchronized (this){
+            boolean isPromoted = true;
+            while(isPromoted && runningCount < maxRequests && !readyHosts.isEmpty()){
+                isPromoted = false;
+                int size = readyHosts.size();
+                for(int w = 0; w < size && runningCount < maxRequests; w++){
+                    Host host = readyHosts.removeFirst();
+                    if(host.runningCount < maxRequestsPerHost){
+                        Call call = host.waiting.poll();
+                        call.dispatched = true;
+                        host.runningCount++;
+                        runningCount++;
+                        queuedCount--;
+                        if(calls == null){
+                            calls = new ArrayList<Call>();
+                        }
+                        calls.add(call);
+                        isPromoted = true;
+                    }
+                    if(!host.waiting.isEmpty()){
+                        readyHosts.addLast(host);
+                    }
+                }
+            }
+        }
+
+        if(calls != null){
+            for(Call call : calls){
+                execute(call);
+            }
+        }
+    }
+
+    private void execute(Call call){
+        ExecutorService executorService = goHttp.getExecutorService();
+        try{
+            if(executorService instanceof RequestExecutor){
+                ((RequestExecutor) executorService).execute(call, call.httpRequest.getPriority());
+            }else{
+                executorService.execute(call);
+            }
+        }catch (RejectedExecutionException e){
+            e.printStackTrace();
+            if(goHttp.isDebugMode()) Log.e(GoHttp.LOG_TAG, call.httpRequest.getName()+"; "+"Dispatch : 线程池拒绝执行"+"; "+call.httpRequest.getUrl());
+            finished(call);
+        }
+    }
+
+    private void finished(Call call){
+        synchronized (this){
+            Host host = call.host;
+            host.runningCount--;
+            runningCount--;
+            calls.remove(call.httpRequest);
+            if(host.runningCount == 0 && host.waiting.isEmpty()){
+                hosts.remove(host.name);
+            }
+        }
+        promote();
+    }
+
+    /**
+     * 移除还没开始执行的请求，不管是在调度器中排队还是已经交给了线程池，取消请求的时候调用
+     * @return 是否移除了，请求已经开始执行或者不是通过调度器执行的话返回false
+     */
+    boolean remove(HttpRequest httpRequest){
+        Call call;
+        synchronized (this){
+            call = calls.get(httpRequest);
+            if(call == null){
+                return false;
+            }
+            if(!call.dispatched){
+                Host host = call.host;
+                host.waiting.remove(call);
+                calls.remove(httpRequest);
+                queuedCount--;
+                if(host.waiting.isEmpty()){
+                    readyHosts.remove(host);
+                    if(host.runningCount == 0){
+                        hosts.remove(host.name);
+                    }
+                }
+                if(goHttp.isDebugMode()) Log.d(GoHttp.LOG_TAG, httpRequest.getName()+"; "+"Dispatch : 取消之后从调度器的队列中移除"+"; "+httpRequest.getUrl());
+                return true;
+            }
+        }
+
+        // 已经交给线程池了，还没开始执行的话从线程池的队列中移除，空出来的名额交给其它请求
+        ExecutorService executorService = goHttp.getExecutorService();
+        if(executorService instanceof ThreadPoolExecutor && ((ThreadPoolExecutor) executorService).remove(call)){
+            if(goHttp.isDebugMode()) Log.d(GoHttp.LOG_TAG, httpRequest.getName()+"; "+"Dispatch : 取消之后从线程池的队列中移除"+"; "+httpRequest.getUrl());
+            finished(call);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 获取总共最多同时执行多少个请求
+     */
+    public synchronized int getMaxRequests() {
+        return maxRequests;
+    }
+
+    /**
+     * 设置总共最多同时执行多少个请求，调大之后排队中的请求会立即开始执行，调小的话已经开始的请求不受影响
+     */
+    public void setMaxRequests(int maxRequests) {
+        if(maxRequests <= 0){
+            throw new IllegalArgumentException("maxRequests <= 0");
+        }
+        synchronized (this){
+            this.maxRequests = maxRequests;
+        }
+        promote();
+    }
+
+    /**
+     * 获取每个主机最多同时执行多少个请求
+     */
+    public synchronized int getMaxRequestsPerHost() {
+        return maxRequestsPerHost;
+    }
+
+    /**
+     * 设置每个主机最多同时执行多少个请求，最好比线程池的线程数少，这样慢主机总会留下一些线程给其它主机
+     */
+    public void setMaxRequestsPerHost(int maxRequestsPerHost) {
+        if(maxRequestsPerHost <= 0){
+            throw new IllegalArgumentException("maxRequestsPerHost <= 0");
+        }
+        synchronized (this){
+            this.maxRequestsPerHost = maxRequestsPerHost;
+        }
+        promote();
+    }
+
+    /**
+     * 获取正在执行的请求数，包括已经交给线程池但是还在线程池中排队的请求
+     */
+    public synchronized int getRunningCount(){
+        return runningCount;
+    }
+
+    /**
+     * 获取在调度器中排队的请求数
+     */
+    public synchronized int getQueuedCount(){
+        return queuedCount;
+    }
+
+    /**
+     * 获取指定主机正在执行的请求数
+     * @param hostName 主机名，带端口的话要加上端口，例如"www.example.com:8080"
+     */
+    public synchronized int getRunningCount(String hostName){
+        Host host = hosts.get(hostName.toLowerCase(Locale.US));
+        return host != null ? host.runningCount : 0;
+    }
+
+    /**
+     * 获取指定主机在调度器中排队的请求数
+     * @param hostName 主机名，带端口的话要加上端口，例如"www.example.com:8080"
+     */
+    public synchronized int getQueuedCount(String hostName){
+        Host host = hosts.get(hostName.toLowerCase(Locale.US));
+        return host != null ? host.waiting.size() : 0;
+    }
+
+    /**
+     * 获取排队时使用的老化时间，和线程池保持一致，线程池不是RequestExecutor的话使用默认值
+     */
+    private long getAgingMillis(){
+        ExecutorService executorService = goHttp.getExecutorService();
+        return executorService instanceof RequestExecutor ? ((RequestExecutor) executorService).getAgingMillis() : RequestExecutor.DEFAULT_AGING_MILLIS;
+    }
+
+    /**
+     * 从地址中解析出主机名，带端口的话包括端口，解析不出来的话返回空字符串，这些请求算作同一个主机
+     */
+    static String getHostName(String url){
+        if(url == null){
+            return "";
+        }
+        int start = url.indexOf("://");
+        start = start >= 0 ? start + 3 : 0;
+        int end = start;
+        while(end < url.length()){
+            char c = url.charAt(end);
+            if(c == '/' || c == '?' || c == '#'){
+                break;
+            }
+            end++;
+        }
+        int userInfoEnd = url.lastIndexOf('@', end - 1);
+        if(userInfoEnd >= start){
+            start = userInfoEnd + 1;
+        }
+        return url.substring(start, end).toLowerCase(Locale.US);
+    }
+
+    /**
+     * 主机，记录正在执行的请求数和排队中的请求
+     */
+    private static class Host {
+        private String name;
+        private int runningCount;
+        private final PriorityQueue<Call> waiting = new PriorityQueue<Call>();
+
+        Host(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * 调度中的请求，执行完之后通知调度器
+     */
+    private class Call implements Runnable, Comparable<Call> {
+        private Host host;
+        private HttpRequest httpRequest;
+        private Runnable task;
+        private long orderNanos;
+        private long sequenceNumber;
+        private boolean dispatched;    // 是否已经交给线程池了，只在调度器的锁中读写
+
+        Call(Host host, HttpRequest httpRequest, Runnable task, long agingNanos, long sequenceNumber) {
+            this.host = host;
+            this.httpRequest = httpRequest;
+            this.task = task;
+            this.sequenceNumber = sequenceNumber;
+            this.orderNanos = System.nanoTime() + httpRequest.getPriority().ordinal() * agingNanos;
+        }
+
+        @Override
+        public void run() {
+            try{
+                task.run();
+            }finally {
+                finished(this);
+            }
+        }
+
+        @Override
+        public int compareTo(Call another) {
+            long diff = orderNanos - another.orderNanos;
+            if(diff != 0){
+                return diff < 0 ? -1 : 1;
+            }
+            return sequenceNumber < another.sequenceNumber ? -1 : (sequenceNumber == another.sequenceNumber ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.gohttp;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 请求线程池，线程数量有上限，排队的请求按优先级执行。
+ * <br>排队的顺序由入队时间加上优先级对应的延迟决定，优先级每低一级就相当于晚来了一个老化时间，
+ * 所以等待时间足够长的低优先级请求最终会排到新来的高优先级请求前面，不会被饿死
+ */
+public class RequestExecutor extends ThreadPoolExecutor {
+    public static final int DEFAULT_MAX_THREADS = 6;   // 默认最大线程数
+    public static final long DEFAULT_AGING_MILLIS = 1000;  // 默认的老化时间，单位毫秒
+
+    private final long agingNanos;
+    private final AtomicLong sequence = new AtomicLong();   // 入队时间相同的时候按先来后到
+    private final AtomicInteger[] queueDepths;    // 每个优先级正在排队的数量
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();    // 排队数量的峰值
+    private final CacheStats.LatencyHistogram waitTimes;    // 所有请求的排队时间
+    private final CacheStats.LatencyHistogram[] priorityWaitTimes;    // 每个优先级的排队时间
+
+    public RequestExecutor() {
+        this(DEFAULT_MAX_THREADS, DEFAULT_AGING_MILLIS);
+    }
+
+    /**
+     * @param maxThreads 最大线程数，线程在有请求的时候才创建，创建之后一直保留
+     * @param agingMillis 老化时间，单位毫秒，排队的请求每等待这么久优先级就相当于提升一级
+     */
+    public RequestExecutor(int maxThreads, long agingMillis) {
+        super(maxThreads, maxThreads, 60, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger number = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new WorkerThread(runnable, "GoHttp-Request-" + number.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if(agingMillis <= 0){
+            throw new IllegalArgumentException("agingMillis must be greater than 0");
+        }
+        this.agingNanos = TimeUnit.MILLISECONDS.toNanos(agingMillis);
+
+        Priority[] priorities = Priority.values();
+        this.queueDepths = new AtomicInteger[priorities.length];
+        this.priorityWaitTimes = new CacheStats.LatencyHistogram[priorities.length];
+        for(int w = 0; w < priorities.length; w++){
+            queueDepths[w] = new AtomicInteger();
+            priorityWaitTimes[w] = new CacheStats.LatencyHistogram();
+        }
+        this.waitTimes = new CacheStats.LatencyHistogram();
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if(command == null){
+            throw new NullPointerException();
+        }
+        execute(command, getPriority(command));
+    }
+
+    /**
+     * 当前线程是不是RequestExecutor的工作线程，工作线程中不能阻塞等待还在排队的任务，否则线程都被占满之后谁也执行不了
+     */
+    public static boolean isWorkerThread(){
+        return Thread.currentThread() instanceof WorkerThread;
+    }
+
+    /**
+     * 按指定的优先级执行任务
+     */
+    public void execute(Runnable command, Priority priority) {
+        if(command == null || priority == null){
+            throw new NullPointerException();
+        }
+        PriorityTask task = new PriorityTask(command, priority);
+        // 先加上再交给线程池，否则任务可能在加上之前就开始执行并减掉了
+        queueDepths[task.priority.ordinal()].incrementAndGet();
+        try{
+            super.execute(task);
+        }catch (RuntimeException e){
+            queueDepths[task.priority.ordinal()].decrementAndGet();
+            throw e;
+        }
+
+        // 线程数没满的时候任务直接交给新线程执行，不进队列，所以峰值以真正在队列中的数量为准
+        int depth = getQueue().size();
+        int max;
+        while(depth > (max = maxQueueDepth.get()) && !maxQueueDepth.compareAndSet(max, depth)){
+            // 别的线程同时更新了峰值，重新比较
+        }
+    }
+
+    /**
+     * 从队列中移除还没开始执行的任务，可以直接传入交给{@link #execute(Runnable)}的任务
+     */
+    @Override
+    public boolean remove(Runnable task) {
+        for(Runnable queuedTask : getQueue()){
+            if(queuedTask == task || (queuedTask instanceof PriorityTask && ((PriorityTask) queuedTask).command == task)){
+                if(!super.remove(queuedTask)){
+                    return false;
+                }
+                if(queuedTask instanceof PriorityTask){
+                    queueDepths[((PriorityTask) queuedTask).priority.ordinal()].decrementAndGet();
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 获取任务的优先级，请求任务使用请求的优先级，其它任务都是普通优先级
+     */
+    private static Priority getPriority(Runnable command){
+        if(command instanceof HttpRequestHandler){
+            return ((HttpRequestHandler) command).getPriority();
+        }
+        return Priority.NORMAL;
+    }
+
+    /**
+     * 获取正在排队的数量
+     */
+    public int getQueueDepth(){
+        return getQueue().size();
+    }
+
+    /**
+     * 获取指定优先级正在排队的数量
+     */
+    public int getQueueDepth(Priority priority){
+        return queueDepths[priority.ordinal()].get();
+    }
+
+    /**
+     * 获取老化时间
+     * @return 单位毫秒，排队的请求每等待这么久优先级就相当于提升一级
+     */
+    public long getAgingMillis(){
+        return TimeUnit.NANOSECONDS.toMillis(agingNanos);
+    }
+
+    /**
+     * 获取排队数量的峰值
+     */
+    public int getMaxQueueDepth(){
+        return maxQueueDepth.get();
+    }
+
+    /**
+     * 获取所有请求的排队时间分布
+     */
+    public CacheStats.LatencyHistogram.Snapshot getWaitTimeSnapshot(){
+        return waitTimes.snapshot();
+    }
+
+    /**
+     * 获取指定优先级的排队时间分布
+     */
+    public CacheStats.LatencyHistogram.Snapshot getWaitTimeSnapshot(Priority priority){
+        return priorityWaitTimes[priority.ordinal()].snapshot();
+    }
+
+    /**
+     * 清空排队时间和排队数量峰值，正在排队的数量不受影响
+     */
+    public void resetStats(){
+        waitTimes.reset();
+        for(CacheStats.LatencyHistogram histogram : priorityWaitTimes){
+            histogram.reset();
+        }
+        maxQueueDepth.set(getQueueDepth());
+    }
+
+    /**
+     * 工作线程，用来区分当前线程是不是在线程池中
+     */
+    private static class WorkerThread extends Thread {
+        private WorkerThread(Runnable runnable, String threadName) {
+            super(runnable, threadName);
+        }
+    }
+
+    /**
+     * 带优先级的任务，按入队时间加上优先级对应的延迟排序
+     */
+    private class PriorityTask implements Runnable, Comparable<PriorityTask> {
+        private Runnable command;
+        private Priority priority;
+        private long enqueueNanos;
+        private long orderNanos;
+        private long sequenceNumber;
+
+        PriorityTask(Runnable command, Priority priority) {
+            this.command = command;
+            this.priority = priority;
+            this.enqueueNanos = System.nanoTime();
+            this.orderNanos = enqueueNanos + priority.ordinal() * agingNanos;
+            this.sequenceNumber = sequence.getAndIncrement();
+        }
+
+        @Override
+        public void run() {
+            long waitNanos = System.nanoTime() - enqueueNanos;
+            queueDepths[priority.ordinal()].decrementAndGet();
+            waitTimes.record(waitNanos);
+            priorityWaitTimes[priority.ordinal()].record(waitNanos);
+            command.run();
+        }
+
+        @Override
+        public int compareTo(PriorityTask another) {
+            // nanoTime可能溢出，所以比较差值而不是直接比较大小
+            long diff = orderNanos - another.orderNanos;
+            if(diff != 0){
+                return diff < 0 ? -1 : 1;
+            }
+            return sequenceNumber < another.sequenceNumber ? -1 : (sequenceNumber == another.sequenceNumber ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.gohttp;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.apache.http.message.BasicHttpResponse;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 响应对象缓存，按缓存ID和响应类型保存JsonHttpResponseHandler解析出的对象，按LRU算法淘汰。
+ * <br>缓存可用并且这里有对应的对象时直接回调此对象，不再读取缓存文件，也不再解析JSON，
+ * 缓存文件被重写时对应的对象会被清除，所以这里的对象始终与缓存文件中的数据一致。
+ * <br>同一个对象会回调给所有命中的请求，因此拿到的响应对象应当只读，不能修改
+ */
+public class ResponseObjectCache {
+    private final LinkedHashMap<String, Entry> entries; // 按访问顺序排列，key为缓存ID加响应类型
+    private int maxCount;   // 最大数量
+    private long generation;    // 每次清除都会加1，读取缓存文件期间发生过清除的话解析出的对象就不能再放进来了
+
+    /**
+     * @param maxCount 最多保存多少个对象
+     */
+    public ResponseObjectCache(int maxCount) {
+        if(maxCount <= 0){
+            throw new IllegalArgumentException("maxCount <= 0");
+        }
+        this.maxCount = maxCount;
+        this.entries = new LinkedHashMap<String, Entry>(0, 0.75f, true);
+    }
+
+    /**
+     * 获取最大数量
+     */
+    public int getMaxCount() {
+        return maxCount;
+    }
+
+    /**
+     * 获取当前数量
+     */
+    public synchronized int getCount() {
+        return entries.size();
+    }
+
+    /**
+     * 清除给定缓存ID的所有对象，缓存文件被重写的时候调用
+     */
+    public synchronized void remove(String cacheId){
+        generation++;
+        String prefix = cacheId + '\n';
+        Iterator<String> iterator = entries.keySet().iterator();
+        while(iterator.hasNext()){
+            if(iterator.next().startsWith(prefix)){
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * 清空
+     */
+    public synchronized void clear(){
+        generation++;
+        entries.clear();
+    }
+
+    /**
+     * 获取当前的版本号，在读取缓存文件之前获取，放入对象时传进来
+     */
+    synchronized long getGeneration(){
+        return generation;
+    }
+
+    /**
+     * 获取对象
+     * @return 没有的话返回null
+     */
+    synchronized Entry get(String cacheId, String responseType){
+        return entries.get(cacheId + '\n' + responseType);
+    }
+
+    /**
+     * 放入对象
+     * @param generation 读取缓存文件之前通过{@link #getGeneration()}获取的版本号，之后发生过清除的话不会放入
+     * @param httpResponse 对象对应的Http响应，只保存状态行和响应头
+     * @param varyHeaders 缓存时Vary所指定的请求头，没有的话传null
+     */
+    synchronized void put(long generation, String cacheId, String responseType, HttpResponse httpResponse, Header[] varyHeaders, Object responseObject){
+        if(generation != this.generation){
+            return;
+        }
+        entries.put(cacheId + '\n' + responseType, new Entry(httpResponse.getStatusLine(), httpResponse.getAllHeaders(), varyHeaders, responseObject));
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while(entries.size() > maxCount && iterator.hasNext()){
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * 缓存的对象
+     */
+    static class Entry {
+        private StatusLine statusLine;
+        private Header[] headers;
+        private Header[] varyHeaders;   // 缓存时Vary所指定的请求头
+        private Object responseObject;
+
+        private Entry(StatusLine statusLine, Header[] headers, Header[] varyHeaders, Object responseObject) {
+            this.statusLine = statusLine;
+            this.headers = headers;
+            this.varyHeaders = varyHeaders;
+            this.responseObject = responseObject;
+        }
+
+        Header[] getVaryHeaders() {
+            return varyHeaders;
+        }
+
+        Object getResponseObject() {
+            return responseObject;
+        }
+
+        /**
+         * 创建一个没有响应实体的Http响应，用于回调
+         */
+        HttpResponse toHttpResponse(){
+            HttpResponse httpResponse = new BasicHttpResponse(statusLine);
+            httpResponse.setHeaders(headers);
+            return httpResponse;
+        }
+    }
+}
@@ -0,0 +1,435 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.gohttp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 请求的结果，通过{@link HttpHelper#submit()}获取。
+ * <br>结果在执行请求的线程中直接交给ResultFuture，不需要经过主线程，通过{@link #addCallback(Callback, Executor)}可以指定在哪个线程中回调，
+ * 在回调中发送下一个请求就可以把有依赖关系的请求串起来。
+ * <br>开启了刷新缓存的请求可能会有多次结果，ResultFuture只保留第一个成功的结果，失败的话要等到最后一次结果才算失败。
+ * <br>取消ResultFuture会同时取消请求，请求被取消的话ResultFuture也会被取消
+ * @param <T> HttpResponseHandler返回的结果的类型
+ */
+public class ResultFuture<T> implements Future<T> {
+    /**
+     * 在给出结果的线程中直接回调，回调中不要执行耗时的操作
+     */
+    public static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private static final int STATE_PENDING = 0;
+    private static final int STATE_COMPLETED = 1;
+    private static final int STATE_FAILED = 2;
+    private static final int STATE_CANCELED = 3;
+
+    private HttpRequest httpRequest;
+    private int state;
+    private T result;
+    private HttpRequest.Failure failure;
+    private List<CallbackRunnable> callbackRunnables;   // 等待结果的回调
+
+    ResultFuture(HttpRequest httpRequest) {
+        this.httpRequest = httpRequest;
+    }
+
+    /**
+     * 获取请求，合并多个结果的ResultFuture没有请求，返回null
+     */
+    public HttpRequest getHttpRequest() {
+        return httpRequest;
+    }
+
+    /**
+     * 取消，同时取消请求
+     * @param mayInterruptIfRunning 如果当前正在读取数据是否立即停止
+     * @return 已经有结果了的话返回false
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if(!setCanceled()){
+            return false;
+        }
+        onCanceled(mayInterruptIfRunning);
+        return true;
+    }
+
+    /**
+     * 被取消之后调用，用来取消请求
+     */
+    void onCanceled(boolean mayInterruptIfRunning){
+        if(httpRequest != null){
+            httpRequest.cancel(mayInterruptIfRunning);
+        }
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return state == STATE_CANCELED;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return state != STATE_PENDING;
+    }
+
+    /**
+     * 等待并获取结果
+     * @throws ExecutionException 请求失败，原因是{@link FailureException}
+     * @throws CancellationException 请求被取消了
+     */
+    @Override
+    public synchronized T get() throws InterruptedException, ExecutionException {
+        while(state == STATE_PENDING){
+            wait();
+        }
+        return getResult();
+    }
+
+    /**
+     * 等待并获取结果
+     * @throws ExecutionException 请求失败，原因是{@link FailureException}
+     * @throws CancellationException 请求被取消了
+     * @throws TimeoutException 等待超时了，请求不会被取消
+     */
+    @Override
+    public synchronized T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        long remainingNanos = unit.toNanos(timeout);
+        long deadline = System.nanoTime() + remainingNanos;
+        while(state == STATE_PENDING){
+            if(remainingNanos <= 0){
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+            remainingNanos = deadline - System.nanoTime();
+        }
+        return getResult();
+    }
+
+    private T getResult() throws ExecutionException {
+        if(state == STATE_COMPLETED){
+            return result;
+        }else if(state == STATE_CANCELED){
+            throw new CancellationException();
+        }else{
+            throw new ExecutionException(new FailureException(failure));
+        }
+    }
+
+    /**
+     * 获取失败原因
+     * @return 没有失败的话返回null
+     */
+    public synchronized HttpRequest.Failure getFailure() {
+        return failure;
+    }
+
+    /**
+     * 添加回调，已经有结果了的话立即回调
+     * @param callback 回调
+     * @param executor 在哪里执行回调，例如{@link GoHttp#getMainThreadExecutor()}、{@link #DIRECT_EXECUTOR}或者自己的线程池
+     */
+    public void addCallback(Callback<? super T> callback, Executor executor){
+        if(callback == null){
+            throw new IllegalArgumentException("callback is null");
+        }
+        if(executor == null){
+            throw new IllegalArgumentException("executor is null");
+        }
+        CallbackRunnable callbackRunnable = new CallbackRunnable(callback, executor);
+        synchronized (this){
+            if(state == STATE_PENDING){
+                if(callbackRunnables == null){
+                    callbackRunnables = new LinkedList<CallbackRunnable>();
+                }
+                callbackRunnables.add(callbackRunnable);
+                return;
+            }
+        }
+        callbackRunnable.execute();
+    }
+
+    /**
+     * 请求成功，只保留第一个成功的结果
+     */
+    @SuppressWarnings("unchecked")
+    boolean setResponseObject(Object responseObject){
+        return setState(STATE_COMPLETED, (T) responseObject, null);
+    }
+
+    /**
+     * 请求失败，后面还有结果的话先不算失败
+     */
+    boolean setFailure(HttpRequest.Failure failure, boolean isContinueCallback){
+        return !isContinueCallback && setState(STATE_FAILED, null, failure);
+    }
+
+    boolean setCanceled(){
+        return setState(STATE_CANCELED, null, null);
+    }
+
+    private boolean setState(int state, T result, HttpRequest.Failure failure){
+        List<CallbackRunnable> callbackRunnables;
+        synchronized (this){
+            if(this.state != STATE_PENDING){
+                return false;
+            }
+            this.state = state;
+            this.result = result;
+            this.failure = failure;
+            callbackRunnables = this.callbackRunnables;
+            this.callbackRunnables = null;
+            notifyAll();
+        }
+        if(callbackRunnables != null){
+            for(CallbackRunnable callbackRunnable : callbackRunnables){
+                callbackRunnable.execute();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 合并多个结果，全部成功之后按顺序给出所有结果，有一个失败或被取消的话立即失败并取消其它的，取消合并后的ResultFuture会取消全部
+     */
+    public static <T> ResultFuture<List<T>> allOf(List<? extends ResultFuture<? extends T>> resultFutures){
+        BatchFuture<T> batchFuture = new BatchFuture<T>(null, new ArrayList<ResultFuture<? extends T>>(resultFutures));
+        batchFuture.start(resultFutures.size());
+        return batchFuture;
+    }
+
+    /**
+     * 批量发送请求，同时最多执行maxConcurrency个，一个结束之后再发送下一个，全部成功之后按顺序给出所有结果，
+     * 有一个失败或被取消的话立即失败，取消正在执行的并且不再发送剩下的
+     * @param httpHelpers 请求
+     * @param maxConcurrency 同时最多执行多少个请求
+     * @param <T> HttpResponseHandler返回的结果的类型
+     */
+    public static <T> ResultFuture<List<T>> submitAll(List<HttpHelper> httpHelpers, int maxConcurrency){
+        if(maxConcurrency <= 0){
+            throw new IllegalArgumentException("maxConcurrency <= 0");
+        }
+        BatchFuture<T> batchFuture = new BatchFuture<T>(new ArrayList<HttpHelper>(httpHelpers), null);
+        batchFuture.start(maxConcurrency);
+        return batchFuture;
+    }
+
+    /**
+     * 结果回调
+     * @param <T> 结果的类型
+     */
+    public interface Callback<T>{
+        /**
+         * 成功
+         * @param result 结果
+         */
+        public void onCompleted(T result);
+
+        /**
+         * 失败
+         * @param failure 失败原因
+         */
+        public void onFailed(HttpRequest.Failure failure);
+
+        /**
+         * 被取消了
+         */
+        public void onCanceled();
+    }
+
+    /**
+     * 请求失败，通过{@link ExecutionException#getCause()}获取
+     */
+    public static class FailureException extends Exception {
+        private static final long serialVersionUID = -2437129467813294105L;
+
+        private HttpRequest.Failure failure;
+
+        public FailureException(HttpRequest.Failure failure) {
+            super(failure.toString(), failure.getException());
+            this.failure = failure;
+        }
+
+        /**
+         * 获取失败原因
+         */
+        public HttpRequest.Failure getFailure() {
+            return failure;
+        }
+    }
+
+    private class CallbackRunnable implements Runnable {
+        private Callback<? super T> callback;
+        private Executor executor;
+
+        CallbackRunnable(Callback<? super T> callback, Executor executor) {
+            this.callback = callback;
+            this.executor = executor;
+        }
+
+        void execute(){
+            executor.execute(this);
+        }
+
+        @Override
+        public void run() {
+            int state;
+            T result;
+            HttpRequest.Failure failure;
+            synchronized (ResultFuture.this){
+                state = ResultFuture.this.state;
+                result = ResultFuture.this.result;
+                failure = ResultFuture.this.failure;
+            }
+            if(state == STATE_COMPLETED){
+                callback.onCompleted(result);
+            }else if(state == STATE_FAILED){
+                callback.onFailed(failure);
+            }else{
+                callback.onCanceled();
+            }
+        }
+    }
+
+    /**
+     * 合并多个结果，还没发送的请求在前面的请求结束之后才发送
+     */
+    private static class BatchFuture<T> extends ResultFuture<List<T>> {
+        private List<HttpHelper> httpHelpers;   // 还没发送的请求，合并已有的ResultFuture的时候为null
+        private List<ResultFuture<? extends T>> resultFutures;
+        private List<T> results;
+        private int nextIndex;
+        private int remainingCount;
+
+        BatchFuture(List<HttpHelper> httpHelpers, List<ResultFuture<? extends T>> resultFutures) {
+            super(null);
+            this.httpHelpers = httpHelpers;
+            int size = httpHelpers != null ? httpHelpers.size() : resultFutures.size();
+            this.resultFutures = resultFutures != null ? resultFutures : new ArrayList<ResultFuture<? extends T>>(size);
+            this.results = new ArrayList<T>(Collections.<T>nCopies(size, null));
+            this.remainingCount = size;
+        }
+
+        void start(int count){
+            if(results.isEmpty()){
+                setResponseObject(new ArrayList<T>(0));
+                return;
+            }
+            for(int w = 0; w < count; w++){
+                startNext();
+            }
+        }
+
+        private void startNext(){
+            int index;
+            synchronized (this){
+                if(isDone() || nextIndex >= results.size()){
+                    return;
+                }
+                index = nextIndex++;
+            }
+
+            ResultFuture<? extends T> resultFuture;
+            if(httpHelpers != null){
+                resultFuture = httpHelpers.get(index).submit();
+                boolean isDone;
+                synchronized (this){
+                    resultFutures.add(resultFuture);
+                    isDone = isDone();
+                }
+
+                // 发送的时候已经失败或者被取消了的话，cancelAll()可能已经取消过了，这个请求要自己取消
+                if(isDone){
+                    resultFuture.cancel(true);
+                    return;
+                }
+            }else{
+                resultFuture = resultFutures.get(index);
+            }
+            resultFuture.addCallback(new ItemCallback(index), DIRECT_EXECUTOR);
+        }
+
+        @Override
+        void onCanceled(boolean mayInterruptIfRunning) {
+            cancelAll(mayInterruptIfRunning);
+        }
+
+        private void cancelAll(boolean mayInterruptIfRunning){
+            List<ResultFuture<? extends T>> resultFutures;
+            synchronized (this){
+                resultFutures = new ArrayList<ResultFuture<? extends T>>(this.resultFutures);
+            }
+            for(ResultFuture<? extends T> resultFuture : resultFutures){
+                resultFuture.cancel(mayInterruptIfRunning);
+            }
+        }
+
+        private class ItemCallback implements Callback<T> {
+            private int index;
+
+            ItemCallback(int index) {
+                this.index = index;
+            }
+
+            @Override
+            public void onCompleted(T result) {
+                boolean isLast;
+                List<T> list = null;
+                synchronized (BatchFuture.this){
+                    results.set(index, result);
+                    isLast = --remainingCount == 0;
+                    if(isLast){
+                        list = new ArrayList<T>(results);
+                    }
+                }
+                if(isLast){
+                    setResponseObject(list);
+                }else{
+                    startNext();
+                }
+            }
+
+            @Override
+            public void onFailed(HttpRequest.Failure failure) {
+                if(setFailure(failure, false)){
+                    cancelAll(true);
+                }
+            }
+
+            @Override
+            public void onCanceled() {
+                if(setFailure(new HttpRequest.Failure(new CancellationException()), false)){
+                    cancelAll(true);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,1297 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.gohttp;
+
+import android.util.Log;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.HttpEntityWrapper;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import me.xiaopan.gohttp.httpclient.InflatingEntity;
+
+/**
+ * 分段缓存管理器，适合大量的小响应
+ * <br>不超过{@link #setMaxEntrySize(int)}的响应以追加的方式写入缓存目录下segments目录中的段文件，每个段文件写满{@link #setMaxSegmentSize(int)}之后换下一个，
+ * 每条记录在段文件中的位置保存在内存中，启动后第一次使用时扫描段文件重建；被覆盖、被删除或者已经过期并且不会再使用的记录在后台线程中合并段文件时回收，
+ * 比较小的段文件也会被合并，段文件只在读写的时候才打开。
+ * <br>可以通过{@link #setMaxSize(long)}、{@link #setMaxCount(int)}限制段文件中的缓存，超出后按照{@link #setEvictionPolicy(CacheEvictionPolicy)}淘汰
+ * <br>超过大小限制、长度未知并且读取之后发现超过大小限制以及保存压缩数据的响应依然由{@link DefaultCacheManager}以单独的文件保存，可以通过{@link #getFileCacheManager()}配置
+ * <pre>
+ * 段文件中的每条记录：
+ *     int  RECORD_MAGIC
+ *     int  缓存ID长度  bytes 缓存ID
+ *     long 缓存时间
+ *     long 根据响应头计算出的过期时间，没有的话为0
+ *     long 丢弃时间，超过此时间之后合并段文件时可以丢弃，为0时永不丢弃
+ *     int  缓存记录长度，为-1时表示删除
+ *     int  缓存记录的CRC32
+ *     缓存记录，格式请参考{@link CacheRecord}
+ * </pre>
+ */
+public class SegmentCacheManager implements CacheManager {
+    private static final String SEGMENT_DIRECTORY = "segments";
+    private static final String SEGMENT_FILE_PREFIX = "segment_";
+    private static final String SEGMENT_FILE_SUFFIX = ".seg";
+    private static final int RECORD_MAGIC = 0x53656752;
+    private static final int MAX_ID_LENGTH = 1024;
+    private static final int DEFAULT_MAX_ENTRY_SIZE = 16 * 1024;
+    private static final int DEFAULT_MAX_SEGMENT_SIZE = 4 * 1024 * 1024;
+    private static final float COMPACT_THRESHOLD = 0.5f;   // 段文件中有效数据的比例低于此值或者段文件的长度不到maxSegmentSize的这个比例时合并
+
+    private final DefaultCacheManager fileCacheManager;  // 保存大响应的缓存管理器
+    private final CacheStats stats; // 统计信息，与fileCacheManager共用
+    private volatile int maxEntrySize;  // 保存到段文件中的响应体的最大长度
+    private volatile int maxSegmentSize;    // 单个段文件的最大长度
+    private volatile long maxSize;  // 段文件中有效记录的最大总长度，小于等于0时不限制
+    private volatile int maxCount;  // 段文件中的最大缓存数量，小于等于0时不限制
+    private volatile CacheEvictionPolicy evictionPolicy;    // 淘汰策略
+    private volatile Store store;   // 当前缓存目录的段文件，第一次使用的时候打开
+    private ExecutorService backgroundExecutor; // 后台线程，用来合并段文件
+
+    public SegmentCacheManager() {
+        this.stats = new CacheStats(){
+            @Override
+            protected long getCurrentSize() {
+                return fileCacheManager.getSize() + getSegmentSize();
+            }
+
+            @Override
+            protected int getCurrentCount() {
+                return fileCacheManager.getCount() + getSegmentEntryCount();
+            }
+        };
+        this.fileCacheManager = new DefaultCacheManager(stats);
+        this.maxEntrySize = DEFAULT_MAX_ENTRY_SIZE;
+        this.maxSegmentSize = DEFAULT_MAX_SEGMENT_SIZE;
+        this.evictionPolicy = CacheEvictionPolicy.LRU;
+    }
+
+    @Override
+    public void saveHttpResponseToCache(HttpRequest httpRequest, HttpResponse httpResponse) throws IOException {
+        HttpEntity httpEntity = httpResponse.getEntity();
+        if(httpEntity == null){
+            throw new IOException("Http实体是null");
+        }
+
+        String cacheId = httpRequest.getCacheConfig().getId();
+        if(isSaveToFile(httpRequest, httpEntity)){
+            fileCacheManager.saveHttpResponseToCache(httpRequest, httpResponse);
+            getStore(httpRequest.getGoHttp()).remove(cacheId);
+            return;
+        }
+
+        // 长度未知的话最多读取maxEntrySize+1个字节，超过了就连同已经读到的数据一起交给fileCacheManager
+        int maxEntrySize = this.maxEntrySize;
+        long contentLength = httpEntity.getContentLength();
+        byte[] body = new byte[contentLength >= 0 ? (int) contentLength : Math.min(maxEntrySize + 1, 4 * 1024)];
+        int bodyLength = 0;
+        InputStream inputStream = httpEntity.getContent();
+        boolean handOver = false;
+        try{
+            int number;
+            while(true){
+                if(bodyLength == body.length){
+                    if(bodyLength > maxEntrySize){
+                        break;
+                    }
+                    byte[] newBody = new byte[Math.min(body.length * 2, maxEntrySize + 1)];
+                    System.arraycopy(body, 0, newBody, 0, bodyLength);
+                    body = newBody;
+                }
+                if((number = inputStream.read(body, bodyLength, body.length - bodyLength)) == -1){
+                    break;
+                }
+                bodyLength += number;
+            }
+            if(bodyLength > maxEntrySize){
+                handOver = true;
+                httpResponse.setEntity(new PrefixedEntity(httpEntity, body, bodyLength, inputStream));
+                if(httpRequest.getGoHttp().isDebugMode()) Log.d(GoHttp.LOG_TAG, createLog(httpRequest, "Cache : 响应体超过" + maxEntrySize + "字节，改为单独保存"));
+            }
+        }finally {
+            if(!handOver){
+                try{inputStream.close();}catch (IOException exception){exception.printStackTrace();}
+            }
+        }
+        if(handOver){
+            fileCacheManager.saveHttpResponseToCache(httpRequest, httpResponse);
+            getStore(httpRequest.getGoHttp()).remove(cacheId);
+            return;
+        }
+
+        boolean httpSemantics = httpRequest.getCacheConfig().isHttpSemantics();
+        long cacheTime = System.currentTimeMillis();
+        long expiresTime = httpSemantics ? HttpCachePolicy.computeExpiresTime(httpResponse, cacheTime) : 0;
+        Header[] varyHeaders = httpSemantics ? HttpCachePolicy.getVaryHeaders(httpRequest, httpResponse) : null;
+        long startTime = System.nanoTime();
+        try{
+            byte[] record = CacheRecord.encode(httpResponse.getStatusLine(), httpResponse.getAllHeaders(), varyHeaders, body, bodyLength);
+            getStore(httpRequest.getGoHttp()).put(cacheId, cacheTime, expiresTime, computeDiscardTime(httpRequest.getCacheConfig(), cacheTime, expiresTime), record);
+            stats.recordWrite(record.length, System.nanoTime() - startTime);
+        }catch (IOException e){
+            stats.recordWriteFailure();
+            if(httpRequest.getGoHttp().isDebugMode()) Log.w(GoHttp.LOG_TAG, createLog(httpRequest, "Cache : 写入段文件失败"));
+            throw e;
+        }
+        fileCacheManager.remove(httpRequest);
+
+        // 响应体已经读到内存中了，后续的处理直接使用内存中的数据
+        if(bodyLength < body.length){
+            byte[] newBody = new byte[bodyLength];
+            System.arraycopy(body, 0, newBody, 0, bodyLength);
+            body = newBody;
+        }
+        MemoryEntity memoryEntity = new MemoryEntity(body);
+        memoryEntity.setContentType(httpEntity.getContentType());
+        httpResponse.setEntity(memoryEntity);
+    }
+
+    /**
+     * 是否直接交给fileCacheManager保存
+     */
+    private boolean isSaveToFile(HttpRequest httpRequest, HttpEntity httpEntity){
+        return httpEntity.getContentLength() > maxEntrySize || (httpRequest.getCacheConfig().isStoreCompressed() && httpEntity instanceof InflatingEntity);
+    }
+
+    /**
+     * 计算丢弃时间，超过丢弃时间之后这条缓存就不会再被使用了
+     * @return 为0时永不丢弃
+     */
+    private static long computeDiscardTime(CacheConfig cacheConfig, long cacheTime, long expiresTime){
+        // 过期之后还要携带ETag和Last-Modified向服务器确认缓存，不能丢弃
+        if(cacheConfig.isRevalidate()){
+            return 0;
+        }
+        long outOfDateTime;
+        if(expiresTime > 0){
+            outOfDateTime = expiresTime;
+        }else if(cacheConfig.getPeriodOfValidity() > 0){
+            outOfDateTime = cacheTime + cacheConfig.getPeriodOfValidity();
+        }else{
+            return 0;
+        }
+        return outOfDateTime + Math.max(0, Math.max(cacheConfig.getStaleWhileRevalidate(), cacheConfig.getStaleIfError()));
+    }
+
+    @Override
+    public CacheEditor editHttpResponseCache(final HttpRequest httpRequest, HttpResponse httpResponse) throws IOException {
+        HttpEntity httpEntity = httpResponse.getEntity();
+        if(httpEntity == null){
+            throw new IOException("Http实体是null");
+        }
+
+        // 小响应写入段文件本来就很快，不需要边读边写
+        if(!isSaveToFile(httpRequest, httpEntity) && httpEntity.getContentLength() >= 0){
+            return null;
+        }
+
+        final CacheEditor cacheEditor = fileCacheManager.editHttpResponseCache(httpRequest, httpResponse);
+        if(cacheEditor == null){
+            return null;
+        }
+        return new CacheEditor() {
+            @Override
+            public void commit() throws IOException {
+                cacheEditor.commit();
+                getStore(httpRequest.getGoHttp()).remove(httpRequest.getCacheConfig().getId());
+            }
+
+            @Override
+            public void abort() {
+                cacheEditor.abort();
+            }
+        };
+    }
+
+    @Override
+    public boolean isHasAvailableCache(HttpRequest httpRequest) {
+        if(httpRequest.getCacheConfig() == null){
+            return false;
+        }
+        String cacheId = httpRequest.getCacheConfig().getId();
+        if(!(cacheId != null && !"".equals(cacheId))){
+            return false;
+        }
+
+        Location location = getStore(httpRequest.getGoHttp()).get(cacheId);
+        if(location == null){
+            return fileCacheManager.isHasAvailableCache(httpRequest);
+        }
+        boolean isAvailable = getCacheOutOfDateTime(httpRequest.getCacheConfig(), location) > System.currentTimeMillis();
+        if(httpRequest.getGoHttp().isDebugMode()){
+            if(isAvailable){
+                Log.d(GoHttp.LOG_TAG, createLog(httpRequest, "Cache : 段文件中的缓存有效"));
+            }else{
+                Log.w(GoHttp.LOG_TAG, createLog(httpRequest, "Cache : 段文件中的缓存已过期"));
+            }
+        }
+        return isAvailable;
+    }
+
+    @Override
+    public long getCacheOutOfDateTime(HttpRequest httpRequest) {
+        Location location = getStore(httpRequest.getGoHttp()).get(httpRequest.getCacheConfig().getId());
+        if(location == null){
+            return fileCacheManager.getCacheOutOfDateTime(httpRequest);
+        }
+        return getCacheOutOfDateTime(httpRequest.getCacheConfig(), location);
+    }
+
+    @Override
+    public long getCacheTime(HttpRequest httpRequest) {
+        Location location = getStore(httpRequest.getGoHttp()).get(httpRequest.getCacheConfig().getId());
+        return location != null ? location.storedTime : fileCacheManager.getCacheTime(httpRequest);
+    }
+
+    @Override
+    public long getCacheExpiresTime(HttpRequest httpRequest) {
+        Location location = getStore(httpRequest.getGoHttp()).get(httpRequest.getCacheConfig().getId());
+        return location != null ? location.expiresTime : fileCacheManager.getCacheExpiresTime(httpRequest);
+    }
+
+    private static long getCacheOutOfDateTime(CacheConfig cacheConfig, Location location){
+        if(cacheConfig.isHttpSemantics() && location.expiresTime > 0){
+            return location.expiresTime;
+        }
+        int periodOfValidity = cacheConfig.getPeriodOfValidity();
+        return periodOfValidity <= 0 ? Long.MAX_VALUE : location.storedTime + periodOfValidity;
+    }
+
+    @Override
+    public HttpResponse readHttpResponseFromCache(HttpRequest httpRequest) {
+        String cacheId = httpRequest.getCacheConfig().getId();
+        Store store = getStore(httpRequest.getGoHttp());
+        if(store.get(cacheId) == null){
+            return fileCacheManager.readHttpResponseFromCache(httpRequest);
+        }
+
+        try {
+            long startTime = System.nanoTime();
+            byte[] record = store.read(cacheId);
+            if(record == null){
+                return fileCacheManager.readHttpResponseFromCache(httpRequest);
+            }
+            List<Header> varyHeaders = new ArrayList<Header>(0);
+            HttpResponse httpResponse = CacheRecord.read(record, varyHeaders);
+            stats.recordRead(record.length, System.nanoTime() - startTime);
+            if(!HttpCachePolicy.isVaryMatches(varyHeaders.toArray(new Header[varyHeaders.size()]), httpRequest)){
+                if(httpRequest.getGoHttp().isDebugMode()) Log.w(GoHttp.LOG_TAG, createLog(httpRequest, "Cache : Vary请求头不一致，不能使用缓存"));
+                return null;
+            }
+            return httpResponse;
+        } catch (IOException e) {
+            e.printStackTrace();
+            try{
+                store.remove(cacheId);
+            }catch (IOException exception){
+                exception.printStackTrace();
+            }
+            return null;
+        }
+    }
+
+    @Override
+    public HttpResponse refreshHttpResponseCache(HttpRequest httpRequest, HttpResponse notModifiedResponse) throws IOException {
+        String cacheId = httpRequest.getCacheConfig().getId();
+        Store store = getStore(httpRequest.getGoHttp());
+        if(store.get(cacheId) == null){
+            return fileCacheManager.refreshHttpResponseCache(httpRequest, notModifiedResponse);
+        }
+
+        List<Header> varyHeaders = new ArrayList<Header>(0);
+        HttpResponse cachedResponse;
+        try{
+            byte[] record = store.read(cacheId);
+            if(record == null){
+                return fileCacheManager.refreshHttpResponseCache(httpRequest, notModifiedResponse);
+            }
+            cachedResponse = CacheRecord.read(record, varyHeaders);
+        }catch (IOException e){
+            e.printStackTrace();
+            store.remove(cacheId);
+            return null;
+        }
+
+        // 记录很小，不管响应头有没有变化都重新追加一条，旧的记录在合并段文件时回收
+        Header[] headers = DefaultCacheManager.updateHeaders(cachedResponse.getAllHeaders(), notModifiedResponse);
+        if(headers != null){
+            cachedResponse.setHeaders(headers);
+        }
+        MemoryEntity memoryEntity = (MemoryEntity) cachedResponse.getEntity();
+        long cacheTime = System.currentTimeMillis();
+        long expiresTime = httpRequest.getCacheConfig().isHttpSemantics() ? HttpCachePolicy.computeExpiresTime(cachedResponse, cacheTime) : 0;
+        long startTime = System.nanoTime();
+        try{
+            byte[] body = memoryEntity.getBytes();
+            byte[] record = CacheRecord.encode(cachedResponse.getStatusLine(), cachedResponse.getAllHeaders(), varyHeaders.isEmpty() ? null : varyHeaders.toArray(new Header[varyHeaders.size()]), body, body.length);
+            store.put(cacheId, cacheTime, expiresTime, computeDiscardTime(httpRequest.getCacheConfig(), cacheTime, expiresTime), record);
+            stats.recordWrite(record.length, System.nanoTime() - startTime);
+        }catch (IOException e){
+            stats.recordWriteFailure();
+            throw e;
+        }
+        if(httpRequest.getGoHttp().isDebugMode()) Log.d(GoHttp.LOG_TAG, createLog(httpRequest, "Cache : 服务器确认缓存依然可用，已刷新段文件中的缓存时间"));
+        return cachedResponse;
+    }
+
+    @Override
+    public void setCacheDirectory(String cacheDirectory) {
+        synchronized (this){
+            if(store != null){
+                store.close();
+                store = null;
+            }
+            fileCacheManager.setCacheDirectory(cacheDirectory);
+        }
+    }
+
+    @Override
+    public String generateCacheId(HttpRequest httpRequest) {
+        return fileCacheManager.generateCacheId(httpRequest);
+    }
+
+    @Override
+    public CacheStats getStats() {
+        return stats;
+    }
+
+    /**
+     * 获取保存大响应的缓存管理器，可以用来设置容量限制、淘汰策略等，这些设置只对单独保存的响应有效
+     */
+    public DefaultCacheManager getFileCacheManager() {
+        return fileCacheManager;
+    }
+
+    /**
+     * 获取保存到段文件中的响应体的最大长度
+     * @return 单位字节
+     */
+    public int getMaxEntrySize() {
+        return maxEntrySize;
+    }
+
+    /**
+     * 设置保存到段文件中的响应体的最大长度，超过的响应单独保存，默认16KB
+     * @param maxEntrySize 单位字节
+     */
+    public void setMaxEntrySize(int maxEntrySize) {
+        if(maxEntrySize <= 0){
+            throw new IllegalArgumentException("maxEntrySize <= 0");
+        }
+        this.maxEntrySize = maxEntrySize;
+    }
+
+    /**
+     * 获取单个段文件的最大长度
+     * @return 单位字节
+     */
+    public int getMaxSegmentSize() {
+        return maxSegmentSize;
+    }
+
+    /**
+     * 设置单个段文件的最大长度，写满之后换下一个段文件并检查是否需要合并，默认4MB
+     * @param maxSegmentSize 单位字节
+     */
+    public void setMaxSegmentSize(int maxSegmentSize) {
+        if(maxSegmentSize <= 0){
+            throw new IllegalArgumentException("maxSegmentSize <= 0");
+        }
+        this.maxSegmentSize = maxSegmentSize;
+    }
+
+    /**
+     * 获取段文件中有效记录的最大总长度
+     * @return 单位字节，小于等于0时不限制
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * 设置段文件中有效记录的最大总长度，超出后会在后台线程中按照淘汰策略删除缓存，被淘汰的记录占用的空间在合并段文件时回收。
+     * 只对保存在段文件中的缓存有效，单独保存的缓存请通过{@link #getFileCacheManager()}设置
+     * @param maxSize 单位字节，小于等于0时不限制，默认不限制
+     */
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+        Store store = this.store;
+        if(store != null){
+            store.trimIfNeeded();
+        }
+    }
+
+    /**
+     * 获取段文件中的最大缓存数量
+     * @return 小于等于0时不限制
+     */
+    public int getMaxCount() {
+        return maxCount;
+    }
+
+    /**
+     * 设置段文件中的最大缓存数量，超出后会在后台线程中按照淘汰策略删除缓存。
+     * 只对保存在段文件中的缓存有效，单独保存的缓存请通过{@link #getFileCacheManager()}设置
+     * @param maxCount 小于等于0时不限制，默认不限制
+     */
+    public void setMaxCount(int maxCount) {
+        this.maxCount = maxCount;
+        Store store = this.store;
+        if(store != null){
+            store.trimIfNeeded();
+        }
+    }
+
+    /**
+     * 获取段文件的淘汰策略
+     */
+    public CacheEvictionPolicy getEvictionPolicy() {
+        return evictionPolicy;
+    }
+
+    /**
+     * 设置段文件的淘汰策略，默认为LRU。访问时间和访问次数只保存在内存中，重启之后以缓存时间为准
+     */
+    public void setEvictionPolicy(CacheEvictionPolicy evictionPolicy) {
+        if(evictionPolicy == null){
+            throw new IllegalArgumentException("evictionPolicy is null");
+        }
+        this.evictionPolicy = evictionPolicy;
+    }
+
+    /**
+     * 获取所有段文件的总长度，包括尚未回收的记录
+     * @return 单位字节
+     */
+    public long getSegmentSize(){
+        Store store = this.store;
+        return store != null ? store.getSize() : 0;
+    }
+
+    /**
+     * 获取段文件中的缓存数量
+     */
+    public int getSegmentEntryCount(){
+        Store store = this.store;
+        return store != null ? store.index.size() : 0;
+    }
+
+    /**
+     * 获取段文件中有效记录的总长度，也就是{@link #setMaxSize(long)}限制的长度
+     * @return 单位字节
+     */
+    public long getSegmentLiveSize(){
+        Store store = this.store;
+        return store != null ? store.getLiveSize() : 0;
+    }
+
+    /**
+     * 在后台线程中合并有效数据比例过低或者比较小的段文件
+     */
+    public void compact(){
+        Store store = this.store;
+        if(store != null){
+            store.scheduleCompact();
+        }
+    }
+
+    private String createLog(HttpRequest request, String type){
+        return request.getName()+"; "+type+"; "+request.getUrl();
+    }
+
+    /**
+     * 获取当前缓存目录的段文件，第一次获取的时候会扫描段文件重建索引
+     */
+    private Store getStore(GoHttp goHttp){
+        Store store = this.store;
+        if(store == null){
+            synchronized (this){
+                store = this.store;
+                if(store == null){
+                    store = new Store(new File(fileCacheManager.getCacheDirectory(goHttp), SEGMENT_DIRECTORY));
+                    this.store = store;
+                }
+            }
+        }
+        return store;
+    }
+
+    /**
+     * 获取后台线程
+     */
+    private synchronized ExecutorService getBackgroundExecutor(){
+        if(backgroundExecutor == null){
+            backgroundExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "GoHttp-Segment");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+        }
+        return backgroundExecutor;
+    }
+
+    private static int checksum(byte[] bytes){
+        CRC32 crc32 = new CRC32();
+        crc32.update(bytes, 0, bytes.length);
+        return (int) crc32.getValue();
+    }
+
+    /**
+     * 一个缓存目录下的所有段文件，追加记录和修改索引都在Store的同步块中进行，读取不需要同步
+     */
+    private class Store {
+        private final File directory;
+        private final ConcurrentHashMap<String, Location> index;    // 每个缓存ID最新的记录的位置
+        private final TreeMap<Integer, Segment> segments;   // 按编号排列的段文件，最后一个是正在写入的段文件
+        private final ReentrantReadWriteLock deleteLock;    // 读取时持有读锁，删除段文件时持有写锁
+        private final AtomicBoolean compactScheduled;
+        private final AtomicBoolean trimScheduled;
+        private Segment activeSegment;  // 正在写入的段文件
+        private boolean closed;
+
+        private Store(File directory) {
+            this.directory = directory;
+            this.index = new ConcurrentHashMap<String, Location>();
+            this.segments = new TreeMap<Integer, Segment>();
+            this.deleteLock = new ReentrantReadWriteLock();
+            this.compactScheduled = new AtomicBoolean();
+            this.trimScheduled = new AtomicBoolean();
+            open();
+        }
+
+        /**
+         * 扫描所有段文件重建索引，然后接着最后一个段文件继续写；最后一条记录不完整的话先截掉，这样就不会接在上次进程被杀时写了一半的记录后面
+         */
+        private synchronized void open(){
+            if(!directory.exists() && !directory.mkdirs()){
+                Log.w(GoHttp.LOG_TAG, "Cache : 创建段文件目录失败：" + directory.getPath());
+            }
+            String[] fileNames = directory.list();
+            if(fileNames != null){
+                for(String fileName : fileNames){
+                    if(fileName.startsWith(SEGMENT_FILE_PREFIX) && fileName.endsWith(SEGMENT_FILE_SUFFIX)){
+                        try{
+                            int id = Integer.parseInt(fileName.substring(SEGMENT_FILE_PREFIX.length(), fileName.length() - SEGMENT_FILE_SUFFIX.length()));
+                            segments.put(id, null);
+                        }catch (NumberFormatException e){
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            }
+            for(Integer id : new ArrayList<Integer>(segments.keySet())){
+                try{
+                    Segment segment = new Segment(id, getSegmentFile(id));
+                    segments.put(id, segment);
+                    scan(segment);
+                }catch (IOException e){
+                    e.printStackTrace();
+                    segments.remove(id);
+                }
+            }
+            if(!segments.isEmpty()){
+                reuse(segments.lastEntry().getValue());
+            }
+            scheduleCompact();
+            trimIfNeeded();
+        }
+
+        /**
+         * 接着最后一个段文件继续写，截掉不完整的数据失败的话就换一个新的段文件
+         */
+        private void reuse(Segment segment){
+            if(segment.size >= maxSegmentSize){
+                return;
+            }
+            if(segment.file.length() > segment.size){
+                try{
+                    segment.getRandomAccessFile().setLength(segment.size);
+                }catch (IOException e){
+                    e.printStackTrace();
+                    return;
+                }
+            }
+            activeSegment = segment;
+        }
+
+        private File getSegmentFile(int id){
+            return new File(directory, SEGMENT_FILE_PREFIX + id + SEGMENT_FILE_SUFFIX);
+        }
+
+        /**
+         * 扫描段文件，遇到不完整的记录就停止，后面的数据全部作废
+         */
+        private void scan(Segment segment) throws IOException {
+            long length = segment.file.length();
+            long position = 0;
+            DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file), 64 * 1024));
+            try{
+                while(position < length){
+                    RecordHead head = RecordHead.read(inputStream);
+                    if(head == null || position + head.getRecordLength() > length){
+                        break;
+                    }
+                    skipFully(inputStream, Math.max(head.payloadLength, 0));
+                    apply(segment, position, head);
+                    position += head.getRecordLength();
+                }
+            }catch (EOFException e){
+                // 最后一条记录不完整
+            }finally {
+                try{inputStream.close();}catch (IOException exception){exception.printStackTrace();}
+            }
+            segment.size = position;
+        }
+
+        /**
+         * 根据记录更新索引
+         */
+        private void apply(Segment segment, long position, RecordHead head){
+            segment.cacheIds.add(head.cacheId);
+            if(head.payloadLength >= 0){
+                Location location = new Location(segment, position + head.getRecordLength() - head.payloadLength, head, index.get(head.cacheId));
+                segment.liveBytes += location.recordLength;
+                release(index.put(head.cacheId, location));
+            }else{
+                release(index.remove(head.cacheId));
+            }
+        }
+
+        private void release(Location location){
+            if(location != null){
+                location.segment.liveBytes -= location.recordLength;
+            }
+        }
+
+        /**
+         * 比给定的段文件更早的段文件中是否有这个缓存ID的记录，有的话丢弃这个缓存ID时要留下删除记录，否则重启之后旧记录会复活
+         */
+        private boolean isInOlderSegment(String cacheId, Segment segment){
+            for(Segment olderSegment : segments.headMap(segment.id).values()){
+                if(olderSegment.cacheIds.contains(cacheId)){
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private Location get(String cacheId){
+            return index.get(cacheId);
+        }
+
+        /**
+         * 追加一条记录
+         */
+        private synchronized void put(String cacheId, long storedTime, long expiresTime, long discardTime, byte[] record) throws IOException {
+            append(new RecordHead(cacheId, storedTime, expiresTime, discardTime, record.length, checksum(record)), record, true);
+        }
+
+        /**
+         * 删除缓存，段文件中有这个缓存ID的时候才会追加删除记录
+         */
+        private synchronized void remove(String cacheId) throws IOException {
+            if(index.containsKey(cacheId)){
+                append(new RecordHead(cacheId, 0, 0, 0, -1, 0), null, true);
+            }
+        }
+
+        /**
+         * @param scheduleCompact 写满换段文件的时候是否合并段文件，合并段文件时追加的记录不再触发合并，否则需要保留的删除记录比较多的时候会一直合并下去
+         */
+        private void append(RecordHead head, byte[] payload, boolean scheduleCompact) throws IOException {
+            if(closed){
+                throw new IOException("段文件已关闭");
+            }
+            if(activeSegment == null){
+                roll();
+            }
+
+            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(head.getRecordLength());
+            DataOutputStream outputStream = new DataOutputStream(byteArrayOutputStream);
+            head.write(outputStream);
+            if(payload != null){
+                outputStream.write(payload);
+            }
+            outputStream.flush();
+            ByteBuffer byteBuffer = ByteBuffer.wrap(byteArrayOutputStream.toByteArray());
+
+            Segment segment = activeSegment;
+            long position = segment.size;
+            FileChannel channel = segment.getRandomAccessFile().getChannel();
+            while(byteBuffer.hasRemaining()){
+                position += channel.write(byteBuffer, position);
+            }
+            apply(segment, segment.size, head);
+            segment.size = position;
+            if(payload != null){
+                trimIfNeeded();
+            }
+
+            // 写满了就换下一个段文件，旧的段文件可能已经有很多被覆盖的记录了
+            if(segment.size >= maxSegmentSize){
+                roll();
+                if(scheduleCompact){
+                    scheduleCompact();
+                }
+            }
+        }
+
+        /**
+         * 换一个新的段文件写入
+         */
+        private void roll() throws IOException {
+            int id = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+            File file = getSegmentFile(id);
+            if(file.exists() && !file.delete()){
+                throw new IOException("删除段文件失败：" + file.getPath());
+            }
+            Segment segment = new Segment(id, file);
+            segments.put(id, segment);
+            activeSegment = segment;
+        }
+
+        /**
+         * 读取缓存记录，读取期间段文件刚好被合并的话重新查询位置再读一次
+         * @return 缓存记录，没有的话返回null
+         * @throws IOException 读取失败或者校验和不正确
+         */
+        private byte[] read(String cacheId) throws IOException {
+            for(int w = 0; w < 2; w++){
+                Location location = index.get(cacheId);
+                if(location == null){
+                    return null;
+                }
+                deleteLock.readLock().lock();
+                try{
+                    if(location.segment.deleted){
+                        continue;
+                    }
+                    ByteBuffer byteBuffer = ByteBuffer.allocate(location.payloadLength);
+                    FileChannel channel = location.segment.getRandomAccessFile().getChannel();
+                    long position = location.payloadPosition;
+                    while(byteBuffer.hasRemaining()){
+                        int number = channel.read(byteBuffer, position);
+                        if(number < 0){
+                            throw new EOFException("段文件不完整：" + location.segment.file.getPath());
+                        }
+                        position += number;
+                    }
+                    byte[] record = byteBuffer.array();
+                    if(checksum(record) != location.checksum){
+                        throw new IOException("段文件已损坏：" + location.segment.file.getPath());
+                    }
+                    location.lastAccessTime = System.currentTimeMillis();
+                    location.accessCount.incrementAndGet();
+                    return record;
+                }finally {
+                    deleteLock.readLock().unlock();
+                }
+            }
+            return null;
+        }
+
+        private synchronized long getSize(){
+            long size = 0;
+            for(Segment segment : segments.values()){
+                size += segment.size;
+            }
+            return size;
+        }
+
+        private synchronized long getLiveSize(){
+            long liveSize = 0;
+            for(Segment segment : segments.values()){
+                liveSize += segment.liveBytes;
+            }
+            return liveSize;
+        }
+
+        private boolean isOverLimit(){
+            long maxSize = SegmentCacheManager.this.maxSize;
+            int maxCount = SegmentCacheManager.this.maxCount;
+            return (maxSize > 0 && getLiveSize() > maxSize) || (maxCount > 0 && index.size() > maxCount);
+        }
+
+        /**
+         * 超出容量或数量限制时在后台线程中淘汰缓存，同一时间只会有一个淘汰任务在排队
+         */
+        private void trimIfNeeded(){
+            if(!isOverLimit()){
+                return;
+            }
+            if(trimScheduled.compareAndSet(false, true)){
+                getBackgroundExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        trimScheduled.set(false);
+                        try{
+                            trim();
+                        }catch (IOException e){
+                            e.printStackTrace();
+                        }
+                    }
+                });
+            }
+        }
+
+        /**
+         * 按照淘汰策略追加删除记录直到不再超出限制，被淘汰的记录占用的空间在合并段文件时回收，只在后台线程中执行
+         */
+        private void trim() throws IOException {
+            if(!isOverLimit()){
+                return;
+            }
+
+            // 先记下访问时间和访问次数再排序，避免排序期间被其它线程修改
+            CacheEvictionPolicy evictionPolicy = SegmentCacheManager.this.evictionPolicy;
+            List<EvictionCandidate> candidates = new ArrayList<EvictionCandidate>(index.size());
+            for(Map.Entry<String, Location> entry : index.entrySet()){
+                candidates.add(new EvictionCandidate(entry.getKey(), entry.getValue(), evictionPolicy));
+            }
+            Collections.sort(candidates);
+
+            for(EvictionCandidate candidate : candidates){
+                if(!isOverLimit()){
+                    break;
+                }
+                synchronized (this){
+                    if(closed){
+                        return;
+                    }
+                    // 排序期间被覆盖的话跳过，新写入的缓存不应该被淘汰
+                    if(index.get(candidate.cacheId) != candidate.location){
+                        continue;
+                    }
+                    append(new RecordHead(candidate.cacheId, 0, 0, 0, -1, 0), null, false);
+                }
+                stats.recordEviction();
+            }
+            scheduleCompact();
+        }
+
+        private void scheduleCompact(){
+            if(compactScheduled.compareAndSet(false, true)){
+                getBackgroundExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        compactScheduled.set(false);
+                        try{
+                            compact();
+                        }catch (IOException e){
+                            e.printStackTrace();
+                        }
+                    }
+                });
+            }
+        }
+
+        /**
+         * 合并有效数据比例过低或者比较小的段文件，只在后台线程中执行
+         */
+        private void compact() throws IOException {
+            // 只考虑统计之前就已经写满的段文件，统计期间还在写入的段文件的数据量是不准的
+            int sealedBefore;
+            synchronized (this){
+                sealedBefore = activeSegment != null ? activeSegment.id : (segments.isEmpty() ? 0 : segments.lastKey() + 1);
+            }
+
+            // 统计每个段文件中还会被使用的数据量，已经过了丢弃时间的记录不算
+            long currentTime = System.currentTimeMillis();
+            Map<Segment, Long> usefulBytes = new HashMap<Segment, Long>();
+            for(Location location : index.values()){
+                if(location.discardTime <= 0 || location.discardTime > currentTime){
+                    Long bytes = usefulBytes.get(location.segment);
+                    usefulBytes.put(location.segment, (bytes != null ? bytes : 0) + location.recordLength);
+                }
+            }
+
+            List<Segment> candidates = new ArrayList<Segment>();
+            synchronized (this){
+                if(closed){
+                    return;
+                }
+                // 比较小的段文件不管有效数据的比例是多少都合并到正在写入的段文件中，避免段文件越来越多
+                long smallSize = (long) (maxSegmentSize * COMPACT_THRESHOLD);
+                for(Segment segment : segments.values()){
+                    Long bytes = usefulBytes.get(segment);
+                    if(segment.id < sealedBefore && (bytes == null || bytes < segment.size * COMPACT_THRESHOLD || segment.size < smallSize)){
+                        candidates.add(segment);
+                    }
+                }
+            }
+
+            for(Segment segment : candidates){
+                compact(segment, currentTime);
+            }
+        }
+
+        /**
+         * 把段文件中依然有效的记录追加到正在写入的段文件中，然后删除这个段文件
+         */
+        private void compact(Segment segment, long currentTime) throws IOException {
+            long length;
+            synchronized (this){
+                length = segment.size;
+            }
+            long position = 0;
+            DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file), 64 * 1024));
+            try{
+                while(position < length){
+                    RecordHead head = RecordHead.read(inputStream);
+                    if(head == null || position + head.getRecordLength() > length){
+                        break;
+                    }
+                    byte[] payload = null;
+                    if(head.payloadLength >= 0){
+                        payload = new byte[head.payloadLength];
+                        inputStream.readFully(payload);
+                    }
+                    long payloadPosition = position + head.getRecordLength() - Math.max(head.payloadLength, 0);
+                    position += head.getRecordLength();
+
+                    synchronized (this){
+                        if(closed){
+                            return;
+                        }
+                        // 更早的段文件中还有这个缓存ID的旧记录的话，丢弃记录时要留下删除记录，否则重启之后旧记录会复活
+                        if(payload != null){
+                            Location location = index.get(head.cacheId);
+                            if(location == null || location.segment != segment || location.payloadPosition != payloadPosition){
+                                continue;   // 已经被覆盖或删除了
+                            }
+                            if((location.discardTime > 0 && location.discardTime <= currentTime) || checksum(payload) != location.checksum){
+                                if(isInOlderSegment(head.cacheId, segment)){
+                                    append(new RecordHead(head.cacheId, 0, 0, 0, -1, 0), null, false);
+                                }else{
+                                    release(index.remove(head.cacheId));
+                                }
+                            }else{
+                                append(head, payload, false);
+                            }
+                        }else if(!index.containsKey(head.cacheId) && isInOlderSegment(head.cacheId, segment)){
+                            append(head, null, false);
+                        }
+                    }
+                }
+            }catch (EOFException e){
+                // 最后一条记录不完整
+            }finally {
+                try{inputStream.close();}catch (IOException exception){exception.printStackTrace();}
+            }
+
+            synchronized (this){
+                if(closed){
+                    return;
+                }
+                segments.remove(segment.id);
+            }
+            deleteLock.writeLock().lock();
+            try{
+                segment.close();
+            }finally {
+                deleteLock.writeLock().unlock();
+            }
+            if(!segment.file.delete() && segment.file.exists()){
+                Log.w(GoHttp.LOG_TAG, "Cache : 删除段文件失败：" + segment.file.getPath());
+            }
+        }
+
+        /**
+         * 关闭所有段文件，切换缓存目录的时候使用
+         */
+        private void close(){
+            synchronized (this){
+                closed = true;
+            }
+            deleteLock.writeLock().lock();
+            try{
+                for(Segment segment : segments.values()){
+                    segment.close();
+                }
+            }finally {
+                deleteLock.writeLock().unlock();
+            }
+        }
+    }
+
+    private static void skipFully(InputStream inputStream, long count) throws IOException {
+        while(count > 0){
+            long number = inputStream.skip(count);
+            if(number <= 0){
+                if(inputStream.read() == -1){
+                    throw new EOFException();
+                }
+                number = 1;
+            }
+            count -= number;
+        }
+    }
+
+    /**
+     * 段文件
+     */
+    private static class Segment {
+        private final int id;
+        private final File file;
+        private RandomAccessFile randomAccessFile;  // 第一次读写的时候才打开
+        private final Set<String> cacheIds = new HashSet<String>();   // 段文件中出现过的缓存ID，包括被覆盖的记录和删除记录，只在Store的同步块中访问
+        private long size;  // 有效数据的长度，只在Store的同步块中修改
+        private long liveBytes; // 依然在索引中的记录的总长度，只在Store的同步块中修改
+        private volatile boolean deleted;
+
+        private Segment(int id, File file) {
+            this.id = id;
+            this.file = file;
+        }
+
+        private synchronized RandomAccessFile getRandomAccessFile() throws IOException {
+            if(deleted){
+                throw new IOException("段文件已关闭：" + file.getPath());
+            }
+            if(randomAccessFile == null){
+                randomAccessFile = new RandomAccessFile(file, "rw");
+            }
+            return randomAccessFile;
+        }
+
+        private synchronized void close(){
+            deleted = true;
+            if(randomAccessFile != null){
+                try{randomAccessFile.close();}catch (IOException exception){exception.printStackTrace();}
+                randomAccessFile = null;
+            }
+        }
+    }
+
+    /**
+     * 缓存记录在段文件中的位置
+     */
+    private static class Location {
+        private final Segment segment;
+        private final long payloadPosition;
+        private final int payloadLength;
+        private final int recordLength;
+        private final int checksum;
+        private final long storedTime;
+        private final long expiresTime;
+        private final long discardTime;
+        private volatile long lastAccessTime;  // 最后访问时间，只保存在内存中
+        private final AtomicInteger accessCount;    // 访问次数，只保存在内存中
+
+        /**
+         * @param previous 这个缓存ID之前的记录，用来继承访问时间和访问次数，没有的话传null
+         */
+        private Location(Segment segment, long payloadPosition, RecordHead head, Location previous) {
+            this.segment = segment;
+            this.payloadPosition = payloadPosition;
+            this.payloadLength = head.payloadLength;
+            this.recordLength = head.getRecordLength();
+            this.checksum = head.checksum;
+            this.storedTime = head.storedTime;
+            this.expiresTime = head.expiresTime;
+            this.discardTime = head.discardTime;
+            this.lastAccessTime = previous != null ? Math.max(previous.lastAccessTime, head.storedTime) : head.storedTime;
+            this.accessCount = new AtomicInteger(previous != null ? previous.accessCount.get() : 0);
+        }
+    }
+
+    /**
+     * 淘汰候选，越靠前越先被淘汰
+     */
+    private static class EvictionCandidate implements Comparable<EvictionCandidate> {
+        private final String cacheId;
+        private final Location location;
+        private final long lastAccessTime;
+        private final int accessCount;
+
+        private EvictionCandidate(String cacheId, Location location, CacheEvictionPolicy evictionPolicy) {
+            this.cacheId = cacheId;
+            this.location = location;
+            this.lastAccessTime = location.lastAccessTime;
+            this.accessCount = evictionPolicy == CacheEvictionPolicy.LFU ? location.accessCount.get() : 0;
+        }
+
+        @Override
+        public int compareTo(EvictionCandidate another) {
+            if(accessCount != another.accessCount){
+                return accessCount < another.accessCount ? -1 : 1;
+            }
+            if(lastAccessTime != another.lastAccessTime){
+                return lastAccessTime < another.lastAccessTime ? -1 : 1;
+            }
+            // 同一毫秒内写入的按照在段文件中的先后顺序
+            if(location.segment.id != another.location.segment.id){
+                return location.segment.id < another.location.segment.id ? -1 : 1;
+            }
+            return location.payloadPosition < another.location.payloadPosition ? -1 : (location.payloadPosition == another.location.payloadPosition ? 0 : 1);
+        }
+    }
+
+    /**
+     * 段文件中每条记录的头部
+     */
+    private static class RecordHead {
+        private final String cacheId;
+        private final byte[] cacheIdBytes;
+        private final long storedTime;
+        private final long expiresTime;
+        private final long discardTime;
+        private final int payloadLength;
+        private final int checksum;
+
+        private RecordHead(String cacheId, long storedTime, long expiresTime, long discardTime, int payloadLength, int checksum) throws IOException {
+            this(cacheId, cacheId.getBytes("UTF-8"), storedTime, expiresTime, discardTime, payloadLength, checksum);
+        }
+
+        private RecordHead(String cacheId, byte[] cacheIdBytes, long storedTime, long expiresTime, long discardTime, int payloadLength, int checksum) {
+            this.cacheId = cacheId;
+            this.cacheIdBytes = cacheIdBytes;
+            this.storedTime = storedTime;
+            this.expiresTime = expiresTime;
+            this.discardTime = discardTime;
+            this.payloadLength = payloadLength;
+            this.checksum = checksum;
+        }
+
+        /**
+         * 整条记录的长度，包括头部和缓存记录
+         */
+        private int getRecordLength(){
+            return 4 + 4 + cacheIdBytes.length + 8 + 8 + 8 + 4 + 4 + Math.max(payloadLength, 0);
+        }
+
+        private void write(DataOutputStream outputStream) throws IOException {
+            outputStream.writeInt(RECORD_MAGIC);
+            outputStream.writeInt(cacheIdBytes.length);
+            outputStream.write(cacheIdBytes);
+            outputStream.writeLong(storedTime);
+            outputStream.writeLong(expiresTime);
+            outputStream.writeLong(discardTime);
+            outputStream.writeInt(payloadLength);
+            outputStream.writeInt(checksum);
+        }
+
+        /**
+         * @return 不是有效的记录头部的话返回null
+         */
+        private static RecordHead read(DataInputStream inputStream) throws IOException {
+            if(inputStream.readInt() != RECORD_MAGIC){
+                return null;
+            }
+            int cacheIdLength = inputStream.readInt();
+            if(cacheIdLength <= 0 || cacheIdLength > MAX_ID_LENGTH){
+                return null;
+            }
+            byte[] cacheIdBytes = new byte[cacheIdLength];
+            inputStream.readFully(cacheIdBytes);
+            long storedTime = inputStream.readLong();
+            long expiresTime = inputStream.readLong();
+            long discardTime = inputStream.readLong();
+            int payloadLength = inputStream.readInt();
+            int checksum = inputStream.readInt();
+            if(payloadLength < -1){
+                return null;
+            }
+            return new RecordHead(new String(cacheIdBytes, "UTF-8"), cacheIdBytes, storedTime, expiresTime, discardTime, payloadLength, checksum);
+        }
+    }
+
+    /**
+     * 响应体超过大小限制时交给fileCacheManager的实体，先返回已经读到内存中的数据，再接着读取剩下的数据
+     */
+    private static class PrefixedEntity extends HttpEntityWrapper {
+        private InputStream inputStream;
+
+        private PrefixedEntity(HttpEntity wrapped, byte[] prefix, int prefixLength, InputStream rest) {
+            super(wrapped);
+            this.inputStream = new SequenceInputStream(new ByteArrayInputStream(prefix, 0, prefixLength), rest);
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return inputStream;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return false;
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return true;
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public void writeTo(OutputStream outputStream) throws IOException {
+            byte[] bytes = new byte[4096];
+            int number;
+            while((number = inputStream.read(bytes)) != -1){
+                outputStream.write(bytes, 0, number);
+            }
+            outputStream.flush();
+        }
+
+        @Override
+        public void consumeContent() throws IOException {
+            inputStream.close();
+        }
+    }
+}
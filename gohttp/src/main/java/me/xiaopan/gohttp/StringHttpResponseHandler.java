@@ -29,6 +29,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 
 /**
  * 默认的字符串Http响应处理器，用于将Http响应转成字符串
@@ -55,6 +58,10 @@ public class StringHttpResponseHandler implements HttpResponseHandler {
 	}
 
     private String toString(HttpRequest httpRequest, final HttpEntity entity, final String defaultCharset) throws IOException, ParseException {
+        if(entity instanceof ByteBufferEntity){
+            return decode(httpRequest, (ByteBufferEntity) entity, defaultCharset);
+        }
+
         InputStream inputStream = entity.getContent();
         if (inputStream == null) {
             return "";
@@ -97,6 +104,32 @@ public class StringHttpResponseHandler implements HttpResponseHandler {
         return buffer.toString();
     }
 
+    /**
+     * 直接解码缓存中的响应体，省去InputStreamReader和CharArrayBuffer的中间拷贝
+     */
+    static String decode(HttpRequest httpRequest, ByteBufferEntity entity, String defaultCharset) throws IOException, ParseException {
+        String charset = getContentCharSet(entity);
+        if (charset == null) {
+            charset = defaultCharset;
+        }
+        if (charset == null) {
+            charset = HTTP.DEFAULT_CONTENT_CHARSET;
+        }
+
+        ByteBuffer byteBuffer = entity.getByteBuffer();
+        int contentLength = byteBuffer.remaining();
+        String string;
+        try {
+            string = Charset.forName(charset).decode(byteBuffer).toString();
+        } catch (IllegalArgumentException e) {
+            throw new UnsupportedEncodingException(charset);
+        }
+        if(httpRequest.getProgressListener() != null && !httpRequest.isCanceled()){
+            new HttpRequestHandler.UpdateProgressRunnable(httpRequest, contentLength, contentLength).execute();
+        }
+        return string;
+    }
+
     public static String getContentCharSet(final HttpEntity entity)
             throws ParseException {
 
@@ -115,4 +148,20 @@ public class StringHttpResponseHandler implements HttpResponseHandler {
         }
         return charset;
     }
+
+    /**
+     * 没有状态，所以同类型的处理器都相等，合并相同请求时使用；子类默认按引用比较
+     */
+    @Override
+    public boolean equals(Object o) {
+        if(getClass() != StringHttpResponseHandler.class){
+            return super.equals(o);
+        }
+        return o != null && o.getClass() == getClass();
+    }
+
+    @Override
+    public int hashCode() {
+        return getClass() != StringHttpResponseHandler.class ? super.hashCode() : getClass().hashCode();
+    }
 }
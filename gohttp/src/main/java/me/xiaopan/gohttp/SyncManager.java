@@ -17,31 +17,126 @@
 package me.xiaopan.gohttp;
 
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
-import java.util.WeakHashMap;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * 同步管理器
  */
 public class SyncManager {
-    private Map<String, ReentrantLock> cacheIdLocks;
+    private final CacheIdLocks cacheIdLocks;  // 缓存ID锁表
+    private Set<String> refreshingCacheIds; // 正在后台刷新的缓存ID
+    private final Map<String, HttpRequest> flights;   // 正在执行并且允许其它相同请求合并进来的请求
 
     public SyncManager() {
-        this.cacheIdLocks = Collections.synchronizedMap(new WeakHashMap<String, ReentrantLock>());
+        this.cacheIdLocks = new CacheIdLocks();
+        this.refreshingCacheIds = Collections.synchronizedSet(new HashSet<String>());
+        this.flights = new HashMap<String, HttpRequest>();
     }
 
     /**
-     * 根据缓存ID获取锁
+     * 尝试将请求合并到正在执行的相同请求上，合并成功的话这个请求就不需要执行了，等着共享结果即可；
+     * 合并失败的话这个请求会成为新的可合并请求
+     * @param httpRequest 请求
+     * @return 是否已经合并到其它请求上
+     */
+    public boolean joinFlight(HttpRequest httpRequest){
+        String flightKey = httpRequest.createFlightKey();
+        if(flightKey == null){
+            return false;
+        }
+
+        synchronized (flights){
+            HttpRequest leader = flights.get(flightKey);
+            if(leader != null && !leader.isFinished() && !leader.isCanceled() && leader.canCoalesce(httpRequest)){
+                leader.addFollower(httpRequest);
+                return true;
+            }
+            httpRequest.setFlightKey(flightKey);
+            flights.put(flightKey, httpRequest);
+            return false;
+        }
+    }
+
+    /**
+     * 不再允许其它请求合并到给定的请求上，开始回调结果或者请求结束的时候调用
+     * @param httpRequest 请求
+     */
+    public void closeFlight(HttpRequest httpRequest){
+        String flightKey = httpRequest.getFlightKey();
+        if(flightKey == null){
+            return;
+        }
+
+        synchronized (flights){
+            if(flights.get(flightKey) == httpRequest){
+                flights.remove(flightKey);
+            }
+            httpRequest.setFlightKey(null);
+        }
+    }
+
+    /**
+     * 请求和合并进来的请求是否全部取消了，全部取消了的话同时关闭合并。判断和关闭在同一个同步块中进行，
+     * 这样就不会有请求在决定取消之后才合并进来，跟着收到取消回调
+     * @param httpRequest 请求
+     * @return 是否已经全部取消
+     */
+    public boolean closeFlightIfCanceled(HttpRequest httpRequest){
+        synchronized (flights){
+            if(!httpRequest.isCanceled()){
+                return false;
+            }
+            closeFlight(httpRequest);
+            return true;
+        }
+    }
+
+    /**
+     * 开始在后台刷新缓存
+     * @param cacheId 缓存ID
+     * @return false：相同缓存ID的刷新任务正在执行，无需再次刷新
+     */
+    public boolean startRefresh(String cacheId){
+        return refreshingCacheIds.add(cacheId);
+    }
+
+    /**
+     * 后台刷新缓存结束
+     * @param cacheId 缓存ID
+     */
+    public void finishRefresh(String cacheId){
+        refreshingCacheIds.remove(cacheId);
+    }
+
+    /**
+     * 根据缓存ID获取锁，相同缓存ID的锁互斥，返回的锁只能在当前线程中使用
      * @param cacheId 缓存ID
      * @return 锁
      */
-    public synchronized ReentrantLock getLockByCacheId(String cacheId){
-        ReentrantLock cacheIdLock = cacheIdLocks.get(cacheId);
-        if(cacheIdLock == null){
-            cacheIdLock = new ReentrantLock();
-            cacheIdLocks.put(cacheId, cacheIdLock);
-        }
-        return cacheIdLock;
+    public Lock getCacheIdLock(String cacheId){
+        return cacheIdLocks.getLock(cacheId);
+    }
+
+    /**
+     * 根据缓存ID获取锁，相同缓存ID的锁互斥，返回的锁只能在当前线程中使用
+     * @param cacheId 缓存ID
+     * @return 锁
+     * @deprecated 请使用{@link #getCacheIdLock(String)}，锁不再是一个缓存ID一个的ReentrantLock了，这里返回的只是包装
+     */
+    @Deprecated
+    public ReentrantLock getLockByCacheId(String cacheId){
+        return cacheIdLocks.getReentrantLock(cacheId);
+    }
+
+    /**
+     * 获取缓存ID锁表，可以查看加锁的等待情况
+     */
+    public CacheIdLocks getCacheIdLocks() {
+        return cacheIdLocks;
     }
 }
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.gohttp;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * 读取的同时把数据写入到另一个输出流中，写入失败的时候不影响读取，只会记录下异常
+ */
+class TeeInputStream extends FilterInputStream {
+    private OutputStream outputStream;
+    private IOException writeException;    // 写入时发生的异常，发生之后不再写入
+    private boolean eof;
+
+    TeeInputStream(InputStream inputStream, OutputStream outputStream) {
+        super(inputStream);
+        this.outputStream = outputStream;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int oneByte = super.read();
+        if(oneByte == -1){
+            eof = true;
+        }else if(writeException == null){
+            try{
+                outputStream.write(oneByte);
+            }catch (IOException e){
+                writeException = e;
+            }
+        }
+        return oneByte;
+    }
+
+    @Override
+    public int read(byte[] buffer) throws IOException {
+        return read(buffer, 0, buffer.length);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        int number = super.read(buffer, offset, count);
+        if(number == -1){
+            eof = true;
+        }else if(number > 0 && writeException == null){
+            try{
+                outputStream.write(buffer, offset, number);
+            }catch (IOException e){
+                writeException = e;
+            }
+        }
+        return number;
+    }
+
+    /**
+     * 跳过的数据也要写入缓存，所以这里是通过读取来跳过的
+     */
+    @Override
+    public long skip(long byteCount) throws IOException {
+        byte[] bytes = new byte[(int) Math.min(4096, Math.max(byteCount, 1))];
+        long skipped = 0;
+        while(skipped < byteCount){
+            int number = read(bytes, 0, (int) Math.min(bytes.length, byteCount - skipped));
+            if(number == -1){
+                break;
+            }
+            skipped += number;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    /**
+     * 由CacheEditor负责关闭，这里什么也不做，防止响应处理器提前关闭导致剩余的数据无法写入缓存
+     */
+    @Override
+    public void close() throws IOException {
+
+    }
+
+    /**
+     * 把剩余的数据全部读完
+     */
+    void drain() throws IOException {
+        byte[] bytes = new byte[8 * 1024];
+        while(!eof){
+            read(bytes, 0, bytes.length);
+        }
+    }
+
+    /**
+     * 关闭源输入流
+     */
+    void closeSource() {
+        try {
+            in.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    boolean isEof() {
+        return eof;
+    }
+
+    IOException getWriteException() {
+        return writeException;
+    }
+}
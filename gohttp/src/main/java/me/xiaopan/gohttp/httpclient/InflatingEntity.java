@@ -24,10 +24,27 @@ import java.io.InputStream;
 import java.util.zip.GZIPInputStream;
 
 public class InflatingEntity extends HttpEntityWrapper {
+    private long contentLength = -1;    // 解压后的长度，未知时为-1
+
     public InflatingEntity(HttpEntity wrapped) {
         super(wrapped);
     }
 
+    /**
+     * @param contentLength 解压后的长度，未知时为-1
+     */
+    public InflatingEntity(HttpEntity wrapped, long contentLength) {
+        super(wrapped);
+        this.contentLength = contentLength;
+    }
+
+    /**
+     * 获取被包装的实体，也就是压缩后的原始数据
+     */
+    public HttpEntity getWrappedEntity() {
+        return wrappedEntity;
+    }
+
     @Override
     public InputStream getContent() throws IOException {
         return new GZIPInputStream(wrappedEntity.getContent());
@@ -35,7 +52,7 @@ public class InflatingEntity extends HttpEntityWrapper {
 
     @Override
     public long getContentLength() {
-        return -1;
+        return contentLength;
     }
 }
 
@@ -47,6 +47,48 @@ public @interface CacheConfig {
      * @return
      */
     public boolean isRefreshCallback() default false;
+
+    /**
+     * 是否遵循响应头中的Cache-Control、Expires和Vary，开启后缓存有效期优先以响应头为准，没有的话再使用periodOfValidity
+     * @return
+     */
+    public boolean isHttpSemantics() default false;
+
+    /**
+     * stale-while-revalidate窗口，缓存过期之后的这段时间内依然立即返回过期的缓存，同时在后台刷新缓存，单位毫秒，小于等于0时不开启
+     * @return
+     */
+    public int staleWhileRevalidate() default 0;
+
+    /**
+     * stale-if-error窗口，缓存过期之后的这段时间内如果网络请求失败就返回过期的缓存，单位毫秒，小于等于0时不开启
+     * @return
+     */
+    public int staleIfError() default 0;
+
+    /**
+     * 是否边读取边写入缓存，响应体读完并且处理成功之后才提交缓存
+     * @return
+     */
+    public boolean isStreamingWrite() default false;
+
+    /**
+     * 是否以压缩后的原始数据保存gzip响应，读取缓存时再解压
+     * @return
+     */
+    public boolean isStoreCompressed() default false;
+
+    /**
+     * 当本地缓存过期的时候，是否携带If-None-Match、If-Modified-Since请求头向服务器确认缓存是否依然可用，服务器返回304时直接使用缓存
+     * @return
+     */
+    public boolean isRevalidate() default false;
+
+    /**
+     * 缓存可用的时候是否同时读取缓存和请求网络，哪个先拿到有效的结果就先回调哪个，缓存先回调的话网络请求完成之后是否再次回调由isRefreshCallback决定
+     * @return
+     */
+    public boolean isRace() default false;
     
     /**
      * 缓存目录
@@ -638,6 +638,13 @@ public class RequestParser {
         cacheConfig.setRefreshCache(annotation.isRefreshCache());
         cacheConfig.setPeriodOfValidity(annotation.periodOfValidity());
         cacheConfig.setRefreshCallback(annotation.isRefreshCallback());
+        cacheConfig.setHttpSemantics(annotation.isHttpSemantics());
+        cacheConfig.setRevalidate(annotation.isRevalidate());
+        cacheConfig.setStreamingWrite(annotation.isStreamingWrite());
+        cacheConfig.setStoreCompressed(annotation.isStoreCompressed());
+        cacheConfig.setRace(annotation.isRace());
+        cacheConfig.setStaleWhileRevalidate(annotation.staleWhileRevalidate());
+        cacheConfig.setStaleIfError(annotation.staleIfError());
         String cacheDirectory = annotation.cacheDirectory();
         if(cacheDirectory != null && !"".equals(cacheDirectory)){
             cacheConfig.setCacheDirectory(cacheDirectory);
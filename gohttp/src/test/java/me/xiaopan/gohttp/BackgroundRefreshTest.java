@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.gohttp;
+
+import org.apache.http.Header;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class BackgroundRefreshTest {
+    private File directory;
+    private EtagServer server;
+    private GoHttp goHttp;
+    private RecordingDispatcher dispatcher;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = TestHelper.createTempDirectory("background_refresh");
+        server = new EtagServer();
+        goHttp = TestHelper.createGoHttp(new DefaultCacheManager(), directory);
+        dispatcher = new RecordingDispatcher(goHttp);
+        goHttp.setDispatcher(dispatcher);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+        TestHelper.delete(directory);
+    }
+
+    @Test
+    public void testRefreshDoesNotTouchDeliveredRequest() throws Exception {
+        Assert.assertEquals("hello", new HttpHelper(goHttp, server.getUrl(), new StringHttpResponseHandler()).cacheConfig(createCacheConfig()).<String>submit().get(10, TimeUnit.SECONDS));
+        Thread.sleep(100);
+
+        // 缓存过期了但是还在stale-while-revalidate窗口内，直接返回过期的缓存，同时在后台刷新
+        HttpRequestFuture future = new HttpHelper(goHttp, server.getUrl(), new StringHttpResponseHandler()).cacheConfig(createCacheConfig()).go();
+        HttpRequest delivered = future.getHttpRequest();
+        long deadline = System.currentTimeMillis() + 10000;
+        while(server.getRequestCount() < 2 && System.currentTimeMillis() < deadline){
+            Thread.sleep(5);
+        }
+        Assert.assertEquals(2, server.getRequestCount());
+        Assert.assertTrue("后台刷新没有带上条件请求头", server.getRequest(1).contains("if-none-match: \"v1\""));
+
+        // 条件请求头加在复制出来的请求上，交给调用者的请求不受影响
+        Assert.assertTrue(future.isFinished());
+        if(delivered.getHeaders() != null){
+            for(Header header : delivered.getHeaders()){
+                Assert.assertFalse(header.getName(), "If-None-Match".equalsIgnoreCase(header.getName()));
+            }
+        }
+
+        // 两次请求之后，后台刷新也通过调度器以低优先级执行
+        Assert.assertEquals(3, dispatcher.priorities.size());
+        Assert.assertEquals(Priority.NORMAL, dispatcher.priorities.get(1));
+        Assert.assertEquals(Priority.LOW, dispatcher.priorities.get(2));
+        Assert.assertSame(delivered, dispatcher.requests.get(1));
+        Assert.assertNotSame(delivered, dispatcher.requests.get(2));
+    }
+
+    private static CacheConfig createCacheConfig(){
+        return new CacheConfig().setPeriodOfValidity(20).setStaleWhileRevalidate(60 * 1000).setRevalidate(true);
+    }
+
+    /**
+     * 记录调度过的请求的调度器
+     */
+    private static class RecordingDispatcher extends RequestDispatcher {
+        private final List<HttpRequest> requests = Collections.synchronizedList(new ArrayList<HttpRequest>());
+        private final List<Priority> priorities = Collections.synchronizedList(new ArrayList<Priority>());
+
+        private RecordingDispatcher(GoHttp goHttp) {
+            super(goHttp);
+        }
+
+        @Override
+        void dispatch(HttpRequest httpRequest, Runnable task) {
+            requests.add(httpRequest);
+            priorities.add(httpRequest.getPriority());
+            super.dispatch(httpRequest, task);
+        }
+    }
+
+    /**
+     * 返回带ETag的响应，请求中带有匹配的If-None-Match的话返回304，记录收到的每一个请求
+     */
+    private static class EtagServer implements Runnable {
+        private final ServerSocket serverSocket;
+        private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+
+        private EtagServer() throws IOException {
+            serverSocket = new ServerSocket(0, 10, InetAddress.getByName("127.0.0.1"));
+            Thread thread = new Thread(this, "EtagServer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private String getUrl(){
+            return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/etag";
+        }
+
+        private int getRequestCount(){
+            return requests.size();
+        }
+
+        private String getRequest(int index){
+            return requests.get(index);
+        }
+
+        @Override
+        public void run() {
+            while(!serverSocket.isClosed()){
+                try {
+                    Socket socket = serverSocket.accept();
+                    try{
+                        handle(socket);
+                    }finally {
+                        socket.close();
+                    }
+                } catch (IOException e) {
+                    // 服务器关闭了
+                }
+            }
+        }
+
+        private void handle(Socket socket) throws IOException {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+            StringBuilder request = new StringBuilder();
+            String line;
+            while((line = reader.readLine()) != null && line.length() > 0){
+                request.append(line.toLowerCase()).append('\n');
+            }
+            requests.add(request.toString());
+
+            String response;
+            if(request.indexOf("if-none-match: \"v1\"") >= 0){
+                response = "HTTP/1.1 304 Not Modified\r\nETag: \"v1\"\r\nConnection: close\r\n\r\n";
+            }else{
+                response = "HTTP/1.1 200 OK\r\nETag: \"v1\"\r\nContent-Type: text/plain\r\nContent-Length: 5\r\nConnection: close\r\n\r\nhello";
+            }
+            OutputStream outputStream = socket.getOutputStream();
+            outputStream.write(response.getBytes("US-ASCII"));
+            outputStream.flush();
+        }
+
+        private void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+}
@@ -0,0 +1,443 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.gohttp;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.WeakHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class CacheIdLocksTest {
+
+    @Test
+    public void testSameIdIsExclusive() throws Exception {
+        final CacheIdLocks cacheIdLocks = new CacheIdLocks();
+        final int threadCount = 16;
+        final int idCount = 8;
+        final int iterations = 2000;
+        final AtomicInteger[] holders = new AtomicInteger[idCount];
+        for(int w = 0; w < idCount; w++){
+            holders[w] = new AtomicInteger();
+        }
+        final AtomicReference<String> error = new AtomicReference<String>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for(int w = 0; w < threadCount; w++){
+            final Random random = new Random(w);
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for(int i = 0; i < iterations; i++){
+                        int id = random.nextInt(idCount);
+                        Lock lock = cacheIdLocks.getLock(new String("id" + id));
+                        lock.lock();
+                        try{
+                            if(holders[id].incrementAndGet() != 1){
+                                error.set("两个线程同时持有了id" + id + "的锁");
+                            }
+                            Thread.yield();
+                            holders[id].decrementAndGet();
+                        }finally {
+                            lock.unlock();
+                        }
+                    }
+                }
+            }));
+        }
+        for(Thread thread : threads){
+            thread.start();
+        }
+        for(Thread thread : threads){
+            thread.join();
+        }
+        Assert.assertNull(error.get());
+        Assert.assertEquals(0, cacheIdLocks.getActiveCount());
+        Assert.assertEquals(threadCount * iterations, cacheIdLocks.getAcquireCount());
+    }
+
+    @Test
+    public void testReentrantAndReleasedAfterFullUnlock(){
+        CacheIdLocks cacheIdLocks = new CacheIdLocks();
+        Lock lock = cacheIdLocks.getLock("a");
+        lock.lock();
+        lock.lock();
+        Assert.assertTrue(lock.tryLock());
+        Assert.assertEquals(1, cacheIdLocks.getActiveCount());
+        lock.unlock();
+        lock.unlock();
+        Assert.assertEquals(1, cacheIdLocks.getActiveCount());
+        lock.unlock();
+        Assert.assertEquals(0, cacheIdLocks.getActiveCount());
+        try{
+            lock.unlock();
+            Assert.fail("没有持有锁的时候解锁应该抛出异常");
+        }catch (IllegalMonitorStateException e){
+            // 预期的结果
+        }
+
+        // 解锁之后还可以再次加锁
+        lock.lock();
+        Assert.assertEquals(1, cacheIdLocks.getActiveCount());
+        lock.unlock();
+        Assert.assertEquals(0, cacheIdLocks.getActiveCount());
+    }
+
+    @Test
+    public void testWaitMetrics() throws Exception {
+        final CacheIdLocks cacheIdLocks = new CacheIdLocks();
+        Lock lock = cacheIdLocks.getLock("a");
+        lock.lock();
+        Assert.assertEquals(1, cacheIdLocks.getAcquireCount());
+        Assert.assertEquals(0, cacheIdLocks.getContendedCount());
+
+        // 另一个线程等待80毫秒之后才拿到锁
+        final CountDownLatch locked = new CountDownLatch(1);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Lock lock = cacheIdLocks.getLock("a");
+                lock.lock();
+                locked.countDown();
+                lock.unlock();
+            }
+        });
+        thread.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while(cacheIdLocks.getAcquireCount() < 2 && System.currentTimeMillis() < deadline){
+            Thread.sleep(1);
+        }
+        Thread.sleep(80);
+        Assert.assertEquals(1, locked.getCount());
+        lock.unlock();
+        Assert.assertTrue(locked.await(5, TimeUnit.SECONDS));
+        thread.join();
+
+        Assert.assertEquals(2, cacheIdLocks.getAcquireCount());
+        Assert.assertEquals(1, cacheIdLocks.getContendedCount());
+        Assert.assertTrue("maxWait " + cacheIdLocks.getMaxWaitNanos(), cacheIdLocks.getMaxWaitNanos() >= TimeUnit.MILLISECONDS.toNanos(70));
+        Assert.assertEquals(cacheIdLocks.getMaxWaitNanos(), cacheIdLocks.getTotalWaitNanos());
+
+        // tryLock失败不算加锁也不算等待
+        lock.lock();
+        final boolean[] tryLocked = new boolean[1];
+        Thread tryThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                tryLocked[0] = cacheIdLocks.getLock("a").tryLock();
+            }
+        });
+        tryThread.start();
+        tryThread.join();
+        lock.unlock();
+        Assert.assertFalse(tryLocked[0]);
+        Assert.assertEquals(3, cacheIdLocks.getAcquireCount());
+        Assert.assertEquals(1, cacheIdLocks.getContendedCount());
+        Assert.assertEquals(0, cacheIdLocks.getActiveCount());
+
+        cacheIdLocks.resetStats();
+        Assert.assertEquals(0, cacheIdLocks.getAcquireCount());
+        Assert.assertEquals(0, cacheIdLocks.getContendedCount());
+        Assert.assertEquals(0, cacheIdLocks.getTotalWaitNanos());
+        Assert.assertEquals(0, cacheIdLocks.getMaxWaitNanos());
+    }
+
+    @Test
+    public void testDifferentIdsDoNotWait() throws Exception {
+        final CacheIdLocks cacheIdLocks = new CacheIdLocks(1);
+        Lock lock = cacheIdLocks.getLock("busy");
+        lock.lock();
+        try{
+            // 即使所有缓存ID都落在同一段里，持有一个缓存ID的锁也不会阻塞其它缓存ID
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for(int w = 0; w < 1000; w++){
+                        Lock lock = cacheIdLocks.getLock("other" + w);
+                        lock.lock();
+                        lock.unlock();
+                    }
+                }
+            });
+            thread.start();
+            thread.join(5000);
+            Assert.assertFalse(thread.isAlive());
+        }finally {
+            lock.unlock();
+        }
+        Assert.assertEquals(0, cacheIdLocks.getContendedCount());
+    }
+
+    @Test
+    public void testReentrantLockCompatibility() throws Exception {
+        final CacheIdLocks cacheIdLocks = new CacheIdLocks();
+        ReentrantLock reentrantLock = cacheIdLocks.getReentrantLock("a");
+        Assert.assertFalse(reentrantLock.isLocked());
+        reentrantLock.lock();
+        reentrantLock.lock();
+        Assert.assertTrue(reentrantLock.isLocked());
+        Assert.assertTrue(reentrantLock.isHeldByCurrentThread());
+        Assert.assertEquals(2, reentrantLock.getHoldCount());
+
+        // 旧接口拿到的锁和新接口拿到的锁互斥
+        final boolean[] locked = new boolean[1];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Lock lock = cacheIdLocks.getLock("a");
+                locked[0] = lock.tryLock();
+                if(locked[0]){
+                    lock.unlock();
+                }
+            }
+        });
+        thread.start();
+        thread.join();
+        Assert.assertFalse("两个线程同时持有了同一个缓存ID的锁", locked[0]);
+
+        reentrantLock.unlock();
+        reentrantLock.unlock();
+        Assert.assertFalse(reentrantLock.isLocked());
+        Assert.assertFalse(reentrantLock.isHeldByCurrentThread());
+        Assert.assertEquals(0, reentrantLock.getHoldCount());
+        Assert.assertEquals(0, cacheIdLocks.getActiveCount());
+        try{
+            reentrantLock.unlock();
+            Assert.fail("没有持有锁的时候解锁应该抛出异常");
+        }catch (IllegalMonitorStateException e){
+            // 预期的结果
+        }
+    }
+
+    @Test
+    public void testCondition() throws Exception {
+        final CacheIdLocks cacheIdLocks = new CacheIdLocks();
+        try{
+            cacheIdLocks.getLock("a").newCondition();
+            Assert.fail("没有持有锁的时候不能创建Condition");
+        }catch (IllegalMonitorStateException e){
+            // 预期的结果
+        }
+
+        final Lock lock = cacheIdLocks.getLock("a");
+        final boolean[] ready = new boolean[1];
+        lock.lock();
+        final Condition condition = lock.newCondition();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Lock lock = cacheIdLocks.getLock("a");
+                lock.lock();
+                try{
+                    ready[0] = true;
+                    condition.signalAll();
+                }finally {
+                    lock.unlock();
+                }
+            }
+        });
+        thread.start();
+        try{
+            // await期间释放锁，另一个线程才能拿到同一个缓存ID的锁
+            long remainingNanos = TimeUnit.SECONDS.toNanos(5);
+            while(!ready[0] && remainingNanos > 0){
+                remainingNanos = condition.awaitNanos(remainingNanos);
+            }
+            Assert.assertTrue(ready[0]);
+        }finally {
+            lock.unlock();
+        }
+        thread.join();
+        Assert.assertEquals(0, cacheIdLocks.getActiveCount());
+    }
+
+    /**
+     * 基准测试：多个线程对随机的缓存ID加锁解锁，和原来的synchronized WeakHashMap以及固定分段的锁对比吞吐量；
+     * 另外模拟持有锁期间访问网络，统计不相关的缓存ID是否被迫等待
+     */
+    @Test
+    public void testContentionBenchmark() throws Exception {
+        final int threadCount = 8;
+        final int idCount = 1024;
+        final int iterations = 20000;
+        final String[] ids = new String[idCount];
+        for(int w = 0; w < idCount; w++){
+            ids[w] = "http://www.example.com/item/" + w;
+        }
+
+        final CacheIdLocks cacheIdLocks = new CacheIdLocks();
+        final WeakHashMapLocks weakHashMapLocks = new WeakHashMapLocks();
+        final StripedLocks stripedLocks = new StripedLocks(32);
+        LockFactory cacheIdLockFactory = new LockFactory() {
+            @Override
+            public Lock getLock(String cacheId) {
+                return cacheIdLocks.getLock(cacheId);
+            }
+        };
+
+        // 吞吐量：持有锁的时间很短
+        long weakHashMapNanos = runBenchmark(weakHashMapLocks, ids, threadCount, iterations, 0);
+        long stripedNanos = runBenchmark(stripedLocks, ids, threadCount, iterations, 0);
+        long cacheIdNanos = runBenchmark(cacheIdLockFactory, ids, threadCount, iterations, 0);
+        int totalOps = threadCount * iterations;
+        System.out.println("CacheIdLocks: throughput " + threadCount + " threads x " + iterations + " ops over " + idCount + " ids:"
+                + " synchronized WeakHashMap " + opsPerMillisecond(totalOps, weakHashMapNanos) + " ops/ms,"
+                + " 32 stripes " + opsPerMillisecond(totalOps, stripedNanos) + " ops/ms,"
+                + " CacheIdLocks " + opsPerMillisecond(totalOps, cacheIdNanos) + " ops/ms");
+        Assert.assertEquals(0, cacheIdLocks.getActiveCount());
+        Assert.assertEquals(totalOps, cacheIdLocks.getAcquireCount());
+
+        // 持有锁期间访问网络：每次持有2毫秒，不同线程使用不同的缓存ID，理论上不需要任何等待
+        cacheIdLocks.resetStats();
+        stripedLocks.resetStats();
+        String[] distinctIds = new String[threadCount * 16];
+        for(int w = 0; w < distinctIds.length; w++){
+            distinctIds[w] = "http://www.example.com/download/" + w;
+        }
+        runBenchmark(stripedLocks, distinctIds, threadCount, 50, 2);
+        runBenchmark(cacheIdLockFactory, distinctIds, threadCount, 50, 2);
+        System.out.println("CacheIdLocks: slow holders, distinct ids: 32 stripes contended " + stripedLocks.contendedCount.get()
+                + " times, waited " + TimeUnit.NANOSECONDS.toMillis(stripedLocks.totalWaitNanos.get()) + "ms;"
+                + " CacheIdLocks contended " + cacheIdLocks.getContendedCount()
+                + " times, waited " + TimeUnit.NANOSECONDS.toMillis(cacheIdLocks.getTotalWaitNanos()) + "ms");
+        Assert.assertEquals(0, cacheIdLocks.getContendedCount());
+        Assert.assertEquals(0, cacheIdLocks.getActiveCount());
+    }
+
+    /**
+     * @param holdMillis 持有锁的时间，为0时不停顿
+     * @return 总耗时，单位纳秒
+     */
+    private static long runBenchmark(final LockFactory lockFactory, final String[] ids, int threadCount, final int iterations, final long holdMillis) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for(int w = 0; w < threadCount; w++){
+            final int threadIndex = w;
+            final Random random = new Random(w);
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for(int i = 0; i < iterations; i++){
+                            // 持有锁的时间较长时每个线程只使用自己的缓存ID
+                            String cacheId = holdMillis > 0 ? ids[threadIndex * 16 + (i % 16)] : ids[random.nextInt(ids.length)];
+                            Lock lock = lockFactory.getLock(new String(cacheId));
+                            lock.lock();
+                            try{
+                                if(holdMillis > 0){
+                                    Thread.sleep(holdMillis);
+                                }
+                            }finally {
+                                lock.unlock();
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }));
+        }
+        for(Thread thread : threads){
+            thread.start();
+        }
+        long startTime = System.nanoTime();
+        start.countDown();
+        for(Thread thread : threads){
+            thread.join();
+        }
+        return System.nanoTime() - startTime;
+    }
+
+    private static long opsPerMillisecond(int ops, long nanos){
+        return ops * TimeUnit.MILLISECONDS.toNanos(1) / Math.max(nanos, 1);
+    }
+
+    private interface LockFactory {
+        Lock getLock(String cacheId);
+    }
+
+    /**
+     * 原来SyncManager的做法：synchronized方法加上synchronized WeakHashMap
+     */
+    private static class WeakHashMapLocks implements LockFactory {
+        private final Map<String, ReentrantLock> locks = Collections.synchronizedMap(new WeakHashMap<String, ReentrantLock>());
+
+        @Override
+        public synchronized Lock getLock(String cacheId) {
+            ReentrantLock lock = locks.get(cacheId);
+            if(lock == null){
+                lock = new ReentrantLock();
+                locks.put(cacheId, lock);
+            }
+            return lock;
+        }
+    }
+
+    /**
+     * 固定数量的分段锁，统计等待次数
+     */
+    private static class StripedLocks implements LockFactory {
+        private final ReentrantLock[] locks;
+        private final AtomicInteger contendedCount = new AtomicInteger();
+        private final AtomicLong totalWaitNanos = new AtomicLong();
+
+        StripedLocks(int count) {
+            locks = new ReentrantLock[count];
+            for(int w = 0; w < count; w++){
+                locks[w] = new ReentrantLock();
+            }
+        }
+
+        void resetStats(){
+            contendedCount.set(0);
+            totalWaitNanos.set(0);
+        }
+
+        @Override
+        public Lock getLock(String cacheId) {
+            final ReentrantLock lock = locks[(cacheId.hashCode() & 0x7fffffff) % locks.length];
+            return new ReentrantLock(){
+                @Override
+                public void lock() {
+                    if(!lock.tryLock()){
+                        long startTime = System.nanoTime();
+                        lock.lock();
+                        contendedCount.incrementAndGet();
+                        totalWaitNanos.addAndGet(System.nanoTime() - startTime);
+                    }
+                }
+
+                @Override
+                public void unlock() {
+                    lock.unlock();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.gohttp;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+
+public class CacheIndexTest {
+    private static final String RECORD_SUFFIX = ".cache";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String CACHE_ID_VERSION = "2";
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = TestHelper.createTempDirectory("cache_index");
+    }
+
+    @After
+    public void tearDown(){
+        TestHelper.delete(directory);
+    }
+
+    @Test
+    public void testJournalReplay() throws IOException {
+        ManualExecutor executor = new ManualExecutor();
+        CacheIndex cacheIndex = new CacheIndex(directory, RECORD_SUFFIX, TEMP_SUFFIX, CACHE_ID_VERSION, executor);
+        executor.runAll();
+        Assert.assertTrue(cacheIndex.isLoaded());
+
+        cacheIndex.put("a", 100, 300, 1000, 0);
+        cacheIndex.put("b", 200, 200, 2000, 9000);
+        cacheIndex.put("c id/中文", 50, 50, 3000, 0);
+        cacheIndex.put("a", 110, 330, 4000, 0);
+        cacheIndex.remove("b");
+        cacheIndex.recordAccess("a");
+        cacheIndex.recordAccess("a");
+        cacheIndex.close();
+        executor.runAll();
+        Assert.assertTrue(new File(directory, CacheIndex.JOURNAL_FILE).exists());
+
+        CacheIndex reloaded = new CacheIndex(directory, RECORD_SUFFIX, TEMP_SUFFIX, CACHE_ID_VERSION, executor);
+        executor.runAll();
+        Assert.assertEquals(2, reloaded.getCount());
+        Assert.assertNull(reloaded.get("b"));
+        CacheIndex.Entry entry = reloaded.get("a");
+        Assert.assertNotNull(entry);
+        Assert.assertEquals(110, entry.size);
+        Assert.assertEquals(330, entry.decodedSize);
+        Assert.assertEquals(4000, entry.storedTime);
+        Assert.assertEquals(2, entry.accessCount.get());
+        Assert.assertNotNull(reloaded.get("c id/中文"));
+        Assert.assertEquals(160, reloaded.getSize());
+        Assert.assertEquals(380, reloaded.getDecodedSize());
+        reloaded.close();
+        executor.runAll();
+    }
+
+    @Test
+    public void testIncompleteLastLineIsIgnored() throws IOException {
+        writeJournal("me.xiaopan.gohttp.CacheIndex\n1\n2\nPUT a 10 1000 0 10\nPUT b 20 2000 0 20\nPUT c 3");
+        ManualExecutor executor = new ManualExecutor();
+        CacheIndex cacheIndex = new CacheIndex(directory, RECORD_SUFFIX, TEMP_SUFFIX, CACHE_ID_VERSION, executor);
+        executor.runAll();
+        Assert.assertEquals(2, cacheIndex.getCount());
+        Assert.assertNull(cacheIndex.get("c"));
+        Assert.assertEquals(30, cacheIndex.getSize());
+    }
+
+    @Test
+    public void testOldJournalWithoutDecodedSize() throws IOException {
+        writeJournal("me.xiaopan.gohttp.CacheIndex\n1\n2\nPUT a 10 1000 0\n");
+        ManualExecutor executor = new ManualExecutor();
+        CacheIndex cacheIndex = new CacheIndex(directory, RECORD_SUFFIX, TEMP_SUFFIX, CACHE_ID_VERSION, executor);
+        executor.runAll();
+        Assert.assertEquals(10, cacheIndex.get("a").decodedSize);
+    }
+
+    @Test
+    public void testRebuildFromDirectoryWithoutJournal() throws IOException {
+        writeFile("x" + RECORD_SUFFIX, 123);
+        writeFile("y" + RECORD_SUFFIX, 45);
+        writeFile("not_a_record.txt", 10);
+        ManualExecutor executor = new ManualExecutor();
+        CacheIndex cacheIndex = new CacheIndex(directory, RECORD_SUFFIX, TEMP_SUFFIX, CACHE_ID_VERSION, executor);
+        executor.runAll();
+        Assert.assertEquals(2, cacheIndex.getCount());
+        Assert.assertEquals(123, cacheIndex.get("x").size);
+        Assert.assertEquals(168, cacheIndex.getSize());
+
+        // 重建之后会写出新的journal文件，下次启动直接使用
+        Assert.assertTrue(new File(directory, CacheIndex.JOURNAL_FILE).exists());
+        new File(directory, "x" + RECORD_SUFFIX).delete();
+        cacheIndex.close();
+        executor.runAll();
+        CacheIndex reloaded = new CacheIndex(directory, RECORD_SUFFIX, TEMP_SUFFIX, CACHE_ID_VERSION, executor);
+        executor.runAll();
+        Assert.assertEquals(2, reloaded.getCount());
+    }
+
+    @Test
+    public void testRebuildFromDirectoryWhenJournalIsCorrupted() throws IOException {
+        writeJournal("something else\n1\n\nPUT a 10 1000 0 10\n");
+        writeFile("z" + RECORD_SUFFIX, 77);
+        ManualExecutor executor = new ManualExecutor();
+        CacheIndex cacheIndex = new CacheIndex(directory, RECORD_SUFFIX, TEMP_SUFFIX, CACHE_ID_VERSION, executor);
+        executor.runAll();
+        Assert.assertEquals(1, cacheIndex.getCount());
+        Assert.assertNull(cacheIndex.get("a"));
+        Assert.assertEquals(77, cacheIndex.get("z").size);
+    }
+
+    @Test
+    public void testStaleCacheIdVersionIsDiscarded() throws IOException {
+        // 缓存ID版本不一致时原来的记录都不能再用，也不能根据缓存文件重建
+        writeJournal("me.xiaopan.gohttp.CacheIndex\n1\n\nPUT a 10 1000 0 10\n");
+        writeFile("a" + RECORD_SUFFIX, 10);
+        ManualExecutor executor = new ManualExecutor();
+        CacheIndex cacheIndex = new CacheIndex(directory, RECORD_SUFFIX, TEMP_SUFFIX, CACHE_ID_VERSION, executor);
+        executor.runAll();
+        Assert.assertTrue(cacheIndex.isLoaded());
+        Assert.assertEquals(0, cacheIndex.getCount());
+        Assert.assertEquals(0, cacheIndex.getSize());
+
+        // 重写之后的journal文件记录了新的版本，下次启动可以正常使用
+        cacheIndex.put("b", 20, 20, 2000, 0);
+        cacheIndex.close();
+        executor.runAll();
+        CacheIndex reloaded = new CacheIndex(directory, RECORD_SUFFIX, TEMP_SUFFIX, CACHE_ID_VERSION, executor);
+        executor.runAll();
+        Assert.assertEquals(1, reloaded.getCount());
+        Assert.assertEquals(20, reloaded.get("b").size);
+    }
+
+    @Test
+    public void testRemovedWhileLoadingIsNotRestored() throws IOException {
+        writeJournal("me.xiaopan.gohttp.CacheIndex\n1\n2\nPUT a 10 1000 0 10\nPUT b 20 2000 0 20\n");
+        ManualExecutor executor = new ManualExecutor();
+        CacheIndex cacheIndex = new CacheIndex(directory, RECORD_SUFFIX, TEMP_SUFFIX, CACHE_ID_VERSION, executor);
+        Assert.assertFalse(cacheIndex.isLoaded());
+
+        // 加载完成之前删除和写入的条目以内存中的为准
+        cacheIndex.remove("a");
+        cacheIndex.put("b", 25, 25, 5000, 0);
+        executor.runAll();
+        Assert.assertTrue(cacheIndex.isLoaded());
+        Assert.assertNull(cacheIndex.get("a"));
+        Assert.assertEquals(25, cacheIndex.get("b").size);
+        Assert.assertEquals(25, cacheIndex.getSize());
+
+        cacheIndex.close();
+        executor.runAll();
+        CacheIndex reloaded = new CacheIndex(directory, RECORD_SUFFIX, TEMP_SUFFIX, CACHE_ID_VERSION, executor);
+        executor.runAll();
+        Assert.assertNull(reloaded.get("a"));
+        Assert.assertEquals(25, reloaded.get("b").size);
+    }
+
+    @Test
+    public void testStaleTempFilesAreSwept() throws IOException {
+        File staleFile = writeFile("a" + RECORD_SUFFIX + ".1" + TEMP_SUFFIX, 10);
+        staleFile.setLastModified(System.currentTimeMillis() - 60 * 1000);
+        ManualExecutor executor = new ManualExecutor();
+        CacheIndex cacheIndex = new CacheIndex(directory, RECORD_SUFFIX, TEMP_SUFFIX, CACHE_ID_VERSION, executor);
+
+        // 索引创建之后才开始写入的临时文件不能被删除
+        File freshFile = writeFile("b" + RECORD_SUFFIX + ".2" + TEMP_SUFFIX, 10);
+        executor.runAll();
+        Assert.assertTrue(cacheIndex.isLoaded());
+        Assert.assertFalse(staleFile.exists());
+        Assert.assertTrue(freshFile.exists());
+    }
+
+    private void writeJournal(String content) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(new File(directory, CacheIndex.JOURNAL_FILE)), "UTF-8");
+        try{
+            writer.write(content);
+        }finally {
+            writer.close();
+        }
+    }
+
+    private File writeFile(String name, int length) throws IOException {
+        File file = new File(directory, name);
+        FileOutputStream outputStream = new FileOutputStream(file);
+        try{
+            outputStream.write(new byte[length]);
+        }finally {
+            outputStream.close();
+        }
+        return file;
+    }
+
+    /**
+     * 手动执行任务的Executor，用来控制索引加载和写入journal文件的时机
+     */
+    private static class ManualExecutor implements Executor {
+        private final LinkedList<Runnable> runnables = new LinkedList<Runnable>();
+
+        @Override
+        public void execute(Runnable runnable) {
+            runnables.add(runnable);
+        }
+
+        void runAll(){
+            Runnable runnable;
+            while((runnable = runnables.poll()) != null){
+                runnable.run();
+            }
+        }
+    }
+}
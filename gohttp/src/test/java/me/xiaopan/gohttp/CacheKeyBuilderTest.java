@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.gohttp;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * 期望值由MurmurHash3_x64_128（seed为0）的参考实现计算，h1和h2各以16位十六进制输出；
+ * 参考实现对"The quick brown fox jumps over the lazy dog"的结果为e34bbc7bbc071b6c 7a433ca9c49a9347，与公开的测试向量一致
+ */
+public class CacheKeyBuilderTest {
+
+    @Test
+    public void testEmptyInput(){
+        Assert.assertEquals("00000000000000000000000000000000", new CacheKeyBuilder().build());
+    }
+
+    @Test
+    public void testRawBytes(){
+        // put(int)按小端序写入，可以用来写入任意4字节对齐的数据：短于一个块、正好一个块、一个块加尾部、两个块
+        Assert.assertEquals("b35da7e69212a5ca8075f146ecf75346", putBytes(new CacheKeyBuilder(), sequence(12)).build());
+        Assert.assertEquals("444924b591903f30ab906456762fe845", putBytes(new CacheKeyBuilder(), sequence(16)).build());
+        Assert.assertEquals("c66d9022b62f500f1c050a6e34c31151", putBytes(new CacheKeyBuilder(), sequence(32)).build());
+        Assert.assertEquals("cd99481f9ee902c9695da1a38987b6e7", putBytes(new CacheKeyBuilder(), ascii("The quick brown fox jumps over the lazy dog.")).build());
+    }
+
+    @Test
+    public void testStrings(){
+        // 字符串先写入UTF-8字节数再写入UTF-8字节
+        Assert.assertEquals("cfa0f7ddd84c76bc589623161cf526f1", new CacheKeyBuilder().put("").build());
+        Assert.assertEquals("14925cf39c47a90ee9fc4b885db76d54", new CacheKeyBuilder().put("a").build());
+        Assert.assertEquals("e7254c2952fe5126a383511a6720ea07", new CacheKeyBuilder().put("http://www.example.com/api?id=1").build());
+        Assert.assertEquals("79f3bc2ebca4c0c5026a8339ae0f885b", new CacheKeyBuilder().put("GET").put("http://www.example.com/api?id=1").build());
+        Assert.assertEquals("859ff552d52aa10f96e1d8bb0fbe7e0d", new CacheKeyBuilder().put("中文参数").build());
+        Assert.assertEquals("ffc60abd955cc106ec62b9b8445c9857", new CacheKeyBuilder().put("\uD83D\uDE00").build());
+    }
+
+    @Test
+    public void testNullAndLoneSurrogate(){
+        // null写入的是长度-1，和空字符串不同
+        Assert.assertEquals("43da45eb34664641c715574845878f6c", new CacheKeyBuilder().put((String) null).build());
+
+        // 落单的代理字符和String.getBytes("UTF-8")一样按'?'处理
+        Assert.assertEquals("e1e587b8f089a2e27ab03333592969c1", new CacheKeyBuilder().put("\uD83D").build());
+        Assert.assertEquals(new CacheKeyBuilder().put("?").build(), new CacheKeyBuilder().put("\uDE00").build());
+    }
+
+    @Test
+    public void testNoAmbiguity(){
+        Assert.assertFalse(new CacheKeyBuilder().put("ab").put("c").build().equals(new CacheKeyBuilder().put("a").put("bc").build()));
+        Assert.assertFalse(new CacheKeyBuilder().put("").build().equals(new CacheKeyBuilder().put((String) null).build()));
+    }
+
+    private static byte[] sequence(int length){
+        byte[] bytes = new byte[length];
+        for(int w = 0; w < length; w++){
+            bytes[w] = (byte) w;
+        }
+        return bytes;
+    }
+
+    private static byte[] ascii(String string){
+        byte[] bytes = new byte[string.length()];
+        for(int w = 0; w < bytes.length; w++){
+            bytes[w] = (byte) string.charAt(w);
+        }
+        return bytes;
+    }
+
+    private static CacheKeyBuilder putBytes(CacheKeyBuilder builder, byte[] bytes){
+        Assert.assertEquals(0, bytes.length % 4);
+        for(int w = 0; w < bytes.length; w += 4){
+            builder.put((bytes[w] & 0xFF) | (bytes[w + 1] & 0xFF) << 8 | (bytes[w + 2] & 0xFF) << 16 | (bytes[w + 3] & 0xFF) << 24);
+        }
+        return builder;
+    }
+}
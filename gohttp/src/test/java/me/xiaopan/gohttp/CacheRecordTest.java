@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.gohttp;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicStatusLine;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import me.xiaopan.gohttp.httpclient.InflatingEntity;
+
+public class CacheRecordTest {
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = TestHelper.createTempDirectory("cache_record");
+    }
+
+    @After
+    public void tearDown(){
+        TestHelper.delete(directory);
+    }
+
+    @Test
+    public void testFileRoundTrip() throws IOException {
+        File file = new File(directory, "a.cache");
+        byte[] body = TestHelper.createBody(20000, 1);
+        Header[] headers = {new BasicHeader("Content-Type", "text/plain; charset=utf-8"), new BasicHeader("ETag", "\"v1\""), new BasicHeader("X-中文", "值")};
+        Header[] varyHeaders = {new BasicHeader("Accept-Language", "zh-CN")};
+        CacheFileEntity written = CacheRecord.write(file, new BasicStatusLine(HttpVersion.HTTP_1_1, 203, "Non-Authoritative"), headers, varyHeaders, false, false, new ByteArrayInputStream(body));
+        Assert.assertEquals(body.length, written.getContentLength());
+        Assert.assertEquals(file.length(), written.getOffset() + written.getContentLength());
+
+        List<Header> readVaryHeaders = new ArrayList<Header>();
+        HttpResponse httpResponse = CacheRecord.read(file, readVaryHeaders);
+        Assert.assertEquals(203, httpResponse.getStatusLine().getStatusCode());
+        Assert.assertEquals("Non-Authoritative", httpResponse.getStatusLine().getReasonPhrase());
+        Assert.assertEquals(HttpVersion.HTTP_1_1, httpResponse.getStatusLine().getProtocolVersion());
+        Assert.assertEquals(headers.length, httpResponse.getAllHeaders().length);
+        Assert.assertEquals("\"v1\"", httpResponse.getFirstHeader("ETag").getValue());
+        Assert.assertEquals("值", httpResponse.getFirstHeader("X-中文").getValue());
+        Assert.assertEquals(1, readVaryHeaders.size());
+        Assert.assertEquals("Accept-Language", readVaryHeaders.get(0).getName());
+        Assert.assertEquals("zh-CN", readVaryHeaders.get(0).getValue());
+        Assert.assertEquals("text/plain; charset=utf-8", httpResponse.getEntity().getContentType().getValue());
+        Assert.assertEquals(body.length, httpResponse.getEntity().getContentLength());
+        Assert.assertArrayEquals(body, TestHelper.readFully(httpResponse.getEntity().getContent()));
+
+        // 读取过的实体可以重复读取
+        Assert.assertArrayEquals(body, TestHelper.readFully(httpResponse.getEntity().getContent()));
+    }
+
+    @Test
+    public void testMemoryRoundTrip() throws IOException {
+        byte[] body = TestHelper.createBody(100, 2);
+        byte[] record = CacheRecord.encode(new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK"), new Header[]{new BasicHeader("Content-Type", "application/json")}, null, body, 80);
+        HttpResponse httpResponse = CacheRecord.read(record, null);
+        Assert.assertEquals(200, httpResponse.getStatusLine().getStatusCode());
+        Assert.assertEquals("application/json", httpResponse.getEntity().getContentType().getValue());
+        byte[] expected = new byte[80];
+        System.arraycopy(body, 0, expected, 0, expected.length);
+        Assert.assertArrayEquals(expected, TestHelper.readFully(httpResponse.getEntity().getContent()));
+    }
+
+    @Test
+    public void testFileAndMemoryFormatsAreTheSame() throws IOException {
+        File file = new File(directory, "b.cache");
+        byte[] body = TestHelper.createBody(300, 3);
+        BasicStatusLine statusLine = new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK");
+        Header[] headers = {new BasicHeader("Content-Type", "text/html")};
+        CacheRecord.write(file, statusLine, headers, null, false, false, new ByteArrayInputStream(body));
+        byte[] record = CacheRecord.encode(statusLine, headers, null, body, body.length);
+        Assert.assertArrayEquals(record, readFile(file));
+    }
+
+    @Test
+    public void testEncodedBody() throws IOException {
+        byte[] body = TestHelper.createBody(5000, 4);
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        GZIPOutputStream gzipOutputStream = new GZIPOutputStream(byteArrayOutputStream);
+        gzipOutputStream.write(body);
+        gzipOutputStream.close();
+        byte[] gzipBody = byteArrayOutputStream.toByteArray();
+
+        File file = new File(directory, "c.cache");
+        Header[] headers = {new BasicHeader("Content-Type", "text/plain"), new BasicHeader("Content-Encoding", "gzip")};
+        CacheFileEntity written = CacheRecord.write(file, new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK"), headers, null, true, false, new ByteArrayInputStream(gzipBody));
+        Assert.assertTrue(written.isEncoded());
+        Assert.assertEquals(gzipBody.length, written.getContentLength());
+        Assert.assertEquals(body.length, written.getDecodedLength());
+
+        HttpResponse httpResponse = CacheRecord.read(file, null);
+        Assert.assertTrue(httpResponse.getEntity() instanceof InflatingEntity);
+        Assert.assertEquals(body.length, httpResponse.getEntity().getContentLength());
+        Assert.assertArrayEquals(body, TestHelper.readFully(httpResponse.getEntity().getContent()));
+    }
+
+    @Test
+    public void testUnfinishedRecordIsRejected() throws IOException {
+        // 没有调用finish()的记录没有回填响应体长度
+        File file = new File(directory, "d.cache");
+        CacheRecord.BodyOutputStream outputStream = CacheRecord.open(file, new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK"), new Header[0], null, false, false);
+        outputStream.write(TestHelper.createBody(100, 5));
+        outputStream.close();
+        assertReadFails(file);
+    }
+
+    @Test
+    public void testTruncatedRecordIsRejected() throws IOException {
+        File file = writeRecord("e.cache", 1000);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try{
+            randomAccessFile.setLength(file.length() - 1);
+        }finally {
+            randomAccessFile.close();
+        }
+        assertReadFails(file);
+    }
+
+    @Test
+    public void testCorruptedMetaIsRejected() throws IOException {
+        File file = writeRecord("f.cache", 1000);
+
+        // 修改元数据中的一个字节，长度不变，只能靠CRC32发现
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try{
+            randomAccessFile.seek(CacheRecord.FIXED_HEAD_LENGTH + 6);
+            int oneByte = randomAccessFile.read();
+            randomAccessFile.seek(CacheRecord.FIXED_HEAD_LENGTH + 6);
+            randomAccessFile.write(oneByte ^ 0x01);
+        }finally {
+            randomAccessFile.close();
+        }
+        assertReadFails(file);
+    }
+
+    @Test
+    public void testBadMagicIsRejected() throws IOException {
+        File file = writeRecord("g.cache", 10);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try{
+            randomAccessFile.writeInt(0);
+        }finally {
+            randomAccessFile.close();
+        }
+        assertReadFails(file);
+    }
+
+    @Test
+    public void testCorruptedMemoryRecordIsRejected() throws IOException {
+        byte[] record = CacheRecord.encode(new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK"), new Header[]{new BasicHeader("ETag", "\"1\"")}, null, new byte[10], 10);
+        record[CacheRecord.FIXED_HEAD_LENGTH + 2] ^= 0x10;
+        try{
+            CacheRecord.read(record, null);
+            Assert.fail("损坏的记录不应该被读取");
+        }catch (IOException e){
+            // 预期的结果
+        }
+
+        byte[] truncated = new byte[record.length - 3];
+        System.arraycopy(record, 0, truncated, 0, truncated.length);
+        try{
+            CacheRecord.read(truncated, null);
+            Assert.fail("不完整的记录不应该被读取");
+        }catch (IOException e){
+            // 预期的结果
+        }
+    }
+
+    private File writeRecord(String name, int bodyLength) throws IOException {
+        File file = new File(directory, name);
+        CacheRecord.write(file, new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK"), new Header[]{new BasicHeader("Content-Type", "text/plain")}, null, false, false, new ByteArrayInputStream(TestHelper.createBody(bodyLength, 6)));
+        return file;
+    }
+
+    private static void assertReadFails(File file){
+        try{
+            HttpResponse httpResponse = CacheRecord.read(file, null);
+            HttpRequestHandler.releaseConnect(httpResponse);
+            Assert.fail("不完整或损坏的记录不应该被读取：" + file.getName());
+        }catch (IOException e){
+            // 预期的结果
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        return TestHelper.readFully(new FileInputStream(file));
+    }
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.gohttp;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 多线程下的DefaultCacheManager，重点是从网络读取大响应的时候不能阻塞其它缓存的查询和写入
+ */
+public class DefaultCacheManagerConcurrencyTest {
+    private File directory;
+    private DefaultCacheManager cacheManager;
+    private GoHttp goHttp;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = TestHelper.createTempDirectory("default_cache");
+        cacheManager = new DefaultCacheManager();
+        goHttp = TestHelper.createGoHttp(cacheManager, directory);
+    }
+
+    @After
+    public void tearDown(){
+        TestHelper.delete(directory);
+    }
+
+    @Test
+    public void testSaveDoesNotWaitForSlowSaveOfSameId() throws Exception {
+        final HttpRequest slowRequest = TestHelper.createRequest(goHttp, "http://www.example.com/same", new CacheConfig());
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final byte[] slowBody = TestHelper.createBody(256 * 1024, 1);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread slowWriter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    cacheManager.saveHttpResponseToCache(slowRequest, createStreamingResponse(new BlockingInputStream(slowBody, started, release)));
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            }
+        });
+        slowWriter.start();
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // 同一个缓存ID的响应体还在从网络读取，另一个请求写入缓存不需要等它
+        byte[] fastBody = TestHelper.createBody(100, 2);
+        HttpRequest fastRequest = TestHelper.createRequest(goHttp, "http://www.example.com/same", new CacheConfig());
+        long startTime = System.nanoTime();
+        cacheManager.saveHttpResponseToCache(fastRequest, TestHelper.createResponse(fastBody, "text/plain"));
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+        Assert.assertTrue(slowWriter.isAlive());
+        Assert.assertTrue("写入耗时：" + elapsedMillis + "ms", elapsedMillis < 1000);
+        Assert.assertArrayEquals(fastBody, readCache("http://www.example.com/same"));
+
+        // 慢的写入完成之后覆盖前面的缓存
+        release.countDown();
+        slowWriter.join(10000);
+        Assert.assertNull(error.get());
+        Assert.assertArrayEquals(slowBody, readCache("http://www.example.com/same"));
+        assertNoTempFiles();
+    }
+
+    /**
+     * 基准测试：几个线程以限速的方式写入大响应，同时其它线程查询、读取和写入小响应，统计查询和写入小响应的延迟
+     */
+    @Test
+    public void testLookupLatencyWhileWritingLargeEntries() throws Exception {
+        final int smallCount = 200;
+        for(int w = 0; w < smallCount; w++){
+            save("http://www.example.com/small/" + w, TestHelper.createBody(512, w));
+        }
+
+        final int writerCount = 4;
+        final int readerCount = 4;
+        final int largeSize = 2 * 1024 * 1024;
+        final int writeRounds = 3;
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        final List<long[]> writerDurations = new ArrayList<long[]>();
+        final List<LatencyRecorder> lookupRecorders = new ArrayList<LatencyRecorder>();
+        final List<LatencyRecorder> smallWriteRecorders = new ArrayList<LatencyRecorder>();
+        final CountDownLatch writersDone = new CountDownLatch(writerCount);
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for(int w = 0; w < writerCount; w++){
+            final int writerIndex = w;
+            final long[] durations = new long[writeRounds];
+            writerDurations.add(durations);
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        byte[] body = TestHelper.createBody(largeSize, writerIndex);
+                        for(int round = 0; round < writeRounds; round++){
+                            // 每64KB停顿20毫秒，模拟从网络读取
+                            long startTime = System.nanoTime();
+                            HttpRequest httpRequest = TestHelper.createRequest(goHttp, "http://www.example.com/large/" + writerIndex, new CacheConfig());
+                            cacheManager.saveHttpResponseToCache(httpRequest, createStreamingResponse(new ThrottledInputStream(body, 64 * 1024, 20)));
+                            durations[round] = System.nanoTime() - startTime;
+                        }
+                    } catch (Throwable e) {
+                        error.set(e);
+                    } finally {
+                        writersDone.countDown();
+                    }
+                }
+            }, "writer-" + w));
+        }
+
+        for(int w = 0; w < readerCount; w++){
+            final LatencyRecorder lookupRecorder = new LatencyRecorder();
+            final LatencyRecorder smallWriteRecorder = new LatencyRecorder();
+            lookupRecorders.add(lookupRecorder);
+            smallWriteRecorders.add(smallWriteRecorder);
+            final Random random = new Random(w);
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while(writing.get()){
+                            int index = random.nextInt(smallCount);
+                            String url = "http://www.example.com/small/" + index;
+                            long startTime = System.nanoTime();
+                            byte[] body = readCache(url);
+                            lookupRecorder.record(System.nanoTime() - startTime);
+                            Assert.assertNotNull(body);
+                            Assert.assertEquals(512, body.length);
+
+                            if(random.nextInt(10) == 0){
+                                startTime = System.nanoTime();
+                                save(url, TestHelper.createBody(512, index));
+                                smallWriteRecorder.record(System.nanoTime() - startTime);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        error.set(e);
+                    }
+                }
+            }, "reader-" + w));
+        }
+
+        for(Thread thread : threads){
+            thread.start();
+        }
+        Assert.assertTrue(writersDone.await(60, TimeUnit.SECONDS));
+        writing.set(false);
+        for(Thread thread : threads){
+            thread.join(10000);
+        }
+        if(error.get() != null){
+            throw new AssertionError(error.get());
+        }
+
+        LatencyRecorder lookups = LatencyRecorder.merge(lookupRecorders);
+        LatencyRecorder smallWrites = LatencyRecorder.merge(smallWriteRecorders);
+        long minWriterMillis = Long.MAX_VALUE;
+        for(long[] durations : writerDurations){
+            for(long duration : durations){
+                minWriterMillis = Math.min(minWriterMillis, TimeUnit.NANOSECONDS.toMillis(duration));
+            }
+        }
+        System.out.println("DefaultCacheManager: " + writerCount + " writers x " + writeRounds + " x " + (largeSize / 1024) + "KB, fastest large write " + minWriterMillis + "ms");
+        System.out.println("DefaultCacheManager: lookups " + lookups);
+        System.out.println("DefaultCacheManager: small writes " + smallWrites);
+
+        // 查询和写入小响应都不应该等待大响应的网络读取
+        Assert.assertTrue(lookups.count() > 0);
+        Assert.assertTrue(smallWrites.count() > 0);
+        Assert.assertTrue("lookup p99 " + lookups.percentileMillis(0.99) + "ms", lookups.percentileMillis(0.99) < minWriterMillis / 2);
+        Assert.assertTrue("small write p99 " + smallWrites.percentileMillis(0.99) + "ms", smallWrites.percentileMillis(0.99) < minWriterMillis / 2);
+        for(int w = 0; w < writerCount; w++){
+            Assert.assertArrayEquals(TestHelper.createBody(largeSize, w), readCache("http://www.example.com/large/" + w));
+        }
+        assertNoTempFiles();
+    }
+
+    private void save(String url, byte[] body) throws IOException {
+        HttpResponse httpResponse = TestHelper.createResponse(body, "application/octet-stream");
+        cacheManager.saveHttpResponseToCache(TestHelper.createRequest(goHttp, url, new CacheConfig()), httpResponse);
+        TestHelper.readFully(httpResponse.getEntity().getContent());
+    }
+
+    private byte[] readCache(String url) throws IOException {
+        HttpResponse httpResponse = cacheManager.readHttpResponseFromCache(TestHelper.createRequest(goHttp, url, new CacheConfig()));
+        return httpResponse != null ? TestHelper.readFully(httpResponse.getEntity().getContent()) : null;
+    }
+
+    private void assertNoTempFiles(){
+        File[] files = cacheManager.getCacheDirectory(goHttp).listFiles();
+        Assert.assertNotNull(files);
+        for(File file : files){
+            Assert.assertFalse(file.getName(), file.getName().endsWith(".tmp"));
+        }
+    }
+
+    private static HttpResponse createStreamingResponse(InputStream inputStream){
+        HttpResponse httpResponse = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        httpResponse.setEntity(new InputStreamEntity(inputStream, -1));
+        return httpResponse;
+    }
+
+    /**
+     * 每读取一定的字节数停顿一下的输入流
+     */
+    private static class ThrottledInputStream extends InputStream {
+        private final byte[] bytes;
+        private final int chunkSize;
+        private final long pauseMillis;
+        private int position;
+
+        ThrottledInputStream(byte[] bytes, int chunkSize, long pauseMillis) {
+            this.bytes = bytes;
+            this.chunkSize = chunkSize;
+            this.pauseMillis = pauseMillis;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] oneByte = new byte[1];
+            return read(oneByte, 0, 1) == -1 ? -1 : oneByte[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if(position >= bytes.length){
+                return -1;
+            }
+            if(position % chunkSize == 0 && position > 0){
+                try {
+                    Thread.sleep(pauseMillis);
+                } catch (InterruptedException e) {
+                    throw new IOException("interrupted");
+                }
+            }
+            int number = Math.min(count, Math.min(bytes.length - position, chunkSize - position % chunkSize));
+            System.arraycopy(bytes, position, buffer, offset, number);
+            position += number;
+            return number;
+        }
+    }
+
+    /**
+     * 读取一部分之后停下来，直到放行才继续读取的输入流
+     */
+    private static class BlockingInputStream extends InputStream {
+        private final byte[] bytes;
+        private final CountDownLatch started;
+        private final CountDownLatch release;
+        private int position;
+
+        BlockingInputStream(byte[] bytes, CountDownLatch started, CountDownLatch release) {
+            this.bytes = bytes;
+            this.started = started;
+            this.release = release;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] oneByte = new byte[1];
+            return read(oneByte, 0, 1) == -1 ? -1 : oneByte[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if(position >= bytes.length){
+                return -1;
+            }
+            if(position > 0 && release.getCount() > 0){
+                started.countDown();
+                try {
+                    if(!release.await(10, TimeUnit.SECONDS)){
+                        throw new IOException("timeout");
+                    }
+                } catch (InterruptedException e) {
+                    throw new IOException("interrupted");
+                }
+            }
+            int number = Math.min(count, bytes.length - position);
+            System.arraycopy(bytes, position, buffer, offset, number);
+            position += number;
+            return number;
+        }
+    }
+
+    /**
+     * 延迟统计
+     */
+    private static class LatencyRecorder {
+        private long[] nanos = new long[1024];
+        private int count;
+
+        void record(long elapsedNanos){
+            if(count == nanos.length){
+                nanos = Arrays.copyOf(nanos, count * 2);
+            }
+            nanos[count++] = elapsedNanos;
+        }
+
+        int count(){
+            return count;
+        }
+
+        long percentileMillis(double percentile){
+            if(count == 0){
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(nanos, count);
+            Arrays.sort(sorted);
+            return TimeUnit.NANOSECONDS.toMillis(sorted[Math.min(count - 1, (int) (count * percentile))]);
+        }
+
+        static LatencyRecorder merge(List<LatencyRecorder> recorders){
+            LatencyRecorder merged = new LatencyRecorder();
+            for(LatencyRecorder recorder : recorders){
+                for(int w = 0; w < recorder.count; w++){
+                    merged.record(recorder.nanos[w]);
+                }
+            }
+            return merged;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + ", p50=" + percentileMillis(0.5) + "ms, p99=" + percentileMillis(0.99) + "ms, max=" + percentileMillis(1) + "ms";
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.gohttp;
+
+import org.apache.http.HttpResponse;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+public class DefaultCacheManagerTest {
+    private File directory;
+    private DefaultCacheManager cacheManager;
+    private GoHttp goHttp;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = TestHelper.createTempDirectory("default_cache");
+        cacheManager = new DefaultCacheManager();
+        goHttp = TestHelper.createGoHttp(cacheManager, directory);
+    }
+
+    @After
+    public void tearDown(){
+        TestHelper.delete(directory);
+    }
+
+    @Test
+    public void testCorruptedCacheIsDiscarded() throws IOException {
+        HttpRequest httpRequest = save("http://www.example.com/corrupted", TestHelper.createBody(1000, 1));
+        File cacheFile = getCacheFile(httpRequest);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(cacheFile, "rw");
+        try{
+            randomAccessFile.setLength(cacheFile.length() - 1);
+        }finally {
+            randomAccessFile.close();
+        }
+
+        Assert.assertNull(cacheManager.readHttpResponseFromCache(httpRequest));
+        Assert.assertFalse(cacheFile.exists());
+        Assert.assertFalse(cacheManager.isHasAvailableCache(httpRequest));
+    }
+
+    @Test
+    public void testMissingCacheOnlyRemovesIndex() throws IOException {
+        HttpRequest httpRequest = save("http://www.example.com/missing", TestHelper.createBody(1000, 2));
+        File cacheFile = getCacheFile(httpRequest);
+        Assert.assertTrue(cacheFile.delete());
+
+        Assert.assertNull(cacheManager.readHttpResponseFromCache(httpRequest));
+        Assert.assertFalse(cacheManager.isHasAvailableCache(httpRequest));
+
+        // 之后再写入的缓存不受影响
+        byte[] body = TestHelper.createBody(500, 3);
+        save("http://www.example.com/missing", body);
+        HttpResponse httpResponse = cacheManager.readHttpResponseFromCache(httpRequest);
+        Assert.assertNotNull(httpResponse);
+        Assert.assertArrayEquals(body, TestHelper.readFully(httpResponse.getEntity().getContent()));
+    }
+
+    @Test
+    public void testOrphanFilesAreSweptAfterIndexLoads() throws Exception {
+        // 缓存ID生成方式改变之前留下的journal文件、缓存文件和旧版缓存文件
+        File cacheDirectory = cacheManager.getCacheDirectory(goHttp);
+        Assert.assertTrue(cacheDirectory.mkdirs());
+        writeFile(new File(cacheDirectory, CacheIndex.JOURNAL_FILE), "me.xiaopan.gohttp.CacheIndex\n1\n\nPUT 0123456789abcdef0123456789abcdef 1 1000 0 1\n");
+        File[] staleFiles = new File[]{
+                new File(cacheDirectory, "0123456789abcdef0123456789abcdef.cache"),
+                new File(cacheDirectory, "fedcba9876543210fedcba9876543210.status_line"),
+                new File(cacheDirectory, "fedcba9876543210fedcba9876543210.headers"),
+                new File(cacheDirectory, "fedcba9876543210fedcba9876543210.entity"),
+        };
+        for(File staleFile : staleFiles){
+            writeFile(staleFile, "x");
+        }
+        File otherFile = new File(cacheDirectory, "other.txt");
+        writeFile(otherFile, "x");
+
+        byte[] body = TestHelper.createBody(500, 4);
+        HttpRequest httpRequest = save("http://www.example.com/sweep", body);
+
+        // 索引加载完成之后在后台线程中删除
+        long deadline = System.currentTimeMillis() + 5000;
+        for(File staleFile : staleFiles){
+            while(staleFile.exists() && System.currentTimeMillis() < deadline){
+                Thread.sleep(5);
+            }
+            Assert.assertFalse("没有删除无主文件：" + staleFile.getName(), staleFile.exists());
+        }
+        Assert.assertTrue(otherFile.exists());
+        Assert.assertEquals(1, cacheManager.getCount());
+
+        // 新写入的缓存不受影响
+        Assert.assertTrue(getCacheFile(httpRequest).exists());
+        HttpResponse httpResponse = cacheManager.readHttpResponseFromCache(httpRequest);
+        Assert.assertNotNull(httpResponse);
+        Assert.assertArrayEquals(body, TestHelper.readFully(httpResponse.getEntity().getContent()));
+    }
+
+    private void writeFile(File file, String content) throws IOException {
+        FileOutputStream outputStream = new FileOutputStream(file);
+        try{
+            outputStream.write(content.getBytes("UTF-8"));
+        }finally {
+            outputStream.close();
+        }
+    }
+
+    private HttpRequest save(String url, byte[] body) throws IOException {
+        HttpRequest httpRequest = TestHelper.createRequest(goHttp, url, new CacheConfig());
+        HttpResponse httpResponse = TestHelper.createResponse(body, "text/plain");
+        cacheManager.saveHttpResponseToCache(httpRequest, httpResponse);
+        TestHelper.readFully(httpResponse.getEntity().getContent());
+        return httpRequest;
+    }
+
+    private File getCacheFile(HttpRequest httpRequest){
+        return new File(cacheManager.getCacheDirectory(goHttp), httpRequest.getCacheConfig().getId() + ".cache");
+    }
+}
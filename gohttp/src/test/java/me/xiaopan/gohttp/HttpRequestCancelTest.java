@@ -0,0 +1,374 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.gohttp;
+
+import android.os.Handler;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * 取消请求之后线程和连接能不能马上释放，默认的读取超时是20秒，不中断连接的话要等到超时才会释放
+ */
+public class HttpRequestCancelTest {
+    private static final long RECLAIM_LIMIT_MILLIS = 2000;
+
+    private StallingServer server;
+    private GoHttp goHttp;
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new StallingServer();
+        directory = TestHelper.createTempDirectory("cancel");
+        goHttp = new DirectGoHttp();
+        goHttp.setCacheManager(new DefaultCacheManager());
+        goHttp.getCacheManager().setCacheDirectory(directory.getPath());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+        TestHelper.delete(directory);
+    }
+
+    @Test
+    public void testCancelWhileWaitingForResponse() throws Exception {
+        // 服务器收到请求之后一直不响应，请求线程阻塞在HttpClient.execute()中
+        server.respond = false;
+        HttpRequestFuture future = new HttpHelper(goHttp, server.getUrl(), new StringHttpResponseHandler()).go();
+        Assert.assertTrue(server.accepted.await(5, TimeUnit.SECONDS));
+        awaitActiveCount(1);
+
+        long startTime = System.nanoTime();
+        future.cancel(false);
+        long cancelNanos = System.nanoTime() - startTime;
+        long closedMillis = awaitClosed(startTime);
+        long reclaimedMillis = awaitReclaimed(startTime);
+        System.out.println("HttpRequestCancel: waiting for response, cancel() returned in " + TimeUnit.NANOSECONDS.toMicros(cancelNanos)
+                + "us, connection closed after " + closedMillis + "ms, thread and pooled connection reclaimed after " + reclaimedMillis + "ms");
+        Assert.assertTrue("连接关闭用了" + closedMillis + "ms", closedMillis < RECLAIM_LIMIT_MILLIS);
+        Assert.assertTrue("线程和连接释放用了" + reclaimedMillis + "ms", reclaimedMillis < RECLAIM_LIMIT_MILLIS);
+        Assert.assertTrue(future.isFinished());
+    }
+
+    @Test
+    public void testCancelWhileReadingSlowBody() throws Exception {
+        // 服务器返回响应头之后每50毫秒才发送一个字节
+        server.respond = true;
+        HttpRequestFuture future = new HttpHelper(goHttp, server.getUrl(), new StringHttpResponseHandler()).go();
+        Assert.assertTrue(server.bodyStarted.await(5, TimeUnit.SECONDS));
+        awaitActiveCount(1);
+
+        long startTime = System.nanoTime();
+        future.cancel(true);
+        long cancelNanos = System.nanoTime() - startTime;
+        long closedMillis = awaitClosed(startTime);
+        long reclaimedMillis = awaitReclaimed(startTime);
+        System.out.println("HttpRequestCancel: reading body, cancel() returned in " + TimeUnit.NANOSECONDS.toMicros(cancelNanos)
+                + "us, connection closed after " + closedMillis + "ms, thread and pooled connection reclaimed after " + reclaimedMillis + "ms");
+        Assert.assertTrue("连接关闭用了" + closedMillis + "ms", closedMillis < RECLAIM_LIMIT_MILLIS);
+        Assert.assertTrue("线程和连接释放用了" + reclaimedMillis + "ms", reclaimedMillis < RECLAIM_LIMIT_MILLIS);
+    }
+
+    @Test
+    public void testCancelWhileReadingBodyFinishesRequest() throws Exception {
+        // 中断读取之后释放连接不能抛出异常，否则请求不会结束，监听器和ResultFuture都收不到结果，缓存ID的锁也不会释放
+        server.respond = true;
+        RecordingListener listener = new RecordingListener();
+        ConsumedAfterReadHandler responseHandler = new ConsumedAfterReadHandler();
+        HttpRequestFuture future = new HttpHelper(goHttp, server.getUrl(), responseHandler, listener).cacheConfig(new CacheConfig().setStreamingWrite(true)).go();
+        HttpRequest httpRequest = future.getHttpRequest();
+        Assert.assertTrue(responseHandler.reading.await(5, TimeUnit.SECONDS));
+
+        future.cancel(true);
+        Assert.assertTrue("没有回调onCanceled", listener.canceled.await(5, TimeUnit.SECONDS));
+        awaitReclaimed(System.nanoTime());
+        Assert.assertTrue(future.isFinished());
+        Assert.assertEquals(0, listener.failedCount);
+
+        Lock lock = goHttp.getSyncManager().getCacheIdLock(httpRequest.getCacheConfig().getId());
+        Assert.assertTrue("缓存ID的锁没有释放", lock.tryLock(5, TimeUnit.SECONDS));
+        lock.unlock();
+    }
+
+    @Test
+    public void testReleaseConsumedEntity() {
+        // Android自带的HttpCore在内容被读取过之后再获取内容会抛出IllegalStateException
+        HttpResponse httpResponse = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        httpResponse.setEntity(new ConsumedEntity());
+        HttpRequestHandler.releaseConnect(httpResponse);
+    }
+
+    @Test
+    public void testCanceledResultFutureFinishesRequest() throws Exception {
+        // 直接取消请求，ResultFuture要等请求处理完取消之后才会结束
+        server.respond = true;
+        ConsumedAfterReadHandler responseHandler = new ConsumedAfterReadHandler();
+        ResultFuture<String> resultFuture = new HttpHelper(goHttp, server.getUrl(), responseHandler).cacheConfig(new CacheConfig().setStreamingWrite(true)).submit();
+        Assert.assertTrue(responseHandler.reading.await(5, TimeUnit.SECONDS));
+
+        resultFuture.getHttpRequest().cancel(true);
+        try{
+            resultFuture.get(5, TimeUnit.SECONDS);
+            Assert.fail("取消之后不应该有结果");
+        }catch (CancellationException e){
+            // 已取消
+        }
+        awaitReclaimed(System.nanoTime());
+        Assert.assertTrue(resultFuture.getHttpRequest().isFinished());
+    }
+
+    @Test
+    public void testAbortDoesNotRunOnCancelingThread() throws Exception {
+        server.respond = false;
+        HttpRequestFuture future = new HttpHelper(goHttp, server.getUrl(), new StringHttpResponseHandler()).go();
+        Assert.assertTrue(server.accepted.await(5, TimeUnit.SECONDS));
+        awaitActiveCount(1);
+
+        // 关闭连接是在GoHttp-Abort线程中进行的，不会阻塞调用cancel()的线程
+        future.cancel(false);
+        awaitClosed(System.nanoTime());
+        Assert.assertNotNull("没有在后台线程中中断连接", server.closingThreadName);
+    }
+
+    private void awaitActiveCount(int count) throws InterruptedException {
+        RequestExecutor executor = (RequestExecutor) goHttp.getExecutorService();
+        long deadline = System.currentTimeMillis() + 5000;
+        while(executor.getActiveCount() != count && System.currentTimeMillis() < deadline){
+            Thread.sleep(1);
+        }
+        Assert.assertEquals(count, executor.getActiveCount());
+    }
+
+    /**
+     * @return 从开始取消到服务器发现连接关闭的时间
+     */
+    private long awaitClosed(long startTime) throws InterruptedException {
+        Assert.assertTrue("连接一直没有关闭", server.closed.await(10, TimeUnit.SECONDS));
+        return TimeUnit.NANOSECONDS.toMillis(server.closedTime - startTime);
+    }
+
+    /**
+     * @return 从开始取消到请求线程空闲并且连接池中没有连接的时间
+     */
+    private long awaitReclaimed(long startTime) throws InterruptedException {
+        RequestExecutor executor = (RequestExecutor) goHttp.getExecutorService();
+        ThreadSafeClientConnManager connectionManager = (ThreadSafeClientConnManager) goHttp.getHttpClientManager().getHttpClient().getConnectionManager();
+        long deadline = System.currentTimeMillis() + 10000;
+        while((executor.getActiveCount() > 0 || connectionManager.getConnectionsInPool() > 0) && System.currentTimeMillis() < deadline){
+            Thread.sleep(1);
+        }
+        Assert.assertEquals(0, executor.getActiveCount());
+        Assert.assertEquals(0, connectionManager.getConnectionsInPool());
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+    }
+
+    /**
+     * 直接在当前线程回调监听器的GoHttp，测试环境中没有主线程
+     */
+    private static class DirectGoHttp extends GoHttp {
+        private final Handler handler = new Handler(){
+            @Override
+            public boolean post(Runnable runnable) {
+                runnable.run();
+                return true;
+            }
+        };
+
+        private DirectGoHttp() {
+            super(null);
+        }
+
+        @Override
+        Handler getHandler() {
+            return handler;
+        }
+    }
+
+    /**
+     * 内容已经被读取过的实体，和Android自带的HttpCore一样，再获取内容的时候抛出IllegalStateException
+     */
+    private static class ConsumedEntity extends BasicHttpEntity {
+        @Override
+        public InputStream getContent() {
+            throw new IllegalStateException("Content has been consumed");
+        }
+    }
+
+    /**
+     * 读取之后把响应实体换成已经被读取过的实体，模拟Android自带的HttpCore中流式实体的内容只能获取一次
+     */
+    private static class ConsumedAfterReadHandler extends StringHttpResponseHandler {
+        private final CountDownLatch reading = new CountDownLatch(1);
+
+        @Override
+        public Object handleResponse(HttpRequest httpRequest, HttpResponse httpResponse) throws Throwable {
+            reading.countDown();
+            try{
+                return super.handleResponse(httpRequest, httpResponse);
+            }finally {
+                httpResponse.setEntity(new ConsumedEntity());
+            }
+        }
+    }
+
+    private static class RecordingListener implements HttpRequest.Listener<String> {
+        private final CountDownLatch canceled = new CountDownLatch(1);
+        private volatile int failedCount;
+
+        @Override
+        public void onStarted(HttpRequest httpRequest) {
+
+        }
+
+        @Override
+        public void onCompleted(HttpRequest httpRequest, HttpResponse httpResponse, String responseContent, boolean isCache, boolean isContinueCallback) {
+
+        }
+
+        @Override
+        public void onFailed(HttpRequest httpRequest, HttpResponse httpResponse, HttpRequest.Failure failure, boolean isCache, boolean isContinueCallback) {
+            failedCount++;
+        }
+
+        @Override
+        public void onCanceled(HttpRequest httpRequest) {
+            canceled.countDown();
+        }
+    }
+
+    /**
+     * 只接受一个连接的测试服务器，收到请求之后不响应或者很慢地发送响应体，一直读到客户端关闭连接为止
+     */
+    private static class StallingServer implements Runnable {
+        private final ServerSocket serverSocket;
+        private final CountDownLatch accepted = new CountDownLatch(1);
+        private final CountDownLatch bodyStarted = new CountDownLatch(1);
+        private final CountDownLatch closed = new CountDownLatch(1);
+        private volatile boolean respond;
+        private volatile long closedTime;
+        private volatile String closingThreadName;
+        private volatile Socket socket;
+
+        private StallingServer() throws IOException {
+            serverSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+            Thread thread = new Thread(this, "StallingServer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private String getUrl(){
+            return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/stall";
+        }
+
+        @Override
+        public void run() {
+            try {
+                socket = serverSocket.accept();
+                accepted.countDown();
+                final InputStream inputStream = socket.getInputStream();
+                readRequestHead(inputStream);
+
+                if(respond){
+                    final OutputStream outputStream = socket.getOutputStream();
+                    outputStream.write(("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Length: " + (10 * 1024 * 1024) + "\r\n\r\n").getBytes("US-ASCII"));
+                    outputStream.flush();
+                    Thread writer = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                while(closed.getCount() > 0){
+                                    outputStream.write('a');
+                                    outputStream.flush();
+                                    bodyStarted.countDown();
+                                    Thread.sleep(50);
+                                }
+                            } catch (Exception e) {
+                                // 客户端关闭了连接
+                            }
+                        }
+                    });
+                    writer.setDaemon(true);
+                    writer.start();
+                }
+
+                // 客户端关闭连接的时候read()返回-1或者抛出异常
+                try{
+                    while(inputStream.read() != -1){
+                        // 忽略
+                    }
+                }catch (IOException e){
+                    // 客户端重置了连接
+                }
+                closedTime = System.nanoTime();
+                closingThreadName = findAbortThreadName();
+                closed.countDown();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private static void readRequestHead(InputStream inputStream) throws IOException {
+            int matched = 0;
+            byte[] end = {'\r', '\n', '\r', '\n'};
+            int b;
+            while(matched < end.length && (b = inputStream.read()) != -1){
+                matched = b == end[matched] ? matched + 1 : (b == end[0] ? 1 : 0);
+            }
+        }
+
+        /**
+         * 找到正在或者刚刚中断连接的线程
+         */
+        private static String findAbortThreadName(){
+            for(Thread thread : Thread.getAllStackTraces().keySet()){
+                if(thread.getName().startsWith("GoHttp-Abort")){
+                    return thread.getName();
+                }
+            }
+            return null;
+        }
+
+        private void close() throws IOException {
+            serverSocket.close();
+            Socket socket = this.socket;
+            if(socket != null){
+                socket.close();
+            }
+        }
+    }
+}
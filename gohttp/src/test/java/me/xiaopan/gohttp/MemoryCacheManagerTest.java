@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.gohttp;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+public class MemoryCacheManagerTest {
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = TestHelper.createTempDirectory("memory_cache");
+    }
+
+    @After
+    public void tearDown(){
+        TestHelper.delete(directory);
+    }
+
+    @Test
+    public void testAnySecondLevelCacheIsKeptInMemory() throws IOException {
+        // 二级缓存不是DefaultCacheManager的时候也能通过缓存时间判断是否过期，从而放到内存中
+        SegmentCacheManager segmentCacheManager = new SegmentCacheManager();
+        MemoryCacheManager cacheManager = new MemoryCacheManager(segmentCacheManager, 1024 * 1024);
+        GoHttp goHttp = TestHelper.createGoHttp(cacheManager, directory);
+        HttpRequest httpRequest = TestHelper.createRequest(goHttp, "http://www.example.com/segment", new CacheConfig());
+        byte[] body = TestHelper.createBody(1000, 1);
+        HttpResponse httpResponse = TestHelper.createResponse(body, "text/plain");
+        cacheManager.saveHttpResponseToCache(httpRequest, httpResponse);
+        Assert.assertArrayEquals(body, TestHelper.readFully(httpResponse.getEntity().getContent()));
+
+        cacheManager.clear();
+        Assert.assertEquals(0, cacheManager.getSize());
+        Assert.assertEquals(segmentCacheManager.getCacheTime(httpRequest), cacheManager.getCacheTime(httpRequest));
+        httpResponse = cacheManager.readHttpResponseFromCache(httpRequest);
+        Assert.assertNotNull(httpResponse);
+        Assert.assertArrayEquals(body, TestHelper.readFully(httpResponse.getEntity().getContent()));
+        Assert.assertTrue(cacheManager.getSize() > 0);
+    }
+
+    @Test
+    public void testReadFailureAfterSaveIsNotAnError() throws IOException {
+        // 写入二级缓存成功之后第一次读取中途出错，只是不放到内存中，响应实体要重新从二级缓存中读取
+        DefaultCacheManager defaultCacheManager = new DefaultCacheManager(){
+            private boolean failed;
+
+            @Override
+            public void saveHttpResponseToCache(HttpRequest httpRequest, HttpResponse httpResponse) throws IOException {
+                super.saveHttpResponseToCache(httpRequest, httpResponse);
+                if(!failed){
+                    failed = true;
+                    httpResponse.setEntity(new FailingEntity(httpResponse.getEntity()));
+                }
+            }
+        };
+        MemoryCacheManager cacheManager = new MemoryCacheManager(defaultCacheManager, 1024 * 1024);
+        GoHttp goHttp = TestHelper.createGoHttp(cacheManager, directory);
+        HttpRequest httpRequest = TestHelper.createRequest(goHttp, "http://www.example.com/failing", new CacheConfig());
+        byte[] body = TestHelper.createBody(1000, 2);
+        HttpResponse httpResponse = TestHelper.createResponse(body, "text/plain");
+        cacheManager.saveHttpResponseToCache(httpRequest, httpResponse);
+
+        Assert.assertEquals(0, cacheManager.getSize());
+        Assert.assertArrayEquals(body, TestHelper.readFully(httpResponse.getEntity().getContent()));
+        Assert.assertTrue(cacheManager.isHasAvailableCache(httpRequest));
+    }
+
+    /**
+     * 读取100个字节之后抛出异常的实体
+     */
+    private static class FailingEntity extends HttpEntityWrapper {
+        private FailingEntity(HttpEntity wrapped) {
+            super(wrapped);
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new FilterInputStream(super.getContent()) {
+                private int count;
+
+                @Override
+                public int read() throws IOException {
+                    byte[] bytes = new byte[1];
+                    return read(bytes, 0, 1) == -1 ? -1 : bytes[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException {
+                    if(count >= 100){
+                        throw new IOException("读取失败");
+                    }
+                    int number = super.read(buffer, offset, Math.min(length, 100 - count));
+                    if(number > 0){
+                        count += number;
+                    }
+                    return number;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.gohttp;
+
+import org.apache.http.HttpResponse;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PrefetcherTest {
+
+    @Test
+    public void testConcurrencyCap() throws Exception {
+        BlockingCacheManager cacheManager = new BlockingCacheManager();
+        GoHttp goHttp = TestHelper.createGoHttp(cacheManager, null);
+        Prefetcher prefetcher = new Prefetcher(goHttp, 3);
+        int requestCount = 40;
+        prefetcher.prefetch(createHelpers(goHttp, requestCount));
+
+        // 同时只有maxConcurrency个请求在执行，其它的在排队
+        Assert.assertTrue(cacheManager.awaitRunning(3));
+        Thread.sleep(50);
+        Assert.assertEquals(3, cacheManager.running.get());
+        Assert.assertEquals(3, prefetcher.getRunningCount());
+        Assert.assertEquals(requestCount - 3, prefetcher.getPendingCount());
+
+        cacheManager.permits.release(requestCount);
+        Assert.assertTrue(cacheManager.awaitChecked(requestCount));
+        Assert.assertEquals(3, cacheManager.maxRunning.get());
+        Assert.assertEquals(requestCount, cacheManager.checked.get());
+        awaitIdle(prefetcher);
+        Assert.assertEquals(0, prefetcher.getPendingCount());
+    }
+
+    @Test
+    public void testPauseAndResume() throws Exception {
+        BlockingCacheManager cacheManager = new BlockingCacheManager();
+        GoHttp goHttp = TestHelper.createGoHttp(cacheManager, null);
+        Prefetcher prefetcher = new Prefetcher(goHttp, 2);
+        prefetcher.prefetch(createHelpers(goHttp, 10));
+        Assert.assertTrue(cacheManager.awaitRunning(2));
+
+        // 暂停之后正在执行的请求继续执行完，排队的请求不再开始
+        prefetcher.pause();
+        cacheManager.permits.release(2);
+        awaitIdle(prefetcher);
+        Assert.assertEquals(2, cacheManager.checked.get());
+        Assert.assertEquals(8, prefetcher.getPendingCount());
+
+        prefetcher.resume();
+        cacheManager.permits.release(8);
+        Assert.assertTrue(cacheManager.awaitChecked(10));
+        Assert.assertEquals(2, cacheManager.maxRunning.get());
+        awaitIdle(prefetcher);
+    }
+
+    @Test
+    public void testRequestsWithoutCacheConfigAreSkipped() throws Exception {
+        BlockingCacheManager cacheManager = new BlockingCacheManager();
+        GoHttp goHttp = TestHelper.createGoHttp(cacheManager, null);
+        Prefetcher prefetcher = new Prefetcher(goHttp);
+        prefetcher.prefetch(new HttpHelper(goHttp, "http://www.example.com/", new StringHttpResponseHandler()));
+        Assert.assertEquals(0, prefetcher.getPendingCount());
+        Assert.assertEquals(0, prefetcher.getRunningCount());
+    }
+
+    private static HttpHelper[] createHelpers(GoHttp goHttp, int count){
+        HttpHelper[] httpHelpers = new HttpHelper[count];
+        for(int w = 0; w < count; w++){
+            httpHelpers[w] = new HttpHelper(goHttp, "http://www.example.com/" + w, new StringHttpResponseHandler()).cacheConfig(new CacheConfig());
+        }
+        return httpHelpers;
+    }
+
+    private static void awaitIdle(Prefetcher prefetcher) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while(prefetcher.getRunningCount() > 0 && System.currentTimeMillis() < deadline){
+            Thread.sleep(5);
+        }
+        Assert.assertEquals(0, prefetcher.getRunningCount());
+    }
+
+    /**
+     * 检查缓存的时候阻塞，直到测试放行，并记录同时有多少个预加载任务在执行；放行之后报告缓存依然有效，这样就不会访问网络
+     */
+    private static class BlockingCacheManager implements CacheManager {
+        private final Semaphore permits = new Semaphore(0);
+        private final AtomicInteger running = new AtomicInteger();
+        private final AtomicInteger maxRunning = new AtomicInteger();
+        private final AtomicInteger checked = new AtomicInteger();
+
+        boolean awaitRunning(int count) throws InterruptedException {
+            return await(running, count);
+        }
+
+        boolean awaitChecked(int count) throws InterruptedException {
+            return await(checked, count);
+        }
+
+        private static boolean await(AtomicInteger counter, int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 10000;
+            while(counter.get() < count && System.currentTimeMillis() < deadline){
+                Thread.sleep(5);
+            }
+            return counter.get() >= count;
+        }
+
+        @Override
+        public boolean isHasAvailableCache(HttpRequest httpRequest) {
+            int current = running.incrementAndGet();
+            int max;
+            while((max = maxRunning.get()) < current && !maxRunning.compareAndSet(max, current)){
+                // 重试
+            }
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            running.decrementAndGet();
+            checked.incrementAndGet();
+            return true;
+        }
+
+        @Override
+        public void saveHttpResponseToCache(HttpRequest httpRequest, HttpResponse httpResponse) throws IOException {
+
+        }
+
+        @Override
+        public CacheEditor editHttpResponseCache(HttpRequest httpRequest, HttpResponse httpResponse) throws IOException {
+            return null;
+        }
+
+        @Override
+        public long getCacheOutOfDateTime(HttpRequest httpRequest) {
+            return 0;
+        }
+
+        @Override
+        public long getCacheTime(HttpRequest httpRequest) {
+            return 0;
+        }
+
+        @Override
+        public long getCacheExpiresTime(HttpRequest httpRequest) {
+            return 0;
+        }
+
+        @Override
+        public HttpResponse readHttpResponseFromCache(HttpRequest httpRequest) {
+            return null;
+        }
+
+        @Override
+        public HttpResponse refreshHttpResponseCache(HttpRequest httpRequest, HttpResponse notModifiedResponse) throws IOException {
+            return null;
+        }
+
+        @Override
+        public void setCacheDirectory(String cacheDirectory) {
+
+        }
+
+        @Override
+        public String generateCacheId(HttpRequest httpRequest) {
+            return httpRequest.getUrl();
+        }
+
+        @Override
+        public CacheStats getStats() {
+            return new CacheStats();
+        }
+    }
+}
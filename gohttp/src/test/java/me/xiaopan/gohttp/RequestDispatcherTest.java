@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.gohttp;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class RequestDispatcherTest {
+
+    @Test
+    public void testQueueUsesExecutorAgingTime() throws Exception {
+        // 老化时间只有1毫秒，等了很久的低优先级请求要排在新来的高优先级请求前面
+        GoHttp goHttp = TestHelper.createGoHttp(null, null);
+        RequestExecutor executor = new RequestExecutor(4, 1);
+        goHttp.setExecutorService(executor);
+        RequestDispatcher dispatcher = new RequestDispatcher(goHttp, 64, 1);
+        Assert.assertEquals(1, executor.getAgingMillis());
+
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch finished = new CountDownLatch(3);
+        try{
+            dispatcher.dispatch(createRequest(goHttp, Priority.NORMAL), new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    finished.countDown();
+                }
+            });
+            dispatcher.dispatch(createRequest(goHttp, Priority.PREFETCH), new RecordingTask("prefetch", order, finished));
+            Thread.sleep(100);
+            dispatcher.dispatch(createRequest(goHttp, Priority.IMMEDIATE), new RecordingTask("immediate", order, finished));
+            Assert.assertEquals(2, dispatcher.getQueuedCount());
+
+            release.countDown();
+            Assert.assertTrue(finished.await(5, TimeUnit.SECONDS));
+            Assert.assertEquals("[prefetch, immediate]", order.toString());
+        }finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    private static HttpRequest createRequest(GoHttp goHttp, Priority priority){
+        return new HttpRequest(new HttpHelper(goHttp, "http://www.example.com/", new StringHttpResponseHandler()).priority(priority));
+    }
+
+    /**
+     * 记录执行顺序的任务
+     */
+    private static class RecordingTask implements Runnable {
+        private String name;
+        private List<String> order;
+        private CountDownLatch finished;
+
+        private RecordingTask(String name, List<String> order, CountDownLatch finished) {
+            this.name = name;
+            this.order = order;
+            this.finished = finished;
+        }
+
+        @Override
+        public void run() {
+            order.add(name);
+            finished.countDown();
+        }
+    }
+}
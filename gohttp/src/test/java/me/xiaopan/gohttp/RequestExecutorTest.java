@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.gohttp;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class RequestExecutorTest {
+
+    @Test
+    public void testMaxQueueDepthCountsOnlyQueuedTasks() throws Exception {
+        RequestExecutor executor = new RequestExecutor(2, RequestExecutor.DEFAULT_AGING_MILLIS);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(2);
+        Runnable blocking = new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        try{
+            // 线程数没满的时候任务直接交给新线程，不算排队
+            executor.execute(blocking, Priority.NORMAL);
+            executor.execute(blocking, Priority.NORMAL);
+            Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+            Assert.assertEquals(0, executor.getMaxQueueDepth());
+            Assert.assertEquals(0, executor.getQueueDepth(Priority.NORMAL));
+
+            // 线程都在忙的时候才进队列
+            executor.execute(blocking, Priority.LOW);
+            executor.execute(blocking, Priority.NORMAL);
+            Assert.assertEquals(2, executor.getQueueDepth());
+            Assert.assertEquals(2, executor.getMaxQueueDepth());
+            Assert.assertEquals(1, executor.getQueueDepth(Priority.LOW));
+            Assert.assertEquals(1, executor.getQueueDepth(Priority.NORMAL));
+        }finally {
+            release.countDown();
+            executor.shutdown();
+        }
+        Assert.assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        Assert.assertEquals(0, executor.getQueueDepth(Priority.LOW));
+        Assert.assertEquals(0, executor.getQueueDepth(Priority.NORMAL));
+        Assert.assertEquals(2, executor.getMaxQueueDepth());
+    }
+}
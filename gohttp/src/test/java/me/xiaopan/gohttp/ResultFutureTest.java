@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.gohttp;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class ResultFutureTest {
+
+    @Test
+    public void testCompleted() throws Exception {
+        ResultFuture<String> resultFuture = new ResultFuture<String>(null);
+        RecordingCallback<String> callback = new RecordingCallback<String>();
+        resultFuture.addCallback(callback, ResultFuture.DIRECT_EXECUTOR);
+        Assert.assertFalse(resultFuture.isDone());
+        Assert.assertTrue(callback.events.isEmpty());
+
+        Assert.assertTrue(resultFuture.setResponseObject("a"));
+        Assert.assertTrue(resultFuture.isDone());
+        Assert.assertFalse(resultFuture.isCancelled());
+        Assert.assertEquals("a", resultFuture.get());
+        Assert.assertEquals("a", resultFuture.get(0, TimeUnit.MILLISECONDS));
+        Assert.assertNull(resultFuture.getFailure());
+        Assert.assertEquals("[completed:a]", callback.events.toString());
+
+        // 已经有结果了，后面的结果、失败和取消都会被忽略
+        Assert.assertFalse(resultFuture.setResponseObject("b"));
+        Assert.assertFalse(resultFuture.setFailure(new HttpRequest.Failure(500, "error"), false));
+        Assert.assertFalse(resultFuture.cancel(true));
+        Assert.assertEquals("a", resultFuture.get());
+        Assert.assertEquals("[completed:a]", callback.events.toString());
+
+        // 有结果之后添加的回调立即执行
+        RecordingCallback<String> lateCallback = new RecordingCallback<String>();
+        resultFuture.addCallback(lateCallback, ResultFuture.DIRECT_EXECUTOR);
+        Assert.assertEquals("[completed:a]", lateCallback.events.toString());
+    }
+
+    @Test
+    public void testFailedOnlyOnLastResult() throws Exception {
+        ResultFuture<String> resultFuture = new ResultFuture<String>(null);
+        RecordingCallback<String> callback = new RecordingCallback<String>();
+        resultFuture.addCallback(callback, ResultFuture.DIRECT_EXECUTOR);
+
+        // 后面还有结果的失败不算失败
+        Assert.assertFalse(resultFuture.setFailure(new HttpRequest.Failure(500, "cache"), true));
+        Assert.assertFalse(resultFuture.isDone());
+
+        HttpRequest.Failure failure = new HttpRequest.Failure(404, "not found");
+        Assert.assertTrue(resultFuture.setFailure(failure, false));
+        Assert.assertTrue(resultFuture.isDone());
+        Assert.assertSame(failure, resultFuture.getFailure());
+        Assert.assertEquals("[failed:404]", callback.events.toString());
+        try{
+            resultFuture.get();
+            Assert.fail("应该抛出ExecutionException");
+        }catch (ExecutionException e){
+            Assert.assertTrue(e.getCause() instanceof ResultFuture.FailureException);
+            Assert.assertSame(failure, ((ResultFuture.FailureException) e.getCause()).getFailure());
+        }
+        Assert.assertFalse(resultFuture.setResponseObject("late"));
+    }
+
+    @Test
+    public void testCanceled() throws Exception {
+        ResultFuture<String> resultFuture = new ResultFuture<String>(null);
+        RecordingCallback<String> callback = new RecordingCallback<String>();
+        resultFuture.addCallback(callback, ResultFuture.DIRECT_EXECUTOR);
+        Assert.assertTrue(resultFuture.cancel(false));
+        Assert.assertTrue(resultFuture.isDone());
+        Assert.assertTrue(resultFuture.isCancelled());
+        Assert.assertFalse(resultFuture.cancel(false));
+        Assert.assertFalse(resultFuture.setResponseObject("late"));
+        Assert.assertEquals("[canceled]", callback.events.toString());
+        try{
+            resultFuture.get();
+            Assert.fail("应该抛出CancellationException");
+        }catch (CancellationException e){
+            // 预期的结果
+        }
+    }
+
+    @Test
+    public void testGetTimeout() throws Exception {
+        ResultFuture<String> resultFuture = new ResultFuture<String>(null);
+        long startTime = System.nanoTime();
+        try{
+            resultFuture.get(50, TimeUnit.MILLISECONDS);
+            Assert.fail("应该抛出TimeoutException");
+        }catch (TimeoutException e){
+            // 预期的结果
+        }
+        Assert.assertTrue(System.nanoTime() - startTime >= TimeUnit.MILLISECONDS.toNanos(50));
+        Assert.assertFalse(resultFuture.isDone());
+    }
+
+    @Test
+    public void testGetWakesUpWaitingThread() throws Exception {
+        final ResultFuture<String> resultFuture = new ResultFuture<String>(null);
+        final CountDownLatch waiting = new CountDownLatch(1);
+        final String[] result = new String[1];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                waiting.countDown();
+                try {
+                    result[0] = resultFuture.get();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        thread.start();
+        waiting.await();
+        Thread.sleep(20);
+        resultFuture.setResponseObject("done");
+        thread.join(5000);
+        Assert.assertFalse(thread.isAlive());
+        Assert.assertEquals("done", result[0]);
+    }
+
+    @Test
+    public void testCallbackExecutor(){
+        ResultFuture<String> resultFuture = new ResultFuture<String>(null);
+        QueueExecutor executor = new QueueExecutor();
+        RecordingCallback<String> callback = new RecordingCallback<String>();
+        resultFuture.addCallback(callback, executor);
+        resultFuture.setResponseObject("a");
+
+        // 回调交给指定的Executor执行
+        Assert.assertTrue(callback.events.isEmpty());
+        executor.runAll();
+        Assert.assertEquals("[completed:a]", callback.events.toString());
+    }
+
+    @Test
+    public void testAllOfCompleted() throws Exception {
+        List<ResultFuture<String>> resultFutures = new ArrayList<ResultFuture<String>>();
+        for(int w = 0; w < 3; w++){
+            resultFutures.add(new ResultFuture<String>(null));
+        }
+        ResultFuture<List<String>> allFuture = ResultFuture.allOf(resultFutures);
+        resultFutures.get(2).setResponseObject("c");
+        resultFutures.get(0).setResponseObject("a");
+        Assert.assertFalse(allFuture.isDone());
+        resultFutures.get(1).setResponseObject("b");
+        Assert.assertTrue(allFuture.isDone());
+
+        // 按原来的顺序给出结果
+        Assert.assertEquals("[a, b, c]", allFuture.get().toString());
+    }
+
+    @Test
+    public void testAllOfEmpty() throws Exception {
+        ResultFuture<List<String>> allFuture = ResultFuture.allOf(new ArrayList<ResultFuture<String>>());
+        Assert.assertTrue(allFuture.isDone());
+        Assert.assertTrue(allFuture.get().isEmpty());
+    }
+
+    @Test
+    public void testAllOfFailedCancelsOthers() throws Exception {
+        List<ResultFuture<String>> resultFutures = new ArrayList<ResultFuture<String>>();
+        for(int w = 0; w < 3; w++){
+            resultFutures.add(new ResultFuture<String>(null));
+        }
+        ResultFuture<List<String>> allFuture = ResultFuture.allOf(resultFutures);
+        resultFutures.get(0).setResponseObject("a");
+        resultFutures.get(1).setFailure(new HttpRequest.Failure(500, "error"), false);
+        Assert.assertTrue(allFuture.isDone());
+        Assert.assertEquals(500, allFuture.getFailure().getCode());
+        Assert.assertTrue(resultFutures.get(2).isCancelled());
+        Assert.assertFalse(resultFutures.get(0).isCancelled());
+    }
+
+    @Test
+    public void testAllOfCanceledCancelsAll() throws Exception {
+        List<ResultFuture<String>> resultFutures = new ArrayList<ResultFuture<String>>();
+        for(int w = 0; w < 3; w++){
+            resultFutures.add(new ResultFuture<String>(null));
+        }
+        ResultFuture<List<String>> allFuture = ResultFuture.allOf(resultFutures);
+        resultFutures.get(0).setResponseObject("a");
+        Assert.assertTrue(allFuture.cancel(true));
+        Assert.assertTrue(allFuture.isCancelled());
+        Assert.assertTrue(resultFutures.get(1).isCancelled());
+        Assert.assertTrue(resultFutures.get(2).isCancelled());
+        Assert.assertFalse(resultFutures.get(0).isCancelled());
+    }
+
+    @Test
+    public void testAllOfItemCanceledFailsAll() throws Exception {
+        List<ResultFuture<String>> resultFutures = new ArrayList<ResultFuture<String>>();
+        for(int w = 0; w < 2; w++){
+            resultFutures.add(new ResultFuture<String>(null));
+        }
+        ResultFuture<List<String>> allFuture = ResultFuture.allOf(resultFutures);
+        resultFutures.get(0).cancel(true);
+        Assert.assertTrue(allFuture.isDone());
+        Assert.assertFalse(allFuture.isCancelled());
+        Assert.assertTrue(allFuture.getFailure().getException() instanceof CancellationException);
+        Assert.assertTrue(resultFutures.get(1).isCancelled());
+    }
+
+    private static class RecordingCallback<T> implements ResultFuture.Callback<T> {
+        private final List<String> events = new ArrayList<String>();
+
+        @Override
+        public void onCompleted(T result) {
+            events.add("completed:" + result);
+        }
+
+        @Override
+        public void onFailed(HttpRequest.Failure failure) {
+            events.add("failed:" + failure.getCode());
+        }
+
+        @Override
+        public void onCanceled() {
+            events.add("canceled");
+        }
+    }
+
+    private static class QueueExecutor implements Executor {
+        private final List<Runnable> runnables = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable runnable) {
+            runnables.add(runnable);
+        }
+
+        void runAll(){
+            for(Runnable runnable : runnables){
+                runnable.run();
+            }
+            runnables.clear();
+        }
+    }
+}
@@ -0,0 +1,380 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.gohttp;
+
+import org.apache.http.HttpResponse;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+public class SegmentCacheManagerTest {
+    private static final int MAX_SEGMENT_SIZE = 4 * 1024;
+    private static final int MAX_ENTRY_SIZE = 1024;
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = TestHelper.createTempDirectory("segment");
+    }
+
+    @After
+    public void tearDown(){
+        TestHelper.delete(directory);
+    }
+
+    @Test
+    public void testRecordsSurviveReopen() throws IOException {
+        SegmentCacheManager cacheManager = createCacheManager();
+        GoHttp goHttp = TestHelper.createGoHttp(cacheManager, directory);
+        for(int w = 0; w < 20; w++){
+            save(cacheManager, goHttp, "http://www.example.com/" + w, TestHelper.createBody(300, w));
+        }
+        Assert.assertEquals(20, cacheManager.getSegmentEntryCount());
+        close(cacheManager);
+
+        SegmentCacheManager reopened = createCacheManager();
+        GoHttp reopenedGoHttp = TestHelper.createGoHttp(reopened, directory);
+        for(int w = 0; w < 20; w++){
+            Assert.assertArrayEquals(TestHelper.createBody(300, w), read(reopened, reopenedGoHttp, "http://www.example.com/" + w));
+        }
+        Assert.assertEquals(20, reopened.getSegmentEntryCount());
+    }
+
+    @Test
+    public void testOverwrittenRecordsAreCompacted() throws Exception {
+        SegmentCacheManager cacheManager = createCacheManager();
+        GoHttp goHttp = TestHelper.createGoHttp(cacheManager, directory);
+        for(int w = 0; w < 200; w++){
+            save(cacheManager, goHttp, "http://www.example.com/" + (w % 4), TestHelper.createBody(300, w));
+        }
+
+        // 每个缓存ID只有最后一条记录有效，合并之后段文件的总长度应该接近有效数据的长度
+        awaitCompaction(cacheManager);
+        Assert.assertEquals(4, cacheManager.getSegmentEntryCount());
+        Assert.assertTrue("段文件总长度：" + cacheManager.getSegmentSize(), cacheManager.getSegmentSize() < 3 * MAX_SEGMENT_SIZE);
+        Assert.assertTrue("段文件数量：" + countSegmentFiles(), countSegmentFiles() <= 3);
+        for(int w = 196; w < 200; w++){
+            Assert.assertArrayEquals(TestHelper.createBody(300, w), read(cacheManager, goHttp, "http://www.example.com/" + (w % 4)));
+        }
+        close(cacheManager);
+
+        SegmentCacheManager reopened = createCacheManager();
+        GoHttp reopenedGoHttp = TestHelper.createGoHttp(reopened, directory);
+        for(int w = 196; w < 200; w++){
+            Assert.assertArrayEquals(TestHelper.createBody(300, w), read(reopened, reopenedGoHttp, "http://www.example.com/" + (w % 4)));
+        }
+        Assert.assertEquals(4, reopened.getSegmentEntryCount());
+    }
+
+    @Test
+    public void testTombstoneSurvivesCompactionAndReopen() throws Exception {
+        SegmentCacheManager cacheManager = createCacheManager();
+        GoHttp goHttp = TestHelper.createGoHttp(cacheManager, directory);
+
+        // 第一个段文件中是A和一些一直有效的记录
+        save(cacheManager, goHttp, "http://www.example.com/a", TestHelper.createBody(300, 1));
+        for(int w = 0; w < 8; w++){
+            save(cacheManager, goHttp, "http://www.example.com/live/" + w, TestHelper.createBody(300, w));
+        }
+
+        // A改为单独保存，段文件中留下删除记录；之后的记录全部被覆盖，删除记录所在的段文件会被合并
+        byte[] largeBody = TestHelper.createBody(MAX_ENTRY_SIZE * 4, 2);
+        save(cacheManager, goHttp, "http://www.example.com/a", largeBody);
+        for(int w = 0; w < 100; w++){
+            save(cacheManager, goHttp, "http://www.example.com/dead", TestHelper.createBody(300, w));
+        }
+        awaitCompaction(cacheManager);
+        Assert.assertArrayEquals(largeBody, read(cacheManager, goHttp, "http://www.example.com/a"));
+        close(cacheManager);
+
+        // 重新打开之后A不能从第一个段文件中复活
+        SegmentCacheManager reopened = createCacheManager();
+        GoHttp reopenedGoHttp = TestHelper.createGoHttp(reopened, directory);
+        Assert.assertArrayEquals(largeBody, read(reopened, reopenedGoHttp, "http://www.example.com/a"));
+        for(int w = 0; w < 8; w++){
+            Assert.assertArrayEquals(TestHelper.createBody(300, w), read(reopened, reopenedGoHttp, "http://www.example.com/live/" + w));
+        }
+        Assert.assertEquals(9, reopened.getSegmentEntryCount());
+    }
+
+    @Test
+    public void testTornTailIsIgnored() throws IOException {
+        SegmentCacheManager cacheManager = createCacheManager();
+        GoHttp goHttp = TestHelper.createGoHttp(cacheManager, directory);
+        save(cacheManager, goHttp, "http://www.example.com/a", TestHelper.createBody(300, 1));
+        save(cacheManager, goHttp, "http://www.example.com/b", TestHelper.createBody(300, 2));
+        close(cacheManager);
+
+        // 模拟写入最后一条记录的时候进程被杀
+        File segmentFile = findLastSegmentFile();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(segmentFile, "rw");
+        try{
+            randomAccessFile.setLength(segmentFile.length() - 10);
+        }finally {
+            randomAccessFile.close();
+        }
+
+        SegmentCacheManager reopened = createCacheManager();
+        GoHttp reopenedGoHttp = TestHelper.createGoHttp(reopened, directory);
+        Assert.assertArrayEquals(TestHelper.createBody(300, 1), read(reopened, reopenedGoHttp, "http://www.example.com/a"));
+        Assert.assertNull(read(reopened, reopenedGoHttp, "http://www.example.com/b"));
+
+        // 新的记录不能接在不完整的记录后面
+        save(reopened, reopenedGoHttp, "http://www.example.com/c", TestHelper.createBody(300, 3));
+        close(reopened);
+        SegmentCacheManager reopenedAgain = createCacheManager();
+        GoHttp reopenedAgainGoHttp = TestHelper.createGoHttp(reopenedAgain, directory);
+        Assert.assertArrayEquals(TestHelper.createBody(300, 1), read(reopenedAgain, reopenedAgainGoHttp, "http://www.example.com/a"));
+        Assert.assertArrayEquals(TestHelper.createBody(300, 3), read(reopenedAgain, reopenedAgainGoHttp, "http://www.example.com/c"));
+    }
+
+    @Test
+    public void testRestartsReuseLastSegment() throws Exception {
+        for(int w = 0; w < 10; w++){
+            SegmentCacheManager cacheManager = createCacheManager();
+            GoHttp goHttp = TestHelper.createGoHttp(cacheManager, directory);
+            save(cacheManager, goHttp, "http://www.example.com/" + w, TestHelper.createBody(100, w));
+            awaitCompaction(cacheManager);
+            close(cacheManager);
+        }
+
+        // 每次启动都接着最后一个段文件写，段文件的数量不会随着启动次数增加
+        Assert.assertEquals(1, countSegmentFiles());
+        SegmentCacheManager reopened = createCacheManager();
+        GoHttp reopenedGoHttp = TestHelper.createGoHttp(reopened, directory);
+        for(int w = 0; w < 10; w++){
+            Assert.assertArrayEquals(TestHelper.createBody(100, w), read(reopened, reopenedGoHttp, "http://www.example.com/" + w));
+        }
+    }
+
+    @Test
+    public void testSmallSegmentsAreMerged() throws Exception {
+        // 段文件很小的时候写入，每个段文件中只有两三条记录，而且全部有效
+        SegmentCacheManager cacheManager = createCacheManager();
+        cacheManager.setMaxSegmentSize(1024);
+        GoHttp goHttp = TestHelper.createGoHttp(cacheManager, directory);
+        for(int w = 0; w < 12; w++){
+            save(cacheManager, goHttp, "http://www.example.com/" + w, TestHelper.createBody(200, w));
+        }
+        awaitCompaction(cacheManager);
+        close(cacheManager);
+        int segmentCount = countSegmentFiles();
+        Assert.assertTrue("段文件数量：" + segmentCount, segmentCount >= 4);
+
+        // 调大段文件的长度之后，这些比较小的段文件虽然全部有效也要合并
+        SegmentCacheManager reopened = createCacheManager();
+        reopened.setMaxSegmentSize(MAX_SEGMENT_SIZE * 4);
+        GoHttp reopenedGoHttp = TestHelper.createGoHttp(reopened, directory);
+        Assert.assertArrayEquals(TestHelper.createBody(200, 0), read(reopened, reopenedGoHttp, "http://www.example.com/0"));
+        Assert.assertEquals(12, reopened.getSegmentEntryCount());
+        awaitCompaction(reopened);
+        Assert.assertEquals(1, countSegmentFiles());
+        for(int w = 0; w < 12; w++){
+            Assert.assertArrayEquals(TestHelper.createBody(200, w), read(reopened, reopenedGoHttp, "http://www.example.com/" + w));
+        }
+    }
+
+    @Test
+    public void testMaxCountEvictsLeastRecentlyUsed() throws Exception {
+        SegmentCacheManager cacheManager = createCacheManager();
+        cacheManager.setMaxCount(5);
+        GoHttp goHttp = TestHelper.createGoHttp(cacheManager, directory);
+        for(int w = 0; w < 5; w++){
+            save(cacheManager, goHttp, "http://www.example.com/" + w, TestHelper.createBody(100, w));
+            Thread.sleep(5);
+        }
+
+        // 最早写入的0刚刚被访问过，应该淘汰的是1
+        Assert.assertNotNull(read(cacheManager, goHttp, "http://www.example.com/0"));
+        Thread.sleep(5);
+        save(cacheManager, goHttp, "http://www.example.com/5", TestHelper.createBody(100, 5));
+        awaitEntryCount(cacheManager, 5);
+        Assert.assertEquals(5, cacheManager.getSegmentEntryCount());
+        Assert.assertNull(read(cacheManager, goHttp, "http://www.example.com/1"));
+        Assert.assertArrayEquals(TestHelper.createBody(100, 0), read(cacheManager, goHttp, "http://www.example.com/0"));
+        Assert.assertEquals(1, cacheManager.getStats().snapshot().getEvictionCount());
+        awaitCompaction(cacheManager);
+        close(cacheManager);
+
+        // 被淘汰的缓存重启之后也不能复活
+        SegmentCacheManager reopened = createCacheManager();
+        GoHttp reopenedGoHttp = TestHelper.createGoHttp(reopened, directory);
+        Assert.assertNull(read(reopened, reopenedGoHttp, "http://www.example.com/1"));
+        Assert.assertEquals(5, reopened.getSegmentEntryCount());
+    }
+
+    @Test
+    public void testMaxSizeLimitsLiveSizeWithoutExpiry() throws Exception {
+        // 永久有效的缓存不会因为过期被回收，只能靠容量限制
+        SegmentCacheManager cacheManager = createCacheManager();
+        cacheManager.setMaxSize(3 * 1024);
+        GoHttp goHttp = TestHelper.createGoHttp(cacheManager, directory);
+        for(int w = 0; w < 100; w++){
+            save(cacheManager, goHttp, "http://www.example.com/" + w, TestHelper.createBody(300, w));
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while(cacheManager.getSegmentLiveSize() > 3 * 1024 && System.currentTimeMillis() < deadline){
+            Thread.sleep(10);
+        }
+        Assert.assertTrue("有效记录总长度：" + cacheManager.getSegmentLiveSize(), cacheManager.getSegmentLiveSize() <= 3 * 1024);
+        Assert.assertTrue(cacheManager.getSegmentEntryCount() < 10);
+
+        // 最近写入的缓存依然在，被淘汰的记录占用的空间合并之后回收
+        Assert.assertArrayEquals(TestHelper.createBody(300, 99), read(cacheManager, goHttp, "http://www.example.com/99"));
+        awaitCompaction(cacheManager);
+        Assert.assertTrue("段文件总长度：" + cacheManager.getSegmentSize(), cacheManager.getSegmentSize() < 3 * MAX_SEGMENT_SIZE);
+
+        // 被淘汰的缓存留下的删除记录比一个段文件还多，它们不能在合并的时候被来回复制
+        String lastSegmentName = findLastSegmentFile().getName();
+        Thread.sleep(200);
+        Assert.assertEquals(lastSegmentName, findLastSegmentFile().getName());
+        Assert.assertTrue("段文件：" + lastSegmentName, Integer.parseInt(lastSegmentName.substring("segment_".length(), lastSegmentName.length() - ".seg".length())) < 100);
+    }
+
+    @Test
+    public void testTombstonesBehindLiveSegmentAreNotCopiedForever() throws Exception {
+        SegmentCacheManager cacheManager = createCacheManager();
+        GoHttp goHttp = TestHelper.createGoHttp(cacheManager, directory);
+
+        // 最早的段文件中全部是一直有效的记录，永远不会被合并
+        for(int w = 0; w < 9; w++){
+            save(cacheManager, goHttp, "http://www.example.com/live/" + w, TestHelper.createBody(300, w));
+        }
+
+        // 之后的缓存全部改为单独保存，留下的删除记录比一个段文件还多
+        for(int w = 0; w < 100; w++){
+            save(cacheManager, goHttp, "http://www.example.com/moved/" + w, TestHelper.createBody(100, w));
+        }
+        byte[] largeBody = TestHelper.createBody(MAX_ENTRY_SIZE * 2, 3);
+        for(int w = 0; w < 100; w++){
+            save(cacheManager, goHttp, "http://www.example.com/moved/" + w, largeBody);
+        }
+        awaitCompaction(cacheManager);
+
+        // 旧记录所在的段文件合并之后删除记录就不需要了，不能在合并时被来回复制
+        String lastSegmentName = findLastSegmentFile().getName();
+        Thread.sleep(200);
+        Assert.assertEquals(lastSegmentName, findLastSegmentFile().getName());
+        Assert.assertTrue("段文件：" + lastSegmentName, Integer.parseInt(lastSegmentName.substring("segment_".length(), lastSegmentName.length() - ".seg".length())) < 100);
+        Assert.assertTrue("段文件总长度：" + cacheManager.getSegmentSize(), cacheManager.getSegmentSize() < 3 * MAX_SEGMENT_SIZE);
+        close(cacheManager);
+
+        SegmentCacheManager reopened = createCacheManager();
+        GoHttp reopenedGoHttp = TestHelper.createGoHttp(reopened, directory);
+        for(int w = 0; w < 100; w++){
+            Assert.assertArrayEquals(largeBody, read(reopened, reopenedGoHttp, "http://www.example.com/moved/" + w));
+        }
+        for(int w = 0; w < 9; w++){
+            Assert.assertArrayEquals(TestHelper.createBody(300, w), read(reopened, reopenedGoHttp, "http://www.example.com/live/" + w));
+        }
+        Assert.assertEquals(9, reopened.getSegmentEntryCount());
+    }
+
+    private SegmentCacheManager createCacheManager(){
+        SegmentCacheManager cacheManager = new SegmentCacheManager();
+        cacheManager.setMaxSegmentSize(MAX_SEGMENT_SIZE);
+        cacheManager.setMaxEntrySize(MAX_ENTRY_SIZE);
+        return cacheManager;
+    }
+
+    private static void save(SegmentCacheManager cacheManager, GoHttp goHttp, String url, byte[] body) throws IOException {
+        HttpResponse httpResponse = TestHelper.createResponse(body, "application/octet-stream");
+        cacheManager.saveHttpResponseToCache(TestHelper.createRequest(goHttp, url, new CacheConfig()), httpResponse);
+        TestHelper.readFully(httpResponse.getEntity().getContent());
+    }
+
+    private static byte[] read(SegmentCacheManager cacheManager, GoHttp goHttp, String url) throws IOException {
+        HttpRequest httpRequest = TestHelper.createRequest(goHttp, url, new CacheConfig());
+        if(!cacheManager.isHasAvailableCache(httpRequest)){
+            return null;
+        }
+        HttpResponse httpResponse = cacheManager.readHttpResponseFromCache(httpRequest);
+        return httpResponse != null ? TestHelper.readFully(httpResponse.getEntity().getContent()) : null;
+    }
+
+    /**
+     * 合并在后台线程中进行，等到段文件的总长度不再变化
+     */
+    private static void awaitCompaction(SegmentCacheManager cacheManager) throws InterruptedException {
+        cacheManager.compact();
+        long deadline = System.currentTimeMillis() + 10000;
+        long lastSize = -1;
+        int stableCount = 0;
+        while(stableCount < 10 && System.currentTimeMillis() < deadline){
+            Thread.sleep(20);
+            long size = cacheManager.getSegmentSize();
+            stableCount = size == lastSize ? stableCount + 1 : 0;
+            lastSize = size;
+        }
+    }
+
+    private static void awaitEntryCount(SegmentCacheManager cacheManager, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while(cacheManager.getSegmentEntryCount() > count && System.currentTimeMillis() < deadline){
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * 关闭段文件，模拟进程退出
+     */
+    private void close(SegmentCacheManager cacheManager){
+        cacheManager.setCacheDirectory(directory.getPath());
+    }
+
+    private File getSegmentDirectory(){
+        return new File(new File(directory, "go_http"), "segments");
+    }
+
+    private int countSegmentFiles(){
+        String[] names = getSegmentDirectory().list();
+        int count = 0;
+        if(names != null){
+            for(String name : names){
+                if(name.endsWith(".seg")){
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private File findLastSegmentFile(){
+        File lastFile = null;
+        int lastId = -1;
+        File[] files = getSegmentDirectory().listFiles();
+        if(files != null){
+            for(File file : files){
+                String name = file.getName();
+                if(name.startsWith("segment_") && name.endsWith(".seg")){
+                    int id = Integer.parseInt(name.substring("segment_".length(), name.length() - ".seg".length()));
+                    if(id > lastId){
+                        lastId = id;
+                        lastFile = file;
+                    }
+                }
+            }
+        }
+        return lastFile;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.gohttp;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class SyncManagerTest {
+
+    @Test
+    public void testSameRequestsAreCoalesced(){
+        GoHttp goHttp = TestHelper.createGoHttp(null, null);
+        HttpRequest leader = TestHelper.createRequest(goHttp, "http://www.example.com/a", new CacheConfig());
+        HttpRequest follower = TestHelper.createRequest(goHttp, "http://www.example.com/a", new CacheConfig());
+        Assert.assertFalse(goHttp.getSyncManager().joinFlight(leader));
+        Assert.assertTrue(goHttp.getSyncManager().joinFlight(follower));
+        Assert.assertTrue(leader.getFollowers().contains(follower));
+    }
+
+    @Test
+    public void testCacheIdCollisionIsNotCoalesced(){
+        // 自定义的缓存ID生成规则让所有请求都得到了相同的缓存ID
+        GoHttp goHttp = TestHelper.createGoHttp(new DefaultCacheManager(){
+            @Override
+            public String generateCacheId(HttpRequest httpRequest) {
+                return "same";
+            }
+        }, null);
+        HttpRequest leader = TestHelper.createRequest(goHttp, "http://www.example.com/a", new CacheConfig());
+        HttpRequest other = TestHelper.createRequest(goHttp, "http://www.example.com/b", new CacheConfig());
+        Assert.assertEquals(leader.createFlightKey(), other.createFlightKey());
+        Assert.assertFalse(goHttp.getSyncManager().joinFlight(leader));
+        Assert.assertFalse(goHttp.getSyncManager().joinFlight(other));
+        Assert.assertTrue(leader.getFollowers().isEmpty());
+
+        // 参数不一样也不能合并
+        HttpRequest withParams = new HttpRequest(new HttpHelper(goHttp, "http://www.example.com/b", new StringHttpResponseHandler()).cacheConfig(new CacheConfig()).addParam("page", "2"));
+        Assert.assertFalse(goHttp.getSyncManager().joinFlight(withParams));
+        Assert.assertTrue(other.getFollowers().isEmpty());
+    }
+
+    @Test
+    public void testCanceledRequestIsNotJoined(){
+        GoHttp goHttp = TestHelper.createGoHttp(null, null);
+        HttpRequest leader = TestHelper.createRequest(goHttp, "http://www.example.com/a", new CacheConfig());
+        HttpRequest follower = TestHelper.createRequest(goHttp, "http://www.example.com/a", new CacheConfig());
+        Assert.assertFalse(goHttp.getSyncManager().joinFlight(leader));
+        Assert.assertTrue(goHttp.getSyncManager().joinFlight(follower));
+
+        // 还有没取消的请求的话不算取消，也不关闭合并
+        leader.cancel(false);
+        Assert.assertFalse(goHttp.getSyncManager().closeFlightIfCanceled(leader));
+        Assert.assertNotNull(leader.getFlightKey());
+
+        // 全部取消之后关闭合并，新的请求单独执行
+        follower.cancel(false);
+        Assert.assertNull(leader.getFlightKey());
+        HttpRequest late = TestHelper.createRequest(goHttp, "http://www.example.com/a", new CacheConfig());
+        Assert.assertFalse(goHttp.getSyncManager().joinFlight(late));
+        Assert.assertFalse(leader.getFollowers().contains(late));
+    }
+
+    @Test
+    public void testExecuteOnWorkerThreadDoesNotJoinQueuedRequest() throws Exception {
+        // 只有一个请求线程，占着它的任务同步执行一个和排队中的请求相同的请求
+        final GoHttp goHttp = TestHelper.createGoHttp(null, null);
+        RequestExecutor executor = new RequestExecutor(1, RequestExecutor.DEFAULT_AGING_MILLIS);
+        goHttp.setExecutorService(executor);
+        final String url = "http://127.0.0.1:1/same";
+        final CountDownLatch leaderQueued = new CountDownLatch(1);
+        final CountDownLatch executed = new CountDownLatch(1);
+        final Throwable[] unexpected = new Throwable[1];
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    leaderQueued.await();
+                    new HttpHelper(goHttp, url, new StringHttpResponseHandler()).execute();
+                } catch (ResultFuture.FailureException e) {
+                    // 端口不通，失败也算执行完了
+                } catch (Throwable e) {
+                    unexpected[0] = e;
+                } finally {
+                    executed.countDown();
+                }
+            }
+        });
+        ResultFuture<String> leader = new HttpHelper(goHttp, url, new StringHttpResponseHandler()).submit();
+        Assert.assertEquals(1, executor.getQueue().size());
+        leaderQueued.countDown();
+
+        // 合并到排队中的请求上的话会一直等待它，而它在等待唯一的线程，就死锁了
+        Assert.assertTrue("在工作线程中同步执行的请求合并到了排队中的请求上", executed.await(10, TimeUnit.SECONDS));
+        Assert.assertNull(String.valueOf(unexpected[0]), unexpected[0]);
+        try{
+            leader.get(10, TimeUnit.SECONDS);
+        }catch (ExecutionException e){
+            // 端口不通
+        }
+        Assert.assertTrue(leader.isDone());
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testCancelAndJoinAreAtomic() throws Exception {
+        final GoHttp goHttp = TestHelper.createGoHttp(null, null);
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+        for(int w = 0; w < 2000; w++){
+            final HttpRequest leader = TestHelper.createRequest(goHttp, "http://www.example.com/" + w, new CacheConfig());
+            final HttpRequest joiner = TestHelper.createRequest(goHttp, "http://www.example.com/" + w, new CacheConfig());
+            Assert.assertFalse(goHttp.getSyncManager().joinFlight(leader));
+
+            final boolean[] joined = new boolean[1];
+            Thread joinThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        barrier.await();
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                    joined[0] = goHttp.getSyncManager().joinFlight(joiner);
+                }
+            });
+            joinThread.start();
+            barrier.await();
+            leader.cancel(false);
+            joinThread.join();
+
+            // 合并进来的请求没有取消，所以不能按取消处理：要么先合并进来，取消不生效；要么先决定取消，合并不进来
+            if(joined[0]){
+                Assert.assertFalse(leader.isCanceled());
+                Assert.assertNotNull("第" + w + "次：已经决定取消的请求上合并进来了新的请求", leader.getFlightKey());
+            }else{
+                Assert.assertNull(leader.getFlightKey());
+                Assert.assertFalse(leader.getFollowers().contains(joiner));
+            }
+        }
+    }
+}
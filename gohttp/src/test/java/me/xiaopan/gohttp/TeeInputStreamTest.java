@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.gohttp;
+
+import org.apache.http.HttpResponse;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+public class TeeInputStreamTest {
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = TestHelper.createTempDirectory("tee");
+    }
+
+    @After
+    public void tearDown(){
+        TestHelper.delete(directory);
+    }
+
+    @Test
+    public void testCopiesEverythingRead() throws IOException {
+        byte[] body = TestHelper.createBody(10000, 1);
+        ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        TeeInputStream teeInputStream = new TeeInputStream(new ByteArrayInputStream(body), copy);
+
+        // 单字节读取、批量读取和跳过的数据都要写入
+        ByteArrayOutputStream read = new ByteArrayOutputStream();
+        read.write(teeInputStream.read());
+        byte[] bytes = new byte[100];
+        int number = teeInputStream.read(bytes);
+        read.write(bytes, 0, number);
+        Assert.assertEquals(500, teeInputStream.skip(500));
+        Assert.assertFalse(teeInputStream.isEof());
+        teeInputStream.drain();
+        Assert.assertTrue(teeInputStream.isEof());
+        Assert.assertEquals(-1, teeInputStream.read());
+        Assert.assertArrayEquals(body, copy.toByteArray());
+        Assert.assertEquals(101, read.size());
+    }
+
+    @Test
+    public void testCloseDoesNotCloseSource() throws IOException {
+        CloseTrackingInputStream source = new CloseTrackingInputStream(new byte[10]);
+        TeeInputStream teeInputStream = new TeeInputStream(source, new ByteArrayOutputStream());
+        teeInputStream.close();
+        Assert.assertFalse(source.closed);
+        teeInputStream.drain();
+        teeInputStream.closeSource();
+        Assert.assertTrue(source.closed);
+    }
+
+    @Test
+    public void testWriteFailureDoesNotAffectReading() throws IOException {
+        byte[] body = TestHelper.createBody(5000, 2);
+        FailingOutputStream outputStream = new FailingOutputStream(1000);
+        TeeInputStream teeInputStream = new TeeInputStream(new ByteArrayInputStream(body), outputStream);
+        Assert.assertArrayEquals(body, TestHelper.readFully(teeInputStream));
+        Assert.assertNotNull(teeInputStream.getWriteException());
+
+        // 写入失败之后就不再写入了
+        Assert.assertEquals(1, outputStream.failures);
+    }
+
+    @Test
+    public void testCommitWritesRemainingData() throws IOException {
+        DefaultCacheManager cacheManager = new DefaultCacheManager();
+        GoHttp goHttp = TestHelper.createGoHttp(cacheManager, directory);
+        HttpRequest httpRequest = TestHelper.createRequest(goHttp, "http://www.example.com/commit", new CacheConfig());
+        byte[] body = TestHelper.createBody(100 * 1024, 3);
+        HttpResponse httpResponse = TestHelper.createResponse(body, "application/octet-stream");
+
+        CacheEditor cacheEditor = cacheManager.editHttpResponseCache(httpRequest, httpResponse);
+        Assert.assertNotNull(cacheEditor);
+
+        // 响应处理器只读了一部分就结束了，提交的时候会把剩下的数据读完
+        InputStream inputStream = httpResponse.getEntity().getContent();
+        byte[] bytes = new byte[1000];
+        Assert.assertTrue(inputStream.read(bytes) > 0);
+        inputStream.close();
+        Assert.assertFalse(cacheManager.isHasAvailableCache(httpRequest));
+        cacheEditor.commit();
+
+        Assert.assertTrue(cacheManager.isHasAvailableCache(httpRequest));
+        HttpResponse cachedResponse = cacheManager.readHttpResponseFromCache(httpRequest);
+        Assert.assertNotNull(cachedResponse);
+        Assert.assertArrayEquals(body, TestHelper.readFully(cachedResponse.getEntity().getContent()));
+        Assert.assertEquals(0, countTempFiles());
+
+        // 重复提交或者提交之后再放弃都没有影响
+        cacheEditor.commit();
+        cacheEditor.abort();
+        Assert.assertTrue(cacheManager.isHasAvailableCache(httpRequest));
+    }
+
+    @Test
+    public void testAbortKeepsOldCache() throws IOException {
+        DefaultCacheManager cacheManager = new DefaultCacheManager();
+        GoHttp goHttp = TestHelper.createGoHttp(cacheManager, directory);
+        HttpRequest httpRequest = TestHelper.createRequest(goHttp, "http://www.example.com/abort", new CacheConfig());
+        byte[] oldBody = TestHelper.createBody(2000, 4);
+        cacheManager.saveHttpResponseToCache(httpRequest, TestHelper.createResponse(oldBody, "text/plain"));
+
+        HttpResponse httpResponse = TestHelper.createResponse(TestHelper.createBody(50 * 1024, 5), "text/plain");
+        CacheEditor cacheEditor = cacheManager.editHttpResponseCache(httpRequest, httpResponse);
+        TestHelper.readFully(httpResponse.getEntity().getContent());
+        cacheEditor.abort();
+        cacheEditor.commit();
+
+        HttpResponse cachedResponse = cacheManager.readHttpResponseFromCache(httpRequest);
+        Assert.assertNotNull(cachedResponse);
+        Assert.assertArrayEquals(oldBody, TestHelper.readFully(cachedResponse.getEntity().getContent()));
+        Assert.assertEquals(0, countTempFiles());
+    }
+
+    @Test
+    public void testWriteFailureIsReportedOnCommit() throws IOException {
+        DefaultCacheManager cacheManager = new DefaultCacheManager();
+        GoHttp goHttp = TestHelper.createGoHttp(cacheManager, directory);
+        HttpRequest httpRequest = TestHelper.createRequest(goHttp, "http://www.example.com/fail", new CacheConfig());
+        HttpResponse httpResponse = TestHelper.createResponse(TestHelper.createBody(50 * 1024, 6), "text/plain");
+        CacheEditor cacheEditor = cacheManager.editHttpResponseCache(httpRequest, httpResponse);
+
+        // 写入期间临时文件被删掉了，重命名失败
+        for(File file : cacheManager.getCacheDirectory(goHttp).listFiles()){
+            if(file.getName().endsWith(".tmp")){
+                Assert.assertTrue(file.delete());
+            }
+        }
+        TestHelper.readFully(httpResponse.getEntity().getContent());
+        try{
+            cacheEditor.commit();
+            Assert.fail("提交应该失败");
+        }catch (IOException e){
+            // 预期的结果
+        }
+        Assert.assertFalse(cacheManager.isHasAvailableCache(httpRequest));
+        Assert.assertEquals(1, cacheManager.getStats().snapshot().getWriteFailureCount());
+    }
+
+    private int countTempFiles(){
+        int count = 0;
+        File[] files = new File(directory, "go_http").listFiles();
+        if(files != null){
+            for(File file : files){
+                // 索引日志重写时的journal.tmp不算
+                if(file.getName().endsWith(".tmp") && !file.getName().startsWith("journal")){
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private static class CloseTrackingInputStream extends ByteArrayInputStream {
+        private boolean closed;
+
+        CloseTrackingInputStream(byte[] bytes) {
+            super(bytes);
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            super.close();
+        }
+    }
+
+    private static class FailingOutputStream extends OutputStream {
+        private int remaining;  // 还能写入多少字节
+        private int failures;
+
+        FailingOutputStream(int remaining) {
+            this.remaining = remaining;
+        }
+
+        @Override
+        public void write(int oneByte) throws IOException {
+            write(new byte[]{(byte) oneByte}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            if(count > remaining){
+                failures++;
+                throw new IOException("磁盘已满");
+            }
+            remaining -= count;
+        }
+    }
+}
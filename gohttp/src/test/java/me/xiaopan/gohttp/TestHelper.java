@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.gohttp;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 测试用的工具方法
+ */
+final class TestHelper {
+    private TestHelper(){
+
+    }
+
+    /**
+     * 创建一个空的临时目录
+     */
+    static File createTempDirectory(String prefix) throws IOException {
+        File directory = File.createTempFile(prefix, "");
+        if(!directory.delete() || !directory.mkdirs()){
+            throw new IOException("创建临时目录失败：" + directory.getPath());
+        }
+        return directory;
+    }
+
+    /**
+     * 删除文件或目录
+     */
+    static void delete(File file){
+        if(file == null){
+            return;
+        }
+        File[] files = file.listFiles();
+        if(files != null){
+            for(File child : files){
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * 创建一个使用给定缓存管理器的GoHttp，缓存目录为给定的目录
+     */
+    static GoHttp createGoHttp(CacheManager cacheManager, File cacheDirectory){
+        GoHttp goHttp = new GoHttp(null);
+        if(cacheManager != null){
+            if(cacheDirectory != null){
+                cacheManager.setCacheDirectory(cacheDirectory.getPath());
+            }
+            goHttp.setCacheManager(cacheManager);
+        }
+        return goHttp;
+    }
+
+    /**
+     * 创建一个带缓存配置的GET请求
+     */
+    static HttpRequest createRequest(GoHttp goHttp, String url, CacheConfig cacheConfig){
+        return new HttpRequest(new HttpHelper(goHttp, url, new StringHttpResponseHandler()).cacheConfig(cacheConfig));
+    }
+
+    /**
+     * 创建一个200响应
+     */
+    static HttpResponse createResponse(byte[] body, String contentType){
+        HttpResponse httpResponse = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        ByteArrayEntity entity = new ByteArrayEntity(body);
+        if(contentType != null){
+            entity.setContentType(contentType);
+            httpResponse.addHeader("Content-Type", contentType);
+        }
+        httpResponse.setEntity(entity);
+        return httpResponse;
+    }
+
+    /**
+     * 生成指定长度的测试数据
+     */
+    static byte[] createBody(int length, int seed){
+        byte[] body = new byte[length];
+        for(int w = 0; w < length; w++){
+            body[w] = (byte) (w * 31 + seed);
+        }
+        return body;
+    }
+
+    /**
+     * 读取输入流中的全部数据并关闭
+     */
+    static byte[] readFully(InputStream inputStream) throws IOException {
+        try{
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            byte[] bytes = new byte[4096];
+            int number;
+            while((number = inputStream.read(bytes)) != -1){
+                outputStream.write(bytes, 0, number);
+            }
+            return outputStream.toByteArray();
+        }finally {
+            inputStream.close();
+        }
+    }
+}